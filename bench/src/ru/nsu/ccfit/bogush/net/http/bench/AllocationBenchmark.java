@@ -0,0 +1,182 @@
+package ru.nsu.ccfit.bogush.net.http.bench;
+
+import ru.nsu.ccfit.bogush.net.http.proxy.Proxy;
+import ru.nsu.ccfit.bogush.net.http.proxy.cache.ResponseCache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.US_ASCII;
+
+/**
+ * Measures the heap allocated by the reactor thread per proxied request in the steady state. A client sends
+ * requests one after another, over one keep-alive connection or over a new connection each time. The origin
+ * keeps its connections open, so the upstream connection is always taken from the pool, and responses are
+ * either proxied or served from the {@link ResponseCache}. <br>
+ *
+ * Usage: <code>AllocationBenchmark [requests]</code>
+ */
+public class AllocationBenchmark {
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int RESPONSE_BODY_SIZE = 1024;
+
+    public static void main(String[] args)
+            throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ServerSocketChannel origin = ServerSocketChannel.open().bind(new InetSocketAddress(LOOPBACK, 0));
+        Thread originThread = new Thread(() -> serve(origin), "origin");
+        originThread.setDaemon(true);
+        originThread.start();
+        int originPort = ((InetSocketAddress) origin.getLocalAddress()).getPort();
+
+        out.format("%-30s %10s %12s\n", "scenario", "us/op", "bytes/op");
+        for (boolean cached : new boolean[]{false, true}) {
+            Proxy proxy = new Proxy(new InetSocketAddress(LOOPBACK, 0), 1)
+                    .setResponseCache(cached ? new ResponseCache() : null);
+            Thread acceptor = new Thread(() -> {
+                try {
+                    proxy.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            InetSocketAddress proxyAddress;
+            while ((proxyAddress = proxy.getLocalAddress()) == null) {
+                Thread.sleep(10);
+            }
+
+            String suffix = cached ? " cached" : "";
+            measure(out, "keep-alive" + suffix, proxyAddress, originPort, requests, true);
+            measure(out, "connection per request" + suffix, proxyAddress, originPort, requests / 10, false);
+            proxy.stop();
+        }
+        origin.close();
+    }
+
+    private static void measure(PrintStream out, String name, InetSocketAddress proxy, int originPort,
+                                int requests, boolean keepAlive)
+            throws Exception {
+        byte[] request = ("GET http://" + LOOPBACK + ":" + originPort + "/ HTTP/1.1\r\n" +
+                "Host: " + LOOPBACK + ":" + originPort + "\r\n" +
+                "User-Agent: AllocationBenchmark\r\n" +
+                "Accept: */*\r\n\r\n").getBytes(US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        // warm up and find the reactor thread
+        run(proxy, request, buffer, requests, keepAlive);
+        Thread reactor = null;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("reactor-0")) {
+                reactor = thread;
+            }
+        }
+        if (reactor == null) throw new IllegalStateException("reactor thread not found");
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = threads.getThreadAllocatedBytes(reactor.getId());
+        long start = System.nanoTime();
+        run(proxy, request, buffer, requests, keepAlive);
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(reactor.getId()) - allocated;
+
+        out.format("%-30s %10.1f %12d\n", name, elapsed / 1e3 / requests, allocated / requests);
+    }
+
+    private static void run(InetSocketAddress proxy, byte[] request, ByteBuffer buffer, int requests,
+                            boolean keepAlive)
+            throws IOException {
+        SocketChannel socket = null;
+        for (int i = 0; i < requests; i++) {
+            if (socket == null) {
+                socket = SocketChannel.open(proxy);
+            }
+            socket.write(ByteBuffer.wrap(request));
+            readResponse(socket, buffer);
+            if (!keepAlive) {
+                socket.close();
+                socket = null;
+            }
+        }
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Reads one response with a body of {@link #RESPONSE_BODY_SIZE} bytes.
+     */
+    private static void readResponse(SocketChannel socket, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        int headEnd = -1;
+        while (headEnd == -1 || buffer.position() < headEnd + RESPONSE_BODY_SIZE) {
+            if (socket.read(buffer) == -1) {
+                throw new IOException("connection closed after " + buffer.position() + " bytes");
+            }
+            if (headEnd == -1) {
+                headEnd = headEnd(buffer);
+            }
+        }
+    }
+
+    private static int headEnd(ByteBuffer buffer) {
+        for (int i = 3; i < buffer.position(); i++) {
+            if (buffer.get(i - 3) == '\r' && buffer.get(i - 2) == '\n' && buffer.get(i - 1) == '\r' &&
+                    buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static void serve(ServerSocketChannel origin) {
+        byte[] head = ("HTTP/1.1 200 OK\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Cache-Control: max-age=3600\r\n" +
+                "Content-Length: " + RESPONSE_BODY_SIZE + "\r\n\r\n").getBytes(US_ASCII);
+        ByteBuffer response = ByteBuffer.allocateDirect(head.length + RESPONSE_BODY_SIZE);
+        response.put(head);
+        while (response.hasRemaining()) {
+            response.put((byte) 'x');
+        }
+        while (true) {
+            SocketChannel socket;
+            try {
+                socket = origin.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread connection = new Thread(() -> {
+                ByteBuffer request = ByteBuffer.allocate(4096);
+                try (SocketChannel s = socket) {
+                    while (true) {
+                        request.clear();
+                        while (headEnd(request) == -1) {
+                            if (s.read(request) == -1) return;
+                        }
+                        ByteBuffer r = response.duplicate();
+                        r.clear();
+                        while (r.hasRemaining()) {
+                            s.write(r);
+                        }
+                    }
+                } catch (IOException ignored) {
+                }
+            }, "origin connection");
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ru.nsu.ccfit.bogush.net.http.bench;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPMessage;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPRequestHeadParser;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPResponseHeadParser;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.*;
+
+/**
+ * Compares time and allocation per parsed head of the byte-level head parsers with the regular expression
+ * parsers they replaced. <br>
+ *
+ * Usage: <code>HeadParserBenchmark [iterations]</code>
+ */
+public class HeadParserBenchmark {
+    static final byte[] REQUEST = ("GET http://www.example.com/images/logo.png?size=large HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n" +
+            "Accept: image/avif,image/webp,*/*\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Referer: http://www.example.com/\r\n" +
+            "Cookie: session=0123456789abcdef; theme=dark").getBytes(US_ASCII);
+    static final byte[] RESPONSE = ("HTTP/1.1 200 OK\r\n" +
+            "Date: Sun, 18 Oct 2026 12:00:00 GMT\r\n" +
+            "Server: Apache/2.4.57 (Unix)\r\n" +
+            "Last-Modified: Mon, 05 Oct 2026 08:30:00 GMT\r\n" +
+            "ETag: \"5e2-5b8c3f1d2a6c0\"\r\n" +
+            "Accept-Ranges: bytes\r\n" +
+            "Content-Length: 1506\r\n" +
+            "Cache-Control: max-age=3600\r\n" +
+            "Content-Type: image/png").getBytes(US_ASCII);
+
+    private interface Parse {
+        HTTPMessage run() throws Exception;
+    }
+
+    public static void main(String[] args)
+            throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        ByteBuffer directRequest = direct(REQUEST);
+        ByteBuffer directResponse = direct(RESPONSE);
+
+        System.out.format("%-24s %10s %12s\n", "parser", "ns/op", "bytes/op");
+        measure("request  regex", iterations, () -> RegexParser.parseRequest(REQUEST));
+        measure("request  bytes", iterations, () -> new HTTPRequestHeadParser(REQUEST).parse());
+        measure("request  bytes direct", iterations, () -> new HTTPRequestHeadParser(directRequest).parse());
+        measure("response regex", iterations, () -> RegexParser.parseResponse(RESPONSE));
+        measure("response bytes", iterations, () -> new HTTPResponseHeadParser(RESPONSE).parse());
+        measure("response bytes direct", iterations, () -> new HTTPResponseHeadParser(directResponse).parse());
+    }
+
+    private static void measure(String name, int iterations, Parse parse)
+            throws Exception {
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            sink += parse.run().getFields().size();
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += parse.run().getFields().size();
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+
+        if (sink == 0) throw new AssertionError();
+        System.out.format("%-24s %10.1f %12d\n", name, (double) elapsed / iterations, allocated / iterations);
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    /**
+     * The regular expression parsers as they were before the byte-level ones, also the reference the byte-level
+     * ones are checked against.
+     */
+    static class RegexParser {
+        private static final String VERSION_PATTERN_STRING = "(?<version>HTTP/\\d.\\d)";
+        private static final String FIELD_DELIMITER_PATTERN_STRING = CR + "?" + LF;
+        private static final Pattern FIELD_PATTERN = Pattern.compile("(?<name>.+):(?<value>.*)");
+        private static final Pattern REQUEST_LINE_PATTERN = Pattern.compile("(?<method>GET|POST|HEAD)" + SP +
+                "(?:(?<protocol>[a-zA-Z]+)://)?(?:(?<host>[^/:]+)(?::(?<port>\\d{1,5}))?)?(?<path>\\S*/)?(?<query>\\S+)" +
+                SP + VERSION_PATTERN_STRING + "?" + CR + "?" + LF);
+        private static final Pattern STATUS_LINE_PATTERN = Pattern.compile(VERSION_PATTERN_STRING + SP +
+                "(?<status>\\d{3})" + SP + "(?<reason>[\\w" + SP + HT + "]*)" + CR + "?" + LF);
+
+        static HTTPRequest parseRequest(byte[] bytes) {
+            int lineEnd = lineEnd(bytes);
+            Matcher matcher = REQUEST_LINE_PATTERN.matcher(new String(bytes, 0, lineEnd + 1, US_ASCII));
+            if (!matcher.matches()) throw new IllegalArgumentException("Couldn't parse request line");
+            HTTPRequest request = new HTTPRequest();
+            request.setMethod(matcher.group("method"));
+            request.setProtocol(matcher.group("protocol") != null ? matcher.group("protocol") : DEFAULT_PROTOCOL);
+            request.setHost(matcher.group("host") != null ? matcher.group("host") : DEFAULT_HOST);
+            request.setPort(matcher.group("port") != null ? Integer.parseInt(matcher.group("port")) : DEFAULT_PORT);
+            request.setPath(matcher.group("path") != null ? matcher.group("path") : DEFAULT_PATH);
+            request.setQuery(matcher.group("query"));
+            request.setVersion(matcher.group("version") != null ? matcher.group("version") : DEFAULT_VERSION);
+            parseFields(bytes, lineEnd + 1, request);
+            return request;
+        }
+
+        static HTTPResponse parseResponse(byte[] bytes) {
+            int lineEnd = lineEnd(bytes);
+            Matcher matcher = STATUS_LINE_PATTERN.matcher(new String(bytes, 0, lineEnd + 1, US_ASCII));
+            if (!matcher.matches()) throw new IllegalArgumentException("Couldn't parse status line");
+            HTTPResponse response = new HTTPResponse();
+            response.setVersion(matcher.group("version"));
+            response.setStatusCode(matcher.group("status"));
+            response.setReasonPhrase(matcher.group("reason"));
+            parseFields(bytes, lineEnd + 1, response);
+            return response;
+        }
+
+        private static void parseFields(byte[] bytes, int from, HTTPMessage message) {
+            String s = new String(bytes, from, bytes.length - from, ISO_8859_1);
+            for (String field : s.split(FIELD_DELIMITER_PATTERN_STRING)) {
+                Matcher matcher = FIELD_PATTERN.matcher(field);
+                if (!matcher.matches()) throw new IllegalArgumentException("Couldn't parse field");
+                message.setField(matcher.group("name").trim(), matcher.group("value").trim());
+            }
+        }
+
+        private static int lineEnd(byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == LF) return i;
+            }
+            throw new IllegalArgumentException("CRLF nor LF not found");
+        }
+    }
+}
@@ -0,0 +1,561 @@
+package ru.nsu.ccfit.bogush.net.http.bench;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPMessageHeadParser;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPParseException;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPRequestHeadParser;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPResponseHeadParser;
+import ru.nsu.ccfit.bogush.net.http.proxy.Proxy;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.AccessLog;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+import ru.nsu.ccfit.bogush.net.http.proxy.metrics.Histogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.channels.SelectionKey.*;
+import static ru.nsu.ccfit.bogush.net.http.Constants.US_ASCII;
+
+/**
+ * Load test of the whole proxy on localhost: a {@link Proxy} and an NIO origin server run in this process
+ * and a client drives requests through them at a fixed rate, reporting the throughput and the latency
+ * percentiles. Responses are not cached, so every request takes the path from accepting the client through
+ * reading its request and connecting to the origin to relaying the response. <br>
+ *
+ * The client is open-loop: requests are due at <code>rate</code> per second whether or not earlier ones
+ * were answered, and are sent over the first idle one of <code>connections</code> keep-alive connections.
+ * Latency is measured from when a request was due rather than from when it was sent, so time spent
+ * waiting for a free connection behind slow responses counts too, instead of silently lowering the rate.
+ * The first fifth of the run warms up and is not measured. The origin answers every request with a body of
+ * <code>response size</code> bytes after <code>delay</code> milliseconds. <br>
+ *
+ * If <code>max p99</code> is given, the test fails with exit code 1 when the 99th percentile is above it
+ * or any request failed, so that it can gate a release. <br>
+ *
+ * The proxy runs the given {@link Proxy.Engine engine}, so that the engines can be compared. Before the run,
+ * once all connections are open and idle, the memory they take is reported per connection: the heap that
+ * is still reachable, the buffers taken from the proxy's pool and the threads started for them. <br>
+ *
+ * Usage: <code>LoadTest [connections [rate [seconds [response size [delay [reactors [max p99
+ * [engine]]]]]]]]</code>
+ * <br>
+ * with <code>delay</code> and <code>max p99</code> in milliseconds, a <code>max p99</code> of <code>-</code>
+ * standing for none and an engine of <code>selector</code>, the default, or <code>threads</code>.
+ */
+public class LoadTest {
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    public static void main(String[] args)
+            throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int responseSize = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+        long delayMillis = args.length > 4 ? Long.parseLong(args[4]) : 0;
+        int reactors = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+        double maxP99Millis = args.length > 6 && !args[6].equals("-") ? Double.parseDouble(args[6]) : Double.NaN;
+        Proxy.Engine engine = args.length > 7 ? Proxy.Engine.valueOf(args[7].toUpperCase()) : Proxy.Engine.SELECTOR;
+
+        Origin origin = new Origin(responseSize, TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        origin.start();
+
+        Proxy proxy = new Proxy(new InetSocketAddress(LOOPBACK, 0), reactors)
+                .setLog(new Log(Log.Level.WARN, Log.DEFAULT_PAYLOAD_SAMPLING, System.err))
+                .setAccessLog(new AccessLog(OutputStream.nullOutputStream(), AccessLog.DEFAULT_CAPACITY))
+                .setResponseCache(null)
+                .setEngine(engine);
+        Thread acceptor = new Thread(() -> {
+            try {
+                proxy.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        InetSocketAddress proxyAddress;
+        while ((proxyAddress = proxy.getLocalAddress()) == null) {
+            Thread.sleep(10);
+        }
+
+        byte[] request = ("GET http://" + LOOPBACK + ":" + origin.port() + "/ HTTP/1.1\r\n" +
+                "Host: " + LOOPBACK + ":" + origin.port() + "\r\n" +
+                "User-Agent: LoadTest\r\n" +
+                "Accept: */*\r\n\r\n").getBytes(US_ASCII);
+        Client client = new Client(proxyAddress, request, connections, rate);
+        long heapBefore = usedHeap();
+        long poolBefore = proxy.getBufferPool().getInUseBytes();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        client.open();
+        // let the proxy take up the connections
+        Thread.sleep(500);
+        double heapPerConnection = (double) (usedHeap() - heapBefore) / connections;
+        double poolPerConnection = (double) (proxy.getBufferPool().getInUseBytes() - poolBefore) / connections;
+        double threadsPerConnection = (double) (ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore) /
+                connections;
+        long duration = TimeUnit.SECONDS.toNanos(seconds);
+        client.run(duration / 5, duration);
+
+        proxy.stop();
+        origin.stop();
+
+        PrintStream out = System.out;
+        Histogram latency = client.latency;
+        out.format("connections %d, rate %d/s, %d s, response %d bytes after %d ms, %s engine, %d reactors\n",
+                connections, rate, seconds, responseSize, delayMillis, engine.name().toLowerCase(), reactors);
+        out.format("%-12s %10d sent, %d completed, %d failed, %d unfinished\n", "requests",
+                client.sent, client.completed, client.failed, client.sent - client.completed - client.failed);
+        out.format("%-12s %10.1f requests/s\n", "throughput", client.throughput());
+        out.format("%-12s %10s %10s %10s %10s %10s\n", "latency, ms", "p50", "p90", "p99", "p999", "max");
+        out.format("%-12s %10.3f %10.3f %10.3f %10.3f %10.3f\n", "",
+                millis(latency.getPercentile(50)), millis(latency.getPercentile(90)),
+                millis(latency.getPercentile(99)), millis(latency.getPercentile(99.9)),
+                millis(latency.getPercentile(100)));
+        out.format("%-12s %10.0f heap bytes, %.0f pooled bytes, %.2f threads per idle connection\n", "memory",
+                heapPerConnection, poolPerConnection, threadsPerConnection);
+
+        if (!Double.isNaN(maxP99Millis)) {
+            double p99 = millis(latency.getPercentile(99));
+            if (p99 > maxP99Millis || client.failed > 0) {
+                out.format("FAILED: p99 %.3f ms (at most %.3f), %d failed requests\n", p99, maxP99Millis,
+                        client.failed);
+                System.exit(1);
+            }
+            out.println("PASSED");
+        }
+    }
+
+    /**
+     * @return the heap in use after a full collection, which the client's own connections take a little of
+     */
+    private static long usedHeap()
+            throws InterruptedException {
+        // the second collection gets what finalization and reference processing freed in the first
+        System.gc();
+        Thread.sleep(100);
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Open-loop client running in the calling thread. Between requests due less than a millisecond apart it
+     * polls its selector, yielding to other threads, instead of blocking, so that requests are sent on time.
+     */
+    private static class Client {
+        private final InetSocketAddress proxy;
+        private final byte[] request;
+        private final int connections;
+        private final int rate;
+        private final Selector selector;
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        private final ArrayDeque<Long> backlog = new ArrayDeque<>();
+        private final Histogram latency = new Histogram();
+        private long measureFrom;
+        private long measureTo;
+        private long sent = 0;
+        private long completed = 0;
+        private long failed = 0;
+        /**
+         * Requests completed between {@link #measureFrom} and {@link #measureTo}.
+         */
+        private long measured = 0;
+
+        Client(InetSocketAddress proxy, byte[] request, int connections, int rate)
+                throws IOException {
+            this.proxy = proxy;
+            this.request = request;
+            this.connections = connections;
+            this.rate = rate;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Opens all connections to the proxy.
+         */
+        void open()
+                throws IOException {
+            for (int i = 0; i < connections; i++) {
+                idle.add(connect());
+            }
+        }
+
+        void run(long warmup, long duration)
+                throws IOException {
+            long start = System.nanoTime();
+            long end = start + duration;
+            measureFrom = start + warmup;
+            measureTo = end;
+            long next = start;
+            while (true) {
+                long now = System.nanoTime();
+                while (next <= now && next < end) {
+                    backlog.add(next);
+                    sent++;
+                    next = start + (long) (sent * 1e9 / rate);
+                }
+                while (!backlog.isEmpty() && !idle.isEmpty()) {
+                    send(idle.poll(), backlog.poll());
+                }
+                int inFlight = connections - idle.size();
+                if (now >= end && inFlight == 0 && backlog.isEmpty() || now >= end + DRAIN_NANOS) {
+                    break;
+                }
+
+                long wait = (next < end ? next : end + DRAIN_NANOS) - now;
+                if (wait < TimeUnit.MILLISECONDS.toNanos(1)) {
+                    if (selector.selectNow(this::handle) == 0) {
+                        Thread.yield();
+                    }
+                } else {
+                    selector.select(this::handle, TimeUnit.NANOSECONDS.toMillis(wait));
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+
+        double throughput() {
+            return measured / ((measureTo - measureFrom) / 1e9);
+        }
+
+        private Connection connect()
+                throws IOException {
+            SocketChannel socket = SocketChannel.open(proxy);
+            socket.configureBlocking(false);
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection c = new Connection(socket, ByteBuffer.wrap(request));
+            c.key = socket.register(selector, OP_READ, c);
+            return c;
+        }
+
+        private void send(Connection c, long due) {
+            c.due = due;
+            c.request.clear();
+            try {
+                c.socket.write(c.request);
+            } catch (IOException e) {
+                replace(c);
+                return;
+            }
+            if (c.request.hasRemaining()) {
+                c.key.interestOps(OP_READ | OP_WRITE);
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Connection c = (Connection) key.attachment();
+            try {
+                if (key.isWritable()) {
+                    c.socket.write(c.request);
+                    if (!c.request.hasRemaining()) {
+                        key.interestOps(OP_READ);
+                    }
+                }
+                if (key.isReadable()) {
+                    read(c);
+                }
+            } catch (IOException | HTTPParseException e) {
+                replace(c);
+            }
+        }
+
+        private void read(Connection c)
+                throws IOException, HTTPParseException {
+            int n = c.socket.read(c.buffer);
+            if (n == -1) {
+                throw new IOException("connection closed by the proxy");
+            }
+            if (c.due == Connection.IDLE) {
+                throw new IOException("unexpected bytes on an idle connection");
+            }
+            if (c.remaining < 0) {
+                int bodyStart = c.parser.advance(c.buffer, c.buffer.position());
+                if (bodyStart == HTTPMessageHeadParser.NEED_MORE) {
+                    if (!c.buffer.hasRemaining()) {
+                        throw new IOException("response head too large");
+                    }
+                    return;
+                }
+                HTTPResponse response = c.parser.getMessage();
+                String length = response.getFieldValue("Content-Length");
+                if (!"200".equals(response.getStatusCode()) || length == null) {
+                    throw new IOException("unexpected response " + response.getStatusLine());
+                }
+                c.remaining = Long.parseLong(length) - (c.buffer.position() - bodyStart);
+            } else {
+                c.remaining -= n;
+            }
+            c.buffer.clear();
+            if (c.remaining == 0) {
+                complete(c);
+            } else if (c.remaining < 0) {
+                throw new IOException("response longer than its Content-Length");
+            }
+        }
+
+        private void complete(Connection c) {
+            long now = System.nanoTime();
+            completed++;
+            if (now >= measureFrom && now < measureTo) {
+                measured++;
+            }
+            if (c.due >= measureFrom && c.due < measureTo) {
+                latency.record(now - c.due);
+            }
+            c.reset();
+            c.key.interestOps(OP_READ);
+            idle.add(c);
+        }
+
+        /**
+         * Replaces a connection that failed or was closed by the proxy. The request in flight on it, if
+         * any, counts as failed.
+         */
+        private void replace(Connection c) {
+            if (c.due == Connection.IDLE) {
+                idle.remove(c);
+            } else {
+                failed++;
+            }
+            try {
+                c.socket.close();
+                idle.add(connect());
+            } catch (IOException e) {
+                throw new IllegalStateException("couldn't reconnect to the proxy", e);
+            }
+        }
+    }
+
+    private static class Connection {
+        private static final long IDLE = Long.MIN_VALUE;
+
+        private final SocketChannel socket;
+        private final ByteBuffer request;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final HTTPResponseHeadParser parser = new HTTPResponseHeadParser(BUFFER_SIZE);
+        private SelectionKey key;
+        private long due = IDLE;
+        private long remaining = -1;
+
+        private Connection(SocketChannel socket, ByteBuffer request) {
+            this.socket = socket;
+            this.request = request;
+        }
+
+        private void reset() {
+            due = IDLE;
+            parser.reset(0);
+            buffer.clear();
+            remaining = -1;
+        }
+    }
+
+    /**
+     * Origin server answering every request head with the same response, after a delay if one is set. It
+     * runs a selector loop in its own thread, so it keeps up with many connections at a low cost.
+     */
+    private static class Origin implements Runnable {
+        private final ByteBuffer response;
+        private final long delayNanos;
+        private final ServerSocketChannel server;
+        private final Selector selector;
+        private final PriorityQueue<Delayed> delayed = new PriorityQueue<>();
+        private volatile boolean stopped = false;
+        private Thread thread;
+
+        Origin(int bodySize, long delayNanos)
+                throws IOException {
+            byte[] head = ("HTTP/1.1 200 OK\r\n" +
+                    "Content-Type: application/octet-stream\r\n" +
+                    "Content-Length: " + bodySize + "\r\n\r\n").getBytes(US_ASCII);
+            response = ByteBuffer.allocateDirect(head.length + bodySize);
+            response.put(head);
+            while (response.hasRemaining()) {
+                response.put((byte) 'x');
+            }
+            this.delayNanos = delayNanos;
+            server = ServerSocketChannel.open().bind(new InetSocketAddress(LOOPBACK, 0), 1024);
+            server.configureBlocking(false);
+            selector = Selector.open();
+            server.register(selector, OP_ACCEPT);
+        }
+
+        int port()
+                throws IOException {
+            return ((InetSocketAddress) server.getLocalAddress()).getPort();
+        }
+
+        void start() {
+            thread = new Thread(this, "origin");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop()
+                throws InterruptedException {
+            stopped = true;
+            selector.wakeup();
+            thread.join();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    long timeout = 0;
+                    if (!delayed.isEmpty()) {
+                        timeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayed.peek().due - System.nanoTime()));
+                    }
+                    selector.select(this::handle, timeout);
+                    long now = System.nanoTime();
+                    while (!delayed.isEmpty() && delayed.peek().due <= now) {
+                        OriginConnection c = delayed.poll().connection;
+                        try {
+                            respond(c);
+                        } catch (IOException e) {
+                            close(c.key);
+                        }
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            try {
+                if (key.isAcceptable()) {
+                    SocketChannel socket = server.accept();
+                    if (socket == null) return;
+                    socket.configureBlocking(false);
+                    socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    OriginConnection c = new OriginConnection(socket, response.duplicate());
+                    c.key = socket.register(selector, OP_READ, c);
+                    return;
+                }
+                OriginConnection c = (OriginConnection) key.attachment();
+                if (key.isReadable()) {
+                    read(c);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write(c);
+                }
+            } catch (IOException | HTTPParseException e) {
+                close(key);
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void read(OriginConnection c)
+                throws IOException, HTTPParseException {
+            if (c.socket.read(c.buffer) == -1) {
+                c.socket.close();
+                return;
+            }
+            int bodyStart;
+            while ((bodyStart = c.parser.advance(c.buffer, c.buffer.position())) != HTTPMessageHeadParser.NEED_MORE) {
+                // requests have no body; keep the bytes of the next head, if any
+                c.buffer.flip().position(bodyStart);
+                c.buffer.compact();
+                c.parser.reset(0);
+                if (delayNanos == 0) {
+                    respond(c);
+                } else {
+                    delayed.add(new Delayed(System.nanoTime() + delayNanos, c));
+                }
+            }
+            if (!c.buffer.hasRemaining()) {
+                throw new IOException("request head too large");
+            }
+        }
+
+        private void respond(OriginConnection c)
+                throws IOException {
+            if (!c.socket.isOpen()) return;
+            if (c.writing) {
+                c.queued++;
+                return;
+            }
+            c.writing = true;
+            c.response.clear();
+            write(c);
+        }
+
+        private void write(OriginConnection c)
+                throws IOException {
+            while (true) {
+                c.socket.write(c.response);
+                if (c.response.hasRemaining()) {
+                    c.key.interestOps(OP_READ | OP_WRITE);
+                    return;
+                }
+                if (c.queued == 0) break;
+                c.queued--;
+                c.response.clear();
+            }
+            c.writing = false;
+            c.key.interestOps(OP_READ);
+        }
+    }
+
+    private static class OriginConnection {
+        private final SocketChannel socket;
+        private final ByteBuffer response;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final HTTPRequestHeadParser parser = new HTTPRequestHeadParser(BUFFER_SIZE);
+        private SelectionKey key;
+        private boolean writing = false;
+        private int queued = 0;
+
+        private OriginConnection(SocketChannel socket, ByteBuffer response) {
+            this.socket = socket;
+            this.response = response;
+        }
+    }
+
+    private static class Delayed implements Comparable<Delayed> {
+        private final long due;
+        private final OriginConnection connection;
+
+        private Delayed(long due, OriginConnection connection) {
+            this.due = due;
+            this.connection = connection;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(due, other.due);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ru.nsu.ccfit.bogush.net.http.bench;
+
+import ru.nsu.ccfit.bogush.net.http.proxy.Proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.US_ASCII;
+
+/**
+ * Measures proxy throughput for an increasing number of reactors against an embedded origin. <br>
+ *
+ * Usage: <code>ReactorScalingBenchmark [clients [seconds [maxReactors]]]</code>
+ */
+public class ReactorScalingBenchmark {
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int RESPONSE_BODY_SIZE = 1024;
+
+    public static void main(String[] args)
+            throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int maxReactors = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        PrintStream out = System.out;
+        // the proxy logs every chunk to stdout
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        Origin origin = new Origin(RESPONSE_BODY_SIZE);
+        origin.start();
+
+        out.format("%-9s %12s %8s\n", "reactors", "requests/s", "speedup");
+        double base = 0;
+        for (int reactors = 1; ; reactors = Math.min(reactors * 2, maxReactors)) {
+            double rate = run(reactors, clients, seconds, origin.port());
+            if (base == 0) base = rate;
+            out.format("%-9d %12.1f %8.2f\n", reactors, rate, rate / base);
+            if (reactors == maxReactors) break;
+        }
+
+        origin.stop();
+    }
+
+    private static double run(int reactors, int clients, int seconds, int originPort)
+            throws Exception {
+        Proxy proxy = new Proxy(new InetSocketAddress(LOOPBACK, 0), reactors);
+        Thread acceptor = new Thread(() -> {
+            try {
+                proxy.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "acceptor");
+        acceptor.start();
+
+        InetSocketAddress proxyAddr;
+        while ((proxyAddr = proxy.getLocalAddress()) == null) {
+            Thread.sleep(10);
+        }
+
+        byte[] request = ("GET http://" + LOOPBACK + ":" + originPort + "/ HTTP/1.0\r\n" +
+                "Host: " + LOOPBACK + ":" + originPort + "\r\n\r\n").getBytes(US_ASCII);
+
+        AtomicLong completed = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        final InetSocketAddress target = proxyAddr;
+        for (int i = 0; i < clients; i++) {
+            executor.execute(() -> {
+                ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+                while (System.nanoTime() < deadline) {
+                    try {
+                        fetch(target, request, buf);
+                        completed.incrementAndGet();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(seconds + 30, TimeUnit.SECONDS);
+
+        proxy.stop();
+        acceptor.join();
+        return completed.get() / (double) seconds;
+    }
+
+    private static void fetch(InetSocketAddress proxyAddr, byte[] request, ByteBuffer buf)
+            throws IOException {
+        try (SocketChannel socket = SocketChannel.open(proxyAddr)) {
+            socket.write(ByteBuffer.wrap(request));
+            buf.clear();
+            while (socket.read(buf) != -1) {
+                buf.clear();
+            }
+        }
+    }
+
+    private static class Origin implements Runnable {
+        private final byte[] response;
+        private final ServerSocketChannel server;
+        private final ExecutorService workers = Executors.newCachedThreadPool();
+
+        Origin(int bodySize)
+                throws IOException {
+            byte[] head = ("HTTP/1.0 200 OK\r\nContent-Length: " + bodySize + "\r\nConnection: close\r\n\r\n").getBytes(US_ASCII);
+            response = new byte[head.length + bodySize];
+            System.arraycopy(head, 0, response, 0, head.length);
+            server = ServerSocketChannel.open().bind(new InetSocketAddress(LOOPBACK, 0), 1024);
+        }
+
+        int port()
+                throws IOException {
+            return ((InetSocketAddress) server.getLocalAddress()).getPort();
+        }
+
+        void start() {
+            new Thread(this, "origin").start();
+        }
+
+        void stop()
+                throws IOException {
+            server.close();
+            workers.shutdownNow();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    SocketChannel socket = server.accept();
+                    workers.execute(() -> serve(socket));
+                }
+            } catch (IOException ignored) {
+                // closed
+            }
+        }
+
+        private void serve(SocketChannel socket) {
+            try (SocketChannel s = socket) {
+                ByteBuffer buf = ByteBuffer.allocate(8 * 1024);
+                while (!headReceived(buf)) {
+                    if (s.read(buf) == -1) return;
+                }
+                ByteBuffer out = ByteBuffer.wrap(response);
+                while (out.hasRemaining()) {
+                    s.write(out);
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        private static boolean headReceived(ByteBuffer buf) {
+            int p = buf.position();
+            return p >= 4 && buf.get(p - 4) == '\r' && buf.get(p - 3) == '\n' && buf.get(p - 2) == '\r' && buf.get(p - 1) == '\n';
+        }
+    }
+}
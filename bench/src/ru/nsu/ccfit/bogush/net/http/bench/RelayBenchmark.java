@@ -0,0 +1,138 @@
+package ru.nsu.ccfit.bogush.net.http.bench;
+
+import ru.nsu.ccfit.bogush.net.http.proxy.Proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.*;
+
+/**
+ * Measures the throughput of relaying a large response body through the proxy, compared with reading it
+ * from the origin directly. The origin is a local server answering every request with a body of the given
+ * size; the proxy runs with one reactor. The request is either proxied or sent through a <code>CONNECT</code>
+ * tunnel. <br>
+ *
+ * Usage: <code>RelayBenchmark [body size in MiB [rounds]]</code>
+ */
+public class RelayBenchmark {
+    private static final int CHUNK = 256 << 10;
+
+    public static void main(String[] args)
+            throws Exception {
+        long bodySize = (args.length > 0 ? Long.parseLong(args[0]) : 2048) << 20;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        ServerSocketChannel origin = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread originThread = new Thread(() -> serve(origin, bodySize), "origin");
+        originThread.setDaemon(true);
+        originThread.start();
+        int originPort = ((InetSocketAddress) origin.getLocalAddress()).getPort();
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Proxy proxy = new Proxy(new InetSocketAddress("127.0.0.1", 0), 1);
+        Thread proxyThread = new Thread(() -> {
+            try {
+                proxy.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "proxy");
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+        InetSocketAddress proxyAddress;
+        while ((proxyAddress = proxy.getLocalAddress()) == null) {
+            Thread.sleep(10);
+        }
+
+        InetSocketAddress originAddress = new InetSocketAddress("127.0.0.1", originPort);
+        out.format("%-8s %10s %10s\n", "path", "MiB", "MiB/s");
+        for (int i = 0; i < rounds; i++) {
+            measure(out, "direct", originAddress, originAddress, bodySize);
+            measure(out, "proxy", proxyAddress, originAddress, bodySize);
+            measure(out, "tunnel", proxyAddress, originAddress, bodySize);
+        }
+        proxy.stop();
+    }
+
+    private static void measure(PrintStream out, String name, InetSocketAddress via, InetSocketAddress origin,
+                                long bodySize)
+            throws IOException {
+        String request = "GET http://127.0.0.1:" + origin.getPort() + "/ HTTP/1.1\r\n" +
+                "Host: 127.0.0.1:" + origin.getPort() + "\r\n" +
+                "Connection: close\r\n\r\n";
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK);
+        long start = System.nanoTime();
+        long received = 0;
+        try (SocketChannel socket = SocketChannel.open(via)) {
+            if (name.equals("tunnel")) {
+                connect(socket, origin, buffer);
+            }
+            socket.write(ByteBuffer.wrap(request.getBytes(US_ASCII)));
+            int n;
+            while ((n = socket.read(buffer)) != -1) {
+                received += n;
+                buffer.clear();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (received < bodySize) {
+            throw new IOException(name + ": received " + received + " of " + bodySize + " body bytes");
+        }
+        out.format("%-8s %10d %10.1f\n", name, received >> 20, (received >> 20) / seconds);
+    }
+
+    /**
+     * Opens a tunnel to <code>origin</code> and skips the answer of the proxy.
+     */
+    private static void connect(SocketChannel socket, InetSocketAddress origin, ByteBuffer buffer)
+            throws IOException {
+        String target = "127.0.0.1:" + origin.getPort();
+        socket.write(ByteBuffer.wrap(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n")
+                .getBytes(US_ASCII)));
+        buffer.clear().limit(1);
+        int crlfs = 0;
+        while (crlfs < 4) {
+            if (socket.read(buffer) == -1) {
+                throw new IOException("tunnel: connection closed");
+            }
+            byte b = buffer.get(0);
+            crlfs = b == CR && crlfs % 2 == 0 || b == LF && crlfs % 2 == 1 ? crlfs + 1 : 0;
+            buffer.clear().limit(1);
+        }
+        buffer.clear();
+    }
+
+    private static void serve(ServerSocketChannel origin, long bodySize) {
+        ByteBuffer body = ByteBuffer.allocateDirect(CHUNK);
+        while (body.hasRemaining()) {
+            body.put((byte) 'x');
+        }
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Length: " + bodySize + "\r\n\r\n").getBytes(US_ASCII);
+        ByteBuffer request = ByteBuffer.allocate(4096);
+        while (true) {
+            try (SocketChannel socket = origin.accept()) {
+                request.clear();
+                socket.read(request);
+                socket.write(ByteBuffer.wrap(head));
+                for (long left = bodySize; left > 0; ) {
+                    body.clear().limit((int) Math.min(CHUNK, left));
+                    left -= socket.write(body);
+                    while (body.hasRemaining()) {
+                        left -= socket.write(body);
+                    }
+                }
+            } catch (IOException e) {
+                if (!origin.isOpen()) return;
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.nsu.ccfit.bogush.net.http.bench.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import ru.nsu.ccfit.bogush.net.http.HTTPMessage;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+import ru.nsu.ccfit.bogush.net.http.build.HTTPHeadEncoder;
+import ru.nsu.ccfit.bogush.net.http.build.HTTPMessageBuilder;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPParseException;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPRequestHeadParser;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPResponseHeadParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.HTTP_1_1;
+
+/**
+ * Serialization of message heads. <br>
+ *
+ * The <code>forward</code> benchmarks encode parsed heads rewritten the way the proxy rewrites them before
+ * forwarding, into a direct buffer with a reused {@link HTTPHeadEncoder}: untouched fields are copied from
+ * the parsed bytes. The <code>built</code> ones write heads whose fields were all set by hand with the
+ * message's {@link HTTPMessageBuilder}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeadEncodeBenchmark {
+    @Param({Heads.SMALL, Heads.HEADERS_50, Heads.COOKIES_8K})
+    public String head;
+
+    private HTTPRequest parsedRequest;
+    private HTTPResponse parsedResponse;
+    private HTTPMessageBuilder builtRequest;
+    private HTTPMessageBuilder builtResponse;
+    private final HTTPHeadEncoder encoder = new HTTPHeadEncoder();
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+    private final ByteBuffer heapOut = ByteBuffer.allocate(64 * 1024);
+
+    @Setup
+    public void setup()
+            throws IOException, HTTPParseException {
+        parsedRequest = new HTTPRequestHeadParser(Heads.direct(Heads.request(head)).flip()).parse();
+        parsedRequest.setVersion(HTTP_1_1);
+        parsedRequest.removeField("Connection");
+        parsedRequest.resetProtocol().resetHost().resetPort();
+
+        parsedResponse = new HTTPResponseHeadParser(Heads.direct(Heads.response(head)).flip()).parse();
+        parsedResponse.removeField("Connection");
+
+        builtRequest = copy(parsedRequest, new HTTPRequest()
+                .setMethod(parsedRequest.getMethod())
+                .setPath(parsedRequest.getPath())
+                .setQuery(parsedRequest.getQuery())).createBuilder();
+        builtResponse = copy(parsedResponse, new HTTPResponse()
+                .setStatusCode(parsedResponse.getStatusCode())
+                .setReasonPhrase(parsedResponse.getReasonPhrase())).createBuilder();
+    }
+
+    @Benchmark
+    public int forwardRequest() {
+        out.clear();
+        encoder.reset(parsedRequest).encode(out);
+        return out.position();
+    }
+
+    @Benchmark
+    public int forwardResponse() {
+        out.clear();
+        encoder.reset(parsedResponse).encode(out);
+        return out.position();
+    }
+
+    @Benchmark
+    public int builtRequest() {
+        heapOut.clear();
+        return builtRequest.write(heapOut);
+    }
+
+    @Benchmark
+    public int builtResponse() {
+        heapOut.clear();
+        return builtResponse.write(heapOut);
+    }
+
+    private static <T extends HTTPMessage> T copy(T from, T to) {
+        to.setVersion(from.getVersion());
+        for (int i = 0; i < from.getFields().size(); i++) {
+            to.addField(from.getFields().getName(i), from.getFields().getValue(i));
+        }
+        return to;
+    }
+}
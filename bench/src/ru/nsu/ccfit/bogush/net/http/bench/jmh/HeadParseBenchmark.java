@@ -0,0 +1,87 @@
+package ru.nsu.ccfit.bogush.net.http.bench.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPMessageHeadParser;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPParseException;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPRequestHeadParser;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPResponseHeadParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of request and response heads. <br>
+ *
+ * The <code>proxy</code> benchmarks feed a reused parser with a head in a direct buffer, as a reactor does,
+ * and look up the fields the proxy always reads; the <code>standalone</code> ones parse a byte array with
+ * a new parser and message each time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeadParseBenchmark {
+    @Param({Heads.SMALL, Heads.HEADERS_50, Heads.COOKIES_8K})
+    public String head;
+
+    private byte[] request;
+    private byte[] response;
+    private ByteBuffer directRequest;
+    private ByteBuffer directResponse;
+    private final HTTPRequestHeadParser requestParser =
+            new HTTPRequestHeadParser(HTTPMessageHeadParser.DEFAULT_MAX_HEAD_SIZE);
+    private final HTTPResponseHeadParser responseParser =
+            new HTTPResponseHeadParser(HTTPMessageHeadParser.DEFAULT_MAX_HEAD_SIZE);
+
+    @Setup
+    public void setup() {
+        request = Heads.request(head);
+        response = Heads.response(head);
+        directRequest = Heads.direct(request);
+        directResponse = Heads.direct(response);
+    }
+
+    @Benchmark
+    public String proxyRequest()
+            throws HTTPParseException {
+        requestParser.reset(0);
+        if (requestParser.advance(directRequest, directRequest.position()) == HTTPMessageHeadParser.NEED_MORE) {
+            throw new IllegalStateException("incomplete head");
+        }
+        HTTPRequest r = requestParser.getMessage();
+        r.getFields().containsToken("Connection", "close");
+        r.getFieldValue("Content-Length");
+        r.getFieldValue("Transfer-Encoding");
+        return r.getFieldValue("Host");
+    }
+
+    @Benchmark
+    public String proxyResponse()
+            throws HTTPParseException {
+        responseParser.reset(0);
+        if (responseParser.advance(directResponse, directResponse.position()) == HTTPMessageHeadParser.NEED_MORE) {
+            throw new IllegalStateException("incomplete head");
+        }
+        HTTPResponse r = responseParser.getMessage();
+        r.getFields().containsToken("Connection", "close");
+        r.getFieldValue("Transfer-Encoding");
+        return r.getFieldValue("Content-Length");
+    }
+
+    @Benchmark
+    public HTTPRequest standaloneRequest()
+            throws IOException, HTTPParseException {
+        return new HTTPRequestHeadParser(request).parse();
+    }
+
+    @Benchmark
+    public HTTPResponse standaloneResponse()
+            throws IOException, HTTPParseException {
+        return new HTTPResponseHeadParser(response).parse();
+    }
+}
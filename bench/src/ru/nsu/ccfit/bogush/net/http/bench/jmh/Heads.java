@@ -0,0 +1,101 @@
+package ru.nsu.ccfit.bogush.net.http.bench.jmh;
+
+import java.nio.ByteBuffer;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.*;
+
+/**
+ * Realistic message heads of the sizes the benchmarks are run with: <br>
+ * <code>small</code> - what a browser sends for an image and what a server answers, about ten fields; <br>
+ * <code>headers50</code> - fifty fields of the kind added by CDNs, tracing and security policies; <br>
+ * <code>cookies8k</code> - the small head with 8 KiB of cookies, in one <code>Cookie</code> field of the
+ * request and in several <code>Set-Cookie</code> fields of the response.
+ */
+public final class Heads {
+    public static final String SMALL = "small";
+    public static final String HEADERS_50 = "headers50";
+    public static final String COOKIES_8K = "cookies8k";
+
+    private static final String REQUEST_LINE = "GET http://www.example.com/images/logo.png?size=large HTTP/1.1";
+    private static final String[] REQUEST_FIELDS = {
+            "Host: www.example.com",
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0",
+            "Accept: image/avif,image/webp,*/*",
+            "Accept-Language: en-US,en;q=0.5",
+            "Accept-Encoding: gzip, deflate",
+            "Connection: keep-alive",
+            "Referer: http://www.example.com/",
+            "Sec-Fetch-Dest: image",
+            "Sec-Fetch-Mode: no-cors",
+    };
+    private static final String STATUS_LINE = "HTTP/1.1 200 OK";
+    private static final String[] RESPONSE_FIELDS = {
+            "Date: Sun, 18 Oct 2026 12:00:00 GMT",
+            "Server: Apache/2.4.57 (Unix)",
+            "Last-Modified: Mon, 05 Oct 2026 08:30:00 GMT",
+            "ETag: \"5e2-5b8c3f1d2a6c0\"",
+            "Accept-Ranges: bytes",
+            "Content-Length: 1506",
+            "Cache-Control: max-age=3600",
+            "Content-Type: image/png",
+            "Connection: keep-alive",
+    };
+    private static final int COOKIE_BYTES = 8 * 1024;
+
+    private Heads() {
+    }
+
+    public static byte[] request(String kind) {
+        StringBuilder sb = head(REQUEST_LINE, REQUEST_FIELDS, kind);
+        if (COOKIES_8K.equals(kind)) {
+            sb.append("Cookie: ");
+            for (int i = 0; sb.length() < COOKIE_BYTES; i++) {
+                if (i > 0) sb.append("; ");
+                sb.append(cookie(i));
+            }
+            sb.append(CRLF);
+        }
+        return sb.append(CRLF).toString().getBytes(US_ASCII);
+    }
+
+    public static byte[] response(String kind) {
+        StringBuilder sb = head(STATUS_LINE, RESPONSE_FIELDS, kind);
+        if (COOKIES_8K.equals(kind)) {
+            for (int i = 0; sb.length() < COOKIE_BYTES; i++) {
+                sb.append("Set-Cookie: ").append(cookie(i))
+                        .append("; Path=/; Domain=.example.com; Max-Age=31536000; Secure; HttpOnly").append(CRLF);
+            }
+        }
+        return sb.append(CRLF).toString().getBytes(US_ASCII);
+    }
+
+    /**
+     * @return a direct buffer holding <code>head</code> before its position, as if it was read from a socket
+     */
+    static ByteBuffer direct(byte[] head) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(head.length);
+        buffer.put(head);
+        return buffer;
+    }
+
+    private static StringBuilder head(String startLine, String[] fields, String kind) {
+        if (!SMALL.equals(kind) && !HEADERS_50.equals(kind) && !COOKIES_8K.equals(kind)) {
+            throw new IllegalArgumentException("unknown head: " + kind);
+        }
+        StringBuilder sb = new StringBuilder(startLine).append(CRLF);
+        for (String field : fields) {
+            sb.append(field).append(CRLF);
+        }
+        if (HEADERS_50.equals(kind)) {
+            for (int i = fields.length; i < 50; i++) {
+                sb.append("X-Edge-Field-").append(i).append(": ")
+                        .append(Long.toHexString(0x9e3779b97f4a7c15L * (i + 1))).append(CRLF);
+            }
+        }
+        return sb;
+    }
+
+    private static String cookie(int i) {
+        return "c" + i + "=" + Long.toHexString(0xc2b2ae3d27d4eb4fL * (i + 1)) + Long.toHexString(i * 31L + 7);
+    }
+}
@@ -0,0 +1,186 @@
+package ru.nsu.ccfit.bogush.net.http.bench.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import ru.nsu.ccfit.bogush.net.http.proxy.Proxy;
+import ru.nsu.ccfit.bogush.net.http.proxy.cache.ResponseCache;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.AccessLog;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.US_ASCII;
+
+/**
+ * Requests proxied end to end over loopback. <br>
+ *
+ * Every benchmark thread is a client sending <code>GET</code> requests one after another over its own
+ * keep-alive connection to a proxy with one reactor. The origin is embedded and answers every request with
+ * a body of <code>bodySize</code> bytes from a thread per connection, which it keeps open, so after the
+ * first request the proxy always reuses a pooled upstream connection. With <code>cached</code> the
+ * responses are served from the {@link ResponseCache} instead. <br>
+ *
+ * The allocation reported by the <code>gc</code> profiler is that of all threads; the clients and the origin
+ * do not allocate per request, so it is the proxy's. <code>AllocationBenchmark</code> measures the reactor
+ * thread alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProxyBenchmark {
+    private static final String LOOPBACK = "127.0.0.1";
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"1024", "65536"})
+        public int bodySize;
+
+        @Param({"false", "true"})
+        public boolean cached;
+
+        private ServerSocketChannel origin;
+        private Proxy proxy;
+        private byte[] request;
+
+        @Setup
+        public void start()
+                throws IOException, InterruptedException {
+            origin = ServerSocketChannel.open().bind(new InetSocketAddress(LOOPBACK, 0));
+            int originPort = ((InetSocketAddress) origin.getLocalAddress()).getPort();
+            Thread originThread = new Thread(this::serve, "origin");
+            originThread.setDaemon(true);
+            originThread.start();
+
+            proxy = new Proxy(new InetSocketAddress(LOOPBACK, 0), 1)
+                    .setLog(new Log(Log.Level.WARN, Log.DEFAULT_PAYLOAD_SAMPLING, System.err))
+                    .setAccessLog(new AccessLog(OutputStream.nullOutputStream(), AccessLog.DEFAULT_CAPACITY))
+                    .setResponseCache(cached ? new ResponseCache() : null);
+            Thread acceptor = new Thread(() -> {
+                try {
+                    proxy.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            while (proxy.getLocalAddress() == null) {
+                Thread.sleep(10);
+            }
+
+            request = ("GET http://" + LOOPBACK + ":" + originPort + "/ HTTP/1.1\r\n" +
+                    "Host: " + LOOPBACK + ":" + originPort + "\r\n" +
+                    "User-Agent: ProxyBenchmark\r\n" +
+                    "Accept: */*\r\n\r\n").getBytes(US_ASCII);
+        }
+
+        @TearDown
+        public void stop()
+                throws IOException {
+            proxy.stop();
+            origin.close();
+        }
+
+        private void serve() {
+            byte[] head = ("HTTP/1.1 200 OK\r\n" +
+                    "Content-Type: application/octet-stream\r\n" +
+                    "Cache-Control: max-age=3600\r\n" +
+                    "Content-Length: " + bodySize + "\r\n\r\n").getBytes(US_ASCII);
+            ByteBuffer response = ByteBuffer.allocateDirect(head.length + bodySize);
+            response.put(head);
+            while (response.hasRemaining()) {
+                response.put((byte) 'x');
+            }
+            while (true) {
+                SocketChannel socket;
+                try {
+                    socket = origin.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread connection = new Thread(() -> {
+                    ByteBuffer request = ByteBuffer.allocate(4096);
+                    ByteBuffer r = response.duplicate();
+                    try (SocketChannel s = socket) {
+                        while (true) {
+                            request.clear();
+                            while (headEnd(request) == -1) {
+                                if (s.read(request) == -1) return;
+                            }
+                            r.clear();
+                            while (r.hasRemaining()) {
+                                s.write(r);
+                            }
+                        }
+                    } catch (IOException ignored) {
+                    }
+                }, "origin connection");
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private SocketChannel socket;
+        private ByteBuffer request;
+        private ByteBuffer response;
+        private int bodySize;
+
+        @Setup
+        public void connect(Server server)
+                throws IOException {
+            socket = SocketChannel.open(server.proxy.getLocalAddress());
+            request = ByteBuffer.wrap(server.request);
+            response = ByteBuffer.allocateDirect(server.bodySize + 4096);
+            bodySize = server.bodySize;
+        }
+
+        @TearDown
+        public void close()
+                throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public int get(Client client)
+            throws IOException {
+        ByteBuffer request = client.request;
+        request.clear();
+        while (request.hasRemaining()) {
+            client.socket.write(request);
+        }
+
+        ByteBuffer response = client.response;
+        response.clear();
+        int headEnd = -1;
+        while (headEnd == -1 || response.position() < headEnd + client.bodySize) {
+            if (client.socket.read(response) == -1) {
+                throw new IOException("connection closed after " + response.position() + " bytes");
+            }
+            if (headEnd == -1) {
+                headEnd = headEnd(response);
+            }
+        }
+        return response.position();
+    }
+
+    private static int headEnd(ByteBuffer buffer) {
+        for (int i = 3; i < buffer.position(); i++) {
+            if (buffer.get(i - 3) == '\r' && buffer.get(i - 2) == '\n' && buffer.get(i - 1) == '\r' &&
+                    buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+}
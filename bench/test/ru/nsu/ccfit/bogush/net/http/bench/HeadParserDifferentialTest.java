@@ -0,0 +1,123 @@
+package ru.nsu.ccfit.bogush.net.http.bench;
+
+import org.junit.jupiter.api.Test;
+import ru.nsu.ccfit.bogush.net.http.HTTPFields;
+import ru.nsu.ccfit.bogush.net.http.HTTPMessage;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+import ru.nsu.ccfit.bogush.net.http.bench.HeadParserBenchmark.RegexParser;
+import ru.nsu.ccfit.bogush.net.http.bench.jmh.Heads;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPParseException;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPRequestHeadParser;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPResponseHeadParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.nsu.ccfit.bogush.net.http.Constants.*;
+
+/**
+ * Checks the byte-level head parsers against the regular expression parsers they replaced, over the heads the
+ * benchmarks parse. Where the behaviour was changed on purpose, the new behaviour is checked instead: a field
+ * name ends at the first colon rather than the last, and fields of the same name are all kept rather than the
+ * last one.
+ */
+class HeadParserDifferentialTest {
+    private static final String[] KINDS = {Heads.SMALL, Heads.HEADERS_50, Heads.COOKIES_8K};
+
+    @Test
+    void requestsParseAsBefore()
+            throws IOException, HTTPParseException {
+        List<byte[]> heads = new ArrayList<>();
+        heads.add(HeadParserBenchmark.REQUEST);
+        for (String kind : KINDS) {
+            heads.add(Heads.request(kind));
+        }
+        for (byte[] head : heads) {
+            HTTPRequest expected = RegexParser.parseRequest(head);
+            HTTPRequest actual = new HTTPRequestHeadParser(head).parse();
+            assertEquals(expected.getMethod(), actual.getMethod());
+            assertEquals(expected.getProtocol(), actual.getProtocol());
+            assertEquals(expected.getHost(), actual.getHost());
+            assertEquals(expected.getPort(), actual.getPort());
+            assertEquals(expected.getPath(), actual.getPath());
+            assertEquals(expected.getQuery(), actual.getQuery());
+            assertEquals(expected.getVersion(), actual.getVersion());
+            assertFieldsEqual(head, expected, actual);
+        }
+    }
+
+    @Test
+    void responsesParseAsBefore()
+            throws IOException, HTTPParseException {
+        List<byte[]> heads = new ArrayList<>();
+        heads.add(HeadParserBenchmark.RESPONSE);
+        for (String kind : KINDS) {
+            heads.add(Heads.response(kind));
+        }
+        for (byte[] head : heads) {
+            HTTPResponse expected = RegexParser.parseResponse(head);
+            HTTPResponse actual = new HTTPResponseHeadParser(head).parse();
+            assertEquals(expected.getVersion(), actual.getVersion());
+            assertEquals(expected.getStatusCode(), actual.getStatusCode());
+            assertEquals(expected.getReasonPhrase(), actual.getReasonPhrase());
+            assertFieldsEqual(head, expected, actual);
+        }
+    }
+
+    @Test
+    void malformedHeadsAreRejectedAtTheFailingLine() {
+        // each head and the offset of the line that fails
+        Object[][] requests = {
+                {"GET\r\nHost: a\r\n\r\n", 0},
+                {"GET / HTTP/1.1\r\nHost: a\r\nno colon\r\n\r\n", 25},
+                {"GET / HTTP/1.1\r\nHost: a\r\n: no name\r\n\r\n", 25},
+        };
+        for (Object[] request : requests) {
+            String head = (String) request[0];
+            byte[] bytes = head.getBytes(US_ASCII);
+            assertThrows(IllegalArgumentException.class, () -> RegexParser.parseRequest(bytes), head);
+            HTTPParseException e = assertThrows(HTTPParseException.class,
+                    () -> new HTTPRequestHeadParser(bytes).parse(), head);
+            assertEquals(request[1], e.getErrorOffset(), head);
+        }
+
+        Object[][] responses = {
+                {"HTTP/1.1 2000 OK\r\n\r\n", 0},
+                {"HTTP/1.1 200 OK\r\nServer: a\r\nno colon\r\n\r\n", 28},
+        };
+        for (Object[] response : responses) {
+            String head = (String) response[0];
+            byte[] bytes = head.getBytes(US_ASCII);
+            assertThrows(IllegalArgumentException.class, () -> RegexParser.parseResponse(bytes), head);
+            HTTPParseException e = assertThrows(HTTPParseException.class,
+                    () -> new HTTPResponseHeadParser(bytes).parse(), head);
+            assertEquals(response[1], e.getErrorOffset(), head);
+        }
+    }
+
+    /**
+     * Compares the fields by name, since the regular expression parser kept only the last field of a name.
+     */
+    private static void assertFieldsEqual(byte[] head, HTTPMessage expected, HTTPMessage actual) {
+        HTTPFields fields = actual.getFields();
+        String[] lines = new String(head, ISO_8859_1).split(CRLF);
+        int fieldLines = 0;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.isEmpty()) break;
+            fieldLines++;
+            int colon = line.indexOf(':');
+            String name = line.substring(0, colon);
+            if (line.indexOf(':', colon + 1) != -1) {
+                // the regular expression split at the last colon
+                assertTrue(fields.contains(name), line);
+                continue;
+            }
+            assertEquals(expected.getFieldValue(name.trim()), fields.getValue(fields.lastIndexOf(name)), line);
+        }
+        assertEquals(fieldLines, fields.size());
+    }
+}
@@ -9,6 +9,8 @@ public abstract class Constants {
     public static final String DEFAULT_PATH = "";
     public static final String DEFAULT_REASON_PHRASE = "";
     public static final String DEFAULT_VERSION = "HTTP/1.0";
+    public static final String HTTP_1_0 = "HTTP/1.0";
+    public static final String HTTP_1_1 = "HTTP/1.1";
 
     public static final Charset US_ASCII = Charset.forName("US-ASCII");
     public static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
@@ -19,4 +21,13 @@ public abstract class Constants {
     public static final char LF = '\n';
     public static final char CR = '\r';
     public static final String CRLF = "" + CR + LF;
+
+    public static final String[] WELL_KNOWN_FIELD_NAMES = {
+            "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges", "Age",
+            "Authorization", "Cache-Control", "Connection", "Content-Encoding", "Content-Language",
+            "Content-Length", "Content-Type", "Cookie", "Date", "ETag", "Expires", "Host", "If-Modified-Since",
+            "If-None-Match", "Keep-Alive", "Last-Modified", "Location", "Pragma", "Proxy-Connection", "Range",
+            "Referer", "Server", "Set-Cookie", "TE", "Trailer", "Transfer-Encoding", "Upgrade", "User-Agent",
+            "Vary", "Via", "X-Forwarded-For"
+    };
 }
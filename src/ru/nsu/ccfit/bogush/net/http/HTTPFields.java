@@ -0,0 +1,559 @@
+package ru.nsu.ccfit.bogush.net.http;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.ISO_8859_1;
+
+/**
+ * Ordered, multi-valued header fields of a message with case-insensitive names. <br>
+ *
+ * Fields are kept in parallel arrays in the order they were added. Every name is hashed ignoring case once,
+ * when its field is added, so a lookup compares hashes first and never makes strings; names of the
+ * {@link Constants#WELL_KNOWN_FIELD_NAMES well-known fields} are shared constants. <br>
+ *
+ * A field found by a parser is {@link #addRaw added raw}: its name and value are offsets into the head bytes
+ * it was parsed from, and a string is made only when one is asked for. A raw field which was not changed
+ * since is copied from these bytes as it is when the head is encoded again, see {@link #isRaw(int)}. The
+ * owner of the bytes must {@link #detach()} the fields before it reuses them. <br>
+ *
+ * Fields of the same name are kept apart, so repeated fields such as <code>Set-Cookie</code> are not lost.
+ * {@link #set} replaces all of them, {@link #add} adds one more.
+ */
+public class HTTPFields {
+    private static final String[] KNOWN_NAMES = Constants.WELL_KNOWN_FIELD_NAMES;
+    private static final int[] KNOWN_HASHES = new int[KNOWN_NAMES.length];
+
+    static {
+        for (int i = 0; i < KNOWN_NAMES.length; i++) {
+            KNOWN_HASHES[i] = hash(KNOWN_NAMES[i]);
+        }
+    }
+
+    private static final int NAME_START = 0;
+    private static final int NAME_END = 1;
+    private static final int VALUE_START = 2;
+    private static final int VALUE_END = 3;
+    private static final int SLOTS = 4;
+
+    private String[] names = new String[8];
+    private String[] values = new String[8];
+    private int[] hashes = new int[8];
+    /**
+     * {@link #SLOTS} offsets into {@link #source} per field, <code>-1</code> for fields that are not raw
+     */
+    private int[] offsets = new int[8 * SLOTS];
+    private int count = 0;
+    private ByteBuffer source;
+    private boolean detached = false;
+    /**
+     * Bytes of the last {@link #detach()}, reused by the next one unless {@link #addAll} shared them
+     */
+    private ByteBuffer spare;
+    private boolean shared = false;
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public String getName(int i) {
+        check(i);
+        String name = names[i];
+        if (name == null) {
+            int base = i * SLOTS;
+            name = names[i] = string(offsets[base + NAME_START], offsets[base + NAME_END]);
+        }
+        return name;
+    }
+
+    public String getValue(int i) {
+        check(i);
+        String value = values[i];
+        if (value == null) {
+            int base = i * SLOTS;
+            value = values[i] = string(offsets[base + VALUE_START], offsets[base + VALUE_END]);
+        }
+        return value;
+    }
+
+    /**
+     * @return the index of the first field named <code>name</code> or <code>-1</code>
+     */
+    public int indexOf(String name) {
+        return indexOf(name, 0);
+    }
+
+    /**
+     * @return the index of the first field named <code>name</code> at or after <code>from</code> or
+     * <code>-1</code>
+     */
+    public int indexOf(String name, int from) {
+        int hash = hash(name);
+        for (int i = from; i < count; i++) {
+            if (hashes[i] == hash && nameEquals(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the last field named <code>name</code> or <code>-1</code>
+     */
+    public int lastIndexOf(String name) {
+        int hash = hash(name);
+        for (int i = count - 1; i >= 0; i--) {
+            if (hashes[i] == hash && nameEquals(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(String name) {
+        return indexOf(name) != -1;
+    }
+
+    /**
+     * @return the value of the first field named <code>name</code> or <code>null</code>
+     */
+    public String get(String name) {
+        int i = indexOf(name);
+        return i == -1 ? null : getValue(i);
+    }
+
+    /**
+     * Tells whether a comma-separated list in the fields named <code>name</code> has an element equal to
+     * <code>token</code> ignoring case, as <code>close</code> in <code>Connection: keep-alive, close</code>.
+     */
+    public boolean containsToken(String name, String token) {
+        for (int i = indexOf(name); i != -1; i = indexOf(name, i + 1)) {
+            if (hasToken(i, token, false)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether the last element of the comma-separated list in the last field named <code>name</code> is
+     * equal to <code>token</code> ignoring case, as <code>chunked</code> in
+     * <code>Transfer-Encoding: gzip, chunked</code>.
+     */
+    public boolean lastTokenEquals(String name, String token) {
+        int i = lastIndexOf(name);
+        return i != -1 && hasToken(i, token, true);
+    }
+
+    /**
+     * @return the value of the <code>i</code>-th field as a non-negative decimal number or <code>-1</code> if
+     * it is not one
+     */
+    public long getLongValue(int i) {
+        check(i);
+        String value = values[i];
+        int from, to;
+        if (value != null) {
+            from = 0;
+            to = value.length();
+        } else {
+            from = offsets[i * SLOTS + VALUE_START];
+            to = offsets[i * SLOTS + VALUE_END];
+        }
+        from = trimStart(i, from, to);
+        to = trimEnd(i, from, to);
+        if (from == to || to - from > 18) return -1;
+        long number = 0;
+        for (int k = from; k < to; k++) {
+            int c = charAt(i, k);
+            if (c < '0' || c > '9') return -1;
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    /**
+     * Replaces all fields named <code>name</code> with one, which takes the place of the first of them.
+     */
+    public HTTPFields set(String name, String value) {
+        int i = indexOf(name);
+        if (i == -1) {
+            return add(name, value);
+        }
+        names[i] = name;
+        values[i] = value;
+        hashes[i] = hash(name);
+        offsets[i * SLOTS] = -1;
+        for (int k = indexOf(name, i + 1); k != -1; k = indexOf(name, k)) {
+            remove(k);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a field, keeping the fields of the same name.
+     */
+    public HTTPFields add(String name, String value) {
+        int i = append();
+        names[i] = name;
+        values[i] = value;
+        hashes[i] = hash(name);
+        offsets[i * SLOTS] = -1;
+        return this;
+    }
+
+    /**
+     * Appends a field whose name and value are in <code>buffer</code>, which must stay unchanged until the
+     * fields are {@link #detach() detached}. The line is copied as it is when the head is encoded, so the name
+     * must be followed by the colon immediately: a name read with whitespace trimmed off its end would differ
+     * from the name the next recipient reads.
+     *
+     * @param name the name if it is known already, otherwise <code>null</code>
+     * @param hash the case-insensitive hash of the name as computed by {@link #hash(int, int)}
+     * @throws IllegalArgumentException if the byte at <code>nameEnd</code> is not a colon
+     */
+    public HTTPFields addRaw(ByteBuffer buffer, int nameStart, int nameEnd, int valueStart, int valueEnd,
+                             String name, int hash) {
+        if (nameEnd >= valueStart || buffer.get(nameEnd) != ':') {
+            throw new IllegalArgumentException("Field name at " + nameStart + " is not followed by a colon");
+        }
+        if (source != buffer) {
+            if (source != null) {
+                materialize();
+            }
+            source = buffer;
+            detached = false;
+        }
+        int i = append();
+        names[i] = name;
+        values[i] = null;
+        hashes[i] = hash;
+        int base = i * SLOTS;
+        offsets[base + NAME_START] = nameStart;
+        offsets[base + NAME_END] = nameEnd;
+        offsets[base + VALUE_START] = valueStart;
+        offsets[base + VALUE_END] = valueEnd;
+        return this;
+    }
+
+    /**
+     * Appends copies of all fields of <code>other</code>. Raw fields stay raw if <code>other</code> is
+     * {@link #detach() detached}, as its bytes never change then.
+     */
+    public HTTPFields addAll(HTTPFields other) {
+        boolean share = other.detached && (source == null || source == other.source);
+        for (int k = 0; k < other.count; k++) {
+            if (share && other.isRaw(k)) {
+                int i = append();
+                names[i] = other.names[k];
+                values[i] = other.values[k];
+                hashes[i] = other.hashes[k];
+                System.arraycopy(other.offsets, k * SLOTS, offsets, i * SLOTS, SLOTS);
+                source = other.source;
+                detached = true;
+                other.shared = true;
+            } else {
+                add(other.getName(k), other.getValue(k));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Removes all fields named <code>name</code>.
+     *
+     * @return the value of the first of them or <code>null</code> if there was none
+     */
+    public String remove(String name) {
+        int i = indexOf(name);
+        if (i == -1) return null;
+        String value = getValue(i);
+        for (; i != -1; i = indexOf(name, i)) {
+            remove(i);
+        }
+        return value;
+    }
+
+    /**
+     * Removes all fields named <code>name</code> whose value is <code>value</code>.
+     *
+     * @return whether a field was removed
+     */
+    public boolean remove(String name, String value) {
+        boolean removed = false;
+        for (int i = indexOf(name); i != -1; i = indexOf(name, i)) {
+            if (getValue(i).equals(value)) {
+                remove(i);
+                removed = true;
+            } else {
+                i++;
+            }
+        }
+        return removed;
+    }
+
+    public void remove(int i) {
+        check(i);
+        int tail = count - i - 1;
+        System.arraycopy(names, i + 1, names, i, tail);
+        System.arraycopy(values, i + 1, values, i, tail);
+        System.arraycopy(hashes, i + 1, hashes, i, tail);
+        System.arraycopy(offsets, (i + 1) * SLOTS, offsets, i * SLOTS, tail * SLOTS);
+        count--;
+        names[count] = null;
+        values[count] = null;
+    }
+
+    public void clear() {
+        Arrays.fill(names, 0, count, null);
+        Arrays.fill(values, 0, count, null);
+        count = 0;
+        source = null;
+        detached = false;
+        if (shared) {
+            spare = null;
+            shared = false;
+        }
+    }
+
+    /**
+     * @return whether the <code>i</code>-th field is unchanged since it was parsed; its line is
+     * <code>[getRawStart(i), getRawEnd(i))</code> of {@link #getSource()} then
+     */
+    public boolean isRaw(int i) {
+        check(i);
+        return offsets[i * SLOTS] != -1;
+    }
+
+    public int getRawStart(int i) {
+        return offsets[i * SLOTS + NAME_START];
+    }
+
+    public int getRawEnd(int i) {
+        return offsets[i * SLOTS + VALUE_END];
+    }
+
+    /**
+     * @return the bytes raw fields refer to or <code>null</code>
+     */
+    public ByteBuffer getSource() {
+        return source;
+    }
+
+    /**
+     * Copies the lines of raw fields to bytes of their own, so the buffer they were parsed from may be
+     * reused. Fields stay raw. The array the lines are copied to is reused by the next call after
+     * {@link #clear()}, unless the fields were shared by {@link #addAll} in the meantime.
+     */
+    public HTTPFields detach() {
+        if (source == null || detached) return this;
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            if (isRaw(i)) {
+                length += getRawEnd(i) - getRawStart(i);
+            }
+        }
+        if (spare == null || spare.capacity() < length) {
+            spare = ByteBuffer.wrap(new byte[length]);
+        }
+        byte[] bytes = spare.array();
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (!isRaw(i)) continue;
+            int base = i * SLOTS;
+            int start = offsets[base + NAME_START];
+            int end = offsets[base + VALUE_END];
+            for (int k = start; k < end; k++) {
+                bytes[position + k - start] = source.get(k);
+            }
+            for (int s = 0; s < SLOTS; s++) {
+                offsets[base + s] += position - start;
+            }
+            position += end - start;
+        }
+        source = spare;
+        detached = true;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(Constants.CRLF);
+            }
+            sb.append(getName(i)).append(':').append(getValue(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the case-insensitive hash of <code>name</code>
+     */
+    public static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + toLowerCase(name.charAt(i));
+        }
+        return hash;
+    }
+
+    /**
+     * Continues the case-insensitive {@link #hash(String) hash} of a name with its next byte, starting
+     * with <code>0</code>.
+     */
+    public static int hash(int hash, int b) {
+        return 31 * hash + toLowerCase(b & 0xFF);
+    }
+
+    /**
+     * @return the well-known field name with the case-insensitive <code>hash</code> that is equal to the bytes
+     * <code>[from, to)</code> of <code>buffer</code> as they are, or <code>null</code>
+     */
+    public static String knownName(ByteBuffer buffer, int from, int to, int hash) {
+        for (int i = 0; i < KNOWN_NAMES.length; i++) {
+            if (KNOWN_HASHES[i] != hash || KNOWN_NAMES[i].length() != to - from) continue;
+            String name = KNOWN_NAMES[i];
+            boolean equal = true;
+            for (int k = from; k < to && equal; k++) {
+                equal = buffer.get(k) == name.charAt(k - from);
+            }
+            if (equal) return name;
+        }
+        return null;
+    }
+
+    private int append() {
+        if (count == names.length) {
+            int capacity = count * 2;
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            offsets = Arrays.copyOf(offsets, capacity * SLOTS);
+        }
+        return count++;
+    }
+
+    /**
+     * Makes strings of all raw names and values, which stop being raw.
+     */
+    private void materialize() {
+        for (int i = 0; i < count; i++) {
+            if (isRaw(i)) {
+                getName(i);
+                getValue(i);
+                offsets[i * SLOTS] = -1;
+            }
+        }
+        source = null;
+        detached = false;
+    }
+
+    private boolean nameEquals(int i, String name) {
+        String s = names[i];
+        if (s != null) return s == name || s.equalsIgnoreCase(name);
+        int base = i * SLOTS;
+        int from = offsets[base + NAME_START];
+        int to = offsets[base + NAME_END];
+        if (to - from != name.length()) return false;
+        for (int k = from; k < to; k++) {
+            int b = source.get(k);
+            int c = name.charAt(k - from);
+            if (b != c && toLowerCase(b) != toLowerCase(c)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param last whether only the last element of the list is compared
+     */
+    private boolean hasToken(int i, String token, boolean last) {
+        String value = values[i];
+        int from, to;
+        if (value != null) {
+            from = 0;
+            to = value.length();
+        } else {
+            from = offsets[i * SLOTS + VALUE_START];
+            to = offsets[i * SLOTS + VALUE_END];
+        }
+        int end = to;
+        for (int k = to - 1; k >= from - 1; k--) {
+            if (k >= from && charAt(i, k) != ',') continue;
+            int s = trimStart(i, k + 1, end);
+            int e = trimEnd(i, s, end);
+            if (last && s == e && k >= from) {
+                // an empty element, such as the one after a trailing comma
+                end = k;
+                continue;
+            }
+            if (regionEqualsIgnoreCase(i, s, e, token)) return true;
+            if (last) return false;
+            end = k;
+        }
+        return false;
+    }
+
+    private boolean regionEqualsIgnoreCase(int i, int from, int to, String s) {
+        if (to - from != s.length()) return false;
+        for (int k = from; k < to; k++) {
+            int b = charAt(i, k);
+            int c = s.charAt(k - from);
+            if (b != c && toLowerCase(b) != toLowerCase(c)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the character at <code>k</code> of the value of the <code>i</code>-th field, where
+     * <code>k</code> indexes the string if there is one, otherwise {@link #source}
+     */
+    private int charAt(int i, int k) {
+        String value = values[i];
+        return value != null ? value.charAt(k) : source.get(k) & 0xFF;
+    }
+
+    private int trimStart(int i, int from, int to) {
+        while (from < to && isWhitespace(charAt(i, from))) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int i, int from, int to) {
+        while (to > from && isWhitespace(charAt(i, to - 1))) {
+            to--;
+        }
+        return to;
+    }
+
+    private String string(int from, int to) {
+        int length = to - from;
+        if (length == 0) return "";
+        if (source.hasArray()) {
+            return new String(source.array(), source.arrayOffset() + from, length, ISO_8859_1);
+        }
+        byte[] bytes = new byte[length];
+        for (int k = 0; k < length; k++) {
+            bytes[k] = source.get(from + k);
+        }
+        return new String(bytes, ISO_8859_1);
+    }
+
+    private void check(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("Field " + i + " of " + count);
+        }
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
@@ -2,10 +2,10 @@ package ru.nsu.ccfit.bogush.net.http;
 
 import ru.nsu.ccfit.bogush.net.http.build.HTTPMessageBuilder;
 
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 public abstract class HTTPMessage {
     protected static final char SP = ' ';
@@ -14,14 +14,12 @@ public abstract class HTTPMessage {
     protected static final char CR = '\r';
     protected static final String CRLF = "" + CR + LF;
 
-    protected HashMap<String, String> fields = new HashMap<>();
+    protected HTTPFields fields = new HTTPFields();
     protected String version;
+    protected HTTPMessageBuilder builder;
 
     public String getFieldsString() {
-        if (fields == null) return "";
-        return fields.entrySet().stream()
-                .map(e -> e.getKey() + ":" + e.getValue())
-                .collect(Collectors.joining(CRLF));
+        return fields.toString();
     }
 
     public String getVersion() {
@@ -41,44 +39,74 @@ public abstract class HTTPMessage {
         return setVersion(null);
     }
 
-    public HashMap<String, String> getFields() {
+    /**
+     * Clears the message so that it can be reused for another one.
+     */
+    public HTTPMessage reset() {
+        fields.clear();
+        version = null;
+        return this;
+    }
+
+    public HTTPFields getFields() {
         return fields;
     }
 
     public boolean fieldsSpecified() {
-        return fields != null && !fields.isEmpty();
+        return !fields.isEmpty();
     }
 
-    public Collection<String> getFieldValues() {
-        if (fields == null) return null;
-        return fields.values();
+    /**
+     * @return the values of all fields in order
+     */
+    public List<String> getFieldValues() {
+        List<String> values = new ArrayList<>(fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            values.add(fields.getValue(i));
+        }
+        return values;
     }
 
+    /**
+     * @return the value of the first field named <code>name</code>, ignoring case, or <code>null</code>
+     */
     public String getFieldValue(String name) {
-        if (fields == null) return null;
         return fields.get(name);
     }
 
+    /**
+     * Replaces all fields named <code>name</code>, ignoring case, with one.
+     */
     public HTTPMessage setField(String name, String value) {
-        if (fields == null) {
-            fields = new HashMap<>();
-        }
-        fields.put(name, value);
+        fields.set(name, value);
+        return this;
+    }
+
+    /**
+     * Adds a field, keeping the fields of the same name.
+     */
+    public HTTPMessage addField(String name, String value) {
+        fields.add(name, value);
         return this;
     }
 
     public String removeField(String name) {
-        if (fields == null) return null;
         return fields.remove(name);
     }
 
     public boolean removeField(String name, String value) {
-        return fields != null && fields.remove(name, value);
+        return fields.remove(name, value);
     }
 
+    /**
+     * @return the names of the fields in order, each once
+     */
     public Set<String> getFieldNames() {
-        if (fields == null) return null;
-        return fields.keySet();
+        Set<String> names = new LinkedHashSet<>();
+        for (int i = 0; i < fields.size(); i++) {
+            names.add(fields.getName(i));
+        }
+        return names;
     }
 
     public abstract HTTPMessageBuilder createBuilder();
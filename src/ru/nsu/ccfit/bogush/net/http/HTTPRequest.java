@@ -10,7 +10,7 @@ import ru.nsu.ccfit.bogush.net.http.build.HTTPRequestBuilder;
  * <code>
  * METHOD SP URI SP VERSION CR LF <br>
  * <br>
- * METHOD = GET | POST | HEAD <br>
+ * METHOD = GET | POST | HEAD | CONNECT <br>
  * URI = [ protocol "://" ] [ host [ ":" port ] ] path query <br>
  * path = "/" [ path-element1 "/" [ path-element2 "/" ] ] <br>
  * VERSION = HTTP / digit "." digit <br>
@@ -89,7 +89,7 @@ public class HTTPRequest extends HTTPMessage {
     }
 
     public boolean portSpecified() {
-        return port == UNSPECIFIED_PORT;
+        return port != UNSPECIFIED_PORT;
     }
 
     public HTTPRequest setPort(int port) {
@@ -127,9 +127,24 @@ public class HTTPRequest extends HTTPMessage {
         return this;
     }
 
+    @Override
+    public HTTPRequest reset() {
+        super.reset();
+        method = null;
+        protocol = null;
+        host = null;
+        port = UNSPECIFIED_PORT;
+        path = null;
+        query = null;
+        return this;
+    }
+
     @Override
     public HTTPMessageBuilder createBuilder() {
-        return new HTTPRequestBuilder(this);
+        if (builder == null) {
+            builder = new HTTPRequestBuilder(this);
+        }
+        return builder;
     }
 
     @Override
@@ -41,9 +41,20 @@ public class HTTPResponse extends HTTPMessage {
         return this;
     }
 
+    @Override
+    public HTTPResponse reset() {
+        super.reset();
+        statusCode = null;
+        reasonPhrase = null;
+        return this;
+    }
+
     @Override
     public HTTPMessageBuilder createBuilder() {
-        return new HTTPResponseBuilder(this);
+        if (builder == null) {
+            builder = new HTTPResponseBuilder(this);
+        }
+        return builder;
     }
 
     @Override
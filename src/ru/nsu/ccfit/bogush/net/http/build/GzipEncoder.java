@@ -0,0 +1,106 @@
+package ru.nsu.ccfit.bogush.net.http.build;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a body in the gzip format of RFC 1952 as it passes, without buffering it. <br>
+ *
+ * The caller owns the {@link Deflater}, which must produce raw deflate data (<code>nowrap</code>), so that
+ * deflaters can be pooled and reused: the encoder only adds the gzip header and trailer around what the
+ * deflater writes. Input is taken from direct or heap buffers in place. <br>
+ *
+ * {@link #encode} writes as much as fits and is called again with more input or more room to continue where
+ * it stopped. Unless the input is the last of the body, everything taken so far is flushed, so a slowly
+ * arriving body reaches the peer as it arrives. An encoder is reusable: {@link #reset} starts the next body.
+ */
+public class GzipEncoder {
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int TRAILER_LENGTH = 8;
+    private static final ByteBuffer NO_INPUT = ByteBuffer.allocate(0);
+
+    private final CRC32 crc = new CRC32();
+    private Deflater deflater;
+    private boolean headerWritten = false;
+    private boolean flushing = false;
+    private boolean finished = true;
+
+    /**
+     * Starts encoding the next body with <code>deflater</code>, which must be reset.
+     */
+    public GzipEncoder reset(Deflater deflater) {
+        this.deflater = deflater;
+        crc.reset();
+        headerWritten = false;
+        flushing = false;
+        finished = false;
+        return this;
+    }
+
+    /**
+     * Compresses the bytes of <code>input</code> from its position to its limit into <code>output</code>,
+     * advancing the position of both by what was taken and written.
+     *
+     * @param input the next bytes of the body or <code>null</code> if there are none
+     * @param last whether <code>input</code> ends the body, so the deflate stream and the trailer are finished
+     * @return <code>true</code> once the whole gzip stream is written; the input is then consumed
+     */
+    public boolean encode(ByteBuffer input, ByteBuffer output, boolean last) {
+        if (finished) return true;
+        if (!headerWritten) {
+            if (output.remaining() < HEADER.length) return false;
+            output.put(HEADER);
+            headerWritten = true;
+        }
+
+        int start = input == null ? 0 : input.position();
+        if (input != null && input.hasRemaining() || flushing || last && !deflater.finished()) {
+            deflater.setInput(input != null ? input : NO_INPUT);
+            if (last) {
+                deflater.finish();
+            }
+            int room;
+            while ((room = output.remaining()) > 0) {
+                int written = deflater.deflate(output, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                if (last ? deflater.finished() : written < room) break;
+            }
+            // a flush that filled the output goes on with the next call, even without more input
+            flushing = !last && room == 0;
+            if (input != null) {
+                checksum(input, start);
+            }
+            // a pooled deflater must not hold on to a buffer that is reused for something else
+            deflater.setInput(NO_INPUT);
+        }
+
+        if (!last || !deflater.finished() || output.remaining() < TRAILER_LENGTH) return false;
+        putIntLE(output, (int) crc.getValue());
+        putIntLE(output, (int) deflater.getBytesRead());
+        finished = true;
+        deflater = null;
+        return true;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Adds the bytes of <code>input</code> taken since <code>start</code> to the checksum.
+     */
+    private void checksum(ByteBuffer input, int start) {
+        int end = input.position();
+        int limit = input.limit();
+        input.position(start).limit(end);
+        crc.update(input);
+        input.limit(limit);
+    }
+
+    private static void putIntLE(ByteBuffer buffer, int value) {
+        buffer.put((byte) value)
+                .put((byte) (value >>> 8))
+                .put((byte) (value >>> 16))
+                .put((byte) (value >>> 24));
+    }
+}
@@ -0,0 +1,276 @@
+package ru.nsu.ccfit.bogush.net.http.build;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPFields;
+import ru.nsu.ccfit.bogush.net.http.HTTPMessage;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.*;
+
+/**
+ * Writes a message head straight into {@link ByteBuffer}s. <br>
+ *
+ * Strings are written char by char as ISO-8859-1 without intermediate byte arrays, while versions, methods,
+ * common field names and separators are copied from pre-encoded constants. A field which is unchanged
+ * since it was parsed is copied from the bytes it was parsed from, see {@link HTTPFields#isRaw(int)}. <br>
+ *
+ * {@link #encode(ByteBuffer)} writes as much as fits and may be called again with another buffer to
+ * continue where it stopped, so a head never has to be encoded twice. An encoder is reusable: {@link #reset}
+ * starts the next head.
+ */
+public class HTTPHeadEncoder {
+    private static final byte[] CRLF_BYTES = encode(CRLF);
+    private static final byte[] SP_BYTES = encode("" + SP);
+    private static final byte[] COLON_BYTES = encode(":");
+    private static final byte[] FIELD_SEPARATOR_BYTES = encode(": ");
+    private static final byte[] SCHEME_SEPARATOR_BYTES = encode("://");
+    private static final Map<String, byte[]> PRE_ENCODED = new HashMap<>();
+
+    static {
+        for (String name : WELL_KNOWN_FIELD_NAMES) {
+            PRE_ENCODED.put(name, encode(name));
+        }
+        for (String s : new String[]{HTTP_1_0, HTTP_1_1, "GET", "POST", "HEAD", DEFAULT_PROTOCOL, "/"}) {
+            PRE_ENCODED.put(s, encode(s));
+        }
+    }
+
+    /**
+     * A pre-encoded byte array
+     */
+    private static final int BYTES = 0;
+    /**
+     * A string
+     */
+    private static final int STRING = 1;
+    /**
+     * A non-negative number
+     */
+    private static final int NUMBER = 2;
+    /**
+     * A field copied from the parsed bytes
+     */
+    private static final int RAW_FIELD = 3;
+
+    private int[] kinds = new int[32];
+    private Object[] objects = new Object[32];
+    private int[] starts = new int[32];
+    private int[] ends = new int[32];
+    private int count = 0;
+
+    private ByteBuffer source;
+    private boolean planned;
+    private int part;
+    private int partOffset;
+
+    /**
+     * Starts encoding <code>message</code>.
+     */
+    public HTTPHeadEncoder reset(HTTPMessage message) {
+        Arrays.fill(objects, 0, count, null);
+        count = 0;
+        part = 0;
+        partOffset = 0;
+        planned = false;
+        HTTPFields fields = message.getFields();
+        this.source = fields.getSource();
+
+        if (message instanceof HTTPRequest) {
+            requestLine((HTTPRequest) message);
+        } else {
+            statusLine((HTTPResponse) message);
+        }
+        add(CRLF_BYTES);
+
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.isRaw(i)) {
+                add(RAW_FIELD, null, fields.getRawStart(i), fields.getRawEnd(i));
+            } else {
+                add(fields.getName(i));
+                add(FIELD_SEPARATOR_BYTES);
+                add(fields.getValue(i));
+            }
+            add(CRLF_BYTES);
+        }
+        add(CRLF_BYTES);
+        return this;
+    }
+
+    /**
+     * Writes the rest of the head into <code>buffer</code>.
+     *
+     * @return <code>true</code> if the head is complete, <code>false</code> if <code>buffer</code> is full;
+     * call it again with another buffer then
+     */
+    public boolean encode(ByteBuffer buffer) {
+        if (!planned) {
+            plan(buffer);
+        }
+        while (part < count) {
+            int length = length(part);
+            partOffset += put(buffer, part, partOffset, Math.min(length - partOffset, buffer.remaining()));
+            if (partOffset < length) {
+                return false;
+            }
+            part++;
+            partOffset = 0;
+        }
+        return true;
+    }
+
+    /**
+     * A head may be written over the bytes it was parsed from. Copying a field in place is safe only if it
+     * does not start before the position it is copied to, otherwise its bytes are taken out beforehand.
+     */
+    private void plan(ByteBuffer buffer) {
+        planned = true;
+        if (source != buffer) return;
+
+        int position = buffer.position();
+        for (int i = 0; i < count; i++) {
+            if (kinds[i] == RAW_FIELD && position > starts[i]) {
+                byte[] bytes = new byte[ends[i] - starts[i]];
+                for (int k = 0; k < bytes.length; k++) {
+                    bytes[k] = source.get(starts[i] + k);
+                }
+                kinds[i] = BYTES;
+                objects[i] = bytes;
+            }
+            position += length(i);
+        }
+    }
+
+    private void requestLine(HTTPRequest request) {
+        add(request.getMethod());
+        add(SP_BYTES);
+        if (request.protocolSpecified()) {
+            add(request.getProtocol());
+            add(SCHEME_SEPARATOR_BYTES);
+        }
+        if (request.hostSpecified()) {
+            add(request.getHost());
+            if (request.portSpecified()) {
+                add(COLON_BYTES);
+                add(NUMBER, null, request.getPort(), 0);
+            }
+        }
+        add(request.getPath());
+        add(request.getQuery());
+        add(SP_BYTES);
+        add(request.getVersion());
+    }
+
+    private void statusLine(HTTPResponse response) {
+        add(response.getVersion());
+        add(SP_BYTES);
+        add(response.getStatusCode());
+        add(SP_BYTES);
+        add(response.getReasonPhrase());
+    }
+
+    private void add(String s) {
+        if (s == null || s.isEmpty()) return;
+        byte[] bytes = PRE_ENCODED.get(s);
+        if (bytes != null) {
+            add(bytes);
+        } else {
+            add(STRING, s, 0, 0);
+        }
+    }
+
+    private void add(byte[] bytes) {
+        add(BYTES, bytes, 0, 0);
+    }
+
+    private void add(int kind, Object object, int start, int end) {
+        if (count == kinds.length) {
+            int capacity = count * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        kinds[count] = kind;
+        objects[count] = object;
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    private int length(int i) {
+        switch (kinds[i]) {
+            case BYTES:
+                return ((byte[]) objects[i]).length;
+            case STRING:
+                return ((String) objects[i]).length();
+            case NUMBER:
+                return digits(starts[i]);
+            case RAW_FIELD:
+                return ends[i] - starts[i];
+            default:
+                throw new IllegalStateException("Unknown part kind " + kinds[i]);
+        }
+    }
+
+    /**
+     * Writes <code>n</code> bytes of the <code>i</code>-th part starting with its byte <code>offset</code>.
+     *
+     * @return <code>n</code>
+     */
+    private int put(ByteBuffer buffer, int i, int offset, int n) {
+        switch (kinds[i]) {
+            case BYTES:
+                buffer.put((byte[]) objects[i], offset, n);
+                break;
+            case STRING:
+                put(buffer, (String) objects[i], offset, n);
+                break;
+            case NUMBER:
+                int number = starts[i];
+                int digits = digits(number);
+                for (int k = offset; k < offset + n; k++) {
+                    buffer.put((byte) ('0' + number / pow10(digits - k - 1) % 10));
+                }
+                break;
+            case RAW_FIELD:
+                for (int k = starts[i] + offset, to = k + n; k < to; k++) {
+                    buffer.put(source.get(k));
+                }
+                break;
+        }
+        return n;
+    }
+
+    private static void put(ByteBuffer buffer, String s, int offset, int n) {
+        for (int k = offset; k < offset + n; k++) {
+            char c = s.charAt(k);
+            buffer.put(c > 0xFF ? (byte) '?' : (byte) c);
+        }
+    }
+
+    private static int digits(int number) {
+        int digits = 1;
+        while (number >= 10) {
+            number /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int pow10(int exponent) {
+        int pow = 1;
+        for (int i = 0; i < exponent; i++) {
+            pow *= 10;
+        }
+        return pow;
+    }
+
+    private static byte[] encode(String s) {
+        return s.getBytes(ISO_8859_1);
+    }
+}
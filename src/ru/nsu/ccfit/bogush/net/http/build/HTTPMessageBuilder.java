@@ -6,6 +6,7 @@ import java.nio.ByteBuffer;
 
 public abstract class HTTPMessageBuilder {
     private HTTPMessage message;
+    protected final HTTPHeadEncoder encoder = new HTTPHeadEncoder();
 
     protected HTTPMessageBuilder(HTTPMessage message) {
         this.message = message;
@@ -2,10 +2,9 @@ package ru.nsu.ccfit.bogush.net.http.build;
 
 import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
-import static ru.nsu.ccfit.bogush.net.http.Constants.*;
-
 public class HTTPRequestBuilder extends HTTPMessageBuilder {
     private HTTPRequest request;
 
@@ -18,8 +17,9 @@ public class HTTPRequestBuilder extends HTTPMessageBuilder {
     public int write(ByteBuffer buffer) {
         int p = buffer.position();
 
-        buffer.put(request.getRequestLine().getBytes(US_ASCII)).put((byte) CR).put((byte) LF);
-        buffer.put(request.getFieldsString().getBytes(US_ASCII)).put((byte) CR).put((byte) LF).put((byte) CR).put((byte) LF);
+        if (!encoder.reset(request).encode(buffer)) {
+            throw new BufferOverflowException();
+        }
 
         return buffer.position() - p;
     }
@@ -2,12 +2,9 @@ package ru.nsu.ccfit.bogush.net.http.build;
 
 import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
-import static ru.nsu.ccfit.bogush.net.http.Constants.CR;
-import static ru.nsu.ccfit.bogush.net.http.Constants.LF;
-import static ru.nsu.ccfit.bogush.net.http.Constants.US_ASCII;
-
 public class HTTPResponseBuilder extends HTTPMessageBuilder {
     private HTTPResponse response;
 
@@ -20,8 +17,9 @@ public class HTTPResponseBuilder extends HTTPMessageBuilder {
     public int write(ByteBuffer buffer) {
         int p = buffer.position();
 
-        buffer.put(response.getStatusLine().getBytes(US_ASCII)).put((byte) CR).put((byte) LF);
-        buffer.put(response.getFieldsString().getBytes(US_ASCII)).put((byte) CR).put((byte) LF).put((byte) CR).put((byte) LF);
+        if (!encoder.reset(response).encode(buffer)) {
+            throw new BufferOverflowException();
+        }
 
         return buffer.position() - p;
     }
@@ -0,0 +1,337 @@
+package ru.nsu.ccfit.bogush.net.http.parse;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPFields;
+import ru.nsu.ccfit.bogush.net.http.HTTPMessage;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+
+import java.nio.ByteBuffer;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.*;
+
+/**
+ * Finds where an HTTP message body ends without buffering it. <br>
+ *
+ * The body is delimited by <code>Content-Length</code>, by the chunked transfer coding or by the end of
+ * the connection, as described in RFC 7230, section 3.3.3. Chunk boundaries are tracked incrementally, so
+ * the body may be passed to {@link #frame(ByteBuffer, int, int)} in pieces of any size. <br>
+ *
+ * A chunked body may also be {@link #decode(ByteBuffer, int) decoded} in place as it is framed, for peers
+ * that do not understand the chunked transfer coding.
+ */
+public class HTTPBodyFramer {
+    private enum Mode {NONE, LENGTH, CHUNKED, UNTIL_CLOSE}
+
+    private enum ChunkState {SIZE, EXTENSION, SIZE_LF, DATA, DATA_CR, DATA_LF, TRAILER, TRAILER_LINE, END_LF, DONE}
+
+    private Mode mode = Mode.NONE;
+    private long remaining;
+    private ChunkState chunkState = ChunkState.SIZE;
+    private boolean chunkSizeDigits = false;
+    private boolean complete = true;
+    private int decoded;
+    private ByteBuffer viewOf;
+    private ByteBuffer source;
+    private ByteBuffer target;
+
+    public static HTTPBodyFramer forRequest(HTTPRequest request)
+            throws HTTPParseException {
+        return new HTTPBodyFramer().reset(request);
+    }
+
+    /**
+     * @param request the request <code>response</code> answers, or <code>null</code> if unknown
+     */
+    public static HTTPBodyFramer forResponse(HTTPRequest request, HTTPResponse response)
+            throws HTTPParseException {
+        return new HTTPBodyFramer().reset(request, response);
+    }
+
+    /**
+     * Starts framing the body of <code>request</code>, so that one framer can be reused for every message
+     * of a connection. A request with a <code>Transfer-Encoding</code> whose final coding is not
+     * <code>chunked</code> cannot be framed and is rejected, and a <code>Content-Length</code> next to a
+     * <code>Transfer-Encoding</code> is ignored; the latter has to be removed before the request is forwarded.
+     */
+    public HTTPBodyFramer reset(HTTPRequest request)
+            throws HTTPParseException {
+        if (request.getFields().contains("Transfer-Encoding")) {
+            if (!isChunked(request)) {
+                throw new HTTPParseException("Final transfer coding of a request is not chunked", 0);
+            }
+            return reset(Mode.CHUNKED, 0);
+        }
+        long length = contentLength(request);
+        return length == -1 ? reset(Mode.NONE, 0) : reset(Mode.LENGTH, length);
+    }
+
+    /**
+     * Starts framing the body of <code>response</code>.
+     *
+     * @param request the request <code>response</code> answers, or <code>null</code> if unknown
+     */
+    public HTTPBodyFramer reset(HTTPRequest request, HTTPResponse response)
+            throws HTTPParseException {
+        String status = response.getStatusCode();
+        if (request != null && "HEAD".equals(request.getMethod()) ||
+                status.startsWith("1") || status.equals("204") || status.equals("304")) {
+            return reset(Mode.NONE, 0);
+        }
+        if (isChunked(response)) {
+            return reset(Mode.CHUNKED, 0);
+        }
+        if (response.getFields().contains("Transfer-Encoding")) {
+            // a body in a coding other than chunked lasts until the connection is closed
+            return reset(Mode.UNTIL_CLOSE, 0);
+        }
+        long length = contentLength(response);
+        return length == -1 ? reset(Mode.UNTIL_CLOSE, 0) : reset(Mode.LENGTH, length);
+    }
+
+    private HTTPBodyFramer reset(Mode mode, long length) {
+        this.mode = mode;
+        this.remaining = length;
+        this.chunkState = ChunkState.SIZE;
+        this.chunkSizeDigits = false;
+        this.complete = mode == Mode.NONE || mode == Mode.LENGTH && length == 0;
+        return this;
+    }
+
+    /**
+     * Scans the body bytes in <code>[from, to)</code> of <code>buffer</code>.
+     *
+     * @return the number of bytes starting at <code>from</code> that belong to the body; less than
+     * <code>to - from</code> only if the body is complete
+     */
+    public int frame(ByteBuffer buffer, int from, int to)
+            throws HTTPParseException {
+        if (complete) return 0;
+        switch (mode) {
+            case LENGTH:
+                int n = (int) Math.min(remaining, to - from);
+                remaining -= n;
+                complete = remaining == 0;
+                return n;
+            case CHUNKED:
+                return frameChunked(buffer, from, to, false);
+            case UNTIL_CLOSE:
+                return to - from;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Frames the body bytes in <code>[from, position)</code> of <code>buffer</code> and removes the chunked
+     * transfer coding from them: chunk sizes, extensions, delimiters and the trailer are dropped and the chunk
+     * data is moved down to <code>from</code>, followed by the bytes after the body, if any. The position of
+     * <code>buffer</code> is moved back by the number of bytes dropped. A body framed otherwise is only
+     * framed.
+     *
+     * @return the number of bytes starting at <code>from</code> that belong to the body after decoding
+     */
+    public int decode(ByteBuffer buffer, int from)
+            throws HTTPParseException {
+        int to = buffer.position();
+        if (complete || mode != Mode.CHUNKED) {
+            return frame(buffer, from, to);
+        }
+        int framed = frameChunked(buffer, from, to, true);
+        int dropped = framed - decoded;
+        if (dropped > 0) {
+            move(buffer, from + framed, to, from + decoded);
+            buffer.position(to - dropped);
+        }
+        return decoded;
+    }
+
+    /**
+     * Tells the framer the connection was closed by the peer.
+     *
+     * @return <code>true</code> if the body is complete, which is always the case for a body delimited by
+     * the end of the connection
+     */
+    public boolean endOfStream() {
+        if (mode == Mode.UNTIL_CLOSE) {
+            complete = true;
+        }
+        return complete;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return <code>false</code> if the body ends only when the connection is closed
+     */
+    public boolean isDelimited() {
+        return mode != Mode.UNTIL_CLOSE;
+    }
+
+    public boolean isChunked() {
+        return mode == Mode.CHUNKED;
+    }
+
+    /**
+     * @return the length of the rest of a body framed by <code>Content-Length</code> or <code>-1</code> if the
+     * body is framed otherwise
+     */
+    public long getRemainingLength() {
+        return mode == Mode.LENGTH ? remaining : mode == Mode.NONE ? 0 : -1;
+    }
+
+    /**
+     * @return <code>true</code> if the body is framed without looking at its bytes, so it can be relayed as is
+     */
+    public boolean isOpaque() {
+        return mode == Mode.LENGTH || mode == Mode.UNTIL_CLOSE;
+    }
+
+    /**
+     * @param decode whether to move the chunk data down to <code>from</code>, counting it in {@link #decoded}
+     */
+    private int frameChunked(ByteBuffer buffer, int from, int to, boolean decode)
+            throws HTTPParseException {
+        int i = from;
+        decoded = 0;
+        while (i < to && chunkState != ChunkState.DONE) {
+            if (chunkState == ChunkState.DATA) {
+                int n = (int) Math.min(remaining, to - i);
+                if (decode) {
+                    move(buffer, i, i + n, from + decoded);
+                    decoded += n;
+                }
+                remaining -= n;
+                i += n;
+                if (remaining == 0) {
+                    chunkState = ChunkState.DATA_CR;
+                }
+                continue;
+            }
+
+            byte b = buffer.get(i);
+            switch (chunkState) {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit != -1) {
+                        if (remaining > (Long.MAX_VALUE >> 4)) {
+                            throw new HTTPParseException("Chunk size is too large", i);
+                        }
+                        remaining = (remaining << 4) + digit;
+                        chunkSizeDigits = true;
+                    } else if (!chunkSizeDigits) {
+                        throw new HTTPParseException("Couldn't parse chunk size", i);
+                    } else if (b == CR) {
+                        chunkState = ChunkState.SIZE_LF;
+                    } else if (b == LF) {
+                        endOfChunkSize();
+                    } else {
+                        chunkState = ChunkState.EXTENSION;
+                    }
+                    break;
+                case EXTENSION:
+                    if (b == CR) {
+                        chunkState = ChunkState.SIZE_LF;
+                    } else if (b == LF) {
+                        endOfChunkSize();
+                    }
+                    break;
+                case SIZE_LF:
+                    if (b != LF) {
+                        throw new HTTPParseException("LF expected after chunk size", i);
+                    }
+                    endOfChunkSize();
+                    break;
+                case DATA_CR:
+                    if (b == CR) {
+                        chunkState = ChunkState.DATA_LF;
+                    } else if (b == LF) {
+                        chunkState = ChunkState.SIZE;
+                    } else {
+                        throw new HTTPParseException("CRLF expected after chunk data", i);
+                    }
+                    break;
+                case DATA_LF:
+                    if (b != LF) {
+                        throw new HTTPParseException("LF expected after chunk data", i);
+                    }
+                    chunkState = ChunkState.SIZE;
+                    break;
+                case TRAILER:
+                    if (b == CR) {
+                        chunkState = ChunkState.END_LF;
+                    } else if (b == LF) {
+                        chunkState = ChunkState.DONE;
+                    } else {
+                        chunkState = ChunkState.TRAILER_LINE;
+                    }
+                    break;
+                case TRAILER_LINE:
+                    if (b == LF) {
+                        chunkState = ChunkState.TRAILER;
+                    }
+                    break;
+                case END_LF:
+                    if (b != LF) {
+                        throw new HTTPParseException("LF expected after trailer", i);
+                    }
+                    chunkState = ChunkState.DONE;
+                    break;
+            }
+            i++;
+        }
+        complete = chunkState == ChunkState.DONE;
+        return i - from;
+    }
+
+    /**
+     * Copies <code>[from, to)</code> of <code>buffer</code> down to <code>at</code>. The views used for the
+     * copy are kept for as long as the same buffer is decoded, so pooled buffers are not wrapped per chunk.
+     */
+    private void move(ByteBuffer buffer, int from, int to, int at) {
+        if (at == from || from == to) return;
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + from,
+                    buffer.array(), buffer.arrayOffset() + at, to - from);
+            return;
+        }
+        if (viewOf != buffer) {
+            viewOf = buffer;
+            source = buffer.duplicate();
+            target = buffer.duplicate();
+        }
+        source.limit(to).position(from);
+        target.limit(at + to - from).position(at);
+        target.put(source);
+    }
+
+    private void endOfChunkSize() {
+        chunkSizeDigits = false;
+        chunkState = remaining == 0 ? ChunkState.TRAILER : ChunkState.DATA;
+    }
+
+    private static boolean isChunked(HTTPMessage message) {
+        return message.getFields().lastTokenEquals("Transfer-Encoding", "chunked");
+    }
+
+    /**
+     * @return the value of <code>Content-Length</code> or <code>-1</code> if there is none
+     */
+    private static long contentLength(HTTPMessage message)
+            throws HTTPParseException {
+        HTTPFields fields = message.getFields();
+        long length = -1;
+        for (int i = fields.indexOf("Content-Length"); i != -1; i = fields.indexOf("Content-Length", i + 1)) {
+            long value = fields.getLongValue(i);
+            if (value == -1) {
+                throw new HTTPParseException("Couldn't parse Content-Length: " + fields.getValue(i), 0);
+            }
+            if (length != -1 && value != length) {
+                throw new HTTPParseException("Conflicting Content-Length fields", 0);
+            }
+            length = value;
+        }
+        return length;
+    }
+}
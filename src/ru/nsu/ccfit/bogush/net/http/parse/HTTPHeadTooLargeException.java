@@ -0,0 +1,9 @@
+package ru.nsu.ccfit.bogush.net.http.parse;
+
+public class HTTPHeadTooLargeException extends HTTPParseException {
+    private static final long serialVersionUID = 1L;
+
+    public HTTPHeadTooLargeException(int maxHeadSize) {
+        super("Message head is larger than " + maxHeadSize + " bytes", maxHeadSize);
+    }
+}
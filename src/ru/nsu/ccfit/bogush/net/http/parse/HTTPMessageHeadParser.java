@@ -1,40 +1,79 @@
 package ru.nsu.ccfit.bogush.net.http.parse;
 
+import ru.nsu.ccfit.bogush.net.http.HTTPFields;
 import ru.nsu.ccfit.bogush.net.http.HTTPMessage;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
 import static ru.nsu.ccfit.bogush.net.http.Constants.*;
 
+/**
+ * Parses a message head right in the buffer it was read into. <br>
+ *
+ * Lines and fields are scanned byte by byte and remembered as offsets. Fields are handed to the
+ * {@link HTTPFields} of the parsed {@link HTTPMessage} as offsets too, with their names already hashed, so
+ * no string is made for a field until it is read; well-known tokens such as methods, versions and common
+ * field names are not copied at all. The buffer may be direct, its position and limit are never
+ * changed. <br>
+ *
+ * The parser is resumable: {@link #advance(ByteBuffer, int)} may be called each time more bytes of the head
+ * arrive and continues where it stopped, so every byte is scanned once however the head is split between
+ * reads. Once a head is parsed, {@link #reset(int)} prepares the parser for the next one. <br>
+ *
+ * Offsets of {@link HTTPParseException}s are relative to the start of the head, an error inside a line is
+ * reported at the start of that line. {@link #parseAll()} also accepts a head which ends with the end of the
+ * input rather than with an empty line.
+ */
 public abstract class HTTPMessageHeadParser {
-    protected static final String VERSION_PATTERN_STRING = "(?<version>HTTP/\\d.\\d)";
-    private static final boolean ALLOW_MULTILINE_FIELDS = false;
-    private static final String FIELD_DELIMITER_PATTERN_STRING = CR + "?" + LF + (ALLOW_MULTILINE_FIELDS ? "(?![" + SP + HT + "])" : "");
-    private static final String FIELD_PATTERN_STRING = "(?<name>.+):(?<value>.*)";
-    private static final Pattern FIELD_PATTERN = Pattern.compile(FIELD_PATTERN_STRING);
+    /**
+     * Returned by {@link #advance(ByteBuffer, int)} until the empty line ending the head is found.
+     */
+    public static final int NEED_MORE = -1;
+    public static final int DEFAULT_MAX_HEAD_SIZE = 32 * 1024;
 
-    protected static int findLineEnd(byte[] array, int from, int to) {
-        for (int i = from; i < to; i++) {
-            byte b = array[i];
-            if (b == LF) {
-                return i;
-            }
-        }
-        return -1;
-    }
+    private static final int NAME_START = 0;
+    private static final int NAME_END = 1;
+    private static final int VALUE_START = 2;
+    private static final int VALUE_END = 3;
+    private static final int NAME_HASH = 4;
+    private static final int FIELD_SLOTS = 5;
 
+    private final int maxHeadSize;
     private HTTPMessage message;
-    protected byte[] bytes;
+    protected ByteBuffer buffer;
     protected int offset;
-    protected int length;
+    protected int end;
 
+    /**
+     * The next byte to scan.
+     */
     protected int pos = -1;
+    private int lineStart;
+    private boolean startLineParsed;
+
+    private int[] fields = new int[16 * FIELD_SLOTS];
+    private int fieldCount = 0;
+    private byte[] scratch;
+
+    /**
+     * Creates a parser for heads fed by {@link #advance(ByteBuffer, int)}.
+     *
+     * @param maxHeadSize number of bytes after which a head without the empty line is rejected
+     */
+    protected HTTPMessageHeadParser(int maxHeadSize) {
+        this.maxHeadSize = maxHeadSize;
+    }
 
     protected HTTPMessageHeadParser(ByteBuffer byteBuffer, HTTPMessage message) {
-        this(byteBuffer.array(), byteBuffer.position(), byteBuffer.limit(), message);
+        this(byteBuffer, byteBuffer.position(), byteBuffer.remaining(), message);
+    }
+
+    protected HTTPMessageHeadParser(ByteBuffer byteBuffer, int offset, int length, HTTPMessage message) {
+        this.maxHeadSize = Integer.MAX_VALUE;
+        this.buffer = byteBuffer;
+        this.end = offset + length;
+        reset(offset, message);
     }
 
     protected HTTPMessageHeadParser(byte[] array, HTTPMessage message) {
@@ -42,52 +81,238 @@ public abstract class HTTPMessageHeadParser {
     }
 
     protected HTTPMessageHeadParser(byte[] array, int offset, int length, HTTPMessage message) {
-        this.bytes = array;
+        this(ByteBuffer.wrap(array), offset, length, message);
+    }
+
+    /**
+     * Starts a new head at <code>offset</code>. The message of the previous head is {@link HTTPMessage#reset()
+     * reset} and reused, so it must not be kept beyond that.
+     */
+    public abstract void reset(int offset);
+
+    /**
+     * @return the message being parsed
+     */
+    public HTTPMessage getMessage() {
+        return message;
+    }
+
+    protected void reset(int offset, HTTPMessage message) {
         this.message = message;
         this.offset = offset;
-        this.length = length;
+        pos = offset;
+        lineStart = offset;
+        startLineParsed = false;
+        fieldCount = 0;
     }
 
-    protected String substring(int from, int to) {
-        return substring(from, to, US_ASCII);
-    }
+    /**
+     * Scans the bytes of <code>buffer</code> from where the previous call stopped up to <code>to</code>.
+     * The head must stay at the same offsets, but <code>buffer</code> may be a different one each time.
+     *
+     * @return the offset right after the empty line ending the head, or {@link #NEED_MORE}
+     * @throws HTTPHeadTooLargeException if more than the maximum head size was scanned without reaching
+     *                                   the end of the head
+     */
+    public int advance(ByteBuffer buffer, int to)
+            throws HTTPParseException {
+        this.buffer = buffer;
+        this.end = to;
+        while (pos < to) {
+            if (buffer.get(pos++) != LF) continue;
 
-    protected String substring(int from, int to, Charset charset) {
-        return new String(bytes, from, to-from, charset);
+            int from = lineStart;
+            lineStart = pos;
+            if (line(from, contentEnd(from, pos - 1))) {
+                return pos;
+            }
+        }
+        if (pos - offset > maxHeadSize) {
+            throw new HTTPHeadTooLargeException(maxHeadSize);
+        }
+        return NEED_MORE;
     }
 
-    protected void parseFields()
+    /**
+     * Parses the whole input as a head, whether or not it ends with an empty line.
+     */
+    protected void parseAll()
             throws HTTPParseException {
-        parseFields(substring(pos, length, ISO_8859_1));
+        reset(offset, message);
+        if (advance(buffer, end) != NEED_MORE) return;
+
+        if (lineStart < end && line(lineStart, contentEnd(lineStart, end))) return;
+        if (!startLineParsed) {
+            throw error("CRLF nor LF not found", end);
+        }
+        storeFields();
     }
 
-    protected void parseFields(String s)
+    protected abstract void parseStartLine(int from, int to)
+            throws HTTPParseException;
+
+    /**
+     * Handles the line <code>[from, to)</code> without its line break.
+     *
+     * @return <code>true</code> if it is the empty line ending the head
+     */
+    private boolean line(int from, int to)
             throws HTTPParseException {
-        for (String field : s.split(FIELD_DELIMITER_PATTERN_STRING)) {
-            parseField(field);
+        if (pos - offset > maxHeadSize) {
+            throw new HTTPHeadTooLargeException(maxHeadSize);
+        }
+        if (!startLineParsed) {
+            // empty lines before the start line are ignored, see RFC 7230, section 3.5
+            if (from == to) return false;
+            parseStartLine(from, to);
+            startLineParsed = true;
+            return false;
+        }
+        if (from == to) {
+            storeFields();
+            return true;
+        }
+        parseField(from, to);
+        return false;
+    }
+
+    /**
+     * @return the buffer the head was read from
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return <code>lineEnd</code> without the preceding CR if there is one
+     */
+    protected int contentEnd(int lineStart, int lineEnd) {
+        return lineEnd > lineStart && buffer.get(lineEnd - 1) == CR ? lineEnd - 1 : lineEnd;
+    }
+
+    protected HTTPParseException error(String s, int at) {
+        return new HTTPParseException(s, at - offset);
+    }
+
+    protected String string(int from, int to) {
+        int length = to - from;
+        if (length == 0) return "";
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, length, ISO_8859_1);
+        }
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[Math.max(length, 256)];
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(from + i);
+        }
+        return new String(scratch, 0, length, ISO_8859_1);
+    }
+
+    /**
+     * @return <code>s</code> itself if the bytes in <code>[from, to)</code> are equal to it, otherwise a
+     * new string of these bytes
+     */
+    protected String string(int from, int to, String s) {
+        return equals(from, to, s) ? s : string(from, to);
+    }
+
+    protected boolean equals(int from, int to, String s) {
+        if (to - from != s.length()) return false;
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) != s.charAt(i - from)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the version in <code>[from, to)</code> or <code>null</code> if it isn't
+     * <code>HTTP/digit.digit</code>
+     */
+    protected String version(int from, int to) {
+        if (to - from != HTTP_1_1.length() || !equals(from, from + 5, "HTTP/") ||
+                !isDigit(buffer.get(from + 5)) || buffer.get(from + 6) != '.' || !isDigit(buffer.get(from + 7))) {
+            return null;
         }
+        if (equals(from, to, HTTP_1_1)) return HTTP_1_1;
+        return string(from, to, HTTP_1_0);
     }
 
-    protected void parseField(String field)
+    private void storeFields() {
+        HTTPFields target = message.getFields();
+        for (int i = 0; i < fieldCount; i++) {
+            int base = i * FIELD_SLOTS;
+            int nameStart = fields[base + NAME_START];
+            int nameEnd = fields[base + NAME_END];
+            int hash = fields[base + NAME_HASH];
+            target.addRaw(buffer, nameStart, nameEnd, fields[base + VALUE_START], fields[base + VALUE_END],
+                    HTTPFields.knownName(buffer, nameStart, nameEnd, hash), hash);
+        }
+    }
+
+    private void parseField(int from, int to)
             throws HTTPParseException {
-        Matcher matcher = FIELD_PATTERN.matcher(field);
+        byte first = buffer.get(from);
+        if (first == SP || first == HT) {
+            throw error("Obsolete line folding is not supported", from);
+        }
 
-        boolean matches = matcher.matches();
-        if (!matches) {
-            throw new HTTPParseException("Couldn't parse field", pos);
+        int colon = from;
+        int hash = 0;
+        byte b;
+        while (colon < to && (b = buffer.get(colon)) != ':') {
+            hash = HTTPFields.hash(hash, b);
+            colon++;
+        }
+        if (colon == to) {
+            throw error("Couldn't parse field", from);
         }
 
-        String name = matcher.group("name");
-        if (name == null) {
-            throw new HTTPParseException("Couldn't parse field name", pos);
+        if (colon == from) {
+            throw error("Couldn't parse field name", from);
+        }
+        if (isWhitespace(buffer.get(colon - 1))) {
+            // RFC 7230, 3.2.4: recipients that trimmed it would frame the message differently from those that
+            // did not, and the line is forwarded as it is
+            throw error("Whitespace between field name and colon", colon - 1);
         }
+        int nameEnd = colon;
+        int valueStart = trimStart(colon + 1, to);
+        int valueEnd = trimEnd(valueStart, to);
 
-        String value = matcher.group("value");
-        if (value == null) {
-            throw new HTTPParseException("Couldn't parse field value", pos);
+        int base = fieldCount * FIELD_SLOTS;
+        if (base + FIELD_SLOTS > fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
         }
+        fields[base + NAME_START] = from;
+        fields[base + NAME_END] = nameEnd;
+        fields[base + VALUE_START] = valueStart;
+        fields[base + VALUE_END] = valueEnd;
+        fields[base + NAME_HASH] = hash;
+        fieldCount++;
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && isWhitespace(buffer.get(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && isWhitespace(buffer.get(to - 1))) {
+            to--;
+        }
+        return to;
+    }
+
+    protected static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
 
-        message.setField(name.trim(), value.trim());
-        pos += field.length() + 2;
+    private static boolean isWhitespace(byte b) {
+        return b == SP || b == HT;
     }
 }
@@ -3,6 +3,8 @@ package ru.nsu.ccfit.bogush.net.http.parse;
 import java.text.ParseException;
 
 public class HTTPParseException extends ParseException {
+    private static final long serialVersionUID = 1L;
+
     public HTTPParseException(String s, int errorOffset) {
         super(s, errorOffset);
     }
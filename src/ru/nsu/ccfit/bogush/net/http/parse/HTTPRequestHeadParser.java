@@ -4,25 +4,23 @@ import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static ru.nsu.ccfit.bogush.net.http.Constants.*;
 
 public class HTTPRequestHeadParser extends HTTPMessageHeadParser {
-    private static final String METHOD_PATTERN_STRING = "(?<method>GET|POST|HEAD)";
-    private static final String PROTOCOL_PATTERN_STRING = "(?:(?<protocol>[a-zA-Z]+)://)";
-    private static final String HOST_PATTERN_STRING = "(?:(?<host>[^/:]+)(?::(?<port>\\d{1,5}))?)";
-    private static final String PATH_PATTERN_STRING = "(?<path>\\S*/)";
-    private static final String QUERY_PATTERN_STRING = "(?<query>\\S+)";
-    private static final String URI_PATTERN_STRING = PROTOCOL_PATTERN_STRING + "?" + HOST_PATTERN_STRING + "?" +
-            PATH_PATTERN_STRING + "?" + QUERY_PATTERN_STRING;
-    private static final String REQUEST_LINE_PATTERN_STRING = METHOD_PATTERN_STRING + SP + URI_PATTERN_STRING + SP +
-            VERSION_PATTERN_STRING + "?" + CR + "?" + LF;
-    private static final Pattern REQUEST_LINE_PATTERN = Pattern.compile(REQUEST_LINE_PATTERN_STRING);
+    private static final String[] METHODS = {"GET", "POST", "HEAD", "CONNECT"};
+    private static final int MAX_PORT_DIGITS = 5;
 
     private HTTPRequest request;
 
+    /**
+     * Creates a parser for request heads fed by {@link #advance(ByteBuffer, int)}.
+     */
+    public HTTPRequestHeadParser(int maxHeadSize) {
+        super(maxHeadSize);
+        reset(0);
+    }
+
     public HTTPRequestHeadParser(ByteBuffer byteBuffer) {
         this(byteBuffer, new HTTPRequest());
     }
@@ -32,6 +30,15 @@ public class HTTPRequestHeadParser extends HTTPMessageHeadParser {
         this.request = request;
     }
 
+    public HTTPRequestHeadParser(ByteBuffer byteBuffer, int offset, int length) {
+        this(byteBuffer, offset, length, new HTTPRequest());
+    }
+
+    public HTTPRequestHeadParser(ByteBuffer byteBuffer, int offset, int length, HTTPRequest request) {
+        super(byteBuffer, offset, length, request);
+        this.request = request;
+    }
+
     public HTTPRequestHeadParser(byte[] array) {
         this(array, new HTTPRequest());
     }
@@ -51,90 +58,148 @@ public class HTTPRequestHeadParser extends HTTPMessageHeadParser {
 
     public HTTPRequest parse()
             throws IOException, HTTPParseException {
-        pos = 0;
-        parseRequestLine();
-        parseFields();
+        parseAll();
         return request;
     }
 
-    private void parseRequestLine()
-            throws HTTPParseException {
-        int requestLineEnd = findLineEnd(bytes, pos, length);
-        if (requestLineEnd == -1) {
-            throw new HTTPParseException("CRLF nor LF not found", length);
+    @Override
+    public void reset(int offset) {
+        if (request == null) {
+            request = new HTTPRequest();
+        } else {
+            request.reset();
         }
+        reset(offset, request);
+    }
 
-        parseRequestLine(substring(pos, requestLineEnd + 1));
-        pos = requestLineEnd + 1;
+    @Override
+    public HTTPRequest getMessage() {
+        return request;
     }
 
-    private void parseRequestLine(String s)
+    /**
+     * <code>METHOD SP URI [SP VERSION]</code>
+     */
+    @Override
+    protected void parseStartLine(int lineStart, int to)
             throws HTTPParseException {
-        Matcher matcher = REQUEST_LINE_PATTERN.matcher(s);
+        int methodEnd = indexOf(SP, lineStart, to);
+        String method = methodEnd == -1 ? null : method(lineStart, methodEnd);
+        if (method == null) {
+            throw error("Couldn't parse method", lineStart);
+        }
+        request.setMethod(method);
 
-        boolean matches = matcher.matches();
-        if (!matches) {
-            throw new HTTPParseException("Couldn't parse request line", pos);
+        int uriStart = methodEnd + 1;
+        int uriEnd = indexOf(SP, uriStart, to);
+        if (uriEnd == -1) {
+            uriEnd = to;
+        }
+        if (uriEnd == uriStart) {
+            throw error("Couldn't parse request line", lineStart);
         }
+        parseURI(uriStart, uriEnd, lineStart);
 
-        String method = matcher.group("method");
-        if (method != null) {
-            request.setMethod(method);
-            pos += method.length() + 1;
+        if (uriEnd == to) {
+            request.setVersion(DEFAULT_VERSION);
         } else {
-            throw new HTTPParseException("Couldn't parse method", pos);
+            String version = version(uriEnd + 1, to);
+            if (version == null) {
+                throw error("Couldn't parse version", lineStart);
+            }
+            request.setVersion(version);
         }
+    }
 
-        String protocol = matcher.group("protocol");
-        if (protocol != null) {
-            request.setProtocol(protocol);
-            pos += protocol.length();
+    /**
+     * <code>[protocol "://"] [host [":" port]] path query</code>, where <code>path</code> is everything up
+     * to the last slash and <code>query</code> is the non-empty rest. The <code>host ":" port</code> target
+     * of <code>CONNECT</code> is parsed as the host and port of such a URI.
+     */
+    private void parseURI(int from, int to, int lineStart)
+            throws HTTPParseException {
+        int i = from;
+
+        int protocolEnd = i;
+        while (protocolEnd < to && isLetter(buffer.get(protocolEnd))) {
+            protocolEnd++;
+        }
+        if (protocolEnd > i && protocolEnd + 3 <= to && buffer.get(protocolEnd) == ':' &&
+                buffer.get(protocolEnd + 1) == '/' && buffer.get(protocolEnd + 2) == '/') {
+            request.setProtocol(string(i, protocolEnd, DEFAULT_PROTOCOL));
+            i = protocolEnd + 3;
         } else {
             request.setProtocol(DEFAULT_PROTOCOL);
         }
 
-        String host = matcher.group("host");
-        if (host != null) {
-            request.setHost(host);
-            pos += host.length();
+        int port = DEFAULT_PORT;
+        if (i < to && buffer.get(i) != '/') {
+            int hostStart = i;
+            byte b;
+            while (i < to && (b = buffer.get(i)) != '/' && b != ':' && b != '?') {
+                i++;
+            }
+            if (i == hostStart) {
+                throw error("Couldn't parse host", lineStart);
+            }
+            request.setHost(string(hostStart, i));
+
+            if (i < to && buffer.get(i) == ':') {
+                int portStart = ++i;
+                port = 0;
+                while (i < to && isDigit(b = buffer.get(i)) && i - portStart < MAX_PORT_DIGITS) {
+                    port = port * 10 + (b - '0');
+                    i++;
+                }
+                if (i == portStart || port > 0xFFFF || i < to && buffer.get(i) != '/' && buffer.get(i) != '?') {
+                    throw error("Couldn't parse port", lineStart);
+                }
+            }
         } else {
             request.setHost(DEFAULT_HOST);
         }
+        request.setPort(port);
 
-        String port = matcher.group("port");
-        if (port != null) {
-            try {
-                request.setPort(Integer.parseInt(port));
-            } catch (NumberFormatException e) {
-                throw new HTTPParseException(e.getMessage(), pos);
+        if (i == to) {
+            request.setPath(DEFAULT_PATH);
+            request.setQuery("/");
+            return;
+        }
+        int lastSlash = -1;
+        for (int j = to - 2; j >= i; j--) {
+            if (buffer.get(j) == '/') {
+                lastSlash = j;
+                break;
             }
-            pos += port.length();
-        } else {
-            request.setPort(DEFAULT_PORT);
         }
-
-        String path = matcher.group("path");
-        if (path != null) {
-            request.setPath(path);
-            pos += path.length();
-        } else {
+        if (lastSlash == -1) {
             request.setPath(DEFAULT_PATH);
+            request.setQuery(string(i, to, "/"));
+        } else {
+            request.setPath(string(i, lastSlash + 1, "/"));
+            request.setQuery(string(lastSlash + 1, to));
         }
+    }
 
-        String query = matcher.group("query");
-        if (query != null) {
-            request.setQuery(query);
-            pos += query.length() + 1;
-        } else {
-            throw new HTTPParseException("Couldn't parse query", pos);
+    private String method(int from, int to) {
+        for (String method : METHODS) {
+            if (equals(from, to, method)) {
+                return method;
+            }
         }
+        return null;
+    }
 
-        String version = matcher.group("version");
-        if (version != null) {
-            request.setVersion(version);
-            pos += version.length();
-        } else {
-            request.setVersion(DEFAULT_VERSION);
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
         }
+        return -1;
+    }
+
+    private static boolean isLetter(byte b) {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z';
     }
 }
@@ -3,20 +3,47 @@ package ru.nsu.ccfit.bogush.net.http.parse;
 import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
 
 import java.nio.ByteBuffer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static ru.nsu.ccfit.bogush.net.http.Constants.*;
 
 public class HTTPResponseHeadParser extends HTTPMessageHeadParser {
-    private static final String STATUS_CODE_PATTERN_STRING = "(?<status>\\d{3})";
-    private static final String REASON_PHRASE_PATTERN_STRING = "(?<reason>[\\w" + SP + HT + "]*)";
-    private static final String STATUS_LINE_PATTERN_STRING = VERSION_PATTERN_STRING + SP + STATUS_CODE_PATTERN_STRING +
-            SP + REASON_PHRASE_PATTERN_STRING + CR + "?" + LF;
-    private static final Pattern STATUS_LINE_PATTERN = Pattern.compile(STATUS_LINE_PATTERN_STRING);
+    private static final String[] STATUS_CODES = new String[1000];
+    private static final String[] REASON_PHRASES = new String[1000];
+
+    static {
+        for (int code = 100; code < 600; code++) {
+            STATUS_CODES[code] = String.valueOf(code);
+        }
+        REASON_PHRASES[100] = "Continue";
+        REASON_PHRASES[101] = "Switching Protocols";
+        REASON_PHRASES[200] = "OK";
+        REASON_PHRASES[201] = "Created";
+        REASON_PHRASES[204] = "No Content";
+        REASON_PHRASES[206] = "Partial Content";
+        REASON_PHRASES[301] = "Moved Permanently";
+        REASON_PHRASES[302] = "Found";
+        REASON_PHRASES[303] = "See Other";
+        REASON_PHRASES[304] = "Not Modified";
+        REASON_PHRASES[307] = "Temporary Redirect";
+        REASON_PHRASES[400] = "Bad Request";
+        REASON_PHRASES[401] = "Unauthorized";
+        REASON_PHRASES[403] = "Forbidden";
+        REASON_PHRASES[404] = "Not Found";
+        REASON_PHRASES[500] = "Internal Server Error";
+        REASON_PHRASES[502] = "Bad Gateway";
+        REASON_PHRASES[503] = "Service Unavailable";
+    }
 
     private HTTPResponse response;
 
+    /**
+     * Creates a parser for response heads fed by {@link #advance(ByteBuffer, int)}.
+     */
+    public HTTPResponseHeadParser(int maxHeadSize) {
+        super(maxHeadSize);
+        reset(0);
+    }
+
     public HTTPResponseHeadParser(ByteBuffer byteBuffer) {
         this(byteBuffer, new HTTPResponse());
     }
@@ -26,6 +53,15 @@ public class HTTPResponseHeadParser extends HTTPMessageHeadParser {
         this.response = response;
     }
 
+    public HTTPResponseHeadParser(ByteBuffer byteBuffer, int offset, int length) {
+        this(byteBuffer, offset, length, new HTTPResponse());
+    }
+
+    public HTTPResponseHeadParser(ByteBuffer byteBuffer, int offset, int length, HTTPResponse response) {
+        super(byteBuffer, offset, length, response);
+        this.response = response;
+    }
+
     public HTTPResponseHeadParser(byte[] array) {
         this(array, new HTTPResponse());
     }
@@ -46,54 +82,66 @@ public class HTTPResponseHeadParser extends HTTPMessageHeadParser {
 
     public HTTPResponse parse()
             throws HTTPParseException {
-        pos = 0;
-        parseStatusLine();
-        parseFields();
+        parseAll();
         return response;
     }
 
-    private void parseStatusLine()
-            throws HTTPParseException {
-        int requestLineEnd = findLineEnd(bytes, pos, length);
-        if (requestLineEnd == -1) {
-            throw new HTTPParseException("CRLF nor LF not found", length);
+    @Override
+    public void reset(int offset) {
+        if (response == null) {
+            response = new HTTPResponse();
+        } else {
+            response.reset();
         }
+        reset(offset, response);
+    }
 
-        parseStatusLine(substring(pos, requestLineEnd + 1));
-        pos = requestLineEnd + 1;
+    @Override
+    public HTTPResponse getMessage() {
+        return response;
     }
 
-    private void parseStatusLine(String s)
+    /**
+     * <code>VERSION SP STATUS-CODE [SP REASON-PHRASE]</code>
+     */
+    @Override
+    protected void parseStartLine(int lineStart, int to)
             throws HTTPParseException {
-        Matcher matcher = STATUS_LINE_PATTERN.matcher(s);
-
-        boolean matches = matcher.matches();
-        if (!matches) {
-            throw new HTTPParseException("Couldn't parse status line", pos);
+        int versionEnd = lineStart + HTTP_1_1.length();
+        String version = versionEnd < to && buffer.get(versionEnd) == SP ? version(lineStart, versionEnd) : null;
+        if (version == null) {
+            throw error("Couldn't parse version", lineStart);
         }
+        response.setVersion(version);
 
-        String version = matcher.group("version");
-        if (version != null) {
-            response.setVersion(version);
-            pos += version.length() + 1;
-        } else {
-            throw new HTTPParseException("Couldn't parse version", pos);
+        int statusStart = versionEnd + 1;
+        int statusEnd = statusStart + 3;
+        if (statusEnd > to || statusEnd < to && buffer.get(statusEnd) != SP) {
+            throw error("Couldn't parse status code", lineStart);
         }
-
-        String status = matcher.group("status");
-        if (status != null) {
-            response.setStatusCode(status);
-            pos += status.length() + 1;
-        } else {
-            throw new HTTPParseException("Couldn't status code", pos);
+        int code = 0;
+        for (int i = statusStart; i < statusEnd; i++) {
+            byte b = buffer.get(i);
+            if (!isDigit(b)) {
+                throw error("Couldn't parse status code", lineStart);
+            }
+            code = code * 10 + (b - '0');
         }
+        String status = STATUS_CODES[code];
+        response.setStatusCode(status != null ? status : string(statusStart, statusEnd));
 
-        String reason = matcher.group("reason");
-        if (reason != null) {
-            response.setReasonPhrase(reason);
-            pos += reason.length() + 2;
-        } else {
+        if (statusEnd == to) {
             response.setReasonPhrase(DEFAULT_REASON_PHRASE);
+        } else {
+            int reasonStart = statusEnd + 1;
+            for (int i = reasonStart; i < to; i++) {
+                byte b = buffer.get(i);
+                if (b != HT && b >= 0 && b < SP || b == 0x7F) {
+                    throw error("Couldn't parse reason phrase", lineStart);
+                }
+            }
+            String reason = REASON_PHRASES[code];
+            response.setReasonPhrase(reason != null ? string(reasonStart, to, reason) : string(reasonStart, to));
         }
     }
 }
@@ -0,0 +1,1048 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPMessage;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+import ru.nsu.ccfit.bogush.net.http.build.HTTPHeadEncoder;
+import ru.nsu.ccfit.bogush.net.http.parse.*;
+import ru.nsu.ccfit.bogush.net.http.proxy.buffer.BufferPool;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.AccessLog;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.*;
+import static ru.nsu.ccfit.bogush.net.http.proxy.log.Log.Level.DEBUG;
+
+/**
+ * A client connection of the {@link BlockingEngine}, served from start to end by one thread with blocking
+ * reads and writes. <br>
+ *
+ * Requests are read one at a time into {@link #in}, parsed by the same {@link HTTPRequestHeadParser},
+ * rewritten by the same {@link Messages} and encoded by the same {@link HTTPHeadEncoder} as in a
+ * {@link ProxyUnit}, and responses are read into {@link #up} and framed by an {@link HTTPBodyFramer}, which
+ * also dechunks them for HTTP/1.0 clients; a response delimited by the end of the connection is rechunked for
+ * an HTTP/1.1 client that keeps its connection. <br>
+ *
+ * The two directions of a pair are relayed by two threads when both may carry bytes at the same time: while
+ * the connection thread sends the body of a request upstream, a second thread relays the response, which the
+ * origin may start before it has read the whole request; the bytes of a <code>CONNECT</code> tunnel and of an
+ * upgraded connection go each way in a thread of their own. Otherwise the connection thread relays the
+ * response itself. <br>
+ *
+ * A deadline of the {@link Timeouts} that passes wakes the blocked thread up by shutting down the input of
+ * the socket it waits for, or by closing the sockets if there is no answer left to give.
+ */
+class BlockingConnection implements Runnable {
+    private static final long STARVATION_RETRY_MILLIS = 10;
+    private static final byte[] LAST_CHUNK = {'0', CR, LF, CR, LF};
+
+    private final BlockingEngine engine;
+    private final BufferPool pool;
+    private final Log log;
+    private final ProxyMetrics metrics;
+    private final Timeouts timeouts;
+    private final SocketChannel client;
+    private volatile SocketChannel upstream;
+    private String upstreamKey;
+    private boolean reusedUpstream;
+    private boolean retriable;
+    private ByteBuffer in;
+    private ByteBuffer up;
+    private ByteBuffer out;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    private final HTTPRequestHeadParser requestParser;
+    private final HTTPResponseHeadParser responseParser;
+    private final HTTPBodyFramer requestFramer = new HTTPBodyFramer();
+    private final HTTPBodyFramer responseFramer = new HTTPBodyFramer();
+    private final HTTPHeadEncoder encoder = new HTTPHeadEncoder();
+    private HTTPRequest request;
+    private int bodyStart;
+    private String clientVersion;
+    private boolean keepAlive;
+    private boolean reusable;
+    private boolean upgraded;
+    private boolean dechunk;
+    private boolean rechunk;
+    private boolean chunkOpen;
+
+    private Deadline scheduled;
+    private ScheduledFuture<?> deadline;
+    private ScheduledFuture<?> responseDeadline;
+    private boolean responseArrived;
+    private volatile Deadline reached;
+    private volatile boolean responseStarted;
+    private volatile long lastActive;
+    private volatile boolean replied = false;
+    private volatile boolean aborted = false;
+
+    private boolean accessPending = false;
+    private long requestTime;
+    private long requestNanos;
+    private long ttfbNanos;
+    private volatile int status;
+    private long requestBytes;
+    private long responseBytes;
+    private String clientAddress;
+
+    BlockingConnection(BlockingEngine engine, SocketChannel client) {
+        this.engine = engine;
+        this.pool = engine.bufferPool();
+        this.log = engine.log();
+        this.metrics = engine.metrics();
+        this.timeouts = engine.timeouts();
+        this.client = client;
+        this.requestParser = new HTTPRequestHeadParser(engine.maxHeadSize());
+        this.responseParser = new HTTPResponseHeadParser(engine.maxHeadSize());
+        metrics.activeClients.inc();
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (log.isEnabled(DEBUG)) {
+                log.debug("%-9s %s", "ACCEPT", this);
+            }
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            in = acquire(pool.minBufferSize());
+            out = acquire(pool.minBufferSize());
+            while (readRequest()) {
+                boolean persistent = exchange();
+                logAccess();
+                request = null;
+                if (!persistent) break;
+            }
+        } catch (IOException e) {
+            if (!aborted && client.isOpen()) {
+                log.debug("%-9s %s: %s", "FAIL", this, e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes both sockets, which wakes up the threads of the connection. May be called from any thread.
+     */
+    void abort() {
+        aborted = true;
+        BlockingEngine.closeQuietly(upstream);
+        BlockingEngine.closeQuietly(client);
+    }
+
+    /**
+     * Reads the next request head into {@link #in}, after the bytes of a previous request, if there are any.
+     *
+     * @return <code>false</code> if the client closed the connection, went idle or was answered with an error
+     */
+    private boolean readRequest()
+            throws IOException {
+        requestParser.reset(0);
+        schedule(in.position() > 0 ? Deadline.HEAD : Deadline.IDLE);
+        while (true) {
+            int bodyStart = HTTPMessageHeadParser.NEED_MORE;
+            if (in.position() > 0) {
+                try {
+                    bodyStart = requestParser.advance(in, in.position());
+                } catch (HTTPHeadTooLargeException e) {
+                    log.warn("%-9s %s: %s", "PARSE", this, e.getMessage());
+                    metrics.requestParseErrors.inc();
+                    reply(431);
+                    return false;
+                } catch (HTTPParseException e) {
+                    log.warn("%-9s %s: %s", "PARSE", this, e.getMessage());
+                    metrics.requestParseErrors.inc();
+                    reply(400);
+                    return false;
+                }
+            }
+            if (bodyStart != HTTPMessageHeadParser.NEED_MORE) {
+                request = requestParser.getMessage();
+                this.bodyStart = bodyStart;
+                beginAccess(bodyStart);
+                schedule(Deadline.REQUEST);
+                metrics.requests.inc();
+                return true;
+            }
+            if (in.position() > 0 && scheduled == Deadline.IDLE) {
+                // a head that does not come in one read has to be finished in time
+                schedule(Deadline.HEAD);
+            }
+
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= pool.maxBufferSize()) {
+                    log.warn("%-9s %s: message head does not fit into a buffer", "PARSE", this);
+                    metrics.requestParseErrors.inc();
+                    reply(431);
+                    return false;
+                }
+                in = grow(in, in.capacity() + 1);
+            }
+            int n = client.read(in);
+            if (n == -1) {
+                if (reached == Deadline.HEAD) {
+                    reply(408);
+                }
+                return false;
+            }
+            metrics.receivedFromClients.add(n);
+        }
+    }
+
+    /**
+     * Proxies the request just read and relays the response to it.
+     *
+     * @return whether the client connection stays open for the next request
+     */
+    private boolean exchange()
+            throws IOException {
+        try {
+            requestFramer.reset(request);
+        } catch (HTTPParseException e) {
+            log.warn("%-9s %s: %s", "FRAME", this, e.getMessage());
+            metrics.requestParseErrors.inc();
+            reply(400);
+            return false;
+        }
+        keepAlive = Messages.keepAlive(request);
+        clientVersion = request.getVersion();
+
+        if ("CONNECT".equals(request.getMethod())) {
+            if (!request.hostSpecified()) {
+                reply(400);
+            } else {
+                tunnel(bodyStart);
+            }
+            return false;
+        }
+
+        int status = Messages.normalize(request);
+        if (status != 0) {
+            reply(status);
+            return false;
+        }
+        InetSocketAddress unresolved = Messages.upstreamAddress(request);
+        if (!connect(unresolved, unresolved.getHostString() + ":" + unresolved.getPort())) {
+            return false;
+        }
+
+        retriable = reusedUpstream && Messages.retriable(request, requestFramer.isComplete());
+        boolean sent = true;
+        try {
+            // the head is encoded from the bytes it was parsed from before they are dropped
+            writeHead(upstream, request, false);
+        } catch (IOException e) {
+            if (!retriable) throw e;
+            sent = false;
+        }
+        request.getFields().detach();
+        drop(in, bodyStart);
+        if (!sent && !retry()) {
+            return false;
+        }
+
+        responseStarted = false;
+        responseArrived = false;
+        upgraded = false;
+        if (requestFramer.isComplete()) {
+            scheduleResponse();
+            respond();
+        } else {
+            Thread responder = engine.newThread(this::respondOrAbort);
+            responder.start();
+            try {
+                relayRequestBody();
+                scheduleResponse();
+            } catch (IOException e) {
+                if (!replied) {
+                    abort();
+                }
+            } finally {
+                join(responder);
+            }
+        }
+        cancelDeadline();
+
+        if (upgraded) {
+            relayTunnel();
+            return false;
+        }
+        if (!reusable) {
+            closeUpstream();
+        }
+        return keepAlive && !replied && requestFramer.isComplete() && client.isOpen();
+    }
+
+    /**
+     * Sends the body of the current request from {@link #in} upstream as it arrives. Bytes after the body
+     * are kept in {@link #in} for the next request.
+     */
+    private void relayRequestBody()
+            throws IOException {
+        while (true) {
+            int framed;
+            try {
+                framed = requestFramer.frame(in, 0, in.position());
+            } catch (HTTPParseException e) {
+                log.warn("%-9s %s: %s", "FRAME", this, e.getMessage());
+                metrics.requestParseErrors.inc();
+                throw new IOException(e.getMessage());
+            }
+            if (framed > 0) {
+                int end = in.position();
+                in.position(0).limit(framed);
+                writeFully(upstream, in);
+                metrics.sentToUpstreams.add(framed);
+                requestBytes += framed;
+                in.limit(end).position(framed);
+                in.compact();
+            }
+            if (requestFramer.isComplete()) return;
+            if (!in.hasRemaining()) {
+                in = grow(in, pool.maxBufferSize());
+            }
+            int n = client.read(in);
+            if (n == -1) throw new IOException("the client closed the connection within a request body");
+            metrics.receivedFromClients.add(n);
+        }
+    }
+
+    private void respondOrAbort() {
+        try {
+            respond();
+        } catch (IOException e) {
+            if (!aborted && client.isOpen()) {
+                log.debug("%-9s %s: %s", "FAIL", this, e);
+            }
+            abort();
+        }
+    }
+
+    /**
+     * Reads the response to the current request and relays it to the client, after the interim responses
+     * before it.
+     */
+    private void respond()
+            throws IOException {
+        reusable = false;
+        up.clear();
+        responseParser.reset(0);
+        while (true) {
+            int bodyStart = readResponseHead();
+            if (bodyStart == -1) return;
+            responseArrived();
+            HTTPResponse response = responseParser.getMessage();
+
+            try {
+                responseFramer.reset(request, response);
+            } catch (HTTPParseException e) {
+                log.warn("%-9s %s: %s", "FRAME", this, e.getMessage());
+                metrics.responseParseErrors.inc();
+                reply(500);
+                return;
+            }
+            String code = response.getStatusCode();
+            boolean interim = code.startsWith("1") && !code.equals("101");
+            if (interim) {
+                Messages.normalize(response, keepAlive, clientVersion);
+                writeHead(client, response, false);
+                drop(up, bodyStart);
+                responseParser.reset(0);
+                continue;
+            }
+
+            responseHead(Integer.parseInt(code));
+            reusable = Messages.keepAlive(response) && responseFramer.isDelimited();
+            if (code.equals("101")) {
+                keepAlive = false;
+                upgraded = true;
+                reusable = false;
+            }
+            recode(response);
+            Messages.normalize(response, keepAlive, clientVersion);
+            writeHead(client, response, true);
+            relayResponseBody(bodyStart);
+            return;
+        }
+    }
+
+    /**
+     * @return the offset of the body in {@link #up}, or <code>-1</code> if the client was answered instead
+     */
+    private int readResponseHead()
+            throws IOException {
+        while (true) {
+            int bodyStart = HTTPMessageHeadParser.NEED_MORE;
+            if (up.position() > 0) {
+                try {
+                    bodyStart = responseParser.advance(up, up.position());
+                } catch (HTTPParseException e) {
+                    log.warn("%-9s %s: %s", "PARSE", this, e.getMessage());
+                    metrics.responseParseErrors.inc();
+                    reply(502);
+                    return -1;
+                }
+            }
+            if (bodyStart != HTTPMessageHeadParser.NEED_MORE) return bodyStart;
+            if (!up.hasRemaining()) {
+                log.warn("%-9s %s: message head does not fit into a buffer", "PARSE", this);
+                metrics.responseParseErrors.inc();
+                reply(502);
+                return -1;
+            }
+
+            int n;
+            try {
+                n = upstream.read(up);
+            } catch (IOException e) {
+                n = -1;
+            }
+            // a deadline that passed ends the read the same way, and is answered below
+            if (n == -1 && retriable && up.position() == 0 && reached == null) {
+                if (!retry()) return -1;
+                continue;
+            }
+            if (n == -1) {
+                Deadline r = reached;
+                reply(r == Deadline.RESPONSE || r == Deadline.REQUEST ? 504 : 502);
+                return -1;
+            }
+            retriable = false;
+            metrics.receivedFromUpstreams.add(n);
+        }
+    }
+
+    /**
+     * Relays the body starting at <code>bodyStart</code> of {@link #up} to the client, after the head that
+     * was encoded into {@link #out}.
+     */
+    private void relayResponseBody(int bodyStart)
+            throws IOException {
+        int from = bodyStart;
+        chunkOpen = false;
+        while (true) {
+            int framed;
+            try {
+                framed = dechunk ? responseFramer.decode(up, from) : responseFramer.frame(up, from, up.position());
+            } catch (HTTPParseException e) {
+                log.warn("%-9s %s: %s", "FRAME", this, e.getMessage());
+                metrics.responseParseErrors.inc();
+                throw new IOException(e.getMessage());
+            }
+            if (rechunk && framed > 0) {
+                chunkFrame(framed);
+            }
+            if (framed > 0 || out.position() > 0) {
+                int end = up.position();
+                up.position(from).limit(from + framed);
+                writeToClient(up);
+                up.limit(up.capacity()).position(end);
+            }
+            from += framed;
+            if (responseFramer.isComplete()) break;
+
+            // everything read so far was relayed
+            up.clear();
+            from = 0;
+            int n = upstream.read(up);
+            if (n == -1) {
+                if (!responseFramer.endOfStream()) {
+                    throw new IOException("the origin closed the connection within a response body");
+                }
+                reusable = false;
+                break;
+            }
+            metrics.receivedFromUpstreams.add(n);
+        }
+        if (rechunk) {
+            if (chunkOpen) {
+                out.put((byte) CR).put((byte) LF);
+            }
+            out.put(LAST_CHUNK);
+            writeToClient(null);
+        }
+        if (upgraded) {
+            drop(up, from);
+        } else if (up.position() > from) {
+            // an origin sending more than it was asked for is not trusted with another request
+            reusable = false;
+        }
+    }
+
+    /**
+     * Decides whether the body of <code>response</code> is {@link #dechunk dechunked} or {@link #rechunk
+     * rechunked} for the client the same way a {@link ProxyUnit} does, except that nothing is compressed.
+     */
+    private void recode(HTTPResponse response) {
+        boolean http11 = HTTP_1_1.equals(clientVersion);
+        String codings = response.getFieldValue("Transfer-Encoding");
+        dechunk = false;
+        rechunk = false;
+        if (responseFramer.isChunked() && !http11 && "chunked".equalsIgnoreCase(codings)) {
+            dechunk = true;
+            codings = null;
+            response.removeField("Transfer-Encoding");
+            response.removeField("Trailer");
+        }
+        if (!dechunk && responseFramer.isDelimited()) return;
+
+        if (http11 && keepAlive && codings == null) {
+            rechunk = true;
+            response.setVersion(HTTP_1_1);
+            response.setField("Transfer-Encoding", "chunked");
+        } else {
+            keepAlive = false;
+        }
+    }
+
+    /**
+     * Puts the frame of a chunk of <code>size</code> bytes into {@link #out}, ending the previous chunk.
+     */
+    private void chunkFrame(int size) {
+        if (chunkOpen) {
+            out.put((byte) CR).put((byte) LF);
+        }
+        for (int shift = (31 - Integer.numberOfLeadingZeros(size)) & ~3; shift >= 0; shift -= 4) {
+            out.put((byte) Character.forDigit((size >>> shift) & 0xF, 16));
+        }
+        out.put((byte) CR).put((byte) LF);
+        chunkOpen = true;
+    }
+
+    /**
+     * Connects to the origin of the current request, unless the connection kept from the previous request
+     * goes there already.
+     *
+     * @return <code>false</code> if the client was answered instead
+     */
+    private boolean connect(InetSocketAddress unresolved, String key)
+            throws IOException {
+        if (upstream != null) {
+            if (key.equals(upstreamKey) && !stale()) {
+                metrics.upstreamReused.inc();
+                reusedUpstream = true;
+                return true;
+            }
+            closeUpstream();
+        }
+
+        InetAddress address = resolve(unresolved.getHostString());
+        if (address == null) {
+            reply(502);
+            return false;
+        }
+        SocketChannel socket = SocketChannel.open();
+        long start = System.nanoTime();
+        try {
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            socket.socket().connect(new InetSocketAddress(address, unresolved.getPort()),
+                    (int) Math.min(timeouts.connect, Integer.MAX_VALUE));
+        } catch (SocketTimeoutException e) {
+            BlockingEngine.closeQuietly(socket);
+            log.warn("%-9s %s: connect deadline reached", "TIMEOUT", this);
+            metrics.connectTimeouts.inc();
+            reply(504);
+            return false;
+        } catch (IOException e) {
+            BlockingEngine.closeQuietly(socket);
+            metrics.upstreamConnectFailures.inc();
+            reply(502);
+            return false;
+        }
+        metrics.upstreamConnect.record(System.nanoTime() - start);
+        metrics.activeUpstreams.inc();
+        upstream = socket;
+        upstreamKey = key;
+        reusedUpstream = false;
+        if (aborted) {
+            // stopped while connecting
+            abort();
+            throw new ClosedChannelException();
+        }
+        if (reached == Deadline.REQUEST) {
+            reply(504);
+            return false;
+        }
+        if (up == null) {
+            up = acquire(pool.maxBufferSize());
+        }
+        if (log.isEnabled(DEBUG)) {
+            log.debug("%-9s %s", "CONNECT", Proxy.toString(upstream));
+        }
+        return true;
+    }
+
+    /**
+     * Sends the current request again, once, over a new connection after the kept one it was sent over ended
+     * or failed before any of the response arrived, which an origin closing an idle connection as the request
+     * is sent makes it do. Only requests that are {@link Messages#retriable retriable} are.
+     *
+     * @return <code>false</code> if the client was answered instead
+     */
+    private boolean retry()
+            throws IOException {
+        retriable = false;
+        metrics.upstreamRetries.inc();
+        if (log.isEnabled(DEBUG)) {
+            log.debug("%-9s %s", "RETRY", Proxy.toString(upstream));
+        }
+        closeUpstream();
+        InetSocketAddress unresolved = Messages.upstreamAddress(request);
+        if (!connect(unresolved, unresolved.getHostString() + ":" + unresolved.getPort())) {
+            return false;
+        }
+        out.clear();
+        writeHead(upstream, request, false);
+        return true;
+    }
+
+    /**
+     * @return whether the kept upstream connection was closed by the origin or sent something unasked
+     */
+    private boolean stale() {
+        try {
+            upstream.configureBlocking(false);
+            up.clear();
+            int n = upstream.read(up);
+            upstream.configureBlocking(true);
+            return n != 0;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Looks <code>host</code> up with the shared resolver, waiting for the answer.
+     *
+     * @return the address or <code>null</code> if the lookup failed
+     */
+    private InetAddress resolve(String host)
+            throws IOException {
+        CompletableFuture<InetAddress> address = new CompletableFuture<>();
+        engine.resolver().resolve(host, Runnable::run, (resolved, error) -> {
+            if (error != null) {
+                address.completeExceptionally(error);
+            } else {
+                address.complete(resolved);
+            }
+        });
+        try {
+            return address.get();
+        } catch (ExecutionException e) {
+            log.warn("%-9s %s: %s", "RESOLVE", host, e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while resolving " + host);
+        }
+    }
+
+    /**
+     * Connects to the target of the <code>CONNECT</code> request just read, answers <code>200</code> and
+     * relays whatever comes from either side until both have finished.
+     */
+    private void tunnel(int bodyStart)
+            throws IOException {
+        request.getFields().detach();
+        drop(in, bodyStart);
+        keepAlive = false;
+        closeUpstream();
+        if (!connect(InetSocketAddress.createUnresolved(request.getHost(), request.getPort()), null)) return;
+
+        responseHead(200);
+        metrics.tunnels.inc();
+        writeHead(client, Proxy.STATUS_LINES.get(200), false);
+        // the buffer still holds whatever was read from the previous upstream
+        up.clear();
+        relayTunnel();
+    }
+
+    /**
+     * Relays the bytes of a tunnel or an upgraded connection both ways, one way in another thread. Whatever
+     * {@link #in} and {@link #up} hold is written first: the bytes that followed the request head and, for an
+     * upgrade, the response head.
+     */
+    private void relayTunnel()
+            throws IOException {
+        cancelDeadline();
+        lastActive = System.nanoTime();
+        schedule(Deadline.TUNNEL);
+        Thread downstream = engine.newThread(() -> pipe(upstream, client, up, false));
+        downstream.start();
+        try {
+            pipe(client, upstream, in, true);
+        } finally {
+            join(downstream);
+        }
+    }
+
+    /**
+     * Writes what is in <code>buffer</code> and then everything read from <code>from</code> to
+     * <code>to</code>. The end of the stream is passed on by shutting down the output of <code>to</code>.
+     */
+    private void pipe(SocketChannel from, SocketChannel to, ByteBuffer buffer, boolean fromClient) {
+        try {
+            while (true) {
+                if (buffer.position() > 0) {
+                    buffer.flip();
+                    int n = buffer.remaining();
+                    writeFully(to, buffer);
+                    (fromClient ? metrics.sentToUpstreams : metrics.sentToClients).add(n);
+                    if (!fromClient) {
+                        responseBytes += n;
+                    }
+                    buffer.clear();
+                }
+                int n = from.read(buffer);
+                if (n == -1) break;
+                (fromClient ? metrics.receivedFromClients : metrics.receivedFromUpstreams).add(n);
+                if (fromClient) {
+                    requestBytes += n;
+                }
+                lastActive = System.nanoTime();
+            }
+            to.shutdownOutput();
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    /**
+     * Answers the current request with <code>status</code> instead of a response, unless a response has been
+     * started, and closes the connection.
+     */
+    private void reply(int status) {
+        synchronized (this) {
+            if (replied || responseStarted) {
+                abort();
+                return;
+            }
+            replied = true;
+            if (scheduled != Deadline.REQUEST) {
+                // the reply has to be written in time as well
+                schedule(Deadline.REQUEST);
+            }
+        }
+        if (!accessPending) {
+            beginAccess(0);
+        }
+        this.status = status;
+        BlockingEngine.closeQuietly(upstream);
+        try {
+            out.clear();
+            writeHead(client, Proxy.STATUS_LINES.get(status), false);
+            client.shutdownOutput();
+        } catch (IOException ignored) {
+            // the client is gone
+        }
+        BlockingEngine.closeQuietly(client);
+    }
+
+    /**
+     * Encodes the head of <code>message</code> into {@link #out} and writes it to <code>socket</code>.
+     *
+     * @param withBody whether to keep the last part of the head in {@link #out}, to be written with the first
+     *                 bytes of the body
+     */
+    private void writeHead(SocketChannel socket, HTTPMessage message, boolean withBody)
+            throws IOException {
+        encoder.reset(message);
+        while (true) {
+            boolean complete = encoder.encode(out);
+            if (complete && withBody) return;
+            if (socket == client) {
+                writeToClient(null);
+            } else {
+                out.flip();
+                int n = out.remaining();
+                writeFully(socket, out);
+                metrics.sentToUpstreams.add(n);
+                out.clear();
+            }
+            if (complete) return;
+        }
+    }
+
+    /**
+     * Writes what is in {@link #out} and then <code>body</code>, if it is not <code>null</code>, to the client
+     * with gathering writes.
+     */
+    private void writeToClient(ByteBuffer body)
+            throws IOException {
+        out.flip();
+        gather[0] = out;
+        gather[1] = body;
+        int count = body == null ? 1 : 2;
+        responseStarted = true;
+        while (out.hasRemaining() || body != null && body.hasRemaining()) {
+            long n = client.write(gather, 0, count);
+            metrics.sentToClients.add(n);
+            responseBytes += n;
+        }
+        gather[1] = null;
+        out.clear();
+    }
+
+    private static void writeFully(SocketChannel socket, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+
+    /**
+     * Drops the first <code>length</code> bytes of <code>buffer</code>, moving the rest to its start.
+     */
+    private static void drop(ByteBuffer buffer, int length) {
+        buffer.flip();
+        buffer.position(length);
+        buffer.compact();
+    }
+
+    /**
+     * Moves the contents of <code>buffer</code> to a pooled buffer of at least <code>minSize</code> bytes.
+     */
+    private ByteBuffer grow(ByteBuffer buffer, int minSize)
+            throws IOException {
+        ByteBuffer larger = acquire(minSize);
+        buffer.flip();
+        larger.put(buffer);
+        pool.release(buffer);
+        return larger;
+    }
+
+    /**
+     * Takes a buffer from the pool, waiting while it is exhausted.
+     */
+    private ByteBuffer acquire(int minSize)
+            throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = pool.acquire(minSize)) == null) {
+            if (!client.isOpen()) throw new ClosedChannelException();
+            try {
+                Thread.sleep(STARVATION_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a buffer");
+            }
+        }
+        return buffer;
+    }
+
+    private static void join(Thread thread)
+            throws InterruptedIOException {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + thread.getName());
+        }
+    }
+
+    private void closeUpstream() {
+        if (upstream == null) return;
+        BlockingEngine.closeQuietly(upstream);
+        metrics.activeUpstreams.dec();
+        upstream = null;
+        upstreamKey = null;
+    }
+
+    private void close() {
+        cancelDeadline();
+        cancelResponseDeadline();
+        logAccess();
+        closeUpstream();
+        BlockingEngine.closeQuietly(client);
+        if (log.isEnabled(DEBUG)) {
+            log.debug("%-9s %s", "CLOSE", this);
+        }
+        pool.release(in);
+        pool.release(up);
+        pool.release(out);
+        in = up = out = null;
+        metrics.activeClients.dec();
+        engine.closed(this);
+    }
+
+    /**
+     * Moves the deadline of the client on to <code>deadline</code>, counting from now.
+     */
+    private synchronized void schedule(Deadline deadline) {
+        if (this.deadline != null) {
+            this.deadline.cancel(false);
+        }
+        reached = null;
+        scheduled = deadline;
+        this.deadline = engine.schedule(deadline.millis(timeouts), () -> timedOut(deadline));
+    }
+
+    private synchronized void cancelDeadline() {
+        scheduled = null;
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
+
+    /**
+     * Starts the deadline for the origin to answer, once the request has been sent, unless it has answered.
+     */
+    private synchronized void scheduleResponse() {
+        if (responseArrived || replied) return;
+        responseDeadline = engine.schedule(timeouts.head, () -> timedOut(Deadline.RESPONSE));
+    }
+
+    /**
+     * Called when a response head was read, which the origin was waiting for no longer than the deadline.
+     */
+    private synchronized void responseArrived() {
+        responseArrived = true;
+        cancelResponseDeadline();
+    }
+
+    private synchronized void cancelResponseDeadline() {
+        if (responseDeadline != null) {
+            responseDeadline.cancel(false);
+            responseDeadline = null;
+        }
+    }
+
+    /**
+     * Called by the scheduler of the engine when <code>deadline</code> passes.
+     */
+    private void timedOut(Deadline deadline) {
+        synchronized (this) {
+            if (deadline == Deadline.RESPONSE ? responseArrived : scheduled != deadline) {
+                // moved on before the deadline could be cancelled
+                return;
+            }
+            if (deadline == Deadline.TUNNEL) {
+                // reads do not move the deadline, it is moved here if there were any
+                long left = timeouts.idle - (System.nanoTime() - lastActive) / 1_000_000;
+                if (left > 0) {
+                    this.deadline = engine.schedule(left, () -> timedOut(Deadline.TUNNEL));
+                    return;
+                }
+            }
+        }
+        if (deadline == Deadline.IDLE || deadline == Deadline.TUNNEL) {
+            if (log.isEnabled(DEBUG)) {
+                log.debug("%-9s %s", "IDLE", this);
+            }
+        } else {
+            log.warn("%-9s %s: %s deadline reached", "TIMEOUT", this, deadline.name().toLowerCase());
+        }
+
+        reached = deadline;
+        try {
+            switch (deadline) {
+                case IDLE:
+                case TUNNEL:
+                    metrics.idleClosedClients.inc();
+                    abort();
+                    break;
+                case HEAD:
+                    metrics.headTimeouts.inc();
+                    client.shutdownInput();
+                    break;
+                case REQUEST:
+                    metrics.requestTimeouts.inc();
+                    SocketChannel origin = upstream;
+                    if (responseStarted || replied) {
+                        abort();
+                    } else if (origin != null) {
+                        // the thread waiting for the origin answers with 504
+                        BlockingEngine.closeQuietly(origin);
+                    }
+                    // otherwise it answers once it is done resolving and connecting
+                    break;
+                case RESPONSE:
+                    metrics.responseTimeouts.inc();
+                    SocketChannel socket = upstream;
+                    if (socket != null) {
+                        socket.shutdownInput();
+                    }
+                    break;
+            }
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    private void beginAccess(int headBytes) {
+        accessPending = true;
+        requestTime = System.currentTimeMillis();
+        requestNanos = System.nanoTime();
+        ttfbNanos = -1;
+        status = 0;
+        requestBytes = headBytes;
+        responseBytes = 0;
+    }
+
+    private void responseHead(int status) {
+        this.status = status;
+        ttfbNanos = System.nanoTime() - requestNanos;
+    }
+
+    private void logAccess() {
+        if (!accessPending) return;
+        accessPending = false;
+        long durationNanos = System.nanoTime() - requestNanos;
+        if (status != 0) {
+            metrics.response(status);
+            metrics.requestDuration.record(durationNanos);
+            if (ttfbNanos >= 0) {
+                metrics.timeToFirstByte.record(ttfbNanos);
+            }
+        }
+        AccessLog accessLog = engine.accessLog();
+        if (accessLog == null) return;
+        if (clientAddress == null) {
+            InetSocketAddress address = (InetSocketAddress) client.socket().getRemoteSocketAddress();
+            clientAddress = address == null ? null : address.getAddress().getHostAddress() + ":" + address.getPort();
+        }
+        HTTPRequest r = request;
+        accessLog.log(requestTime, clientAddress,
+                r == null ? null : r.getMethod(),
+                r == null ? null : r.getFieldValue("Host"),
+                r == null ? null : "CONNECT".equals(r.getMethod()) ? r.getHost() + ":" + r.getPort() :
+                        r.getPath() + r.getQuery(),
+                status, requestBytes, responseBytes, ttfbNanos, durationNanos);
+    }
+
+    @Override
+    public String toString() {
+        return Proxy.toString(client);
+    }
+
+    /**
+     * What a connection is waiting for, see {@link Timeouts}.
+     */
+    private enum Deadline {
+        RESPONSE, HEAD, REQUEST, IDLE, TUNNEL;
+
+        long millis(Timeouts timeouts) {
+            switch (this) {
+                case RESPONSE:
+                case HEAD:
+                    return timeouts.head;
+                case REQUEST:
+                    return timeouts.request;
+                default:
+                    return timeouts.idle;
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import ru.nsu.ccfit.bogush.net.http.proxy.buffer.BufferPool;
+import ru.nsu.ccfit.bogush.net.http.proxy.dns.AsyncResolver;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.AccessLog;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-per-connection alternative to the {@link Reactor}s. <br>
+ *
+ * Every accepted client gets a {@link BlockingConnection} running in its own thread, which reads and writes
+ * its sockets in blocking mode, so the state of a connection is the position in straight-line code rather
+ * than a set of interest ops. The threads are virtual if the runtime has them (Java 21 and later), found
+ * through reflection since the proxy is built for Java 11, and platform daemon threads otherwise. <br>
+ *
+ * The {@link Timeouts} are kept by one scheduler thread: when a deadline passes, the socket its connection
+ * is blocked on is shut down or closed, which wakes the connection up to answer or give up. <br>
+ *
+ * The {@link BufferPool}, the {@link AsyncResolver}, the logs and the {@link ProxyMetrics} are shared with
+ * the rest of the proxy. The {@link ru.nsu.ccfit.bogush.net.http.proxy.cache.ResponseCache ResponseCache},
+ * the {@link Compressor} and the {@link UpstreamPool} are not used: a connection keeps its upstream
+ * connection only as long as its client asks the same origin.
+ */
+class BlockingEngine {
+    private static final String THREAD_NAME = "connection-";
+
+    private final BufferPool bufferPool;
+    private final AsyncResolver resolver;
+    private final int maxHeadSize;
+    private final Log log;
+    private final AccessLog accessLog;
+    private final ProxyMetrics metrics;
+    private final Timeouts timeouts;
+    private final ThreadFactory threads;
+    private final boolean virtual;
+    private final ScheduledThreadPoolExecutor deadlines;
+    private final Set<BlockingConnection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean stopped = false;
+
+    BlockingEngine(BufferPool bufferPool, AsyncResolver resolver, int maxHeadSize, Log log, AccessLog accessLog,
+                   ProxyMetrics metrics, Timeouts timeouts) {
+        this.bufferPool = bufferPool;
+        this.resolver = resolver;
+        this.maxHeadSize = maxHeadSize;
+        this.log = log;
+        this.accessLog = accessLog;
+        this.metrics = metrics;
+        this.timeouts = timeouts;
+        ThreadFactory virtualThreads = virtualThreadFactory(THREAD_NAME);
+        this.virtual = virtualThreads != null;
+        this.threads = virtual ? virtualThreads : platformThreadFactory(THREAD_NAME);
+        this.deadlines = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Starts serving <code>socket</code> in a thread of its own. May be called from any thread.
+     */
+    void register(SocketChannel socket) {
+        metrics.accepted.inc();
+        BlockingConnection connection = new BlockingConnection(this, socket);
+        connections.add(connection);
+        if (stopped) {
+            connection.abort();
+        }
+        newThread(connection).start();
+    }
+
+    /**
+     * Closes every connection, which ends their threads.
+     */
+    void stop() {
+        stopped = true;
+        deadlines.shutdownNow();
+        for (BlockingConnection connection : connections) {
+            connection.abort();
+        }
+    }
+
+    /**
+     * @return whether the connections run in virtual threads
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return the number of connections being served
+     */
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    Thread newThread(Runnable task) {
+        return threads.newThread(task);
+    }
+
+    /**
+     * Runs <code>action</code> once <code>millis</code> pass, unless it is cancelled. A limit of
+     * <code>0</code> is never reached, so <code>null</code> is returned then.
+     */
+    ScheduledFuture<?> schedule(long millis, Runnable action) {
+        if (millis <= 0 || stopped) return null;
+        return deadlines.schedule(action, millis, TimeUnit.MILLISECONDS);
+    }
+
+    void closed(BlockingConnection connection) {
+        connections.remove(connection);
+    }
+
+    BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    AsyncResolver resolver() {
+        return resolver;
+    }
+
+    int maxHeadSize() {
+        return maxHeadSize;
+    }
+
+    Log log() {
+        return log;
+    }
+
+    AccessLog accessLog() {
+        return accessLog;
+    }
+
+    ProxyMetrics metrics() {
+        return metrics;
+    }
+
+    Timeouts timeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return a factory of virtual threads named <code>name</code> and a number, or <code>null</code> if the
+     * runtime does not have them or has them as a preview feature that is not enabled
+     */
+    static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method named = builderClass.getMethod("name", String.class, long.class);
+            builder = named.invoke(builder, name, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static ThreadFactory platformThreadFactory(String name) {
+        AtomicInteger next = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + next.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    static void closeQuietly(SocketChannel socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
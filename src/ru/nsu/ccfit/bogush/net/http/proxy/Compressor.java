@@ -0,0 +1,186 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+import ru.nsu.ccfit.bogush.net.http.build.GzipEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compression of the responses of one {@link Reactor}. <br>
+ *
+ * A response is compressed if the client accepts <code>gzip</code> and the response is
+ * {@link #compressible compressible}: a <code>200</code> answer of a textual content type, not encoded yet,
+ * not marked <code>no-transform</code> and not known to be shorter than {@link #minLength}. <br>
+ *
+ * Deflaters hold native memory and are expensive to create, so they are pooled and reset rather than
+ * created per response. The CPU time spent deflating is limited to {@link #budgetPercent} percent of every
+ * second of the reactor thread: once the budget of the current second is spent, responses starting then
+ * are passed on as they are, while those being compressed already are finished.
+ */
+class Compressor {
+    static final int DEFAULT_BUDGET_PERCENT = 50;
+    static final long DEFAULT_MIN_LENGTH = 256;
+    static final int DEFAULT_MAX_IDLE = 64;
+    private static final long WINDOW_NANOS = 1_000_000_000;
+
+    private final ArrayDeque<Deflater> idle = new ArrayDeque<>();
+    private final GzipEncoder encoder = new GzipEncoder();
+    private final int level;
+    private final int budgetPercent;
+    private final long minLength;
+    private final int maxIdle;
+    private long windowStart = System.nanoTime();
+    private long spent = 0;
+
+    /**
+     * @param level         deflate level from <code>1</code>, fastest, to <code>9</code>, smallest
+     * @param budgetPercent share of the reactor thread's time that may be spent deflating
+     */
+    Compressor(int level, int budgetPercent, long minLength, int maxIdle) {
+        this.level = level;
+        this.budgetPercent = budgetPercent;
+        this.minLength = minLength;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return whether <code>request</code> accepts the <code>gzip</code> content coding
+     */
+    static boolean accepts(HTTPRequest request) {
+        String accepted = request.getFieldValue("Accept-Encoding");
+        if (accepted == null) return false;
+        for (String coding : accepted.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equalsIgnoreCase("x-gzip") && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=") && qvalue(parameter.substring(2)) == 0) return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param length length of the body or <code>-1</code> if it is not known yet
+     * @return whether the body of <code>response</code> is worth compressing for clients that accept it
+     */
+    boolean compressible(HTTPResponse response, long length) {
+        if (!response.getStatusCode().equals("200") || length >= 0 && length < minLength) return false;
+        if (response.getFieldValue("Content-Encoding") != null) return false;
+        String codings = response.getFieldValue("Transfer-Encoding");
+        if (codings != null && !codings.equalsIgnoreCase("chunked")) return false;
+        String cacheControl = response.getFieldValue("Cache-Control");
+        if (cacheControl != null && cacheControl.toLowerCase().contains("no-transform")) return false;
+        String type = response.getFieldValue("Content-Type");
+        if (type == null) return false;
+        type = type.toLowerCase();
+        int end = type.indexOf(';');
+        type = (end == -1 ? type : type.substring(0, end)).trim();
+        return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml") ||
+                type.equals("application/json") || type.equals("application/javascript") ||
+                type.equals("application/xml") || type.equals("image/svg+xml");
+    }
+
+    /**
+     * Marks <code>response</code> as compressed: it gets <code>Content-Encoding: gzip</code>, loses its
+     * <code>Content-Length</code>, and a strong <code>ETag</code> is made weak, since the compressed bytes
+     * differ from what the origin tagged.
+     */
+    static void encoded(HTTPResponse response) {
+        response.removeField("Content-Length");
+        response.setField("Content-Encoding", "gzip");
+        String etag = response.getFieldValue("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            response.setField("ETag", "W/" + etag);
+        }
+    }
+
+    /**
+     * Adds <code>Accept-Encoding</code> to the <code>Vary</code> field of a compressible response, whether it
+     * is compressed for this client or not.
+     */
+    static void vary(HTTPResponse response) {
+        String vary = response.getFieldValue("Vary");
+        if (vary == null || vary.trim().isEmpty()) {
+            response.setField("Vary", "Accept-Encoding");
+        } else if (!vary.toLowerCase().contains("accept-encoding")) {
+            response.setField("Vary", vary + ", Accept-Encoding");
+        }
+    }
+
+    /**
+     * @return a reset raw deflater or <code>null</code> if the budget of the current second is spent
+     */
+    Deflater acquire() {
+        long now = System.nanoTime();
+        if (now - windowStart >= WINDOW_NANOS) {
+            windowStart = now;
+            spent = 0;
+        }
+        if (spent * 100 >= WINDOW_NANOS * budgetPercent) return null;
+        Deflater deflater = idle.pollLast();
+        return deflater != null ? deflater : new Deflater(level, true);
+    }
+
+    void release(Deflater deflater) {
+        if (deflater == null) return;
+        if (idle.size() < maxIdle) {
+            deflater.reset();
+            idle.add(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Counts <code>nanos</code> spent deflating against the budget.
+     */
+    void charge(long nanos) {
+        spent += nanos;
+    }
+
+    /**
+     * Compresses a whole body at once, such as a stored one.
+     *
+     * @return a direct buffer with the gzip stream of <code>body</code>, <code>body</code> itself if compression
+     * does not make it smaller, or <code>null</code> if the budget is spent
+     */
+    ByteBuffer compress(ByteBuffer body) {
+        Deflater deflater = acquire();
+        if (deflater == null) return null;
+        long start = System.nanoTime();
+        try {
+            ByteBuffer input = body.duplicate();
+            ByteBuffer output = ByteBuffer.allocateDirect(input.remaining());
+            encoder.reset(deflater);
+            if (!encoder.encode(input, output, true)) return body;
+            output.flip();
+            return output;
+        } finally {
+            charge(System.nanoTime() - start);
+            release(deflater);
+        }
+    }
+
+    void close() {
+        Deflater deflater;
+        while ((deflater = idle.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    private static double qvalue(String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import ru.nsu.ccfit.bogush.net.http.proxy.buffer.BufferPool;
+
+/**
+ * Limits the reactors put on reading, in bytes. <br>
+ *
+ * <code>request high</code>, <code>request low</code> - watermarks of the bytes a client unit holds for its
+ * upstream, <code>response high</code>, <code>response low</code> - those of the bytes an upstream unit
+ * holds for its client: a unit stops reading once it holds the high watermark and starts again once the
+ * opposite socket has taken all but the low watermark of them, so a slow reader costs one pause and one
+ * resume instead of an interest change for every chunk written; <br>
+ * <code>read quantum</code> - the most a unit reads in one select, so a connection that always has bytes
+ * to read takes no larger a share of a reactor than any other; <br>
+ * <code>pressure percent</code> - the share of the capacity of the {@link BufferPool} in use from which the
+ * memory is under pressure: the high watermarks fall to the low ones, reads are cut to the smallest buffer
+ * size and bodies are relayed through buffers of that size, so every connection slows down before the pool
+ * is exhausted and new ones starve. <br>
+ *
+ * Watermarks are cut to the size of the buffer a unit holds.
+ */
+final class FlowControl {
+    static final int DEFAULT_HIGH_WATERMARK = 64 << 10;
+    static final int DEFAULT_LOW_WATERMARK = 16 << 10;
+    static final int DEFAULT_READ_QUANTUM = 32 << 10;
+    static final int DEFAULT_PRESSURE_PERCENT = 75;
+
+    final int requestHigh;
+    final int requestLow;
+    final int responseHigh;
+    final int responseLow;
+    final int readQuantum;
+    final int pressurePercent;
+
+    FlowControl(int requestHigh, int requestLow, int responseHigh, int responseLow, int readQuantum,
+                int pressurePercent) {
+        this.requestHigh = requestHigh;
+        this.requestLow = requestLow;
+        this.responseHigh = responseHigh;
+        this.responseLow = responseLow;
+        this.readQuantum = readQuantum;
+        this.pressurePercent = pressurePercent;
+    }
+
+    /**
+     * @return whether the buffers in use take at least the pressure percent of the capacity of
+     * <code>pool</code>
+     */
+    boolean underPressure(BufferPool pool) {
+        return pool.getInUseBytes() * 100 >= pool.getCapacity() * pressurePercent;
+    }
+
+    /**
+     * @throws IllegalArgumentException unless <code>0 &lt;= low &lt; high</code>
+     */
+    static void check(int high, int low) {
+        if (low < 0 || high <= low) {
+            throw new IllegalArgumentException("watermarks must satisfy 0 <= low < high: " + low + ", " + high);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPFields;
+import ru.nsu.ccfit.bogush.net.http.HTTPMessage;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.*;
+
+/**
+ * How the proxy rewrites the heads it forwards, shared by the {@link ProxyUnit}s of the reactors and the
+ * {@link BlockingConnection}s of the thread engine, so that both proxy the same way.
+ */
+final class Messages {
+    /**
+     * Fields that frame or route a message, which are kept even if <code>Connection</code> names them, so
+     * that a peer cannot make the proxy forward a message framed differently from how it was read.
+     */
+    private static final Set<String> END_TO_END = Set.of("host", "content-length", "transfer-encoding");
+    private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE");
+
+    private Messages() {
+    }
+
+    /**
+     * Upstream address taken from the <code>Host</code> field, which may carry an explicit port.
+     */
+    static InetSocketAddress upstreamAddress(HTTPRequest request) {
+        String host = request.getFieldValue("Host");
+        int port = DEFAULT_PORT;
+        int colon = host.lastIndexOf(':');
+        if (colon != -1 && host.indexOf(']', colon) == -1) {
+            try {
+                port = Integer.parseInt(host.substring(colon + 1));
+                host = host.substring(0, colon);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    /**
+     * @param bodiless whether the request has no body; a body is gone once it has been sent
+     * @return whether <code>request</code> may be sent again over a new connection after the one it was sent
+     * over was closed before any of the response arrived, as RFC 7230, 6.3.1 allows: its method is idempotent
+     * and it has no body
+     */
+    static boolean retriable(HTTPRequest request, boolean bodiless) {
+        return bodiless && IDEMPOTENT_METHODS.contains(request.getMethod());
+    }
+
+    /**
+     * @return whether the sender of <code>message</code> is willing to keep the connection open after it
+     */
+    static boolean keepAlive(HTTPMessage message) {
+        HTTPFields fields = message.getFields();
+        String connection = fields.contains("Connection") ? "Connection" : "Proxy-Connection";
+        if (HTTP_1_1.equals(message.getVersion())) {
+            return !fields.containsToken(connection, "close");
+        }
+        return fields.containsToken(connection, "keep-alive");
+    }
+
+    /**
+     * @param keepAlive     whether the client connection stays open after the response
+     * @param clientVersion HTTP version of the client's request
+     */
+    static int normalize(HTTPResponse response, boolean keepAlive, String clientVersion) {
+        removeConnectionOptions(response);
+        response.removeField("Keep-Alive");
+        if (!keepAlive) {
+            response.setField("Connection", "close");
+        } else if (HTTP_1_1.equals(clientVersion)) {
+            response.removeField("Connection");
+        } else {
+            response.setField("Connection", "keep-alive");
+        }
+        return 0;
+    }
+
+    /**
+     * Turns <code>request</code> into an HTTP/1.1 request in origin form for the upstream. A
+     * <code>Content-Length</code> is dropped if there is a <code>Transfer-Encoding</code>, which the request
+     * was framed by, so the upstream cannot frame it by the length instead (RFC 7230, section 3.3.3).
+     *
+     * @return <code>0</code> or the status to answer the request with instead of proxying it
+     */
+    static int normalize(HTTPRequest request) {
+        request.setVersion(HTTP_1_1);
+        if (request.getFields().contains("Transfer-Encoding")) {
+            request.removeField("Content-Length");
+        }
+        removeConnectionOptions(request);
+        request.removeField("Connection");
+        request.removeField("Proxy-Connection");
+        request.removeField("Keep-Alive");
+
+        if (request.getFieldValue("Host") == null) {
+            request.setField("Host", request.getHost() +
+                    (request.portSpecified() && request.getPort() != DEFAULT_PORT ? ":" + request.getPort() : ""));
+        }
+
+        if (request.getFieldValue("Host").isEmpty()) {
+            return 400;
+        }
+
+        if (DEFAULT_PROTOCOL.equals(request.getProtocol())) {
+            request.resetProtocol();
+        }
+
+        if (request.hostSpecified()) {
+            request.resetHost();
+        }
+
+        if (request.portSpecified()) {
+            request.resetPort();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Removes the hop-by-hop fields listed in <code>Connection</code> and <code>Proxy-Connection</code>,
+     * except the {@link #END_TO_END} ones. The listing fields themselves are left to the caller.
+     */
+    private static void removeConnectionOptions(HTTPMessage message) {
+        HTTPFields fields = message.getFields();
+        List<String> options = null;
+        for (int i = 0; i < fields.size(); i++) {
+            String name = fields.getName(i);
+            if (!name.equalsIgnoreCase("Connection") && !name.equalsIgnoreCase("Proxy-Connection")) continue;
+            for (String option : fields.getValue(i).split(",")) {
+                option = option.trim();
+                if (option.isEmpty() || END_TO_END.contains(option.toLowerCase())) continue;
+                if (options == null) {
+                    options = new ArrayList<>();
+                }
+                options.add(option);
+            }
+        }
+        if (options == null) return;
+        for (String option : options) {
+            fields.remove(option);
+        }
+    }
+}
@@ -1,472 +1,631 @@
 package ru.nsu.ccfit.bogush.net.http.proxy;
 
 import ru.nsu.ccfit.bogush.net.http.*;
-import ru.nsu.ccfit.bogush.net.http.parse.HTTPParseException;
-import ru.nsu.ccfit.bogush.net.http.parse.HTTPRequestHeadParser;
-import ru.nsu.ccfit.bogush.net.http.parse.HTTPResponseHeadParser;
-
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPMessageHeadParser;
+import ru.nsu.ccfit.bogush.net.http.proxy.buffer.BufferPool;
+import ru.nsu.ccfit.bogush.net.http.proxy.cache.DiskCache;
+import ru.nsu.ccfit.bogush.net.http.proxy.cache.ResponseCache;
+import ru.nsu.ccfit.bogush.net.http.proxy.dns.AsyncResolver;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.AccessLog;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+import ru.nsu.ccfit.bogush.net.http.proxy.metrics.MetricRegistry;
+import ru.nsu.ccfit.bogush.net.http.proxy.metrics.MetricsServer;
+
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.file.Paths;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static ru.nsu.ccfit.bogush.net.http.Constants.*;
-import static java.nio.channels.SelectionKey.*;
 
+/**
+ * HTTP proxy server. <br>
+ *
+ * The calling thread of {@link #start()} becomes the acceptor: it accepts client connections and hands
+ * each of them to one of the {@link Reactor}s in round-robin order. Every reactor owns a {@link Selector}
+ * and a thread, and the upstream connection of a client is registered on the same reactor as the client
+ * itself, so the state of a proxied pair is only ever touched by one thread. <br>
+ *
+ * The {@link BufferPool}, the {@link AsyncResolver}, the {@link ResponseCache} and the logs are shared by
+ * all reactors and may be replaced before the proxy is started. Unless another {@link AccessLog} is set, requests are logged to the
+ * standard output. <br>
+ *
+ * Connections that keep a reactor waiting for longer than the {@link #setConnectTimeoutMillis connect},
+ * {@link #setHeadTimeoutMillis head}, {@link #setIdleTimeoutMillis idle} or
+ * {@link #setRequestTimeoutMillis request} timeout are answered with <code>504 Gateway Timeout</code> or
+ * <code>408 Request Timeout</code> where a response is still possible, and closed. <br>
+ *
+ * If a {@link #setCompressionLevel compression level} is set, textual responses are compressed with gzip for
+ * clients that accept it, within a {@link #setCompressionBudgetPercent CPU budget}; see {@link Compressor}.
+ * <br>
+ *
+ * The reactors count what they do in the {@link #getMetrics() metrics} of the proxy, which are served in the
+ * Prometheus text format by a {@link MetricsServer} if an {@link #setAdminAddress admin address} is set. <br>
+ *
+ * The {@link Engine#THREADS threads} {@link #setEngine engine} replaces the reactors with a thread per
+ * connection, see {@link BlockingEngine}.
+ */
 public class Proxy {
-    private static final HashMap<Integer, HTTPResponse> STATUS_LINES = new HashMap<>();
+    /**
+     * How connections are served.
+     */
+    public enum Engine {
+        /**
+         * By the selector loops of the {@link Reactor}s, the default.
+         */
+        SELECTOR,
+        /**
+         * By a virtual thread per connection with blocking I/O, or by a platform thread if the runtime has no
+         * virtual threads. Responses are neither cached nor compressed then.
+         */
+        THREADS
+    }
+
+    static final HashMap<Integer, HTTPResponse> STATUS_LINES = new HashMap<>();
 
     static {
+        STATUS_LINES.put(200, (HTTPResponse) new HTTPResponse().setStatusCode("200").setReasonPhrase("Connection Established").setVersion(DEFAULT_VERSION));
         STATUS_LINES.put(400, (HTTPResponse) new HTTPResponse().setStatusCode("400").setReasonPhrase("Bad Request").setVersion(DEFAULT_VERSION));
+        STATUS_LINES.put(408, (HTTPResponse) new HTTPResponse().setStatusCode("408").setReasonPhrase("Request Timeout").setVersion(DEFAULT_VERSION));
+        STATUS_LINES.put(431, (HTTPResponse) new HTTPResponse().setStatusCode("431").setReasonPhrase("Request Header Fields Too Large").setVersion(DEFAULT_VERSION));
         STATUS_LINES.put(500, (HTTPResponse) new HTTPResponse().setStatusCode("500").setReasonPhrase("Internal Server Error").setVersion(DEFAULT_VERSION));
         STATUS_LINES.put(501, (HTTPResponse) new HTTPResponse().setStatusCode("501").setReasonPhrase("Not Implemented").setVersion(DEFAULT_VERSION));
         STATUS_LINES.put(502, (HTTPResponse) new HTTPResponse().setStatusCode("502").setReasonPhrase("Bad Gateway").setVersion(DEFAULT_VERSION));
+        STATUS_LINES.put(504, (HTTPResponse) new HTTPResponse().setStatusCode("504").setReasonPhrase("Gateway Timeout").setVersion(DEFAULT_VERSION));
     }
 
     private static int port = 50505;
-    private static int bufferSize = 1 << 20;
+    private static long bufferPoolCapacity = BufferPool.DEFAULT_CAPACITY;
     private static int backlog = 0;
-    private static InetSocketAddress localAddr;
-
+    private static int reactorCount = Runtime.getRuntime().availableProcessors();
+    private static int maxIdleUpstreamsPerHost = UpstreamPool.DEFAULT_MAX_IDLE_PER_HOST;
+    private static int maxIdleUpstreams = UpstreamPool.DEFAULT_MAX_IDLE;
+    private static long upstreamIdleTimeoutMillis = UpstreamPool.DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private static Log.Level logLevel = Log.DEFAULT_LEVEL;
+    private static int payloadSampling = Log.DEFAULT_PAYLOAD_SAMPLING;
+    private static String accessLogFile = null;
+    private static String cacheDirectory = null;
+    private static int adminPort = -1;
+    private static int compression = 0;
+    private static Engine engineType = Engine.SELECTOR;
+
+    /**
+     * Usage: <code>Proxy [port [reactors [log level [payload sampling [access log file [cache directory
+     * [admin port [compression level [engine]]]]]]]]]</code>
+     * <br>
+     *
+     * Payloads are dumped at log level <code>TRACE</code>, one of every <code>payload sampling</code> chunks.
+     * At <code>DEBUG</code> and <code>TRACE</code> connection state is never recycled, so that a use after its
+     * release is reported.
+     * Responses are cached in memory and, if a cache directory is given, on disk.
+     * An access log file or cache directory of <code>-</code> stands for the standard output and for no
+     * directory respectively, so that the following arguments can be given.
+     * Metrics are served at <code>/metrics</code> of the admin port if it is given.
+     * Responses are compressed with gzip if a compression level from 1 to 9 is given.
+     * The engine is <code>selector</code>, the default, or <code>threads</code>, see {@link Engine}.
+     */
     public static void main(String[] args) {
-        localAddr = new InetSocketAddress(port);
+        try {
+            if (args.length > 0) port = Integer.parseInt(args[0]);
+            if (args.length > 1) reactorCount = Integer.parseInt(args[1]);
+            if (args.length > 2) logLevel = Log.Level.valueOf(args[2].toUpperCase());
+            if (args.length > 3) payloadSampling = Integer.parseInt(args[3]);
+            if (args.length > 4) accessLogFile = args[4].equals("-") ? null : args[4];
+            if (args.length > 5) cacheDirectory = args[5].equals("-") ? null : args[5];
+            if (args.length > 6) adminPort = Integer.parseInt(args[6]);
+            if (args.length > 7) compression = Integer.parseInt(args[7]);
+            if (compression < 0 || compression > 9) throw new IllegalArgumentException();
+            if (args.length > 8) engineType = Engine.valueOf(args[8].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: Proxy [port [reactors [log level [payload sampling [access log file " +
+                    "[cache directory [admin port [compression level [engine]]]]]]]]]");
+            System.exit(-1);
+        }
 
         try {
-            new Proxy().start();
+            Proxy proxy = new Proxy(new InetSocketAddress(port), reactorCount)
+                    .setLog(new Log(logLevel, payloadSampling, System.err))
+                    .setDebugRecycling(logLevel.compareTo(Log.Level.DEBUG) >= 0)
+                    .setCompressionLevel(compression)
+                    .setEngine(engineType);
+            if (accessLogFile != null) {
+                proxy.setAccessLog(new AccessLog(Paths.get(accessLogFile)));
+            }
+            if (cacheDirectory != null) {
+                proxy.setResponseCache(new ResponseCache(ResponseCache.DEFAULT_CAPACITY,
+                        ResponseCache.DEFAULT_MAX_ENTRY_SIZE, new DiskCache(Paths.get(cacheDirectory))));
+            }
+            if (adminPort >= 0) {
+                proxy.setAdminAddress(new InetSocketAddress(adminPort));
+            }
+            proxy.start();
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(-1);
         }
     }
 
-    private final Selector selector;
-
-    private Proxy()
-            throws IOException {
-        selector = Selector.open();
-    }
-
-    private void start()
-            throws IOException {
-        ServerSocketChannel serverSocketChannel = selector.provider().openServerSocketChannel();
-        serverSocketChannel.bind(localAddr, backlog);
-        System.out.format("bound server socket on %s:%s\n", localAddr.getAddress().getHostAddress(), localAddr.getPort());
-        serverSocketChannel.configureBlocking(false);
-        serverSocketChannel.register(selector, OP_ACCEPT, serverSocketChannel);
-
-        System.out.println("Proxy started\n");
-
-        while (!Thread.interrupted()) {
-            loop();
+    private final InetSocketAddress localAddr;
+    private final Reactor[] reactors;
+    private final AtomicInteger idleUpstreams = new AtomicInteger();
+    private BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_SIZE_CLASSES, bufferPoolCapacity);
+    private AsyncResolver resolver;
+    private int maxHeadSize = HTTPMessageHeadParser.DEFAULT_MAX_HEAD_SIZE;
+    private Log log = new Log();
+    private AccessLog accessLog;
+    private ResponseCache responseCache = new ResponseCache();
+    private boolean debugRecycling = false;
+    private long connectTimeoutMillis = Timeouts.DEFAULT_CONNECT_MILLIS;
+    private long headTimeoutMillis = Timeouts.DEFAULT_HEAD_MILLIS;
+    private long idleTimeoutMillis = Timeouts.DEFAULT_IDLE_MILLIS;
+    private long requestTimeoutMillis = Timeouts.DEFAULT_REQUEST_MILLIS;
+    private int compressionLevel = 0;
+    private int compressionBudgetPercent = Compressor.DEFAULT_BUDGET_PERCENT;
+    private int requestHighWatermark = FlowControl.DEFAULT_HIGH_WATERMARK;
+    private int requestLowWatermark = FlowControl.DEFAULT_LOW_WATERMARK;
+    private int responseHighWatermark = FlowControl.DEFAULT_HIGH_WATERMARK;
+    private int responseLowWatermark = FlowControl.DEFAULT_LOW_WATERMARK;
+    private int readQuantum = FlowControl.DEFAULT_READ_QUANTUM;
+    private int memoryPressurePercent = FlowControl.DEFAULT_PRESSURE_PERCENT;
+    private Engine engine = Engine.SELECTOR;
+    private BlockingEngine blockingEngine;
+    private final MetricRegistry metrics = new MetricRegistry();
+    private InetSocketAddress adminAddress;
+    private MetricsServer metricsServer;
+    private ServerSocketChannel serverSocketChannel;
+    private int nextReactor = 0;
+
+    public Proxy(InetSocketAddress localAddr, int reactorCount) {
+        if (reactorCount <= 0) {
+            throw new IllegalArgumentException("reactorCount must be positive: " + reactorCount);
         }
+        this.localAddr = localAddr;
+        this.reactors = new Reactor[reactorCount];
     }
 
-    private void loop()
+    /**
+     * Binds the server socket, starts the reactor threads and runs the accept loop in the calling thread
+     * until it is interrupted or {@link #stop()} is called.
+     */
+    public void start()
             throws IOException {
-        while (!Thread.interrupted()) {
-            int numberReady = selector.select();
-            while (numberReady <= 0) {
-                numberReady = selector.select();
+        synchronized (this) {
+            if (resolver == null) {
+                resolver = new AsyncResolver();
             }
-
-            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-            while (iterator.hasNext()) {
-                SelectionKey key = iterator.next();
-                if (!key.isValid()) {
-                    iterator.remove();
-                    continue;
-                }
-
-                try {
-                    if (key.isAcceptable()) {
-                        accept(key);
-                        continue;
-                    }
-
-                    if (key.isConnectable()) {
-                        connect(key);
-                        continue;
-                    }
-
-                    if (key.isReadable()) {
-                        int bytesRead = read(key);
-                        if (bytesRead == -1) continue;
+            if (accessLog == null) {
+                accessLog = new AccessLog(new FilterOutputStream(System.out) {
+                    @Override
+                    public void close()
+                            throws IOException {
+                        flush();
                     }
+                }, AccessLog.DEFAULT_CAPACITY);
+            }
+            accessLog.setLog(log);
+            if (responseCache != null && responseCache.getDiskCache() != null) {
+                responseCache.getDiskCache().setLog(log);
+            }
+            FlowControl flowControl = new FlowControl(requestHighWatermark, requestLowWatermark,
+                    responseHighWatermark, responseLowWatermark, readQuantum, memoryPressurePercent);
+            ProxyMetrics proxyMetrics = new ProxyMetrics(metrics, bufferPool, idleUpstreams, responseCache,
+                    accessLog, flowControl);
+            Timeouts timeouts = new Timeouts(connectTimeoutMillis, headTimeoutMillis, idleTimeoutMillis,
+                    requestTimeoutMillis);
+            for (int i = 0; engine == Engine.SELECTOR && i < reactors.length; i++) {
+                UpstreamPool upstreamPool = new UpstreamPool(idleUpstreams,
+                        maxIdleUpstreamsPerHost, maxIdleUpstreams, upstreamIdleTimeoutMillis, log);
+                Compressor compressor = compressionLevel == 0 ? null : new Compressor(compressionLevel,
+                        compressionBudgetPercent, Compressor.DEFAULT_MIN_LENGTH, Compressor.DEFAULT_MAX_IDLE);
+                reactors[i] = new Reactor(i, bufferPool, resolver, upstreamPool, maxHeadSize, log, accessLog,
+                        responseCache, proxyMetrics, timeouts, compressor, flowControl, debugRecycling);
+            }
+            if (engine == Engine.THREADS) {
+                blockingEngine = new BlockingEngine(bufferPool, resolver, maxHeadSize, log, accessLog, proxyMetrics,
+                        timeouts);
+            }
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.bind(localAddr, backlog);
+            if (adminAddress != null) {
+                metricsServer = new MetricsServer(adminAddress, metrics, log);
+            }
+        }
+        InetSocketAddress boundAddr = getLocalAddress();
+        log.info("bound server socket on %s:%s", boundAddr.getAddress().getHostAddress(), boundAddr.getPort());
+        if (metricsServer != null) {
+            InetSocketAddress adminAddr = metricsServer.getLocalAddress();
+            log.info("serving metrics on %s:%s%s", adminAddr.getAddress().getHostAddress(), adminAddr.getPort(),
+                    MetricsServer.PATH);
+        }
 
-                    if (key.isWritable()) {
-                        write(key);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    iterator.remove();
-                }
+        if (blockingEngine != null) {
+            log.info("Proxy started with a %s thread per connection",
+                    blockingEngine.isVirtual() ? "virtual" : "platform");
+        } else {
+            for (Reactor reactor : reactors) {
+                reactor.start();
             }
+            log.info("Proxy started with %d reactors", reactors.length);
         }
-    }
 
-    private void accept(SelectionKey key)
-            throws IOException {
-        ProxyUnit unit = new ProxyUnit(bufferSize);
-        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
         try {
-            unit.socket = serverSocketChannel.accept();
-            System.out.format("%-9s %s\n", "ACCEPT", unit);
-            unit.socket.configureBlocking(false);
-            unit.socket.register(selector, OP_READ, unit);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-            if (unit.socket != null) {
-                try {
-                    unit.socket.close();
-                } catch (IOException e1) {
-                    e1.printStackTrace();
-                }
+            while (!Thread.interrupted()) {
+                accept();
             }
-            throw e;
+        } catch (ClosedChannelException ignored) {
+            // stopped
+        } finally {
+            stop();
         }
     }
 
-    private void connect(SelectionKey key)
-            throws IOException {
-        ProxyUnit unit = (ProxyUnit) key.attachment();
-        boolean connected;
-        try {
-            connected = unit.socket.finishConnect();
-        } catch (IOException e) {
-            e.printStackTrace();
+    public synchronized void stop() {
+        if (serverSocketChannel != null) {
             try {
-                unit.opposite.socket.close();
-                unit.socket.close();
-            } catch (IOException e1) {
-                e1.printStackTrace();
+                serverSocketChannel.close();
+            } catch (IOException e) {
+                log.error("couldn't close the server socket", e);
             }
-            throw e;
         }
-
-        System.out.format("%-9s %s\n", "CONNECT", unit);
-        if (connected) {
-            removeOps(unit.socket.keyFor(selector), OP_CONNECT);
-            addOps(unit.socket.keyFor(selector), OP_READ | OP_WRITE);
+        if (metricsServer != null) {
+            try {
+                metricsServer.close();
+            } catch (IOException e) {
+                log.error("couldn't close the metrics server", e);
+            }
+        }
+        for (Reactor reactor : reactors) {
+            if (reactor != null) {
+                reactor.stop();
+            }
+        }
+        if (blockingEngine != null) {
+            blockingEngine.stop();
+        }
+        if (accessLog != null) {
+            try {
+                accessLog.close();
+            } catch (IOException e) {
+                log.error("couldn't close the access log", e);
+            }
+        }
+        if (responseCache != null) {
+            try {
+                responseCache.close();
+            } catch (IOException e) {
+                log.error("couldn't close the response cache", e);
+            }
         }
     }
 
-    private int read(SelectionKey key)
+    public synchronized InetSocketAddress getLocalAddress()
             throws IOException {
-        ProxyUnit unit = (ProxyUnit) key.attachment();
-        System.out.format("%-9s %s: ", "READ from", toString(unit.socket));
-        return unit.read();
+        if (serverSocketChannel == null) return null;
+        return (InetSocketAddress) serverSocketChannel.getLocalAddress();
     }
 
-    private int write(SelectionKey key)
-            throws IOException {
-        ProxyUnit unit = (ProxyUnit) key.attachment();
-        System.out.format("%-9s %s: ", "WRITE to", toString(unit.socket));
-        return unit.write();
+    /**
+     * @return the address the metrics are served on or <code>null</code> if they are not served
+     */
+    public synchronized InetSocketAddress getAdminAddress() {
+        if (metricsServer == null) return adminAddress;
+        return metricsServer.getLocalAddress();
     }
 
+    /**
+     * Makes the proxy serve its metrics at <code>/metrics</code> of <code>adminAddress</code> once started.
+     */
+    public Proxy setAdminAddress(InetSocketAddress adminAddress) {
+        this.adminAddress = adminAddress;
+        return this;
+    }
 
-    private void addOps(SelectionKey key, int ops) {
-        key.interestOps(key.interestOps() | ops);
+    /**
+     * @return the metrics of the proxy, which are registered when it is started; other metrics may be added
+     * to be served along
+     */
+    public MetricRegistry getMetrics() {
+        return metrics;
     }
 
-    private void removeOps(SelectionKey key, int ops) {
-        key.interestOps(key.interestOps() & (~ops));
+    public int getReactorCount() {
+        return reactors.length;
     }
 
-    private static String toString(SocketAddress address) {
-        if (address == null) return null;
-        InetSocketAddress addr = (InetSocketAddress) address;
-        String ip = addr.getAddress().getHostAddress();
-        int port = addr.getPort();
-        return String.format("%15s:%-5d", ip, port);
+    public BufferPool getBufferPool() {
+        return bufferPool;
     }
 
-    private static String toString(SelectableChannel s) {
-        String str = s.toString();
-        return str.substring(SocketChannel.class.getName().length());
+    public Proxy setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
     }
 
-    private static String toString(SocketChannel channel) {
-        String local = null;
-        try {
-            local = toString(channel.getLocalAddress());
-        } catch (IOException ignored) {
-        }
-        String remote = null;
-        try {
-            remote = toString(channel.getRemoteAddress());
-        } catch (IOException ignored) {
-        }
-        return String.format("[%s - %s %s]", local, remote,
-                channel.isConnected() ? "connected" : channel.isConnectionPending() ? "connection pending" : "disconnected");
+    /**
+     * @return the number of idle keep-alive connections to origin servers in all reactors
+     */
+    public int getIdleUpstreamCount() {
+        return idleUpstreams.get();
     }
 
-    private class ProxyUnit {
-        private ByteBuffer buf;
-        private SocketChannel socket;
-        private ProxyUnit opposite;
-        private boolean eof = false;
-        private boolean outputIsShutdown = false;
-        private boolean httpMessageHeadParsed = false;
+    public AsyncResolver getResolver() {
+        return resolver;
+    }
 
-        private ProxyUnit(int bufferSize) {
-            this(null, bufferSize);
-        }
+    public Proxy setResolver(AsyncResolver resolver) {
+        this.resolver = resolver;
+        return this;
+    }
 
-        private ProxyUnit(SocketChannel socket, int bufferSize) {
-            this.socket = socket;
-            this.buf = ByteBuffer.allocate(bufferSize);
-        }
+    public Log getLog() {
+        return log;
+    }
 
-        private void connect(InetSocketAddress address)
-                throws IOException {
-            opposite = new ProxyUnit(socket, bufferSize);
-            opposite.socket = SocketChannel.open();
-            opposite.socket.configureBlocking(false);
-            opposite.socket.connect(address);
-            opposite.opposite = this;
-            opposite.socket.register(selector, OP_CONNECT, opposite);
-        }
+    public Proxy setLog(Log log) {
+        this.log = log;
+        return this;
+    }
 
-        private int read()
-                throws IOException {
-            int bytesRead = socket.read(buf);
-
-            System.out.format("%d bytes\n", bytesRead);
-
-            if (bytesRead > 0) {
-                System.out.println();
-                System.out.println(new String(buf.array(), buf.position() - bytesRead, bytesRead));
-                if (httpMessageHeadParsed) {
-                    addOps(opposite.socket.keyFor(selector), OP_WRITE);
-                } else if (opposite != null && opposite.socket != null && opposite.socket.isConnected()) {
-                    // opposite connected => it's a server response
-                    readResponse(bytesRead);
-                } else {
-                    readRequest(bytesRead);
-                }
-            } else if (bytesRead == -1) {
-                // eof
-                eof = true;
-                removeOps(socket.keyFor(selector), OP_READ);
-
-                if (buf.position() == 0) {
-                    if (opposite != null) {
-                        opposite.shutdownOutput();
-                    }
-                    if (outputIsShutdown || opposite != null && opposite.buf.position() == 0) {
-                        close();
-                        if (opposite != null) {
-                            opposite.close();
-                        }
-                    }
-                }
-            }
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
 
-            if (!buf.hasRemaining()) {
-                removeOps(socket.keyFor(selector), OP_READ);
-            }
-            return bytesRead;
-        }
+    /**
+     * Sets the log that gets a record of every proxied request. It is closed when the proxy stops.
+     */
+    public Proxy setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+        return this;
+    }
 
-        private int write()
-                throws IOException {
-            opposite.buf.flip();
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
 
-            int bytesWritten = socket.write(opposite.buf);
+    /**
+     * @param responseCache cache shared by all reactors or <code>null</code> to proxy every request
+     */
+    public Proxy setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+        return this;
+    }
 
-            if (bytesWritten > 0) {
-                System.out.println();
-                System.out.println(new String(opposite.buf.array(), opposite.buf.position() - bytesWritten, bytesWritten));
-                opposite.buf.compact();
-                addOps(opposite.socket.keyFor(selector), OP_READ);
-            }
+    public int getMaxHeadSize() {
+        return maxHeadSize;
+    }
 
-            System.out.format("%d bytes\n", bytesWritten);
+    /**
+     * Sets the size of the largest message head accepted. Clients sending larger ones get
+     * <code>431 Request Header Fields Too Large</code>; larger responses are answered with
+     * <code>502 Bad Gateway</code>. A head never grows beyond the largest buffer of the {@link BufferPool}.
+     */
+    public Proxy setMaxHeadSize(int maxHeadSize) {
+        this.maxHeadSize = maxHeadSize;
+        return this;
+    }
 
-            if (opposite.buf.position() == 0) {
-                // wrote everything from opposite.buf
-                removeOps(socket.keyFor(selector), OP_WRITE);
-                if (opposite.eof) {
-                    shutdownOutput();
-                    if (opposite.outputIsShutdown) {
-                        close();
-                        opposite.close();
-                    }
-                }
-            }
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
 
-            return bytesWritten;
-        }
+    /**
+     * Sets the time to establish a connection to an origin server; the client gets
+     * <code>504 Gateway Timeout</code> when it passes. <code>0</code> means no limit.
+     */
+    public Proxy setConnectTimeoutMillis(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
 
-        private void shutdownOutput()
-                throws IOException {
-            socket.shutdownOutput();
-            outputIsShutdown = true;
-        }
+    public long getHeadTimeoutMillis() {
+        return headTimeoutMillis;
+    }
 
-        private void close()
-                throws IOException {
-            System.out.format("%-9s %s\n", "CLOSE", Proxy.toString(socket));
-            socket.close();
-            socket.keyFor(selector).cancel();
-        }
+    /**
+     * Sets the time for a client to finish a request head it has started, after which it gets
+     * <code>408 Request Timeout</code>, and for an origin server to start answering a request sent to it,
+     * after which the client gets <code>504 Gateway Timeout</code>. <code>0</code> means no limit.
+     */
+    public Proxy setHeadTimeoutMillis(long headTimeoutMillis) {
+        this.headTimeoutMillis = headTimeoutMillis;
+        return this;
+    }
 
-        private void readResponse(int bytesRead) {
-            int emptyLinePos = findEmptyLine(buf.array(), buf.position() - bytesRead, buf.position());
-            if (emptyLinePos == -1) return;
-            int emptyLineSize = this.emptyLineSize;
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
 
-            HTTPResponseHeadParser parser = new HTTPResponseHeadParser(buf.array(), 0, emptyLinePos);
-            HTTPResponse response;
+    /**
+     * Sets the time a client connection is kept open while waiting for the next request.
+     * <code>0</code> means no limit.
+     */
+    public Proxy setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
 
-            try {
-                response = parser.parse();
-            } catch (HTTPParseException e) {
-                e.printStackTrace();
-                error(500);
-                return;
-            }
+    public long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
 
-            int status = normalize(response);
-            if (status != 0) {
-                error(status);
-            }
-            putMessageIntoBuffer(response, emptyLinePos + emptyLineSize);
-            httpMessageHeadParsed = true;
-            addOps(opposite.socket.keyFor(selector), OP_WRITE);
-        }
+    /**
+     * Sets the time from the head of a request to the last byte of its response. When it passes, the client
+     * gets <code>504 Gateway Timeout</code> if no response has been started, and is disconnected otherwise.
+     * <code>0</code> means no limit.
+     */
+    public Proxy setRequestTimeoutMillis(long requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        return this;
+    }
 
-        private void readRequest(int bytesRead)
-                throws IOException {
-            if (httpMessageHeadParsed) {
-                addOps(opposite.socket.keyFor(selector), OP_WRITE);
-            } else {
-                int emptyLinePos = findEmptyLine(buf.array(), buf.position() - bytesRead, buf.position());
-                if (emptyLinePos == -1) {
-                    return;
-                }
-                int emptyLineSize = this.emptyLineSize;
-
-                HTTPRequestHeadParser parser = new HTTPRequestHeadParser(buf.array(), 0, emptyLinePos);
-                HTTPRequest request;
-
-                try {
-                    request = parser.parse();
-                } catch (HTTPParseException e) {
-                    e.printStackTrace();
-                    opposite.error(400);
-                    return;
-                }
-
-                int status = normalize(request);
-                if (status != 0) {
-                    error(status);
-                }
-                httpMessageHeadParsed = true;
-                InetSocketAddress address = new InetSocketAddress(request.getFieldValue("Host"), DEFAULT_PORT);
-                connect(address);
-                putMessageIntoBuffer(request, emptyLinePos + emptyLineSize);
-            }
-        }
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
 
-        private int normalizeGeneral(HTTPMessage m) {
-            if (!Objects.equals(m.getVersion(), DEFAULT_VERSION)) {
-                m.setVersion(DEFAULT_VERSION);
-            }
+    /**
+     * Sets the deflate level responses are compressed with, from <code>1</code>, fastest, to <code>9</code>,
+     * smallest. <code>0</code>, the default, turns compression off.
+     */
+    public Proxy setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel must be from 0 to 9: " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
 
-            if (!m.fieldsSpecified() || !Objects.equals(m.getFieldValue("Connection"), "close")) {
-                m.setField("Connection", "close");
-            }
+    public int getCompressionBudgetPercent() {
+        return compressionBudgetPercent;
+    }
 
-            return 0;
-        }
+    /**
+     * Sets the share of each second a reactor may spend compressing. Once it is spent, responses are sent
+     * uncompressed until the next second.
+     */
+    public Proxy setCompressionBudgetPercent(int compressionBudgetPercent) {
+        this.compressionBudgetPercent = compressionBudgetPercent;
+        return this;
+    }
 
-        private int normalize(HTTPResponse response) {
-            return normalizeGeneral(response);
-        }
+    public int getRequestHighWatermark() {
+        return requestHighWatermark;
+    }
 
-        private int normalize(HTTPRequest request) {
-            normalizeGeneral(request);
+    public int getRequestLowWatermark() {
+        return requestLowWatermark;
+    }
 
-            if (request.portSpecified() && request.getPort() != DEFAULT_PORT) {
-                return 400;
-            }
+    /**
+     * Sets the bytes of requests a client connection may hold before it stops reading, and those it may
+     * still hold when it reads again.
+     */
+    public Proxy setRequestWatermarks(int high, int low) {
+        FlowControl.check(high, low);
+        this.requestHighWatermark = high;
+        this.requestLowWatermark = low;
+        return this;
+    }
 
-            if (request.getFieldValue("Host") == null) {
-                request.setField("Host", request.getHost());
-            }
+    public int getResponseHighWatermark() {
+        return responseHighWatermark;
+    }
 
-            if (Objects.equals(request.getProtocol(), DEFAULT_PROTOCOL)) {
-                request.resetProtocol();
-            }
+    public int getResponseLowWatermark() {
+        return responseLowWatermark;
+    }
 
-            if (request.hostSpecified()) {
-                request.resetHost();
-            }
+    /**
+     * Sets the bytes of responses an upstream connection may hold before it stops reading, and those it may
+     * still hold when it reads again.
+     */
+    public Proxy setResponseWatermarks(int high, int low) {
+        FlowControl.check(high, low);
+        this.responseHighWatermark = high;
+        this.responseLowWatermark = low;
+        return this;
+    }
 
-            if (request.portSpecified()) {
-                request.resetPort();
-            }
+    public int getReadQuantum() {
+        return readQuantum;
+    }
 
-            return 0;
+    /**
+     * Sets the most a connection reads in one select of its reactor.
+     */
+    public Proxy setReadQuantum(int readQuantum) {
+        if (readQuantum <= 0) {
+            throw new IllegalArgumentException("readQuantum must be positive: " + readQuantum);
         }
+        this.readQuantum = readQuantum;
+        return this;
+    }
 
-        private void error(int errorNumber) {
-            buf.position(0);
-            putMessageHeadIntoBuffer(STATUS_LINES.get(errorNumber));
-        }
+    public int getMemoryPressurePercent() {
+        return memoryPressurePercent;
+    }
 
-        private void putMessageIntoBuffer(HTTPMessage message, int bodyStart) {
-            int bodyEnd = buf.position();
-            buf.position(0);
-            putMessageIntoBuffer(message, bodyStart, bodyEnd);
+    /**
+     * Sets the share of the capacity of the {@link BufferPool} in use from which reads are throttled on all
+     * connections, see {@link FlowControl}. At <code>100</code> they are throttled only once the pool is
+     * exhausted.
+     */
+    public Proxy setMemoryPressurePercent(int memoryPressurePercent) {
+        if (memoryPressurePercent <= 0 || memoryPressurePercent > 100) {
+            throw new IllegalArgumentException("memoryPressurePercent must be from 1 to 100: " +
+                    memoryPressurePercent);
         }
+        this.memoryPressurePercent = memoryPressurePercent;
+        return this;
+    }
 
-        private void putMessageIntoBuffer(HTTPMessage message, int bodyStart, int bodyEnd) {
-            putMessageHeadIntoBuffer(message);
-            buf.put(buf.array(), bodyStart, bodyEnd - bodyStart);
-        }
+    public Engine getEngine() {
+        return engine;
+    }
 
-        private void putMessageHeadIntoBuffer(HTTPMessage message) {
-            message.createBuilder().write(buf);
-        }
+    /**
+     * Sets how connections are served once the proxy is started. The reactor count is ignored by the
+     * {@link Engine#THREADS threads} engine.
+     */
+    public Proxy setEngine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
 
-        private int emptyLineSize = 0;
-
-        private int findEmptyLine(byte[] array, int from, int to) {
-            int cr = -3;
-            int lf = -3;
-            int pcr = cr - 1;
-            for (int i = from; i < to; i++) {
-                byte b = array[i];
-                if (b == CR) {
-                    pcr = cr;
-                    cr = i;
-                } else if (b == LF) {
-                    if (cr == i - 1 && lf == i - 2) {
-                        emptyLineSize = (pcr == i - 3 ? 4 : 3); // CR LF CR LF : LF CR LF
-                        return i - emptyLineSize + 1;
-                    } else if (lf == i - 1) {
-                        emptyLineSize = (cr == i - 2 ? 3 : 2); // CR LF LF : LF LF
-                        return i - emptyLineSize + 1;
-                    }
-                    lf = i;
-                }
-            }
+    public boolean isDebugRecycling() {
+        return debugRecycling;
+    }
 
-            return -1;
+    /**
+     * Makes the reactors keep connection state they are done with instead of reusing it, so that any use
+     * of it after its release is reported with the stack trace of the release. Meant for debugging only,
+     * as nothing is recycled then.
+     */
+    public Proxy setDebugRecycling(boolean debugRecycling) {
+        this.debugRecycling = debugRecycling;
+        return this;
+    }
+
+    private void accept()
+            throws IOException {
+        SocketChannel socket = serverSocketChannel.accept();
+        if (blockingEngine != null) {
+            blockingEngine.register(socket);
+            return;
         }
+        Reactor reactor = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        reactor.register(socket);
+    }
+
+    static String toString(SocketAddress address) {
+        if (address == null) return null;
+        InetSocketAddress addr = (InetSocketAddress) address;
+        String ip = addr.getAddress().getHostAddress();
+        int port = addr.getPort();
+        return String.format("%15s:%-5d", ip, port);
+    }
 
-        @Override
-        public String toString() {
-            return Proxy.toString(socket);
+    static String toString(SelectableChannel s) {
+        String str = s.toString();
+        return str.substring(SocketChannel.class.getName().length());
+    }
+
+    static String toString(SocketChannel channel) {
+        String local = null;
+        try {
+            local = toString(channel.getLocalAddress());
+        } catch (IOException ignored) {
+        }
+        String remote = null;
+        try {
+            remote = toString(channel.getRemoteAddress());
+        } catch (IOException ignored) {
         }
+        return String.format("[%s - %s %s]", local, remote,
+                channel.isConnected() ? "connected" : channel.isConnectionPending() ? "connection pending" : "disconnected");
     }
 }
@@ -0,0 +1,206 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import ru.nsu.ccfit.bogush.net.http.proxy.buffer.BufferPool;
+import ru.nsu.ccfit.bogush.net.http.proxy.cache.DiskCache;
+import ru.nsu.ccfit.bogush.net.http.proxy.cache.ResponseCache;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.AccessLog;
+import ru.nsu.ccfit.bogush.net.http.proxy.metrics.Counter;
+import ru.nsu.ccfit.bogush.net.http.proxy.metrics.Gauge;
+import ru.nsu.ccfit.bogush.net.http.proxy.metrics.Histogram;
+import ru.nsu.ccfit.bogush.net.http.proxy.metrics.MetricRegistry;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Metrics of a {@link Proxy}, shared by all its reactors. <br>
+ *
+ * Events of the reactors are counted directly in lock-free {@link Counter}s, {@link Gauge}s and
+ * {@link Histogram}s, which cost an uncontended atomic add each, so the metrics are always on. Statistics
+ * kept by the {@link BufferPool}, the {@link ResponseCache} and the {@link AccessLog} anyway are only read
+ * when the metrics are written.
+ */
+class ProxyMetrics {
+    final Counter accepted;
+    final Gauge activeClients;
+    final Gauge activeUpstreams;
+    final Counter receivedFromClients;
+    final Counter receivedFromUpstreams;
+    final Counter sentToClients;
+    final Counter sentToUpstreams;
+    final Counter requests;
+    final Counter requestParseErrors;
+    final Counter responseParseErrors;
+    final Histogram upstreamConnect;
+    final Counter upstreamConnectFailures;
+    final Counter upstreamReused;
+    final Counter upstreamRetries;
+    final Counter tunnels;
+    final Counter compressed;
+    final Counter compressionSkipped;
+    final Counter compressionInput;
+    final Counter compressionOutput;
+    final Counter connectTimeouts;
+    final Counter responseTimeouts;
+    final Counter headTimeouts;
+    final Counter requestTimeouts;
+    final Counter idleClosedClients;
+    final Counter idleClosedUpstreams;
+    final Counter readsPausedAtWatermark;
+    final Counter readsPausedUnderPressure;
+    final Histogram loopIteration;
+    final Histogram requestDuration;
+    final Histogram timeToFirstByte;
+    private final Counter[] responses = new Counter[6];
+
+    /**
+     * @param responseCache cache of responses or <code>null</code> if they are not cached
+     * @param accessLog     log of proxied requests or <code>null</code> if they are not logged
+     * @param flowControl   limits on reading, whose memory pressure is taken from <code>bufferPool</code>
+     */
+    ProxyMetrics(MetricRegistry registry, BufferPool bufferPool, AtomicInteger idleUpstreams,
+                 ResponseCache responseCache, AccessLog accessLog, FlowControl flowControl) {
+        accepted = registry.counter("proxy_connections_accepted_total",
+                "Client connections accepted.");
+        activeClients = registry.gauge("proxy_connections_active",
+                "Open connections, including upstream ones being established.", "side", "client");
+        activeUpstreams = registry.gauge("proxy_connections_active",
+                "Open connections, including upstream ones being established.", "side", "upstream");
+        receivedFromClients = registry.counter("proxy_received_bytes_total",
+                "Bytes read from sockets.", "from", "client");
+        receivedFromUpstreams = registry.counter("proxy_received_bytes_total",
+                "Bytes read from sockets.", "from", "upstream");
+        sentToClients = registry.counter("proxy_sent_bytes_total",
+                "Bytes written to sockets.", "to", "client");
+        sentToUpstreams = registry.counter("proxy_sent_bytes_total",
+                "Bytes written to sockets.", "to", "upstream");
+        requests = registry.counter("proxy_requests_total",
+                "Request heads parsed.");
+        for (int i = 1; i < responses.length; i++) {
+            responses[i] = registry.counter("proxy_responses_total",
+                    "Requests answered, by status class, including answers from the cache and " +
+                            "errors of the proxy.", "code", i + "xx");
+        }
+        requestParseErrors = registry.counter("proxy_parse_errors_total",
+                "Messages that could not be parsed or framed.", "message", "request");
+        responseParseErrors = registry.counter("proxy_parse_errors_total",
+                "Messages that could not be parsed or framed.", "message", "response");
+        requestDuration = registry.histogram("proxy_request_duration_seconds",
+                "Time from the request head to the last byte of the response.");
+        timeToFirstByte = registry.histogram("proxy_time_to_first_byte_seconds",
+                "Time from the request head to the head of the response.");
+        upstreamConnect = registry.histogram("proxy_upstream_connect_seconds",
+                "Time to establish a connection to an origin server.");
+        upstreamConnectFailures = registry.counter("proxy_upstream_connect_failures_total",
+                "Connections to origin servers that could not be established.");
+        upstreamReused = registry.counter("proxy_upstream_reused_total",
+                "Requests sent over an idle pooled connection.");
+        upstreamRetries = registry.counter("proxy_upstream_retries_total",
+                "Requests sent again over a new connection after a reused one closed without answering.");
+        tunnels = registry.counter("proxy_tunnels_total",
+                "Tunnels established for CONNECT requests.");
+        compressed = registry.counter("proxy_compressed_responses_total",
+                "Responses compressed with gzip on their way to the client.");
+        compressionSkipped = registry.counter("proxy_compression_skipped_total",
+                "Compressible responses passed on as they are because the CPU budget was spent.");
+        compressionInput = registry.counter("proxy_compression_bytes_total",
+                "Bytes passed through gzip compression.", "side", "input");
+        compressionOutput = registry.counter("proxy_compression_bytes_total",
+                "Bytes passed through gzip compression.", "side", "output");
+        connectTimeouts = registry.counter("proxy_timeouts_total",
+                "Deadlines reached, each answered with 504 or 408 or by closing the connections.",
+                "deadline", "connect");
+        responseTimeouts = registry.counter("proxy_timeouts_total",
+                "Deadlines reached, each answered with 504 or 408 or by closing the connections.",
+                "deadline", "response");
+        headTimeouts = registry.counter("proxy_timeouts_total",
+                "Deadlines reached, each answered with 504 or 408 or by closing the connections.",
+                "deadline", "head");
+        requestTimeouts = registry.counter("proxy_timeouts_total",
+                "Deadlines reached, each answered with 504 or 408 or by closing the connections.",
+                "deadline", "request");
+        idleClosedClients = registry.counter("proxy_idle_closed_total",
+                "Connections closed after having been idle for too long.", "side", "client");
+        idleClosedUpstreams = registry.counter("proxy_idle_closed_total",
+                "Connections closed after having been idle for too long.", "side", "upstream");
+        readsPausedAtWatermark = registry.counter("proxy_reads_paused_total",
+                "Connections that stopped reading until the opposite one drained their buffer.",
+                "reason", "watermark");
+        readsPausedUnderPressure = registry.counter("proxy_reads_paused_total",
+                "Connections that stopped reading until the opposite one drained their buffer.",
+                "reason", "pressure");
+        registry.gauge("proxy_memory_pressure",
+                "1 while the buffers in use throttle reads on all connections, 0 otherwise.",
+                () -> flowControl.underPressure(bufferPool) ? 1 : 0);
+        registry.gauge("proxy_upstream_idle_connections",
+                "Idle pooled connections to origin servers.", idleUpstreams::get);
+        loopIteration = registry.histogram("proxy_loop_iteration_seconds",
+                "Time a reactor spends on the events of one select, not counting the wait for them.");
+
+        registry.gauge("proxy_buffer_pool_capacity_bytes",
+                "Most memory the buffer pool may allocate.", bufferPool::getCapacity);
+        registry.gauge("proxy_buffer_pool_allocated_bytes",
+                "Memory allocated by the buffer pool.", bufferPool::getAllocatedBytes);
+        registry.gauge("proxy_buffer_pool_in_use_bytes",
+                "Memory of the buffers taken from the pool.", bufferPool::getInUseBytes);
+        registry.gauge("proxy_buffer_pool_pooled_bytes",
+                "Memory of the buffers kept in the pool.", bufferPool::getPooledBytes);
+        for (int size : bufferPool.getSizeClasses()) {
+            registry.gauge("proxy_buffer_pool_in_use_buffers",
+                    "Buffers taken from the pool by size.", () -> bufferPool.getInUseCount(size),
+                    "size", Integer.toString(size));
+        }
+        registry.counter("proxy_buffer_pool_failures_total",
+                "Buffers the pool could not provide, each stalling a read.", bufferPool::getFailures);
+
+        if (responseCache != null) {
+            registry.counter("proxy_cache_hits_total",
+                    "Lookups answered from the cache.", responseCache::getHits, "tier", "memory");
+            registry.counter("proxy_cache_misses_total",
+                    "Lookups not answered from the cache.", responseCache::getMisses, "tier", "memory");
+            registry.counter("proxy_cache_coalesced_total",
+                    "Lookups that waited for the response fetched for another one.", responseCache::getCoalesced);
+            registry.counter("proxy_cache_bypassed_total",
+                    "Requests that could not be served from the cache at all.", responseCache::getBypassed);
+            registry.counter("proxy_cache_revalidations_total",
+                    "Stale entries refreshed by a 304 answer.", responseCache::getRevalidations);
+            registry.counter("proxy_cache_stores_total",
+                    "Responses stored.", responseCache::getStores, "tier", "memory");
+            registry.counter("proxy_cache_evictions_total",
+                    "Entries evicted to make room for others.", responseCache::getEvictions, "tier", "memory");
+            registry.gauge("proxy_cache_entries",
+                    "Entries stored.", responseCache::getEntryCount, "tier", "memory");
+            registry.gauge("proxy_cache_size_bytes",
+                    "Size of the stored entries.", responseCache::getSize, "tier", "memory");
+            DiskCache disk = responseCache.getDiskCache();
+            if (disk != null) {
+                registry.counter("proxy_cache_hits_total",
+                        "Lookups answered from the cache.", disk::getHits, "tier", "disk");
+                registry.counter("proxy_cache_misses_total",
+                        "Lookups not answered from the cache.", disk::getMisses, "tier", "disk");
+                registry.counter("proxy_cache_stores_total",
+                        "Responses stored.", disk::getStores, "tier", "disk");
+                registry.counter("proxy_cache_evictions_total",
+                        "Entries evicted to make room for others.", disk::getEvictions, "tier", "disk");
+                registry.gauge("proxy_cache_entries",
+                        "Entries stored.", disk::getEntryCount, "tier", "disk");
+                registry.gauge("proxy_cache_size_bytes",
+                        "Size of the stored entries.", disk::getSize, "tier", "disk");
+            }
+        }
+
+        if (accessLog != null) {
+            registry.counter("proxy_access_log_dropped_total",
+                    "Access log records dropped because the writer fell behind.", accessLog::getDropped);
+        }
+    }
+
+    /**
+     * Counts a response written to a client.
+     */
+    void response(int status) {
+        int statusClass = status / 100;
+        if (statusClass > 0 && statusClass < responses.length) {
+            responses[statusClass].inc();
+        }
+    }
+}
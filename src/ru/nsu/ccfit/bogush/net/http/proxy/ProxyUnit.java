@@ -0,0 +1,1730 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPMessage;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+import ru.nsu.ccfit.bogush.net.http.build.GzipEncoder;
+import ru.nsu.ccfit.bogush.net.http.build.HTTPHeadEncoder;
+import ru.nsu.ccfit.bogush.net.http.parse.*;
+import ru.nsu.ccfit.bogush.net.http.proxy.buffer.BufferPool;
+import ru.nsu.ccfit.bogush.net.http.proxy.cache.ResponseCache;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.AccessLog;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+import ru.nsu.ccfit.bogush.net.http.proxy.metrics.Counter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.*;
+import static java.nio.channels.SelectionKey.*;
+import static ru.nsu.ccfit.bogush.net.http.proxy.log.Log.Level.DEBUG;
+
+/**
+ * One side of a proxied connection. A client unit and its upstream {@link #opposite} always belong to
+ * the same {@link Reactor}, so they are only accessed from that reactor's thread. <br>
+ *
+ * {@link #buf} holds the bytes read from {@link #socket} and not yet written to the opposite socket. It is
+ * taken from the reactor's {@link BufferPool} only while there are such bytes and is <code>null</code>
+ * otherwise. A message head is read into a buffer of the smallest size class which grows while the head
+ * does not fit; the body is relayed through a buffer of the largest one. <br>
+ *
+ * Once a head is parsed, it is rewritten into {@link #head}, continued in {@link #headRest} if it is too
+ * large, while the original head stays in the first {@link #discard} bytes of {@link #buf}. The following
+ * {@link #forwardable} bytes are the framed body of the current message. The opposite unit sends the head
+ * buffers and this body slice with one gathering write, so the body is never moved to make room for a
+ * head that grew. <br>
+ *
+ * A body framed by its length or by the end of the connection is {@link #relaying relayed}: its bytes are
+ * never inspected or copied out of the direct buffer, and whatever is read is written to the opposite socket
+ * in the same event instead of waiting for the next select. Requests are sent upstream as HTTP/1.1, and
+ * once a response has been relayed completely its upstream connection goes back to the reactor's
+ * {@link UpstreamPool} if the origin allows it. <br>
+ *
+ * Bodies are recoded between HTTP/1.1 and HTTP/1.0 peers as they are relayed. A chunked response to an
+ * HTTP/1.0 client is {@link #dechunk dechunked} in place in {@link #buf}, so the client reads the data up to
+ * the end of the connection while the upstream connection can still be reused. A response delimited by the
+ * end of the connection is {@link #rechunk rechunked} for an HTTP/1.1 client that keeps its connection: each
+ * slice of forwardable bytes is sent as one chunk, framed by {@link #chunkFrame}, so the client connection
+ * outlives the upstream one. Neither ever buffers more of the body than a plain relay does. <br>
+ *
+ * If the reactor has a {@link Compressor}, a compressible response to a client accepting gzip is compressed
+ * as it is relayed: the forwardable bytes of {@link #buf} are {@link #deflate() deflated} into
+ * {@link #zipped}, which is written in their place, dechunked first and rechunked or delimited by the end of
+ * the connection for the client. A stored response is answered with its compressed
+ * {@link ResponseCache.Entry#getVariant variant}, which is compressed once and stored alongside it. <br>
+ *
+ * Reading is limited by the reactor's {@link FlowControl}. A unit reads at most a quantum per select and
+ * stops reading once the bytes it holds for the opposite socket reach the high watermark of its direction;
+ * the opposite unit resumes it only once it has written all but the low watermark of them, so a slow peer
+ * does not make the interest ops flap with every write. <br>
+ *
+ * Client connections are persistent unless the client or the response framing rules it out. Requests are
+ * proxied one at a time: pipelined requests stay in {@link #buf} until the response to the previous one has
+ * been written, so responses are delivered in request order. <br>
+ *
+ * <code>GET</code> requests without a body are looked up in the reactor's {@link ResponseCache} first. A hit
+ * is answered by a unit without a socket whose head is the stored one and whose {@link #cached} body is the
+ * stored buffer itself. On a miss the upstream unit copies the body into the {@link ResponseCache.Fill} as
+ * it relays it, if the response may be stored. If the request was made conditional to revalidate a stale
+ * entry, a <code>304</code> answer is not forwarded: the upstream unit sends the refreshed stored head and
+ * body in its place the same way. <br>
+ *
+ * Every unit waiting for something has a deadline of the reactor's {@link Timeouts} on the reactor's
+ * {@link TimerWheel}: a client waiting for a request or for the rest of its head, a client whose request
+ * is being proxied, an upstream being connected to, an upstream that was sent a request and has not
+ * answered yet, and an idle pooled upstream. The unit has one timer, which is moved on from one deadline to
+ * the next, and which is cancelled when the unit is closed. <br>
+ *
+ * An origin may close an idle pooled connection just as a request is sent over it, which the health check
+ * of the {@link UpstreamPool} cannot rule out. If a {@link #reused} upstream ends or fails before any of the
+ * response is read, an idempotent request without a body is {@link #retry() sent again} once, over a new
+ * connection. <br>
+ *
+ * A <code>CONNECT</code> request turns the pair into a {@link #tunnel}: the client gets <code>200</code> once a
+ * new connection to the requested host is established, and from then on both units only relay what they
+ * read to the opposite socket. Nothing in a tunnel is parsed, framed or dumped to the log, and the end of
+ * either stream is passed on by shutting down the output of the opposite socket. <br>
+ *
+ * A client unit also collects the {@link AccessLog} record of its current request, which is published once
+ * the response has been written or the connection is closed. <br>
+ *
+ * Units are taken from the reactor's {@link UnitRecycler} and go back to it with their parser, message,
+ * framer and encoder once they are closed and no longer {@link #retain() retained} by a pending callback,
+ * so these are allocated once per unit rather than once per connection or per message.
+ */
+class ProxyUnit {
+    private final Reactor reactor;
+    private final BufferPool pool;
+    private final Log log;
+    private final ProxyMetrics metrics;
+    private final Counter received;
+    private final Counter sent;
+    private final boolean upstream;
+    ByteBuffer buf;
+    private ByteBuffer head;
+    private ByteBuffer headRest;
+    private ByteBuffer cached;
+    private final ByteBuffer chunkFrame = ByteBuffer.allocate(16);
+    private final ByteBuffer[] gather = new ByteBuffer[5];
+    SocketChannel socket;
+    ProxyUnit opposite;
+    private boolean eof = false;
+    private boolean outputIsShutdown = false;
+
+    private final HTTPMessageHeadParser headParser;
+    private final HTTPHeadEncoder encoder = new HTTPHeadEncoder();
+    private boolean httpMessageHeadParsed = false;
+    private final HTTPBodyFramer framer = new HTTPBodyFramer();
+    private int discard = 0;
+    private int forwardable = 0;
+    private boolean messageComplete = false;
+    private boolean relaying = false;
+    private boolean dechunk = false;
+    private boolean rechunk = false;
+    private boolean chunkOpen = false;
+    private int chunkLeft = 0;
+    private final GzipEncoder gzip = new GzipEncoder();
+    private Deflater deflater;
+    private ByteBuffer zipped;
+    private ResponseCache.Fill fill;
+    private ByteBuffer fillBody;
+    private HTTPRequest request;
+    private String clientVersion;
+    private boolean keepAlive = false;
+    private boolean bodiless = false;
+    private boolean retried = false;
+
+    private String poolKey;
+    private boolean reused = false;
+    private long connectNanos;
+    private boolean interim = false;
+    private boolean reusable = false;
+    private boolean tunnel = false;
+    private long lastRead;
+
+    private final TimerWheel.Timer timer = new TimerWheel.Timer(this::timedOut);
+    private Deadline deadline;
+    private boolean replied = false;
+
+    private boolean accessPending = false;
+    private long requestTime;
+    private long requestNanos;
+    private long ttfbNanos;
+    private int status;
+    private long requestBytes;
+    private long responseBytes;
+    private String clientAddress;
+
+    private final ResponseCache.Callback lookedUp = this::lookedUp;
+    private int references = 0;
+    private boolean closed = false;
+    private boolean released = false;
+    private Throwable releasedAt;
+
+    /**
+     * Units are created by the {@link UnitRecycler} only.
+     */
+    ProxyUnit(Reactor reactor, boolean upstream) {
+        this.reactor = reactor;
+        this.pool = reactor.bufferPool();
+        this.log = reactor.log();
+        this.metrics = reactor.metrics();
+        this.received = upstream ? metrics.receivedFromUpstreams : metrics.receivedFromClients;
+        this.sent = upstream ? metrics.sentToUpstreams : metrics.sentToClients;
+        this.upstream = upstream;
+        this.headParser = upstream ? new HTTPResponseHeadParser(reactor.maxHeadSize()) :
+                new HTTPRequestHeadParser(reactor.maxHeadSize());
+        this.chunkFrame.limit(0);
+    }
+
+    /**
+     * Starts using the unit for <code>socket</code>, holding the reference dropped by {@link #close()}.
+     */
+    void open(SocketChannel socket) {
+        this.socket = socket;
+        references = 1;
+        closed = false;
+        released = false;
+        if (socket != null) {
+            (upstream ? metrics.activeUpstreams : metrics.activeClients).inc();
+        }
+    }
+
+    /**
+     * Keeps the unit from being recycled until {@link #unreference()} is called. Taken by everything that
+     * may use the unit after it was closed.
+     */
+    void retain() {
+        references++;
+    }
+
+    /**
+     * Drops a reference taken by {@link #retain()} or the one held since {@link #open}, releasing the unit
+     * to the recycler if it was the last one.
+     */
+    void unreference() {
+        if (--references == 0) {
+            released = true;
+            reactor.recycler().release(this);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the unit was released, with the stack trace of the release as the
+     *                               cause in debug mode
+     */
+    void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("use of a released unit", releasedAt);
+        }
+    }
+
+    void poison(Throwable releasedAt) {
+        this.releasedAt = releasedAt;
+    }
+
+    boolean isUpstream() {
+        return upstream;
+    }
+
+    /**
+     * Makes sure a released unit is not reached through its opposite any more.
+     */
+    void unlink() {
+        if (opposite != null && opposite.opposite == this) {
+            opposite.opposite = null;
+        }
+        opposite = null;
+    }
+
+    /**
+     * Clears the state of the released unit, so that it can serve another connection.
+     */
+    void reset() {
+        socket = null;
+        cached = null;
+        eof = false;
+        outputIsShutdown = false;
+        discard = 0;
+        forwardable = 0;
+        resetMessage();
+        chunkFrame.limit(0);
+        fill = null;
+        fillBody = null;
+        request = null;
+        clientVersion = null;
+        keepAlive = false;
+        bodiless = false;
+        retried = false;
+        poolKey = null;
+        reused = false;
+        tunnel = false;
+        lastRead = 0;
+        deadline = null;
+        replied = false;
+        accessPending = false;
+        status = 0;
+        clientAddress = null;
+        releasedAt = null;
+    }
+
+    private void connect(InetSocketAddress address, String key)
+            throws IOException {
+        ProxyUnit unit = reactor.recycler().acquire(SocketChannel.open(), true);
+        unit.socket.configureBlocking(false);
+        unit.socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        unit.connectNanos = System.nanoTime();
+        unit.tunnel = tunnel;
+        unit.socket.connect(address);
+        unit.socket.register(reactor.selector(), OP_CONNECT, unit);
+        unit.schedule(Deadline.CONNECT);
+        pair(unit, key);
+    }
+
+    private void pair(ProxyUnit unit, String key) {
+        opposite = unit;
+        unit.opposite = this;
+        unit.poolKey = key;
+    }
+
+    int read()
+            throws IOException {
+        checkNotReleased();
+        if (tunnel) {
+            return tunnelRead();
+        }
+        if (upstream && opposite == null) {
+            // an idle pooled connection must stay silent
+            reactor.upstreamPool().remove(poolKey, this);
+            close();
+            return -1;
+        }
+
+        if (buf == null) {
+            buf = pool.acquire(preferredBufferSize());
+            if (buf == null) {
+                log.debug("%-9s %s: buffer pool exhausted", "STARVE", this);
+                reactor.starve(this, preferredBufferSize());
+                return 0;
+            }
+        }
+
+        int bytesRead = receive();
+
+        if (bytesRead > 0) {
+            received.add(bytesRead);
+            reused = false;
+            if (deadline == Deadline.IDLE) {
+                schedule(Deadline.HEAD);
+            }
+            log.payload("READ from", this, buf, buf.position() - bytesRead, bytesRead);
+            process();
+            if (relaying) {
+                relay();
+            }
+        } else if (bytesRead == -1) {
+            endOfStream();
+        }
+
+        if (isOpen() && buf != null) {
+            if (!buf.hasRemaining()) {
+                bufferFull();
+            } else if ((messageComplete || pending() > 0) && queued() >= reactor.highWatermark(upstream)) {
+                pauseReading();
+            }
+        }
+
+        if (bufferedBytes() == 0) {
+            releaseBuffer();
+        }
+        return bytesRead;
+    }
+
+    int write()
+            throws IOException {
+        checkNotReleased();
+        if (tunnel) {
+            return tunnelWrite();
+        }
+        ProxyUnit src = opposite;
+        if (src != null) {
+            src.nextChunk();
+        }
+        if (src == null || src.pending() == 0) {
+            reactor.removeOps(socket.keyFor(reactor.selector()), OP_WRITE);
+            return 0;
+        }
+
+        int n = 0;
+        if (src.head != null) gather[n++] = src.head;
+        if (src.headRest != null) gather[n++] = src.headRest;
+        if (src.cached != null) gather[n++] = src.cached;
+        if (src.chunkFrame.hasRemaining()) gather[n++] = src.chunkFrame;
+        // compressed bytes are written in place of the forwardable ones
+        ByteBuffer b = src.zipped != null ? src.zipped : src.buf;
+        int start = src.zipped != null ? 0 : src.discard;
+        int limit = 0;
+        if (b != null) {
+            if (b == src.buf && src.discard > 0) {
+                src.detachRequest();
+            }
+            int length = src.rechunk ? src.chunkLeft : src.sendable();
+            b.flip();
+            limit = b.limit();
+            b.position(start);
+            b.limit(start + length);
+            gather[n++] = b;
+        }
+
+        int bytesWritten = (int) socket.write(gather, 0, n);
+        Arrays.fill(gather, null);
+        sent.add(bytesWritten);
+        if (!upstream) {
+            responseBytes += bytesWritten;
+        }
+
+        if (b != null) {
+            int bodyBytesWritten = b.position() - start;
+            if (bodyBytesWritten > 0) {
+                log.payload("WRITE to", this, b, start, bodyBytesWritten);
+            }
+            b.limit(limit);
+            if (b.position() > 0) {
+                b.compact();
+            } else {
+                b.position(limit).limit(b.capacity());
+            }
+            if (b == src.buf) {
+                src.discard = 0;
+                src.forwardable -= bodyBytesWritten;
+            }
+            if (src.rechunk) {
+                src.chunkLeft -= bodyBytesWritten;
+            }
+        }
+        src.releaseWrittenHead();
+        if (src.cached != null && !src.cached.hasRemaining()) {
+            src.cached = null;
+        }
+        src.deflate();
+        if (src.zipped != null && src.deflater == null && src.zipped.position() == 0) {
+            src.releaseZipped();
+        }
+        src.nextChunk();
+
+        if (bytesWritten > 0 && src.isOpen() && !src.eof && src.drained()) {
+            reactor.addOps(src.socket.keyFor(reactor.selector()), OP_READ);
+        }
+
+        if (src.pending() == 0) {
+            // wrote everything of the current message
+            reactor.removeOps(socket.keyFor(reactor.selector()), OP_WRITE);
+            if (src.messageComplete) {
+                src.messageForwarded();
+            } else if (src.eof) {
+                shutdownOutput();
+                if (src.outputIsShutdown) {
+                    closePair();
+                }
+            }
+            if (src.bufferedBytes() == 0) {
+                src.releaseBuffer();
+            }
+        }
+
+        return bytesWritten;
+    }
+
+    /**
+     * Reads into {@link #buf} of a tunnel and writes to the opposite socket right away. Everything in the
+     * buffer is to be written, so there is no more to it than in {@link #tunnelWrite()}.
+     */
+    private int tunnelRead()
+            throws IOException {
+        if (buf == null) {
+            int size = reactor.underPressure() ? pool.minBufferSize() : pool.maxBufferSize();
+            buf = pool.acquire(size);
+            if (buf == null) {
+                reactor.starve(this, size);
+                return 0;
+            }
+        }
+
+        int bytesRead = receive();
+        if (bytesRead == 0) return 0;
+        if (bytesRead > 0) {
+            received.add(bytesRead);
+            lastRead = System.nanoTime();
+            if (!upstream) {
+                requestBytes += bytesRead;
+            }
+        } else {
+            eof = true;
+            reactor.removeOps(socket.keyFor(reactor.selector()), OP_READ);
+        }
+
+        if (opposite != null && opposite.isConnected()) {
+            opposite.tunnelWrite();
+        }
+        if (isOpen() && buf != null && buf.position() > 0 &&
+                (!buf.hasRemaining() || buf.position() >= reactor.highWatermark(upstream))) {
+            pauseReading();
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Writes what the opposite unit of a tunnel has read. Once that is all written and the opposite has
+     * reached the end of its stream, the end is passed on, and the tunnel is closed when both directions
+     * have ended.
+     */
+    private int tunnelWrite()
+            throws IOException {
+        ProxyUnit src = opposite;
+        ByteBuffer b = src == null ? null : src.buf;
+        int bytesWritten = 0;
+        if (b != null && b.position() > 0) {
+            b.flip();
+            bytesWritten = socket.write(b);
+            b.compact();
+            sent.add(bytesWritten);
+            if (!upstream) {
+                responseBytes += bytesWritten;
+            }
+            if (bytesWritten > 0 && !src.eof && b.position() <= reactor.lowWatermark(src.upstream)) {
+                reactor.addOps(src.socket.keyFor(reactor.selector()), OP_READ);
+            }
+        }
+
+        SelectionKey key = socket.keyFor(reactor.selector());
+        if (b != null && b.position() > 0) {
+            reactor.addOps(key, OP_WRITE);
+            return bytesWritten;
+        }
+        reactor.removeOps(key, OP_WRITE);
+        if (src == null) return bytesWritten;
+        src.releaseBuffer();
+        if (src.eof) {
+            shutdownOutput();
+            if (src.outputIsShutdown) {
+                closePair();
+            }
+        }
+        return bytesWritten;
+    }
+
+    /**
+     * Handles bytes that were read into {@link #buf} after the {@link #forwardable} ones. The head parser
+     * continues where it stopped, so bytes of a head are scanned only once however many reads it takes.
+     */
+    private void process()
+            throws IOException {
+        if (messageComplete) {
+            // the next message waits until this one is forwarded
+            return;
+        }
+
+        if (!httpMessageHeadParsed) {
+            int bodyStart;
+            try {
+                bodyStart = headParser.advance(buf, buf.position());
+            } catch (HTTPHeadTooLargeException e) {
+                log.warn("%-9s %s: %s", "PARSE", this, e.getMessage());
+                headTooLarge();
+                return;
+            } catch (HTTPParseException e) {
+                log.warn("%-9s %s: %s", "PARSE", this, e.getMessage());
+                parseError();
+                if (upstream) {
+                    opposite.reply(502);
+                } else {
+                    reply(400);
+                }
+                return;
+            }
+            if (bodyStart == HTTPMessageHeadParser.NEED_MORE) {
+                return;
+            }
+            boolean proceed = upstream ? readResponse(bodyStart) : readRequest(bodyStart);
+            if (!proceed) {
+                return;
+            }
+        }
+
+        frameBody();
+    }
+
+    /**
+     * Writes what was just read to the opposite socket right away. If the socket does not take everything,
+     * the rest is written when it becomes writable, as usual.
+     */
+    private void relay()
+            throws IOException {
+        if (opposite != null && opposite.isConnected() && pending() > 0) {
+            opposite.write();
+        }
+    }
+
+    private void frameBody()
+            throws IOException {
+        int framed;
+        try {
+            framed = dechunk ? framer.decode(buf, discard + forwardable) :
+                    framer.frame(buf, discard + forwardable, buf.position());
+        } catch (HTTPParseException e) {
+            log.warn("%-9s %s: %s", "FRAME", this, e.getMessage());
+            parseError();
+            closePair();
+            return;
+        }
+        if (fillBody != null && framed > 0) {
+            ByteBuffer body = buf.duplicate();
+            body.limit(discard + forwardable + framed).position(discard + forwardable);
+            fillBody.put(body);
+        }
+        forwardable += framed;
+        if (!upstream) {
+            requestBytes += framed;
+        }
+        messageComplete = framer.isComplete();
+        relaying = !messageComplete && framer.isOpaque();
+        if (messageComplete && fillBody != null) {
+            fill.complete();
+            fill = null;
+            fillBody = null;
+        }
+        deflate();
+
+        if (dechunk && messageComplete && pending() == 0) {
+            // the rest of the body was the end of the chunked coding, which is dropped
+            messageForwarded();
+            return;
+        }
+        if (pending() > 0 && opposite != null && opposite.isConnected()) {
+            reactor.addOps(opposite.socket.keyFor(reactor.selector()), OP_WRITE);
+        }
+    }
+
+    /**
+     * Called when the last byte of the current message was written to the opposite socket.
+     */
+    private void messageForwarded()
+            throws IOException {
+        if (!upstream) {
+            // the response will tell whether the upstream connection can be reused
+            if (!opposite.httpMessageHeadParsed) {
+                opposite.schedule(Deadline.RESPONSE);
+            }
+            return;
+        }
+
+        if (interim) {
+            // a final response follows on the same connection
+            resetMessage();
+            if (bufferedBytes() > 0) {
+                process();
+            }
+            return;
+        }
+
+        ProxyUnit client = opposite;
+        opposite = null;
+        client.opposite = null;
+
+        if (reusable && !eof && bufferedBytes() == 0 && client.messageComplete && client.pending() == 0) {
+            resetMessage();
+            reactor.removeOps(socket.keyFor(reactor.selector()), OP_WRITE);
+            reactor.addOps(socket.keyFor(reactor.selector()), OP_READ);
+            if (reactor.upstreamPool().release(poolKey, this)) {
+                schedule(Deadline.POOLED);
+            } else {
+                close();
+            }
+        } else {
+            close();
+        }
+
+        client.responseForwarded();
+    }
+
+    /**
+     * Called on the client when the response to its current request was written. Continues with the next
+     * pipelined request if there is one.
+     */
+    private void responseForwarded()
+            throws IOException {
+        logAccess();
+        if (!keepAlive || !messageComplete || pending() > 0 || eof && bufferedBytes() == 0) {
+            shutdownOutput();
+            close();
+            return;
+        }
+
+        resetMessage();
+        request = null;
+        keepAlive = false;
+        retried = false;
+        schedule(bufferedBytes() > 0 ? Deadline.HEAD : Deadline.IDLE);
+        if (!eof) {
+            reactor.addOps(socket.keyFor(reactor.selector()), OP_READ);
+        }
+        if (bufferedBytes() > 0) {
+            process();
+        }
+        if (eof && !messageComplete) {
+            // the last pipelined request is incomplete and nothing more will come
+            closePair();
+        }
+        if (bufferedBytes() == 0) {
+            releaseBuffer();
+        }
+    }
+
+    private void resetMessage() {
+        headParser.reset(forwardable);
+        httpMessageHeadParsed = false;
+        messageComplete = false;
+        relaying = false;
+        dechunk = false;
+        rechunk = false;
+        chunkOpen = false;
+        chunkLeft = 0;
+        interim = false;
+        reusable = false;
+    }
+
+    private void endOfStream()
+            throws IOException {
+        eof = true;
+        reactor.removeOps(socket.keyFor(reactor.selector()), OP_READ);
+
+        if (!upstream) {
+            if (!messageComplete) {
+                // the client gave up before sending the whole request
+                closePair();
+            }
+            return;
+        }
+
+        reusable = false;
+        if (reused && opposite != null && opposite.retry()) {
+            return;
+        }
+        if (httpMessageHeadParsed && !messageComplete && framer.endOfStream()) {
+            // the body is delimited by the end of the connection
+            messageComplete = true;
+        }
+
+        deflate();
+        nextChunk();
+        if (pending() > 0) {
+            // the client gets the rest when it is writable
+            if (chunkFrame.hasRemaining() || zipped != null) {
+                reactor.addOps(opposite.socket.keyFor(reactor.selector()), OP_WRITE);
+            }
+            return;
+        }
+
+        if (messageComplete) {
+            messageForwarded();
+        } else if (!httpMessageHeadParsed) {
+            opposite.reply(502);
+        } else {
+            closePair();
+        }
+    }
+
+    private void bufferFull()
+            throws IOException {
+        if (httpMessageHeadParsed || messageComplete || pending() > 0) {
+            pauseReading();
+        } else if (buf.capacity() >= pool.maxBufferSize()) {
+            log.warn("%-9s %s: message head does not fit into a buffer", "PARSE", this);
+            headTooLarge();
+        } else if (!replaceBuffer(buf.capacity() + 1)) {
+            reactor.starve(this, buf.capacity() + 1);
+        }
+    }
+
+    /**
+     * Stops reading until the opposite socket drains the buffer.
+     */
+    private void pauseReading() {
+        SelectionKey key = socket.keyFor(reactor.selector());
+        if ((key.interestOps() & OP_READ) == 0) return;
+        reactor.removeOps(key, OP_READ);
+        (reactor.underPressure() ? metrics.readsPausedUnderPressure : metrics.readsPausedAtWatermark).inc();
+    }
+
+    /**
+     * Reads at most the reactor's read quantum into {@link #buf}.
+     */
+    private int receive()
+            throws IOException {
+        int limit = buf.limit();
+        int quantum = reactor.readQuantum();
+        if (buf.remaining() > quantum) {
+            buf.limit(buf.position() + quantum);
+        }
+        try {
+            return socket.read(buf);
+        } finally {
+            buf.limit(limit);
+        }
+    }
+
+    private void headTooLarge()
+            throws IOException {
+        parseError();
+        if (upstream) {
+            opposite.reply(502);
+        } else {
+            reply(431);
+        }
+    }
+
+    private void shutdownOutput()
+            throws IOException {
+        if (outputIsShutdown) return;
+        socket.shutdownOutput();
+        outputIsShutdown = true;
+    }
+
+    void close()
+            throws IOException {
+        detachRequest();
+        releaseBuffer();
+        releaseHead();
+        releaseZipped();
+        cached = null;
+        abandonFill();
+        cancelDeadline();
+        if (!upstream) {
+            logAccess();
+        }
+        if (closed) return;
+        closed = true;
+        if (socket != null) {
+            (upstream ? metrics.activeUpstreams : metrics.activeClients).dec();
+            if (upstream && poolKey != null) {
+                reactor.upstreamPool().forget(poolKey);
+            }
+        }
+        try {
+            if (isOpen()) {
+                if (log.isEnabled(DEBUG)) {
+                    log.debug("%-9s %s", "CLOSE", this);
+                }
+                socket.close();
+            }
+        } finally {
+            unreference();
+        }
+    }
+
+    boolean isOpen() {
+        return socket != null && socket.isOpen();
+    }
+
+    private boolean isConnected() {
+        return socket != null && socket.isConnected();
+    }
+
+    private int bufferedBytes() {
+        return buf == null ? 0 : buf.position();
+    }
+
+    /**
+     * @return the number of bytes held for the opposite socket, read or compressed
+     */
+    private int queued() {
+        return bufferedBytes() + (zipped == null ? 0 : zipped.position());
+    }
+
+    /**
+     * @return whether a unit paused by {@link #pauseReading()} may read again
+     */
+    private boolean drained() {
+        return pending() == 0 || queued() <= reactor.lowWatermark(upstream);
+    }
+
+    /**
+     * @return the number of bytes of the current message ready to be written to the opposite socket
+     */
+    private int pending() {
+        return (head == null ? 0 : head.remaining()) + (headRest == null ? 0 : headRest.remaining()) +
+                (cached == null ? 0 : cached.remaining()) + chunkFrame.remaining() + forwardable +
+                (zipped == null ? 0 : zipped.position());
+    }
+
+    /**
+     * @return the number of body bytes ready to be written to the opposite socket, which are the compressed
+     * ones if the body is compressed
+     */
+    private int sendable() {
+        return zipped != null ? zipped.position() : forwardable;
+    }
+
+    /**
+     * Frames the next chunk of a {@link #rechunk rechunked} body once the previous one is written: the bytes
+     * forwardable by now make up one chunk, and the last chunk follows once the body is complete. The frame
+     * ends the data of the previous chunk and starts the next one, so it is written in front of the data.
+     */
+    private void nextChunk() {
+        if (!rechunk || chunkLeft > 0 || chunkFrame.hasRemaining()) return;
+        if (sendable() == 0 && (!messageComplete || deflater != null)) return;
+
+        chunkFrame.clear();
+        if (chunkOpen) {
+            chunkFrame.put((byte) CR).put((byte) LF);
+        }
+        int size = sendable();
+        for (int shift = (31 - Integer.numberOfLeadingZeros(size | 1)) & ~3; shift >= 0; shift -= 4) {
+            chunkFrame.put((byte) Character.forDigit((size >>> shift) & 0xF, 16));
+        }
+        chunkFrame.put((byte) CR).put((byte) LF);
+        if (size == 0) {
+            // the last chunk and an empty trailer
+            chunkFrame.put((byte) CR).put((byte) LF);
+            rechunk = false;
+        }
+        chunkFrame.flip();
+        chunkLeft = size;
+        chunkOpen = true;
+    }
+
+    private int preferredBufferSize() {
+        return httpMessageHeadParsed && !reactor.underPressure() ? pool.maxBufferSize() : pool.minBufferSize();
+    }
+
+    private void releaseBuffer() {
+        pool.release(buf);
+        buf = null;
+    }
+
+    private void releaseZipped() {
+        if (deflater != null) {
+            reactor.compressor().release(deflater);
+            deflater = null;
+        }
+        pool.release(zipped);
+        zipped = null;
+    }
+
+    private void releaseHead() {
+        pool.release(head);
+        pool.release(headRest);
+        head = null;
+        headRest = null;
+    }
+
+    private void releaseWrittenHead() {
+        if (head != null && !head.hasRemaining() && (headRest == null || !headRest.hasRemaining())) {
+            releaseHead();
+        }
+    }
+
+    /**
+     * Moves the contents of {@link #buf} to a pooled buffer of at least <code>minSize</code> bytes.
+     *
+     * @return <code>false</code> if the pool is exhausted; {@link #buf} is left as is then
+     */
+    private boolean replaceBuffer(int minSize) {
+        ByteBuffer larger = pool.acquire(minSize);
+        if (larger == null) return false;
+        buf.flip();
+        larger.put(buf);
+        pool.release(buf);
+        buf = larger;
+        return true;
+    }
+
+    /**
+     * @return <code>false</code> if the response was not accepted and the pair is finished
+     */
+    private boolean readResponse(int bodyStart)
+            throws IOException {
+        HTTPResponse response = (HTTPResponse) headParser.getMessage();
+
+        try {
+            framer.reset(opposite.request, response);
+        } catch (HTTPParseException e) {
+            log.warn("%-9s %s: %s", "FRAME", this, e.getMessage());
+            parseError();
+            opposite.reply(500);
+            return false;
+        }
+
+        String status = response.getStatusCode();
+        interim = status.startsWith("1") && !status.equals("101");
+        reusable = Messages.keepAlive(response) && framer.isDelimited();
+        if (!interim) {
+            cancelDeadline();
+            opposite.keepAlive &= !status.equals("101");
+            fill = opposite.fill;
+            opposite.fill = null;
+            ResponseCache.Entry entry = fill == null ? null : fill.revalidated(response);
+            if (entry != null) {
+                fill = null;
+                return notModified(entry, bodyStart);
+            }
+            if (fill != null) {
+                // the stored head is copied before the response is recoded for this client
+                fillBody = fill.start(response, framer.getRemainingLength());
+                if (fillBody == null) {
+                    fill = null;
+                }
+            }
+            recode(response);
+            opposite.responseHead(Integer.parseInt(status));
+        }
+
+        Messages.normalize(response, opposite.keepAlive, opposite.clientVersion);
+        putHead(response, bodyStart);
+        httpMessageHeadParsed = true;
+        return true;
+    }
+
+    /**
+     * Decides whether the body of <code>response</code> is compressed, {@link #dechunk dechunked} or
+     * {@link #rechunk rechunked} on its way to the client, and rewrites its framing fields accordingly. A
+     * body the client cannot tell the length of is rechunked if the client keeps its connection, and delimited
+     * by the end of the connection otherwise. A rechunked response is sent as HTTP/1.1, since a transfer
+     * coding in an HTTP/1.0 message is not framing.
+     */
+    private void recode(HTTPResponse response) {
+        boolean http11 = HTTP_1_1.equals(opposite.clientVersion);
+        String codings = response.getFieldValue("Transfer-Encoding");
+        boolean compressing = compress(response);
+        if (framer.isChunked() && (compressing || !http11) && "chunked".equalsIgnoreCase(codings)) {
+            dechunk = true;
+            codings = null;
+            response.removeField("Transfer-Encoding");
+            response.removeField("Trailer");
+        }
+        if (!compressing && !dechunk && framer.isDelimited()) return;
+
+        if (http11 && opposite.keepAlive && codings == null) {
+            rechunk = true;
+            response.setVersion(HTTP_1_1);
+            response.setField("Transfer-Encoding", "chunked");
+        } else {
+            opposite.keepAlive = false;
+        }
+    }
+
+    /**
+     * Starts compressing the body of <code>response</code> if it is compressible, the client accepts gzip and
+     * the reactor's {@link Compressor} has the budget for it.
+     *
+     * @return whether the body is compressed
+     */
+    private boolean compress(HTTPResponse response) {
+        Compressor compressor = reactor.compressor();
+        if (compressor == null || framer.isComplete() ||
+                !compressor.compressible(response, framer.getRemainingLength())) {
+            return false;
+        }
+        Compressor.vary(response);
+        if (!Compressor.accepts(opposite.request)) return false;
+
+        deflater = compressor.acquire();
+        if (deflater == null) {
+            metrics.compressionSkipped.inc();
+            return false;
+        }
+        zipped = pool.acquire(pool.maxBufferSize());
+        if (zipped == null) {
+            compressor.release(deflater);
+            deflater = null;
+            return false;
+        }
+        gzip.reset(deflater);
+        Compressor.encoded(response);
+        metrics.compressed.inc();
+        return true;
+    }
+
+    /**
+     * Compresses the forwardable bytes of {@link #buf} into {@link #zipped}, as many as fit, and finishes the
+     * gzip stream once the whole body is compressed. What is taken is dropped from {@link #buf} the same way
+     * written bytes are.
+     */
+    private void deflate() {
+        if (deflater == null) return;
+        long start = System.nanoTime();
+        int zippedBefore = zipped.position();
+        int consumed = 0;
+        boolean finished;
+        ByteBuffer b = buf;
+        if (b != null && forwardable > 0) {
+            if (discard > 0) {
+                detachRequest();
+            }
+            b.flip();
+            int limit = b.limit();
+            b.position(discard);
+            b.limit(discard + forwardable);
+            finished = gzip.encode(b, zipped, messageComplete);
+            consumed = b.position() - discard;
+            b.limit(limit);
+            if (b.position() > 0) {
+                b.compact();
+            } else {
+                b.position(limit).limit(b.capacity());
+            }
+            discard = 0;
+            forwardable -= consumed;
+        } else {
+            finished = gzip.encode(null, zipped, messageComplete);
+        }
+
+        Compressor compressor = reactor.compressor();
+        compressor.charge(System.nanoTime() - start);
+        metrics.compressionInput.add(consumed);
+        metrics.compressionOutput.add(zipped.position() - zippedBefore);
+        if (finished) {
+            compressor.release(deflater);
+            deflater = null;
+        }
+    }
+
+    /**
+     * Picks what to answer the current request with from a stored entry, whose head has been copied into
+     * <code>response</code>: the gzip variant of the entry if the client accepts it, compressing the stored
+     * body and storing the variant first if this has not been done yet.
+     *
+     * @return the entry to serve, whose head is in <code>response</code> then
+     */
+    private ResponseCache.Entry variant(ResponseCache.Entry entry, HTTPResponse response) {
+        Compressor compressor = reactor.compressor();
+        if (compressor == null || !compressor.compressible(response, entry.getBodyLength())) return entry;
+        Compressor.vary(response);
+        if (!Compressor.accepts(request)) return entry;
+
+        ResponseCache.Entry variant = entry.getVariant("gzip");
+        if (variant == null) {
+            ByteBuffer body = entry.getBody();
+            ByteBuffer compressed = compressor.compress(body);
+            if (compressed == null) {
+                metrics.compressionSkipped.inc();
+                return entry;
+            }
+            metrics.compressionInput.add(body.remaining());
+            metrics.compressionOutput.add(compressed == body ? 0 : compressed.remaining());
+            variant = reactor.responseCache().storeVariant(entry, "gzip", compressed == body ? null : compressed);
+        }
+        if (variant == entry) return entry;
+
+        variant.getResponse(response);
+        Compressor.vary(response);
+        metrics.compressed.inc();
+        return variant;
+    }
+
+    /**
+     * Replaces the <code>304</code> answer to a revalidation with the refreshed stored response.
+     *
+     * @return <code>false</code> if the pair is finished
+     */
+    private boolean notModified(ResponseCache.Entry entry, int bodyStart) {
+        HTTPResponse response = entry.getResponse((HTTPResponse) headParser.getMessage());
+        entry = opposite.variant(entry, response);
+        opposite.responseHead(entry.getStatusCode());
+        Messages.normalize(response, opposite.keepAlive, opposite.clientVersion);
+        discard = bodyStart;
+        if (!encodeHead(response)) {
+            log.warn("%-9s %s: cached message head does not fit into a buffer", "CACHE", this);
+            closePair();
+            return false;
+        }
+        cached = entry.getBody();
+        httpMessageHeadParsed = true;
+        return true;
+    }
+
+    /**
+     * @return <code>false</code> if the request was answered by the proxy itself
+     */
+    private boolean readRequest(int bodyStart)
+            throws IOException {
+        request = (HTTPRequest) headParser.getMessage();
+        beginAccess(bodyStart);
+        schedule(Deadline.REQUEST);
+        metrics.requests.inc();
+
+        try {
+            framer.reset(request);
+        } catch (HTTPParseException e) {
+            log.warn("%-9s %s: %s", "FRAME", this, e.getMessage());
+            parseError();
+            reply(400);
+            return false;
+        }
+
+        keepAlive = Messages.keepAlive(request);
+        clientVersion = request.getVersion();
+        bodiless = framer.isComplete();
+
+        if ("CONNECT".equals(request.getMethod())) {
+            if (!request.hostSpecified()) {
+                reply(400);
+            } else {
+                openTunnel(bodyStart);
+            }
+            return false;
+        }
+
+        int status = Messages.normalize(request);
+        if (status != 0) {
+            reply(status);
+            return false;
+        }
+        discard = bodyStart;
+        httpMessageHeadParsed = true;
+        ResponseCache cache = reactor.responseCache();
+        if (cache != null && framer.isComplete()) {
+            retain();
+            cache.lookup(request, reactor, lookedUp);
+        } else {
+            forward();
+        }
+        return true;
+    }
+
+    private void forward()
+            throws IOException {
+        putHead(request, discard);
+        route(Messages.upstreamAddress(request));
+    }
+
+    /**
+     * Called with the result of the cache lookup of the current request, possibly after the response was
+     * fetched for another client.
+     */
+    private void lookedUp(ResponseCache.Entry entry, ResponseCache.Fill fill) {
+        checkNotReleased();
+        try {
+            if (!isOpen() || replied) {
+                if (fill != null) {
+                    fill.abandon();
+                }
+                return;
+            }
+            if (entry != null) {
+                serve(entry);
+            } else {
+                this.fill = fill;
+                if (fill != null) {
+                    fill.condition(request);
+                }
+                forward();
+            }
+        } catch (IOException e) {
+            log.error("couldn't proxy the request of " + this, e);
+            closePair();
+        } finally {
+            unreference();
+        }
+    }
+
+    /**
+     * Answers the current request with a cached response.
+     */
+    private void serve(ResponseCache.Entry entry) {
+        if (buf != null) {
+            // drop the request head, keeping pipelined bytes
+            detachRequest();
+            buf.flip();
+            buf.position(discard);
+            buf.compact();
+        }
+        discard = 0;
+
+        ProxyUnit replier = reactor.recycler().acquire(null, true);
+        HTTPResponse response = entry.getResponse((HTTPResponse) replier.headParser.getMessage());
+        entry = variant(entry, response);
+        responseHead(entry.getStatusCode());
+        Messages.normalize(response, keepAlive, clientVersion);
+
+        replier.opposite = this;
+        replier.httpMessageHeadParsed = true;
+        replier.messageComplete = true;
+        if (!replier.encodeHead(response)) {
+            log.warn("%-9s %s: cached message head does not fit into a buffer", "CACHE", this);
+            closePair();
+            return;
+        }
+        replier.cached = entry.getBody();
+        opposite = replier;
+        reactor.addOps(socket.keyFor(reactor.selector()), OP_WRITE);
+    }
+
+    /**
+     * Sends the request over an idle pooled connection to its origin or opens a new one.
+     */
+    private void route(InetSocketAddress unresolved)
+            throws IOException {
+        String key = poolKey(unresolved);
+        ProxyUnit idle = reactor.upstreamPool().checkout(key);
+        if (idle != null) {
+            if (log.isEnabled(DEBUG)) {
+                log.debug("%-9s %s", "REUSE", idle);
+            }
+            metrics.upstreamReused.inc();
+            idle.cancelDeadline();
+            idle.reused = true;
+            pair(idle, key);
+            reactor.addOps(idle.socket.keyFor(reactor.selector()), OP_READ | OP_WRITE);
+        } else {
+            resolve(unresolved, key);
+        }
+    }
+
+    /**
+     * Sends the current request again over a new connection, once, if its {@link #reused} upstream ended or
+     * failed before answering and the request may be {@link Messages#retriable retried}. The head is encoded
+     * again from the request, which was detached from {@link #buf} when it was written.
+     *
+     * @return whether the request is sent again; the client is to be answered otherwise
+     */
+    private boolean retry()
+            throws IOException {
+        if (retried || replied || !Messages.retriable(request, bodiless)) return false;
+        retried = true;
+        metrics.upstreamRetries.inc();
+        ProxyUnit failed = opposite;
+        if (log.isEnabled(DEBUG)) {
+            log.debug("%-9s %s", "RETRY", failed);
+        }
+        failed.opposite = null;
+        opposite = null;
+        failed.close();
+
+        detachRequest();
+        releaseHead();
+        if (!encodeHead(request)) {
+            log.warn("%-9s %s: rewritten message head does not fit into a buffer", "REWRITE", this);
+            closePair();
+            return true;
+        }
+        InetSocketAddress unresolved = Messages.upstreamAddress(request);
+        resolve(unresolved, poolKey(unresolved));
+        return true;
+    }
+
+    private static String poolKey(InetSocketAddress unresolved) {
+        return unresolved.getHostString() + ":" + unresolved.getPort();
+    }
+
+    /**
+     * Resolves the upstream host off the reactor thread and connects to it once the address is known.
+     */
+    private void resolve(InetSocketAddress unresolved, String key) {
+        retain();
+        reactor.resolver().resolve(unresolved.getHostString(), reactor, (address, error) -> {
+            checkNotReleased();
+            try {
+                if (!isOpen() || replied) return;
+                if (error != null) {
+                    log.warn("%-9s %s: %s", "RESOLVE", unresolved.getHostString(), error);
+                    reply(502);
+                    return;
+                }
+                connect(new InetSocketAddress(address, unresolved.getPort()), key);
+            } catch (IOException e) {
+                log.error("couldn't connect to " + unresolved, e);
+                closePair();
+            } finally {
+                unreference();
+            }
+        });
+    }
+
+    /**
+     * Connects to the target of the <code>CONNECT</code> request just read, never over a pooled connection.
+     * What the client sends after the head is kept in {@link #buf} until the tunnel is established.
+     */
+    private void openTunnel(int bodyStart) {
+        detachRequest();
+        buf.flip();
+        buf.position(bodyStart);
+        buf.compact();
+        discard = 0;
+        forwardable = 0;
+        httpMessageHeadParsed = true;
+        keepAlive = false;
+        tunnel = true;
+        resolve(InetSocketAddress.createUnresolved(request.getHost(), request.getPort()), null);
+    }
+
+    /**
+     * Called on the client once the connection to the target of its <code>CONNECT</code> is established.
+     * The <code>200</code> answer is put into the buffer of the upstream unit, so that it goes to the client
+     * like everything the upstream sends after it.
+     */
+    private void tunnelEstablished() {
+        ByteBuffer established = pool.acquire(pool.minBufferSize());
+        if (established == null) {
+            closePair();
+            return;
+        }
+        encoder.reset(Proxy.STATUS_LINES.get(200)).encode(established);
+        opposite.buf = established;
+        responseHead(200);
+        metrics.tunnels.inc();
+        lastRead = System.nanoTime();
+        schedule(Deadline.TUNNEL);
+        reactor.addOps(socket.keyFor(reactor.selector()), OP_WRITE);
+    }
+
+    /**
+     * Called by the reactor once the connection to the upstream of {@link #opposite} is established.
+     */
+    void connected() {
+        metrics.upstreamConnect.record(System.nanoTime() - connectNanos);
+        // the request is being sent, the response deadline starts once it has been
+        cancelDeadline();
+        if (tunnel && opposite != null) {
+            opposite.tunnelEstablished();
+        }
+    }
+
+    /**
+     * Called by the reactor when the connection to the upstream of {@link #opposite} could not be established.
+     */
+    void connectFailed()
+            throws IOException {
+        checkNotReleased();
+        metrics.upstreamConnectFailures.inc();
+        close();
+        opposite.opposite = null;
+        opposite.reply(502);
+    }
+
+    /**
+     * Called by the reactor when reading from or writing to the socket failed. The request is {@link #retry()
+     * retried} or the client is answered with <code>502 Bad Gateway</code> if this is its upstream and no
+     * response has been started yet.
+     */
+    void failed() {
+        try {
+            if (upstream && !closed && opposite != null && opposite.status == 0) {
+                if (reused && opposite.retry()) return;
+                opposite.reply(502);
+            } else {
+                closePair();
+            }
+        } catch (IOException e) {
+            log.error("couldn't close " + this, e);
+            closePair();
+        }
+    }
+
+    /**
+     * Called by the reactor's {@link TimerWheel} when the current {@link #deadline} is reached.
+     */
+    private void timedOut() {
+        checkNotReleased();
+        Deadline reached = deadline;
+        deadline = null;
+        if (closed || reached == null) return;
+
+        if (reached == Deadline.TUNNEL) {
+            // reads do not move the deadline, it is moved here if there were any
+            long lastActive = opposite == null ? lastRead : Math.max(lastRead, opposite.lastRead);
+            long left = reactor.timeouts().idle - (System.nanoTime() - lastActive) / 1_000_000;
+            if (left > 0) {
+                deadline = reached;
+                reactor.timers().schedule(timer, left);
+                return;
+            }
+        }
+
+        if (reached == Deadline.IDLE || reached == Deadline.POOLED || reached == Deadline.TUNNEL) {
+            if (log.isEnabled(DEBUG)) {
+                log.debug("%-9s %s", "IDLE", this);
+            }
+        } else {
+            log.warn("%-9s %s: %s deadline reached", "TIMEOUT", this, reached.name().toLowerCase());
+        }
+
+        try {
+            switch (reached) {
+                case IDLE:
+                    metrics.idleClosedClients.inc();
+                    close();
+                    break;
+                case TUNNEL:
+                    metrics.idleClosedClients.inc();
+                    closePair();
+                    break;
+                case POOLED:
+                    metrics.idleClosedUpstreams.inc();
+                    reactor.upstreamPool().remove(poolKey, this);
+                    close();
+                    break;
+                case HEAD:
+                    metrics.headTimeouts.inc();
+                    reply(408);
+                    break;
+                case REQUEST:
+                    metrics.requestTimeouts.inc();
+                    if (status == 0) {
+                        // nothing of a response has been sent yet
+                        reply(504);
+                    } else {
+                        closePair();
+                    }
+                    break;
+                case CONNECT:
+                    metrics.connectTimeouts.inc();
+                    close();
+                    if (opposite != null) {
+                        opposite.opposite = null;
+                        opposite.reply(504);
+                    }
+                    break;
+                case RESPONSE:
+                    metrics.responseTimeouts.inc();
+                    if (opposite != null) {
+                        // closes this unit
+                        opposite.reply(504);
+                    } else {
+                        close();
+                    }
+                    break;
+            }
+        } catch (IOException e) {
+            log.error("couldn't time out " + this, e);
+            closePair();
+        }
+    }
+
+    /**
+     * Moves the timer of the unit on to <code>deadline</code>, counting from now.
+     */
+    private void schedule(Deadline deadline) {
+        if (closed) return;
+        this.deadline = deadline;
+        long millis = deadline.millis(reactor);
+        if (millis > 0) {
+            reactor.timers().schedule(timer, millis);
+        } else {
+            reactor.timers().cancel(timer);
+        }
+    }
+
+    private void cancelDeadline() {
+        deadline = null;
+        reactor.timers().cancel(timer);
+    }
+
+    /**
+     * Called by the reactor once the accepted client socket is registered.
+     */
+    void accepted() {
+        schedule(Deadline.IDLE);
+    }
+
+    /**
+     * Drops the request being read and answers with <code>status</code> instead of proxying it. The client
+     * connection is closed once the reply is written.
+     */
+    private void reply(int status)
+            throws IOException {
+        if (!accessPending) {
+            beginAccess(0);
+        }
+        if (deadline != Deadline.REQUEST) {
+            // the reply has to be written in time as well
+            schedule(Deadline.REQUEST);
+        }
+        replied = true;
+        tunnel = false;
+        this.status = status;
+        abandonFill();
+        detachRequest();
+        releaseBuffer();
+        releaseHead();
+        httpMessageHeadParsed = true;
+        messageComplete = true;
+        discard = 0;
+        forwardable = 0;
+
+        ProxyUnit replier = reactor.recycler().acquire(null, true);
+        replier.opposite = this;
+        replier.eof = true;
+        replier.outputIsShutdown = true;
+        if (!replier.encodeHead(Proxy.STATUS_LINES.get(status))) {
+            closePair();
+            return;
+        }
+        if (opposite != null) {
+            opposite.close();
+        }
+        opposite = replier;
+
+        SelectionKey key = socket.keyFor(reactor.selector());
+        reactor.removeOps(key, OP_READ);
+        reactor.addOps(key, OP_WRITE);
+    }
+
+    private void closePair() {
+        try {
+            close();
+            if (opposite != null) {
+                opposite.close();
+            }
+        } catch (IOException e) {
+            log.error("couldn't close " + this, e);
+        }
+    }
+
+    /**
+     * Rewrites the head of <code>message</code> into {@link #head}, continuing in {@link #headRest} if it does
+     * not fit, and marks the original head in <code>[0, bodyStart)</code> of {@link #buf} to be skipped.
+     * Fields left as they were parsed are copied from the original head.
+     */
+    private void putHead(HTTPMessage message, int bodyStart)
+            throws IOException {
+        discard = bodyStart;
+        if (!encodeHead(message)) {
+            log.warn("%-9s %s: rewritten message head does not fit into a buffer", "REWRITE", this);
+            closePair();
+            throw new IOException("rewritten message head does not fit into a buffer");
+        }
+    }
+
+    /**
+     * Encodes the head of <code>message</code> into {@link #head} and {@link #headRest}, ready to be written.
+     *
+     * @return <code>false</code> if the pool could not provide buffers for the whole head
+     */
+    private boolean encodeHead(HTTPMessage message) {
+        encoder.reset(message);
+        head = pool.acquire(pool.minBufferSize());
+        if (head == null) return false;
+        if (!encoder.encode(head)) {
+            headRest = pool.acquire(pool.maxBufferSize());
+            if (headRest == null || !encoder.encode(headRest)) {
+                releaseHead();
+                return false;
+            }
+        }
+        head.flip();
+        if (headRest != null) {
+            headRest.flip();
+        }
+        return true;
+    }
+
+    /**
+     * Called before the bytes of the request head are dropped from {@link #buf}, as the request outlives them.
+     */
+    private void detachRequest() {
+        if (request != null) {
+            request.getFields().detach();
+        }
+    }
+
+    /**
+     * Counts a message of this side that could not be parsed or framed.
+     */
+    private void parseError() {
+        (upstream ? metrics.responseParseErrors : metrics.requestParseErrors).inc();
+    }
+
+    private void abandonFill() {
+        if (fill != null) {
+            fill.abandon();
+            fill = null;
+            fillBody = null;
+        }
+    }
+
+    /**
+     * Starts the access log record of the request being read by this client unit.
+     *
+     * @param headBytes size of the request head
+     */
+    private void beginAccess(int headBytes) {
+        accessPending = true;
+        requestTime = System.currentTimeMillis();
+        requestNanos = System.nanoTime();
+        ttfbNanos = -1;
+        status = 0;
+        requestBytes = headBytes;
+        responseBytes = 0;
+    }
+
+    /**
+     * Called on the client when the head of the final response to its request was received.
+     */
+    private void responseHead(int status) {
+        this.status = status;
+        ttfbNanos = System.nanoTime() - requestNanos;
+    }
+
+    private void logAccess() {
+        if (!accessPending) return;
+        accessPending = false;
+        long durationNanos = System.nanoTime() - requestNanos;
+        if (status != 0) {
+            metrics.response(status);
+            metrics.requestDuration.record(durationNanos);
+            if (ttfbNanos >= 0) {
+                metrics.timeToFirstByte.record(ttfbNanos);
+            }
+        }
+        AccessLog accessLog = reactor.accessLog();
+        if (accessLog == null) return;
+        if (clientAddress == null && socket != null) {
+            InetSocketAddress address = (InetSocketAddress) socket.socket().getRemoteSocketAddress();
+            clientAddress = address == null ? null : address.getAddress().getHostAddress() + ":" + address.getPort();
+        }
+        HTTPRequest r = request;
+        accessLog.log(requestTime, clientAddress,
+                r == null ? null : r.getMethod(),
+                r == null ? null : r.getFieldValue("Host"),
+                r == null ? null : "CONNECT".equals(r.getMethod()) ? r.getHost() + ":" + r.getPort() :
+                        r.getPath() + r.getQuery(),
+                status, requestBytes, responseBytes, ttfbNanos, durationNanos);
+    }
+
+    @Override
+    public String toString() {
+        return Proxy.toString(socket);
+    }
+
+    /**
+     * What a unit is waiting for, see {@link Timeouts}.
+     */
+    private enum Deadline {
+        CONNECT, RESPONSE, HEAD, REQUEST, IDLE, TUNNEL, POOLED;
+
+        long millis(Reactor reactor) {
+            Timeouts timeouts = reactor.timeouts();
+            switch (this) {
+                case CONNECT:
+                    return timeouts.connect;
+                case RESPONSE:
+                case HEAD:
+                    return timeouts.head;
+                case REQUEST:
+                    return timeouts.request;
+                case IDLE:
+                case TUNNEL:
+                    return timeouts.idle;
+                default:
+                    return reactor.upstreamPool().idleTimeoutMillis();
+            }
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import ru.nsu.ccfit.bogush.net.http.proxy.buffer.BufferPool;
+import ru.nsu.ccfit.bogush.net.http.proxy.cache.ResponseCache;
+import ru.nsu.ccfit.bogush.net.http.proxy.dns.AsyncResolver;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.AccessLog;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import static java.nio.channels.SelectionKey.*;
+import static ru.nsu.ccfit.bogush.net.http.proxy.log.Log.Level.DEBUG;
+
+/**
+ * Selector loop running in its own thread. <br>
+ *
+ * Accepted client sockets are handed to a reactor through {@link #register(SocketChannel)}, and other threads
+ * (such as the resolver threads) pass work back to it through {@link #execute(Runnable)}; both may be called
+ * from any thread. Everything else happens in the reactor thread: upstream connections opened by a
+ * {@link ProxyUnit} are registered on the same selector, so a client and its opposite are never shared
+ * between reactors. <br>
+ *
+ * Units that could not get a buffer from the shared {@link BufferPool} stop reading and are retried every
+ * {@link #STARVATION_RETRY_MILLIS} until the pool can serve them again. Idle upstream connections are kept
+ * in the reactor's own {@link UpstreamPool}, so they are reused only by clients of the same reactor. The
+ * {@link Timeouts} of the units are scheduled on the reactor's {@link TimerWheel}, whose expired timers are
+ * run after every select, and select waits no longer than until the next tick of the wheel. Responses are
+ * compressed with the deflaters of the reactor's own {@link Compressor}, if there is one. Reads are limited
+ * by the {@link FlowControl}, whose memory pressure is taken from the pool once per select. Closed
+ * units are handed back to the reactor's {@link UnitRecycler} once all selected keys, tasks and timers are
+ * handled.
+ * The time this takes per select is recorded in the {@link ProxyMetrics} shared by all reactors.
+ */
+class Reactor implements Runnable, Executor {
+    private static final long STARVATION_RETRY_MILLIS = 10;
+
+    private final int id;
+    private final BufferPool bufferPool;
+    private final AsyncResolver resolver;
+    private final UpstreamPool upstreamPool;
+    private final int maxHeadSize;
+    private final Log log;
+    private final AccessLog accessLog;
+    private final ResponseCache responseCache;
+    private final ProxyMetrics metrics;
+    private final Timeouts timeouts;
+    private final Compressor compressor;
+    private final FlowControl flowControl;
+    private boolean pressure = false;
+    private final TimerWheel timers = new TimerWheel(TimerWheel.DEFAULT_TICK_MILLIS, TimerWheel.DEFAULT_SLOTS);
+    private final UnitRecycler recycler;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Queue<Starving> starving = new ArrayDeque<>();
+    private final Consumer<SelectionKey> handler = this::handle;
+    private long busySince = 0;
+    private Thread thread;
+
+    /**
+     * @param accessLog     log of proxied requests or <code>null</code> if they are not logged
+     * @param responseCache cache of responses or <code>null</code> if they are not cached
+     * @param metrics       metrics shared by all reactors
+     * @param timeouts      deadlines of the connections
+     * @param compressor    compressor of responses or <code>null</code> if they are not compressed
+     * @param flowControl   limits on reading
+     * @param debugRecycling whether released units are kept poisoned to detect their use, see {@link UnitRecycler}
+     */
+    Reactor(int id, BufferPool bufferPool, AsyncResolver resolver, UpstreamPool upstreamPool, int maxHeadSize,
+            Log log, AccessLog accessLog, ResponseCache responseCache, ProxyMetrics metrics,
+            Timeouts timeouts, Compressor compressor, FlowControl flowControl, boolean debugRecycling)
+            throws IOException {
+        this.id = id;
+        this.bufferPool = bufferPool;
+        this.resolver = resolver;
+        this.upstreamPool = upstreamPool;
+        this.maxHeadSize = maxHeadSize;
+        this.log = log;
+        this.accessLog = accessLog;
+        this.responseCache = responseCache;
+        this.metrics = metrics;
+        this.timeouts = timeouts;
+        this.compressor = compressor;
+        this.flowControl = flowControl;
+        this.recycler = new UnitRecycler(this, UnitRecycler.DEFAULT_MAX_POOLED, debugRecycling);
+        this.selector = Selector.open();
+    }
+
+    void start() {
+        thread = new Thread(this, "reactor-" + id);
+        thread.start();
+    }
+
+    void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        selector.wakeup();
+    }
+
+    void register(SocketChannel socket) {
+        execute(() -> accept(socket));
+    }
+
+    /**
+     * Runs <code>task</code> in the reactor thread.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    AsyncResolver resolver() {
+        return resolver;
+    }
+
+    UpstreamPool upstreamPool() {
+        return upstreamPool;
+    }
+
+    int maxHeadSize() {
+        return maxHeadSize;
+    }
+
+    Log log() {
+        return log;
+    }
+
+    AccessLog accessLog() {
+        return accessLog;
+    }
+
+    ResponseCache responseCache() {
+        return responseCache;
+    }
+
+    ProxyMetrics metrics() {
+        return metrics;
+    }
+
+    Timeouts timeouts() {
+        return timeouts;
+    }
+
+    Compressor compressor() {
+        return compressor;
+    }
+
+    TimerWheel timers() {
+        return timers;
+    }
+
+    UnitRecycler recycler() {
+        return recycler;
+    }
+
+    /**
+     * @return the number of bytes held by a unit at which it stops reading
+     */
+    int highWatermark(boolean upstream) {
+        if (pressure) return lowWatermark(upstream);
+        return upstream ? flowControl.responseHigh : flowControl.requestHigh;
+    }
+
+    /**
+     * @return the number of bytes held by a paused unit at which it reads again
+     */
+    int lowWatermark(boolean upstream) {
+        return upstream ? flowControl.responseLow : flowControl.requestLow;
+    }
+
+    /**
+     * @return the most a unit may read in one select
+     */
+    int readQuantum() {
+        return pressure ? bufferPool.minBufferSize() : flowControl.readQuantum;
+    }
+
+    /**
+     * @return whether the memory was under pressure when the current iteration started handling keys or, after
+     * select has returned, when it did
+     */
+    boolean underPressure() {
+        return pressure;
+    }
+
+    /**
+     * Stops reading into <code>unit</code> until a buffer of <code>bufferSize</code> bytes is available.
+     */
+    void starve(ProxyUnit unit, int bufferSize) {
+        removeOps(unit.socket.keyFor(selector), OP_READ);
+        unit.retain();
+        starving.add(new Starving(unit, bufferSize));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                loop();
+            }
+        } catch (IOException e) {
+            log.error("reactor " + id + " failed", e);
+        } finally {
+            close();
+        }
+    }
+
+    private void loop()
+            throws IOException {
+        selector.select(handler, selectTimeout());
+        if (busySince == 0) {
+            busySince = System.nanoTime();
+        }
+        // tasks, starving units and timers also read and allocate, even in iterations without keys
+        pressure = flowControl.underPressure(bufferPool);
+        runTasks();
+        feedStarving();
+        expireTimers();
+        recycler.recycle();
+        metrics.loopIteration.record(System.nanoTime() - busySince);
+        busySince = 0;
+    }
+
+    /**
+     * Handles a selected key. Keys are passed to this method by {@link Selector#select(Consumer, long)}
+     * rather than collected into the selected-key set, which would allocate for every event.
+     */
+    private void handle(SelectionKey key) {
+        if (busySince == 0) {
+            // keys are handled while select is running, so the iteration starts with the first of them
+            busySince = System.nanoTime();
+            pressure = flowControl.underPressure(bufferPool);
+        }
+        if (!key.isValid()) return;
+
+        try {
+            if (key.isConnectable()) {
+                connect(key);
+                return;
+            }
+
+            if (key.isReadable()) {
+                int bytesRead = read(key);
+                if (bytesRead == -1) return;
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                write(key);
+            }
+        } catch (IOException e) {
+            log.error("I/O error on " + key.attachment(), e);
+            // the socket stays ready with the same error otherwise
+            ((ProxyUnit) key.attachment()).failed();
+        } catch (CancelledKeyException ignored) {
+            // the pair was closed while handling the key
+        } catch (IllegalStateException e) {
+            // a unit was used after its release, which only debug recycling reports reliably
+            log.error("couldn't handle " + key.attachment(), e);
+            key.cancel();
+        }
+    }
+
+    private long selectTimeout() {
+        long timeout = timers.timeoutMillis();
+        if (!starving.isEmpty() && (timeout == 0 || timeout > STARVATION_RETRY_MILLIS)) {
+            return STARVATION_RETRY_MILLIS;
+        }
+        return timeout;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("task failed", e);
+            }
+        }
+    }
+
+    private void expireTimers() {
+        try {
+            timers.expire();
+        } catch (RuntimeException e) {
+            log.error("timer failed", e);
+        }
+    }
+
+    private void accept(SocketChannel socket) {
+        ProxyUnit unit = recycler.acquire(socket, false);
+        metrics.accepted.inc();
+        try {
+            if (log.isEnabled(DEBUG)) {
+                log.debug("%-9s %s", "ACCEPT", unit);
+            }
+            socket.configureBlocking(false);
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            socket.register(selector, OP_READ, unit);
+            unit.accepted();
+        } catch (IOException e) {
+            log.error("couldn't register " + unit, e);
+            try {
+                unit.close();
+            } catch (IOException e1) {
+                log.error("couldn't close " + unit, e1);
+            }
+        }
+    }
+
+    private void feedStarving() {
+        for (int i = starving.size(); i > 0; i--) {
+            Starving s = starving.poll();
+            if (!s.unit.isOpen()) {
+                s.unit.unreference();
+            } else if (bufferPool.available(s.bufferSize)) {
+                addOps(s.unit.socket.keyFor(selector), OP_READ);
+                s.unit.unreference();
+            } else {
+                starving.add(s);
+            }
+        }
+    }
+
+    private void connect(SelectionKey key)
+            throws IOException {
+        ProxyUnit unit = (ProxyUnit) key.attachment();
+        boolean connected;
+        try {
+            connected = unit.socket.finishConnect();
+        } catch (IOException e) {
+            log.warn("%-9s %s: %s", "CONNECT", unit, e);
+            unit.connectFailed();
+            return;
+        }
+
+        if (log.isEnabled(DEBUG)) {
+            log.debug("%-9s %s", "CONNECT", unit);
+        }
+        if (connected) {
+            unit.connected();
+            removeOps(key, OP_CONNECT);
+            addOps(key, OP_READ | OP_WRITE);
+        }
+    }
+
+    private int read(SelectionKey key)
+            throws IOException {
+        ProxyUnit unit = (ProxyUnit) key.attachment();
+        return unit.read();
+    }
+
+    private int write(SelectionKey key)
+            throws IOException {
+        ProxyUnit unit = (ProxyUnit) key.attachment();
+        return unit.write();
+    }
+
+    /**
+     * Adds <code>ops</code> to the interest set of <code>key</code>, leaving it alone if they are all in it
+     * already, so that the selector does not queue an update for nothing.
+     */
+    void addOps(SelectionKey key, int ops) {
+        int interest = key.interestOps();
+        if ((interest | ops) != interest) {
+            key.interestOps(interest | ops);
+        }
+    }
+
+    /**
+     * Removes <code>ops</code> from the interest set of <code>key</code>, if any of them is in it.
+     */
+    void removeOps(SelectionKey key, int ops) {
+        int interest = key.interestOps();
+        if ((interest & ~ops) != interest) {
+            key.interestOps(interest & ~ops);
+        }
+    }
+
+    private void close() {
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                log.error("couldn't close " + key.attachment(), e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("couldn't close the selector of reactor " + id, e);
+        }
+        if (compressor != null) {
+            compressor.close();
+        }
+    }
+
+    private static class Starving {
+        private final ProxyUnit unit;
+        private final int bufferSize;
+
+        private Starving(ProxyUnit unit, int bufferSize) {
+            this.unit = unit;
+            this.bufferSize = bufferSize;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+/**
+ * Deadlines the reactors put on connections, in milliseconds. A deadline of <code>0</code> is never reached.
+ * <br>
+ *
+ * <code>connect</code> - to establish a connection to an origin server, answered with
+ * <code>504 Gateway Timeout</code>; <br>
+ * <code>head</code> - for a client to send the rest of a request head once it has started, answered with
+ * <code>408 Request Timeout</code>, and for an origin server to answer a request sent to it with a response
+ * head, answered with <code>504 Gateway Timeout</code>; <br>
+ * <code>idle</code> - for a client to start a request on a persistent connection, which is closed silently
+ * otherwise, and for a <code>CONNECT</code> tunnel to relay anything in either direction; <br>
+ * <code>request</code> - from the head of a request to the last byte of its response, answered with
+ * <code>504 Gateway Timeout</code> if no response has been started, otherwise both connections are closed.
+ * <br>
+ *
+ * Idle pooled upstream connections are closed once the idle timeout of the {@link UpstreamPool} passes.
+ */
+final class Timeouts {
+    static final long DEFAULT_CONNECT_MILLIS = 10_000;
+    static final long DEFAULT_HEAD_MILLIS = 30_000;
+    static final long DEFAULT_IDLE_MILLIS = 60_000;
+    static final long DEFAULT_REQUEST_MILLIS = 300_000;
+
+    final long connect;
+    final long head;
+    final long idle;
+    final long request;
+
+    Timeouts(long connect, long head, long idle, long request) {
+        this.connect = connect;
+        this.head = head;
+        this.idle = idle;
+        this.request = request;
+    }
+}
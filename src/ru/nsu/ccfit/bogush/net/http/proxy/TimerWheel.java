@@ -0,0 +1,138 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+/**
+ * Hashed wheel of the deadlines of one {@link Reactor}. <br>
+ *
+ * Time is cut into ticks of {@link #tickMillis}, and a timer due at tick <code>t</code> is linked into the
+ * slot <code>t mod slots</code>. The reactor {@link #expire() expires} the ticks that have passed after every
+ * select, visiting one slot per tick, and waits in select no longer than until the next tick while any timer
+ * is scheduled. Timers are intrusive list nodes owned by what they time, so scheduling, rescheduling and
+ * cancelling one is a constant number of pointer updates and never allocates, and so is expiring it. Timers
+ * more than one turn of the wheel away stay in their slot until their turn comes. <br>
+ *
+ * A deadline is reached up to one tick late, never early. The wheel is only used from its reactor's thread.
+ */
+class TimerWheel {
+    static final long DEFAULT_TICK_MILLIS = 100;
+    static final int DEFAULT_SLOTS = 512;
+
+    private final Timer[] slots;
+    private final Timer expired = new Timer(null);
+    private final int mask;
+    private final long tickMillis;
+    private long tick;
+    private int size = 0;
+
+    /**
+     * @param slots number of slots, rounded up to a power of two
+     */
+    TimerWheel(long tickMillis, int slots) {
+        int n = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.slots = new Timer[n];
+        for (int i = 0; i < n; i++) {
+            this.slots[i] = new Timer(null);
+        }
+        this.mask = n - 1;
+        this.tickMillis = tickMillis;
+        this.tick = now() / tickMillis;
+    }
+
+    /**
+     * Makes <code>timer</code> run its action once <code>delayMillis</code> have passed, replacing its deadline
+     * if it is already scheduled.
+     */
+    void schedule(Timer timer, long delayMillis) {
+        cancel(timer);
+        long due = Math.max(tick, (now() + delayMillis + tickMillis - 1) / tickMillis);
+        timer.due = due;
+        timer.linkBefore(slots[(int) (due & mask)]);
+        size++;
+    }
+
+    void cancel(Timer timer) {
+        if (timer.next == null) return;
+        timer.unlink();
+        size--;
+    }
+
+    /**
+     * @return milliseconds until the next tick, or <code>0</code> if no timer is scheduled, as taken by
+     * {@link java.nio.channels.Selector#select(long)}
+     */
+    long timeoutMillis() {
+        if (size == 0) return 0;
+        return Math.max(1, tick * tickMillis - now());
+    }
+
+    /**
+     * Runs the actions of the timers whose deadline has passed. An action may schedule and cancel timers,
+     * including the ones expiring along with it. If an action throws, the rest of the expired timers run on
+     * the next call.
+     */
+    void expire() {
+        long now = now() / tickMillis;
+        if (now >= tick) {
+            long last = Math.min(now, tick + mask);
+            for (long t = tick; t <= last; t++) {
+                Timer slot = slots[(int) (t & mask)];
+                for (Timer timer = slot.next; timer != slot; ) {
+                    Timer next = timer.next;
+                    if (timer.due <= now) {
+                        timer.unlink();
+                        timer.linkBefore(expired);
+                    }
+                    timer = next;
+                }
+            }
+            tick = now + 1;
+        }
+
+        while (expired.next != expired) {
+            Timer timer = expired.next;
+            timer.unlink();
+            size--;
+            timer.action.run();
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Deadline of something a reactor waits for. A timer is scheduled on one wheel at a time, and it is
+     * reused rather than replaced when the deadline changes.
+     */
+    static final class Timer {
+        private final Runnable action;
+        private Timer prev;
+        private Timer next;
+        private long due;
+
+        /**
+         * @param action run in the reactor thread when the deadline is reached
+         */
+        Timer(Runnable action) {
+            this.action = action;
+            if (action == null) {
+                // the head of a list
+                prev = this;
+                next = this;
+            }
+        }
+
+        private void linkBefore(Timer head) {
+            prev = head.prev;
+            next = head;
+            head.prev.next = this;
+            head.prev = this;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Released {@link ProxyUnit}s of one {@link Reactor}, kept together with their parsers, messages, framers
+ * and encoders to serve the reactor's next connections. <br>
+ *
+ * A unit is released once it is closed and nothing refers to it any more: callbacks which may run after the
+ * unit was closed, such as a host resolution, a cache lookup or a retry of a starving read, hold references
+ * of their own. Released units are only reset by {@link #recycle()}, which the reactor calls once all events
+ * of a select are handled, so a unit is never handed out again while the event that closed it is still
+ * being handled. At most {@link #maxPooled} units of each kind are kept. <br>
+ *
+ * In debug mode released units are never reset nor reused. They stay poisoned with the stack trace of their
+ * release, and any later use of a stale reference to one fails with an {@link IllegalStateException}
+ * instead of silently operating on another connection.
+ */
+class UnitRecycler {
+    static final int DEFAULT_MAX_POOLED = 256;
+
+    private final Reactor reactor;
+    private final ArrayDeque<ProxyUnit> clients = new ArrayDeque<>();
+    private final ArrayDeque<ProxyUnit> upstreams = new ArrayDeque<>();
+    private final List<ProxyUnit> released = new ArrayList<>();
+    private final int maxPooled;
+    private final boolean debug;
+
+    /**
+     * @param maxPooled maximum number of units of each kind kept for reuse
+     * @param debug     whether released units are poisoned instead of reused
+     */
+    UnitRecycler(Reactor reactor, int maxPooled, boolean debug) {
+        this.reactor = reactor;
+        this.maxPooled = maxPooled;
+        this.debug = debug;
+    }
+
+    /**
+     * @param socket   socket of the unit or <code>null</code> for a unit replying on behalf of the proxy
+     * @param upstream whether the unit reads responses rather than requests
+     * @return a unit holding one reference, which is dropped when it is closed
+     */
+    ProxyUnit acquire(SocketChannel socket, boolean upstream) {
+        ProxyUnit unit = (upstream ? upstreams : clients).pollLast();
+        if (unit == null) {
+            unit = new ProxyUnit(reactor, upstream);
+        }
+        unit.open(socket);
+        return unit;
+    }
+
+    /**
+     * Called when the last reference to <code>unit</code> is dropped.
+     */
+    void release(ProxyUnit unit) {
+        if (debug) {
+            unit.poison(new Throwable("released here"));
+        }
+        released.add(unit);
+    }
+
+    /**
+     * Resets the units released since the previous call and makes them available to {@link #acquire}.
+     */
+    void recycle() {
+        for (int i = 0; i < released.size(); i++) {
+            ProxyUnit unit = released.get(i);
+            if (debug) continue;
+            unit.unlink();
+            unit.reset();
+            ArrayDeque<ProxyUnit> units = unit.isUpstream() ? upstreams : clients;
+            if (units.size() < maxPooled) {
+                units.addLast(unit);
+            }
+        }
+        released.clear();
+    }
+}
@@ -0,0 +1,139 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Idle keep-alive connections to origin servers of one {@link Reactor}, keyed by <code>host:port</code>. <br>
+ *
+ * At most {@link #maxIdlePerHost} connections are kept per key in each reactor and at most <code>maxIdle</code>
+ * in all reactors together; the latter counter is shared. A released connection schedules its own timer
+ * of {@link #idleTimeoutMillis} on the reactor's {@link TimerWheel} and {@link #remove removes} itself when
+ * it expires, and every connection is checked to be still open and silent before it is handed out again.
+ */
+class UpstreamPool {
+    static final int DEFAULT_MAX_IDLE_PER_HOST = 8;
+    static final int DEFAULT_MAX_IDLE = 1024;
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30_000;
+
+    private final Map<String, ArrayDeque<ProxyUnit>> idle = new HashMap<>();
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+    private final AtomicInteger idleCount;
+    private final int maxIdlePerHost;
+    private final int maxIdle;
+    private final long idleTimeoutMillis;
+    private final Log log;
+    private int size = 0;
+
+    /**
+     * @param idleCount number of idle connections in all reactors
+     */
+    UpstreamPool(AtomicInteger idleCount, int maxIdlePerHost, int maxIdle, long idleTimeoutMillis, Log log) {
+        this.idleCount = idleCount;
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.maxIdle = maxIdle;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.log = log;
+    }
+
+    /**
+     * @return the most recently used healthy connection to <code>key</code> or <code>null</code> if there is none
+     */
+    ProxyUnit checkout(String key) {
+        ArrayDeque<ProxyUnit> units = idle.get(key);
+        if (units == null) return null;
+
+        ProxyUnit unit;
+        while ((unit = units.pollLast()) != null) {
+            removed();
+            if (healthy(unit)) {
+                break;
+            }
+            close(unit);
+        }
+        // an empty queue is kept for the connection to come back, see forget
+        return unit;
+    }
+
+    /**
+     * @return <code>false</code> if the pool is full; the caller should close <code>unit</code> then
+     */
+    boolean release(String key, ProxyUnit unit) {
+        ArrayDeque<ProxyUnit> units = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+        if (units.size() >= maxIdlePerHost) {
+            return false;
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return false;
+        }
+        size++;
+        units.addLast(unit);
+        return true;
+    }
+
+    /**
+     * Forgets an idle connection that was closed by the origin or has been idle for too long.
+     */
+    void remove(String key, ProxyUnit unit) {
+        ArrayDeque<ProxyUnit> units = idle.get(key);
+        if (units != null && units.remove(unit)) {
+            removed();
+            if (units.isEmpty()) {
+                idle.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Called when a connection to <code>key</code> is closed instead of coming back, so that the queue it was
+     * checked out of does not outlive the connections to its origin.
+     */
+    void forget(String key) {
+        ArrayDeque<ProxyUnit> units = idle.get(key);
+        if (units != null && units.isEmpty()) {
+            idle.remove(key);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    long idleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    private void removed() {
+        size--;
+        idleCount.decrementAndGet();
+    }
+
+    /**
+     * An idle connection must have nothing to read: data means the origin broke the protocol and end of
+     * stream means it has closed the connection.
+     */
+    private boolean healthy(ProxyUnit unit) {
+        if (!unit.isOpen()) return false;
+        try {
+            probe.clear();
+            return unit.socket.read(probe) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void close(ProxyUnit unit) {
+        try {
+            unit.close();
+        } catch (IOException e) {
+            log.error("couldn't close " + unit, e);
+        }
+    }
+}
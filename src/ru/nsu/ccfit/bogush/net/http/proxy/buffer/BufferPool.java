@@ -0,0 +1,227 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers split into size classes. <br>
+ *
+ * The total amount of memory allocated by the pool never exceeds its capacity: when a buffer can be neither
+ * reused nor allocated, {@link #acquire(int)} returns <code>null</code> and the caller is expected to stop
+ * reading until some buffer is released. The pool is shared by all reactors and is thread-safe.
+ */
+public class BufferPool {
+    public static final int[] DEFAULT_SIZE_CLASSES = {4 << 10, 16 << 10, 64 << 10};
+    public static final long DEFAULT_CAPACITY = 256L << 20;
+
+    private final SizeClass[] classes;
+    private final long capacity;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong inUseBytes = new AtomicLong();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public BufferPool() {
+        this(DEFAULT_SIZE_CLASSES, DEFAULT_CAPACITY);
+    }
+
+    public BufferPool(int[] sizeClasses, long capacity) {
+        if (sizeClasses.length == 0) {
+            throw new IllegalArgumentException("no size classes");
+        }
+        int[] sizes = sizeClasses.clone();
+        Arrays.sort(sizes);
+        if (sizes[0] <= 0) {
+            throw new IllegalArgumentException("size class must be positive: " + sizes[0]);
+        }
+        if (capacity < sizes[sizes.length - 1]) {
+            throw new IllegalArgumentException("capacity " + capacity + " is less than the largest size class");
+        }
+        this.classes = new SizeClass[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            classes[i] = new SizeClass(sizes[i]);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return a cleared buffer of the smallest size class that fits <code>minSize</code> bytes (the largest
+     * class if none does) or <code>null</code> if the pool is at its capacity
+     */
+    public ByteBuffer acquire(int minSize) {
+        SizeClass sizeClass = sizeClassFor(minSize);
+        ByteBuffer buffer = sizeClass.poll();
+        if (buffer != null) {
+            pooledBytes.addAndGet(-sizeClass.size);
+        } else {
+            if (!reserve(sizeClass.size)) {
+                failures.incrementAndGet();
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(sizeClass.size);
+            sizeClass.allocated.incrementAndGet();
+        }
+        sizeClass.inUse.incrementAndGet();
+        inUseBytes.addAndGet(sizeClass.size);
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        SizeClass sizeClass = exactSizeClass(buffer.capacity());
+        sizeClass.inUse.decrementAndGet();
+        inUseBytes.addAndGet(-sizeClass.size);
+        buffer.clear();
+        pooledBytes.addAndGet(sizeClass.size);
+        sizeClass.offer(buffer);
+    }
+
+    /**
+     * @return <code>true</code> if a buffer for <code>minSize</code> bytes can be acquired right now
+     */
+    public boolean available(int minSize) {
+        SizeClass sizeClass = sizeClassFor(minSize);
+        return sizeClass.pooled.get() > 0 || allocatedBytes.get() + sizeClass.size <= capacity || pooledBytes.get() > 0;
+    }
+
+    public int minBufferSize() {
+        return classes[0].size;
+    }
+
+    public int maxBufferSize() {
+        return classes[classes.length - 1].size;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public long getInUseBytes() {
+        return inUseBytes.get();
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return the number of times {@link #acquire(int)} returned <code>null</code>
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public int getInUseCount(int sizeClass) {
+        return exactSizeClass(sizeClass).inUse.get();
+    }
+
+    public int getPooledCount(int sizeClass) {
+        return exactSizeClass(sizeClass).pooled.get();
+    }
+
+    public int[] getSizeClasses() {
+        int[] sizes = new int[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            sizes[i] = classes[i].size;
+        }
+        return sizes;
+    }
+
+    private boolean reserve(int size) {
+        while (true) {
+            long allocated = allocatedBytes.get();
+            if (allocated + size <= capacity) {
+                if (allocatedBytes.compareAndSet(allocated, allocated + size)) {
+                    return true;
+                }
+            } else if (!evictFree()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Drops one pooled buffer of any size class, so that its memory can be spent on another class.
+     */
+    private boolean evictFree() {
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.poll() != null) {
+                pooledBytes.addAndGet(-sizeClass.size);
+                sizeClass.allocated.decrementAndGet();
+                allocatedBytes.addAndGet(-sizeClass.size);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SizeClass sizeClassFor(int size) {
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.size >= size) {
+                return sizeClass;
+            }
+        }
+        return classes[classes.length - 1];
+    }
+
+    private SizeClass exactSizeClass(int size) {
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.size == size) {
+                return sizeClass;
+            }
+        }
+        throw new IllegalArgumentException("not a size class of this pool: " + size);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("BufferPool[");
+        sb.append("capacity=").append(capacity)
+                .append(" allocated=").append(allocatedBytes.get())
+                .append(" inUse=").append(inUseBytes.get())
+                .append(" failures=").append(failures.get());
+        for (SizeClass sizeClass : classes) {
+            sb.append(' ').append(sizeClass);
+        }
+        return sb.append(']').toString();
+    }
+
+    private static class SizeClass {
+        private final int size;
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger allocated = new AtomicInteger();
+        private final AtomicInteger inUse = new AtomicInteger();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        private SizeClass(int size) {
+            this.size = size;
+        }
+
+        private ByteBuffer poll() {
+            ByteBuffer buffer = free.poll();
+            if (buffer != null) {
+                pooled.decrementAndGet();
+            }
+            return buffer;
+        }
+
+        private void offer(ByteBuffer buffer) {
+            pooled.incrementAndGet();
+            free.add(buffer);
+        }
+
+        @Override
+        public String toString() {
+            return size + ":" + inUse.get() + "/" + allocated.get();
+        }
+    }
+}
@@ -0,0 +1,647 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.cache;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+import ru.nsu.ccfit.bogush.net.http.build.HTTPHeadEncoder;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPParseException;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPResponseHeadParser;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.UTF_8;
+
+/**
+ * Second cache tier keeping entries in append-only segment files mapped into memory. <br>
+ *
+ * Every stored entry is appended to the active segment as one record: <br>
+ * <code>
+ * MAGIC LENGTH STORED-AT INITIAL-AGE LIFETIME KEY HEAD VARY-COUNT (NAME VALUE)* BODY-LENGTH BODY CRC32 <br>
+ * </code>
+ * where strings are prefixed with their length (<code>-1</code> for <code>null</code>) and the checksum
+ * covers everything before it. A full segment is never written again. <br>
+ *
+ * The {@link Index} maps 64-bit key hashes to record locations in an open-addressing table kept off the
+ * heap. Stale entries stay indexed as long as they can be revalidated. On startup the index is rebuilt by
+ * scanning the segments in order; a scan stops at the first record with a bad magic number or checksum,
+ * which is what a crash in the middle of an append leaves, and the rest of that segment is cleared. <br>
+ *
+ * A background thread appends the entries {@link #put put} into the cache, forces the active segment to disk,
+ * rewrites segments whose live records take less than half of them into the active one and deletes the oldest
+ * segments while the cache is larger than its capacity. It is the only thread writing segments, so records
+ * are copied, checksummed and forced and new segments are created without holding the lock that lookups
+ * take; the lock only guards the index and the set of segments. Bodies of entries found here are slices of the mapped segments, so they are written to sockets
+ * without being copied to the heap; a deleted segment stays mapped until no entry refers to it.
+ */
+public class DiskCache implements Closeable {
+    public static final long DEFAULT_CAPACITY = 1L << 30;
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final long MAINTENANCE_PERIOD_MILLIS = 5000;
+    private static final int MAGIC = 0x48504331;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final Path directory;
+    private final long capacity;
+    private final int segmentSize;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Index index = new Index(1024);
+    private final HTTPHeadEncoder encoder = new HTTPHeadEncoder();
+    private final CRC32 crc = new CRC32();
+    private final ScheduledExecutorService maintenance;
+    private final AtomicLong pending = new AtomicLong();
+    private volatile Log log = new Log();
+    private Segment active;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public DiskCache(Path directory)
+            throws IOException {
+        this(directory, DEFAULT_CAPACITY, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the cache in <code>directory</code>, recovering the entries stored there before.
+     *
+     * @param segmentSize size of a segment file, which limits the size of a record
+     */
+    public DiskCache(Path directory, long capacity, int segmentSize)
+            throws IOException {
+        if (capacity < 2L * segmentSize) {
+            throw new IllegalArgumentException("capacity " + capacity + " is less than two segments");
+        }
+        this.directory = directory;
+        this.capacity = capacity;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        recover();
+        if (active == null) {
+            active = open(1);
+            segments.put(active.id, active);
+        }
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "disk-cache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain,
+                MAINTENANCE_PERIOD_MILLIS, MAINTENANCE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the entry stored for <code>key</code> that matches <code>request</code> if it is fresh or can be
+     * revalidated, otherwise <code>null</code>
+     */
+    public synchronized ResponseCache.Entry get(String key, HTTPRequest request, long now) {
+        long location = index.get(hash(key));
+        ResponseCache.Entry entry = location == -1 ? null : read(location, key);
+        if (entry == null || !entry.isFresh(now) && !entry.isRevalidatable() || !entry.matches(request)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Queues <code>entry</code> to be appended by the background thread, replacing the one stored for its key
+     * before. The entry is dropped if the entries waiting to be written take a segment already or the cache is
+     * closed.
+     */
+    public void put(ResponseCache.Entry entry) {
+        long size = entry.size;
+        if (pending.addAndGet(size) > segmentSize) {
+            pending.addAndGet(-size);
+            return;
+        }
+        try {
+            maintenance.execute(() -> {
+                pending.addAndGet(-size);
+                try {
+                    write(entry);
+                } catch (RuntimeException e) {
+                    log.error("couldn't write " + entry.key + " to the disk cache", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.addAndGet(-size);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getStores() {
+        return stores.get();
+    }
+
+    /**
+     * @return the number of segments rewritten to drop dead records
+     */
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    /**
+     * @return the number of segments deleted to stay within the capacity
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return index.size;
+    }
+
+    public synchronized long getSize() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the log that gets the errors of the background thread.
+     */
+    public DiskCache setLog(Log log) {
+        this.log = log;
+        return this;
+    }
+
+    /**
+     * Writes the entries queued so far and closes the segments.
+     */
+    @Override
+    public void close()
+            throws IOException {
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        active.map.force();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    private void recover()
+            throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id;
+                try {
+                    id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                segments.put(id, open(id, file));
+            }
+        }
+        for (Segment segment : segments.values()) {
+            int offset = 0;
+            int length;
+            while ((length = validRecord(segment, offset)) > 0) {
+                // stale records are kept as they may be revalidated; compaction drops those which cannot
+                forget(index.put(hash(readKey(segment.map, offset)), location(segment.id, offset)));
+                segment.live += length;
+                offset += length;
+            }
+            segment.used = offset;
+            if (offset + 4 <= segmentSize && segment.map.getInt(offset) != 0) {
+                // a torn append: clear it so it is never mistaken for a record
+                ByteBuffer map = segment.map.duplicate();
+                map.position(offset);
+                while (map.hasRemaining()) {
+                    map.put((byte) 0);
+                }
+            }
+            active = segment;
+        }
+    }
+
+    private Segment open(int id)
+            throws IOException {
+        return open(id, directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+    }
+
+    private Segment open(int id, Path file)
+            throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        return new Segment(id, file, channel, map);
+    }
+
+    /**
+     * Appends <code>entry</code> to the active segment, replacing the one stored for its key before. Called
+     * by the background thread only, which is the only one to change the active segment, so the record is
+     * written before the lock is taken to index it.
+     *
+     * @return <code>false</code> if the entry does not fit into a segment or could not be written
+     */
+    private boolean write(ResponseCache.Entry entry) {
+        byte[] key = entry.key.getBytes(UTF_8);
+        byte[] head = head(entry.response);
+        byte[][] vary = new byte[entry.varyNames.length * 2][];
+        int length = 4 + 4 + 8 + 8 + 8 + 4 + key.length + 4 + head.length + 4 + 4 + entry.body.remaining() + 4;
+        for (int i = 0; i < entry.varyNames.length; i++) {
+            vary[2 * i] = entry.varyNames[i].getBytes(UTF_8);
+            vary[2 * i + 1] = entry.varyValues[i] == null ? null : entry.varyValues[i].getBytes(UTF_8);
+            length += 4 + vary[2 * i].length + 4 + (vary[2 * i + 1] == null ? 0 : vary[2 * i + 1].length);
+        }
+        if (length > segmentSize) return false;
+
+        if (active.used + length > segmentSize) {
+            try {
+                roll();
+            } catch (IOException e) {
+                log.error("couldn't start a new disk cache segment", e);
+                return false;
+            }
+        }
+
+        Segment segment = active;
+        ByteBuffer map = segment.map.duplicate();
+        int offset = segment.used;
+        map.position(offset);
+        map.putInt(MAGIC).putInt(length).putLong(entry.storedAt).putLong(entry.initialAge).putLong(entry.lifetime);
+        putBytes(map, key);
+        putBytes(map, head);
+        map.putInt(entry.varyNames.length);
+        for (byte[] bytes : vary) {
+            putBytes(map, bytes);
+        }
+        putBytes(map, entry.body.duplicate());
+        map.putInt(checksum(segment.map, offset, map.position()));
+
+        synchronized (this) {
+            segment.used += length;
+            forget(index.put(hash(entry.key), location(segment.id, offset)));
+            segment.live += length;
+        }
+        stores.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Starts a new active segment and forces the previous one to disk.
+     */
+    private void roll()
+            throws IOException {
+        Segment previous = active;
+        int id;
+        synchronized (this) {
+            id = segments.lastKey() + 1;
+        }
+        Segment next = open(id);
+        synchronized (this) {
+            segments.put(id, next);
+            active = next;
+        }
+        previous.map.force();
+    }
+
+    /**
+     * @return the length of the valid record at <code>offset</code> or <code>0</code> if there is none
+     */
+    private int validRecord(Segment segment, int offset) {
+        ByteBuffer map = segment.map;
+        if (offset + 8 > segmentSize || map.getInt(offset) != MAGIC) return 0;
+        int length = map.getInt(offset + 4);
+        if (length < 8 || length > segmentSize - offset) return 0;
+        int end = offset + length - 4;
+        return checksum(map, offset, end) == map.getInt(end) ? length : 0;
+    }
+
+    private int checksum(ByteBuffer map, int from, int to) {
+        ByteBuffer range = map.duplicate();
+        range.limit(to).position(from);
+        crc.reset();
+        crc.update(range);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the entry of the record at <code>location</code> if it is stored for <code>key</code>
+     */
+    private ResponseCache.Entry read(long location, String key) {
+        Segment segment = segments.get(segment(location));
+        if (segment == null) return null;
+        ByteBuffer map = segment.map.duplicate();
+        map.position(offset(location) + 8);
+        long storedAt = map.getLong();
+        long initialAge = map.getLong();
+        long lifetime = map.getLong();
+        if (!key.equals(getString(map))) return null;
+        byte[] head = getBytes(map);
+        int varyCount = map.getInt();
+        String[] varyNames = new String[varyCount];
+        String[] varyValues = new String[varyCount];
+        for (int i = 0; i < varyCount; i++) {
+            varyNames[i] = getString(map);
+            varyValues[i] = getString(map);
+        }
+        int bodyLength = map.getInt();
+        ByteBuffer body = map.slice();
+        body.limit(bodyLength);
+
+        HTTPResponse response;
+        try {
+            response = new HTTPResponseHeadParser(head).parse();
+            response.getFields().detach();
+        } catch (HTTPParseException e) {
+            return null;
+        }
+        return new ResponseCache.Entry(key, response, body.asReadOnlyBuffer(), storedAt, initialAge, lifetime,
+                varyNames, varyValues, bodyLength + head.length);
+    }
+
+    private static String readKey(ByteBuffer map, int offset) {
+        ByteBuffer record = map.duplicate();
+        record.position(offset + 32);
+        return getString(record);
+    }
+
+    private byte[] head(HTTPResponse response) {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        encoder.reset(response);
+        while (!encoder.encode(buffer)) {
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            buffer = larger.put(buffer);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Accounts for the record at <code>location</code> which is no longer indexed.
+     */
+    private void forget(long location) {
+        if (location == -1) return;
+        Segment segment = segments.get(segment(location));
+        if (segment != null) {
+            segment.live -= segment.map.getInt(offset(location) + 4);
+        }
+    }
+
+    private void maintain() {
+        try {
+            // only this thread changes the active segment and writes to it
+            active.map.force();
+            while (true) {
+                Segment victim;
+                boolean drop;
+                synchronized (this) {
+                    victim = null;
+                    drop = (long) segments.size() * segmentSize > capacity;
+                    if (drop) {
+                        victim = segments.firstEntry().getValue();
+                        evictions.incrementAndGet();
+                    } else {
+                        for (Segment segment : segments.values()) {
+                            if (segment != active && segment.live < segment.used / 2) {
+                                victim = segment;
+                                compactions.incrementAndGet();
+                                break;
+                            }
+                        }
+                    }
+                    if (victim == null || victim == active) return;
+                }
+                compact(victim, drop);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("disk cache maintenance failed", e);
+        }
+    }
+
+    /**
+     * Moves the live records of <code>segment</code> to the active segment, unless they are to be dropped, and
+     * deletes it.
+     */
+    private void compact(Segment segment, boolean drop)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        int offset = 0;
+        while (true) {
+            int length;
+            long hash;
+            ResponseCache.Entry entry = null;
+            synchronized (this) {
+                length = offset < segment.used ? validRecord(segment, offset) : 0;
+                if (length == 0) break;
+                String key = readKey(segment.map, offset);
+                hash = hash(key);
+                if (index.get(hash) == location(segment.id, offset)) {
+                    entry = drop ? null : read(location(segment.id, offset), key);
+                    if (entry != null && !entry.isFresh(now) && !entry.isRevalidatable()) {
+                        entry = null;
+                    }
+                    if (entry == null) {
+                        forget(index.remove(hash));
+                    }
+                }
+            }
+            // no other thread writes, so the record is still indexed
+            if (entry != null && !write(entry)) {
+                synchronized (this) {
+                    forget(index.remove(hash));
+                }
+            }
+            offset += length;
+        }
+        synchronized (this) {
+            segments.remove(segment.id);
+            segment.channel.close();
+            Files.deleteIfExists(segment.file);
+        }
+    }
+
+    private static void putBytes(ByteBuffer map, byte[] bytes) {
+        if (bytes == null) {
+            map.putInt(-1);
+        } else {
+            map.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static void putBytes(ByteBuffer map, ByteBuffer bytes) {
+        map.putInt(bytes.remaining()).put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer map) {
+        int length = map.getInt();
+        if (length == -1) return null;
+        byte[] bytes = new byte[length];
+        map.get(bytes);
+        return bytes;
+    }
+
+    private static String getString(ByteBuffer map) {
+        byte[] bytes = getBytes(map);
+        return bytes == null ? null : new String(bytes, UTF_8);
+    }
+
+    private static long location(int segment, int offset) {
+        return (long) segment << 32 | offset;
+    }
+
+    private static int segment(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    /**
+     * 64-bit FNV-1a of the key, never <code>0</code>, which marks free slots of the {@link Index}
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static class Segment {
+        private final int id;
+        private final Path file;
+        private final FileChannel channel;
+        private final MappedByteBuffer map;
+        private int used = 0;
+        private long live = 0;
+
+        private Segment(int id, Path file, FileChannel channel, MappedByteBuffer map) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.map = map;
+        }
+    }
+
+    /**
+     * Open-addressing hash table from key hashes to record locations with linear probing, stored in a direct
+     * buffer as pairs of longs. A slot with hash <code>0</code> is free; a removed entry leaves a tombstone
+     * with location <code>-1</code> which probing steps over.
+     */
+    private static class Index {
+        private static final int SLOT = 16;
+        private static final long TOMBSTONE = -1;
+
+        private ByteBuffer table;
+        private int slots;
+        private int size = 0;
+        private int used = 0;
+
+        private Index(int slots) {
+            this.slots = slots;
+            this.table = ByteBuffer.allocateDirect(slots * SLOT);
+        }
+
+        /**
+         * @return the location of <code>hash</code> or <code>-1</code>
+         */
+        private long get(long hash) {
+            int slot = find(hash);
+            return slot == -1 ? -1 : table.getLong(slot * SLOT + 8);
+        }
+
+        /**
+         * @return the location previously stored for <code>hash</code> or <code>-1</code>
+         */
+        private long put(long hash, long location) {
+            int slot = find(hash);
+            if (slot != -1) {
+                long old = table.getLong(slot * SLOT + 8);
+                table.putLong(slot * SLOT + 8, location);
+                return old;
+            }
+            if ((used + 1) * 4L > slots * 3L) {
+                resize(size * 2 >= slots / 2 ? slots * 2 : slots);
+            }
+            int i = (int) (mix(hash) & (slots - 1));
+            while (table.getLong(i * SLOT) != 0 && table.getLong(i * SLOT + 8) != TOMBSTONE) {
+                i = (i + 1) & (slots - 1);
+            }
+            if (table.getLong(i * SLOT) == 0) {
+                used++;
+            }
+            table.putLong(i * SLOT, hash).putLong(i * SLOT + 8, location);
+            size++;
+            return -1;
+        }
+
+        /**
+         * @return the location removed or <code>-1</code>
+         */
+        private long remove(long hash) {
+            int slot = find(hash);
+            if (slot == -1) return -1;
+            long old = table.getLong(slot * SLOT + 8);
+            table.putLong(slot * SLOT + 8, TOMBSTONE);
+            size--;
+            return old;
+        }
+
+        private int find(long hash) {
+            int i = (int) (mix(hash) & (slots - 1));
+            long h;
+            while ((h = table.getLong(i * SLOT)) != 0) {
+                if (h == hash && table.getLong(i * SLOT + 8) != TOMBSTONE) {
+                    return i;
+                }
+                i = (i + 1) & (slots - 1);
+            }
+            return -1;
+        }
+
+        private void resize(int newSlots) {
+            ByteBuffer old = this.table;
+            int oldSlots = this.slots;
+            this.table = ByteBuffer.allocateDirect(newSlots * SLOT);
+            this.slots = newSlots;
+            this.size = 0;
+            this.used = 0;
+            for (int i = 0; i < oldSlots; i++) {
+                long hash = old.getLong(i * SLOT);
+                long location = old.getLong(i * SLOT + 8);
+                if (hash != 0 && location != TOMBSTONE) {
+                    put(hash, location);
+                }
+            }
+        }
+
+        private static long mix(long hash) {
+            return hash ^ (hash >>> 29) ^ (hash >>> 47);
+        }
+    }
+}
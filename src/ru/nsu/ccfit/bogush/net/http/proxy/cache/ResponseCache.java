@@ -0,0 +1,756 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.cache;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPFields;
+import ru.nsu.ccfit.bogush.net.http.HTTPMessage;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared in-memory cache of responses to <code>GET</code> requests, keyed by method, host, path and query. <br>
+ *
+ * Only responses with a body framed by <code>Content-Length</code> and either an explicit freshness lifetime
+ * (<code>s-maxage</code>, <code>max-age</code> or <code>Expires</code>) or a validator (<code>ETag</code> or
+ * <code>Last-Modified</code>) are stored, as described for shared caches in RFC 7234. Responses varying on request fields remember the values of these fields and are only
+ * served to requests with the same ones; <code>Vary: *</code> is never stored. Bodies are kept in direct
+ * buffers so a hit is written to the client socket as it is. <br>
+ *
+ * The total size of stored heads and bodies, together with the bodies being filled, never exceeds the
+ * capacity: least recently used entries are evicted first, and a response whose body does not fit next to
+ * the bodies being filled already is not stored. Concurrent misses for the same key wait for the first one to {@link Fill fill} the entry
+ * instead of fetching it again. The cache is shared by all reactors and is thread-safe. <br>
+ *
+ * Stale entries are kept until they are evicted. If a stale entry has a validator, the request is sent with
+ * <code>If-None-Match</code> and <code>If-Modified-Since</code> taken from it, see {@link Fill#condition}, and
+ * a <code>304 Not Modified</code> answer refreshes the entry, which is then served with the stored body. <br>
+ *
+ * If there is a {@link DiskCache}, every stored entry is {@link DiskCache#put queued} to be written to it and
+ * memory misses are looked up there, without holding the lock of this cache, before the response is fetched. <br>
+ *
+ * An entry may have a {@link #storeVariant variant} with a content coding applied by the proxy, such as a
+ * gzip-compressed body, which is kept in memory alongside the entry and evicted with it.
+ */
+public class ResponseCache implements Closeable {
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+    public static final long DEFAULT_MAX_ENTRY_SIZE = 8L << 20;
+
+    private static final Set<String> HOP_BY_HOP_FIELDS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "proxy-authenticate", "proxy-authorization",
+            "te", "trailer", "transfer-encoding", "upgrade", "age"));
+    private static final String[] CONDITIONAL_FIELDS = {
+            "If-None-Match", "If-Modified-Since", "If-Match", "If-Unmodified-Since", "If-Range"};
+    private static final Set<String> CACHEABLE_STATUS_CODES = new HashSet<>(Arrays.asList(
+            "200", "203", "204", "300", "301", "404", "405", "410", "414", "501"));
+
+    public interface Callback {
+        /**
+         * @param entry fresh entry to serve or <code>null</code> if the response has to be fetched
+         * @param fill  if not <code>null</code>, the fetched response is expected to fill or revalidate the entry
+         *              through it
+         */
+        void found(Entry entry, Fill fill);
+    }
+
+    private final long capacity;
+    private final long maxEntrySize;
+    private final DiskCache disk;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Fill> fills = new HashMap<>();
+    private long size = 0;
+    private long filling = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ResponseCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_ENTRY_SIZE);
+    }
+
+    public ResponseCache(long capacity, long maxEntrySize) {
+        this(capacity, maxEntrySize, null);
+    }
+
+    /**
+     * @param disk second tier or <code>null</code>
+     */
+    public ResponseCache(long capacity, long maxEntrySize, DiskCache disk) {
+        if (maxEntrySize > capacity) {
+            throw new IllegalArgumentException("maxEntrySize " + maxEntrySize + " is larger than capacity " + capacity);
+        }
+        this.capacity = capacity;
+        this.maxEntrySize = maxEntrySize;
+        this.disk = disk;
+    }
+
+    /**
+     * Looks up the response to <code>request</code>. A fresh entry or the verdict to fetch the response is
+     * passed to <code>callback</code> immediately in the calling thread. If the response is being fetched for
+     * another request already, the callback is submitted to <code>completion</code> when that fetch finishes.
+     *
+     * @param request normalized request, with the <code>Host</code> field set
+     */
+    public void lookup(HTTPRequest request, Executor completion, Callback callback) {
+        String key = key(request);
+        if (key == null) {
+            bypassed.incrementAndGet();
+            callback.found(null, null);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry = memory(key, request);
+        if ((entry == null || !entry.isFresh(now)) && disk != null) {
+            // the disk cache has a lock of its own, which is not taken while holding this one
+            Entry stored = disk.get(key, request, now);
+            if (stored != null) {
+                entry = stored;
+            }
+        }
+        Fill fill = null;
+        synchronized (this) {
+            if (entry == null || !entry.isFresh(now)) {
+                // another lookup may have filled the entry in the meantime
+                Entry filled = entries.get(key);
+                if (filled != null && filled.isFresh(now) && filled.matches(request)) {
+                    entry = filled;
+                }
+            }
+            Entry stale = null;
+            if (entry != null && !entry.isFresh(now)) {
+                stale = entry.isRevalidatable() && !conditional(request) ? entry : null;
+                entry = null;
+            }
+            if (entry == null) {
+                Fill inFlight = fills.get(key);
+                if (inFlight != null) {
+                    inFlight.waiters.add(new Waiter(request, completion, callback));
+                    coalesced.incrementAndGet();
+                    return;
+                }
+                fill = new Fill(key, request, stale);
+                fills.put(key, fill);
+            }
+        }
+
+        if (entry != null) {
+            hits.incrementAndGet();
+            callback.found(entry, null);
+        } else {
+            misses.incrementAndGet();
+            callback.found(null, fill);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of lookups that waited for the response fetched for another one
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of requests that could not be served from the cache at all
+     */
+    public long getBypassed() {
+        return bypassed.get();
+    }
+
+    public long getStores() {
+        return stores.get();
+    }
+
+    /**
+     * @return the number of stale entries refreshed by a <code>304 Not Modified</code> answer
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public DiskCache getDiskCache() {
+        return disk;
+    }
+
+    @Override
+    public void close()
+            throws IOException {
+        if (disk != null) {
+            disk.close();
+        }
+    }
+
+    /**
+     * Stores the variant of <code>entry</code> with <code>coding</code> applied to its body, or remembers that
+     * the coding is not worth it for the entry if <code>body</code> is <code>null</code>. The variant is
+     * dropped along with the entry.
+     *
+     * @param body the encoded body or <code>null</code>
+     * @return the variant, or <code>entry</code> itself if <code>body</code> is <code>null</code>
+     */
+    public Entry storeVariant(Entry entry, String coding, ByteBuffer body) {
+        Entry variant = entry;
+        if (body != null) {
+            HTTPResponse response = new HTTPResponse()
+                    .setStatusCode(entry.response.getStatusCode())
+                    .setReasonPhrase(entry.response.getReasonPhrase());
+            response.setVersion(entry.response.getVersion());
+            response.getFields().addAll(entry.response.getFields());
+            response.setField("Content-Encoding", coding);
+            response.setField("Content-Length", String.valueOf(body.remaining()));
+            String etag = entry.etag;
+            if (etag != null && !etag.startsWith("W/")) {
+                response.setField("ETag", "W/" + etag);
+            }
+            variant = new Entry(entry.key, response, body.asReadOnlyBuffer(), entry.storedAt, entry.initialAge,
+                    entry.lifetime, entry.varyNames, entry.varyValues,
+                    body.remaining() + response.toString().length());
+        }
+        synchronized (this) {
+            if (entry.variant == null) {
+                // published by the volatile write of the variant
+                entry.variantCoding = coding;
+                entry.variant = variant;
+                if (entries.get(entry.key) == entry && variant != entry) {
+                    size += variant.size;
+                    evict();
+                }
+            }
+        }
+        return variant;
+    }
+
+    /**
+     * @return the entry in memory that matches <code>request</code> or <code>null</code>
+     */
+    private synchronized Entry memory(String key, HTTPRequest request) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.matches(request) ? entry : null;
+    }
+
+    private synchronized void store(Entry entry) {
+        Entry old = entries.put(entry.key, entry);
+        if (old != null) {
+            size -= old.footprint();
+        }
+        size += entry.size;
+        stores.incrementAndGet();
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size + filling > capacity && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.footprint();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the key of the response to <code>request</code> or <code>null</code> if it must not be served
+     * from the cache
+     */
+    private static String key(HTTPRequest request) {
+        if (!"GET".equals(request.getMethod())) return null;
+        String host = field(request, "Host");
+        if (host == null || field(request, "Authorization") != null) return null;
+        String cacheControl = field(request, "Cache-Control");
+        if (cacheControl != null && (directive(cacheControl, "no-store") != null ||
+                directive(cacheControl, "no-cache") != null)) {
+            return null;
+        }
+        if (cacheControl == null && "no-cache".equalsIgnoreCase(field(request, "Pragma"))) return null;
+        return request.getMethod() + " " + host.toLowerCase() + request.getPath() + request.getQuery();
+    }
+
+    /**
+     * @return whether the client made <code>request</code> conditional itself
+     */
+    private static boolean conditional(HTTPRequest request) {
+        for (String name : CONDITIONAL_FIELDS) {
+            if (field(request, name) != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the value of the first field named <code>name</code> or <code>null</code>
+     */
+    static String field(HTTPMessage message, String name) {
+        return message.getFieldValue(name);
+    }
+
+    /**
+     * @return the value of directive <code>name</code> of a <code>Cache-Control</code> field, an empty
+     * string if it has none or <code>null</code> if the directive is absent
+     */
+    static String directive(String cacheControl, String name) {
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            int eq = directive.indexOf('=');
+            String directiveName = eq == -1 ? directive : directive.substring(0, eq).trim();
+            if (directiveName.equalsIgnoreCase(name)) {
+                if (eq == -1) return "";
+                String value = directive.substring(eq + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the freshness lifetime of <code>response</code> in seconds, <code>0</code> if it has to be
+     * revalidated before every use or <code>-1</code> if it may not be stored by a shared cache
+     */
+    private static long freshnessLifetime(HTTPResponse response, long now) {
+        if (!CACHEABLE_STATUS_CODES.contains(response.getStatusCode())) return -1;
+        String vary = field(response, "Vary");
+        if (vary != null && vary.trim().equals("*")) return -1;
+
+        String cacheControl = field(response, "Cache-Control");
+        if (cacheControl != null) {
+            if (directive(cacheControl, "no-store") != null || directive(cacheControl, "private") != null) {
+                return -1;
+            }
+            if (directive(cacheControl, "no-cache") != null) return 0;
+            long seconds = seconds(directive(cacheControl, "s-maxage"));
+            if (seconds == -1) {
+                seconds = seconds(directive(cacheControl, "max-age"));
+            }
+            if (seconds != -1) return seconds;
+        }
+
+        String expires = field(response, "Expires");
+        if (expires == null) return 0;
+        long expiresAt = date(expires);
+        String date = field(response, "Date");
+        long dateMillis = date == null ? now : date(date);
+        if (expiresAt == -1 || dateMillis == -1) return 0;
+        return Math.max(0, (expiresAt - dateMillis) / 1000);
+    }
+
+    private static boolean hasValidator(HTTPResponse response) {
+        return field(response, "ETag") != null || field(response, "Last-Modified") != null;
+    }
+
+    /**
+     * Copies the end-to-end fields of <code>from</code> to <code>to</code>, replacing fields of the same name.
+     *
+     * @param update whether <code>from</code> is a <code>304</code> answer, whose <code>Content-Length</code>
+     *               does not describe the stored body
+     */
+    private static void copyEndToEndFields(HTTPResponse from, HTTPResponse to, boolean update) {
+        HTTPFields fields = from.getFields();
+        Set<String> connectionOptions = new HashSet<>();
+        String connection = field(from, "Connection");
+        if (connection != null) {
+            for (String option : connection.split(",")) {
+                connectionOptions.add(option.trim().toLowerCase());
+            }
+        }
+        Set<String> replaced = new HashSet<>();
+        for (int i = 0; i < fields.size(); i++) {
+            String name = fields.getName(i).toLowerCase();
+            if (HOP_BY_HOP_FIELDS.contains(name) || connectionOptions.contains(name) ||
+                    update && name.equals("content-length")) {
+                continue;
+            }
+            if (replaced.add(name)) {
+                to.getFields().remove(name);
+            }
+            to.addField(fields.getName(i), fields.getValue(i));
+        }
+    }
+
+    private static long seconds(String value) {
+        if (value == null || value.isEmpty()) return -1;
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return milliseconds since the epoch or <code>-1</code> if <code>value</code> is not an HTTP-date
+     */
+    static long date(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static String[] varyNames(HTTPResponse response) {
+        String vary = field(response, "Vary");
+        if (vary == null || vary.trim().isEmpty()) return new String[0];
+        String[] names = vary.split(",");
+        for (int i = 0; i < names.length; i++) {
+            names[i] = names[i].trim();
+        }
+        return names;
+    }
+
+    /**
+     * A stored response. The head and the body are never modified once the entry is stored.
+     */
+    public static class Entry {
+        final String key;
+        final HTTPResponse response;
+        final ByteBuffer body;
+        final long storedAt;
+        final long initialAge;
+        final long lifetime;
+        final long expiresAt;
+        final String[] varyNames;
+        final String[] varyValues;
+        final long size;
+        private final String etag;
+        private final String lastModified;
+        private volatile Entry variant;
+        private String variantCoding;
+
+        /**
+         * @param body      read-only buffer positioned at the start of the body
+         * @param storedAt  when the response was received, in milliseconds since the epoch
+         * @param initialAge age of the response when it was received, in seconds
+         * @param lifetime  freshness lifetime in seconds
+         */
+        Entry(String key, HTTPResponse response, ByteBuffer body, long storedAt, long initialAge,
+              long lifetime, String[] varyNames, String[] varyValues, long size) {
+            this.key = key;
+            this.response = response;
+            this.body = body;
+            this.storedAt = storedAt;
+            this.initialAge = initialAge;
+            this.lifetime = lifetime;
+            this.expiresAt = storedAt + (lifetime - initialAge) * 1000;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+            this.size = size;
+            this.etag = field(response, "ETag");
+            this.lastModified = field(response, "Last-Modified");
+        }
+
+        /**
+         * @return a copy of the stored head with an <code>Age</code> field, which the caller may modify
+         */
+        public HTTPResponse getResponse() {
+            return getResponse(new HTTPResponse());
+        }
+
+        /**
+         * Copies the stored head into <code>into</code>, which is {@link HTTPResponse#reset() reset} first.
+         *
+         * @return <code>into</code>
+         */
+        public HTTPResponse getResponse(HTTPResponse into) {
+            into.reset();
+            into.setStatusCode(response.getStatusCode())
+                    .setReasonPhrase(response.getReasonPhrase())
+                    .setVersion(response.getVersion());
+            into.getFields().addAll(response.getFields());
+            into.setField("Age", String.valueOf(initialAge + (System.currentTimeMillis() - storedAt) / 1000));
+            return into;
+        }
+
+        public int getBodyLength() {
+            return body.remaining();
+        }
+
+        /**
+         * @return a read-only view of the body positioned at its start
+         */
+        public ByteBuffer getBody() {
+            return body.duplicate();
+        }
+
+        public int getStatusCode() {
+            return Integer.parseInt(response.getStatusCode());
+        }
+
+        /**
+         * @return the stored variant with <code>coding</code> applied, the entry itself if the coding is not
+         * worth it for the entry, or <code>null</code> if no variant was stored yet
+         */
+        public Entry getVariant(String coding) {
+            Entry variant = this.variant;
+            return variant != null && coding.equals(variantCoding) ? variant : null;
+        }
+
+        /**
+         * @return the memory the entry and its variant take in the cache
+         */
+        long footprint() {
+            Entry variant = this.variant;
+            return size + (variant == null || variant == this ? 0 : variant.size);
+        }
+
+        boolean isFresh(long now) {
+            return expiresAt - now > 0;
+        }
+
+        /**
+         * @return whether the entry has a validator to make a conditional request with
+         */
+        boolean isRevalidatable() {
+            return etag != null || lastModified != null;
+        }
+
+        boolean matches(HTTPRequest request) {
+            for (int i = 0; i < varyNames.length; i++) {
+                if (!Objects.equals(varyValues[i], field(request, varyNames[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The right to store the response to a missed request, handed out to one request per key at a time.
+     * Exactly one of {@link #complete()} and {@link #abandon()} must eventually be called, unless
+     * {@link #start(HTTPResponse, long)} or {@link #revalidated(HTTPResponse)} has already given it up.
+     */
+    public class Fill {
+        private final String key;
+        private HTTPRequest request;
+        private final Entry stale;
+        private final List<Waiter> waiters = new ArrayList<>();
+        private HTTPResponse response;
+        private String[] varyNames;
+        private String[] varyValues;
+        private ByteBuffer body;
+        private long storedAt;
+        private long lifetime;
+        private long initialAge;
+        private long reserved = 0;
+        private boolean done = false;
+
+        /**
+         * @param stale entry to revalidate or <code>null</code>
+         */
+        private Fill(String key, HTTPRequest request, Entry stale) {
+            this.key = key;
+            this.request = request;
+            this.stale = stale;
+        }
+
+        /**
+         * Makes <code>request</code> conditional on the stale entry being still valid if this fill revalidates
+         * one.
+         */
+        public void condition(HTTPRequest request) {
+            if (stale == null) return;
+            if (stale.etag != null) {
+                request.setField("If-None-Match", stale.etag);
+            }
+            if (stale.lastModified != null) {
+                request.setField("If-Modified-Since", stale.lastModified);
+            }
+        }
+
+        /**
+         * Refreshes the stale entry if <code>response</code> is the <code>304 Not Modified</code> answer to the
+         * request made {@link #condition conditional}. The fill is finished then.
+         *
+         * @return the refreshed entry to answer the request with or <code>null</code> if <code>response</code>
+         * is to be forwarded as usual
+         */
+        public Entry revalidated(HTTPResponse response) {
+            if (stale == null || !"304".equals(response.getStatusCode())) return null;
+            long now = System.currentTimeMillis();
+            HTTPResponse updated = new HTTPResponse()
+                    .setStatusCode(stale.response.getStatusCode())
+                    .setReasonPhrase(stale.response.getReasonPhrase());
+            updated.setVersion(stale.response.getVersion());
+            copyEndToEndFields(stale.response, updated, false);
+            copyEndToEndFields(response, updated, true);
+            long lifetime = freshnessLifetime(updated, now);
+            Entry entry = new Entry(key, updated, stale.body, now, Math.max(0, seconds(field(response, "Age"))),
+                    Math.max(0, lifetime), stale.varyNames, stale.varyValues,
+                    stale.body.remaining() + updated.toString().length());
+            revalidations.incrementAndGet();
+            if (lifetime < 0) {
+                // the answer forbids storing the response from now on
+                synchronized (ResponseCache.this) {
+                    entries.remove(key, stale);
+                }
+                finish(null);
+            } else {
+                store(entry);
+                if (disk != null) {
+                    disk.put(entry);
+                }
+                finish(entry);
+            }
+            return entry;
+        }
+
+        /**
+         * Decides whether the final response to the request may be stored. The head is copied, so the caller
+         * may modify <code>response</code> afterwards.
+         *
+         * @param length length of the body or <code>-1</code> if it is not framed by <code>Content-Length</code>
+         * @return the buffer to put the body into as it is relayed, or <code>null</code> if the response will not
+         * be stored; the fill is abandoned then
+         */
+        public ByteBuffer start(HTTPResponse response, long length) {
+            long now = System.currentTimeMillis();
+            lifetime = length < 0 || length > maxEntrySize ? -1 : freshnessLifetime(response, now);
+            if (lifetime < 0 || lifetime == 0 && !hasValidator(response)) {
+                abandon();
+                return null;
+            }
+            if (!reserve(length)) {
+                abandon();
+                return null;
+            }
+            initialAge = Math.max(0, seconds(field(response, "Age")));
+
+            this.response = new HTTPResponse()
+                    .setStatusCode(response.getStatusCode())
+                    .setReasonPhrase(response.getReasonPhrase());
+            this.response.setVersion(response.getVersion());
+            copyEndToEndFields(response, this.response, false);
+            varyNames = varyNames(response);
+            varyValues = new String[varyNames.length];
+            for (int i = 0; i < varyNames.length; i++) {
+                varyValues[i] = field(request, varyNames[i]);
+            }
+            // the request belongs to a connection which may be closed and reused before the body is complete
+            request = null;
+            storedAt = now;
+            body = ByteBuffer.allocateDirect((int) length);
+            return body;
+        }
+
+        /**
+         * Stores the response once its whole body was put into the buffer returned by {@link #start}.
+         */
+        public void complete() {
+            if (body == null || body.hasRemaining()) {
+                abandon();
+                return;
+            }
+            body.flip();
+            long size = body.capacity() + response.toString().length();
+            Entry entry = new Entry(key, response, body.asReadOnlyBuffer(), storedAt, initialAge, lifetime,
+                    varyNames, varyValues, size);
+            release();
+            store(entry);
+            if (disk != null) {
+                disk.put(entry);
+            }
+            finish(entry);
+        }
+
+        /**
+         * Gives up storing the response. Requests waiting for it fetch it themselves.
+         */
+        public void abandon() {
+            finish(null);
+        }
+
+        private void finish(Entry entry) {
+            List<Waiter> waiters;
+            synchronized (ResponseCache.this) {
+                if (done) return;
+                done = true;
+                release();
+                fills.remove(key, this);
+                waiters = new ArrayList<>(this.waiters);
+                this.waiters.clear();
+            }
+            for (Waiter waiter : waiters) {
+                // the request belongs to the waiter's reactor, so it is only read there
+                waiter.completion.execute(() -> {
+                    Entry e = entry != null && entry.matches(waiter.request) ? entry : null;
+                    if (e != null) {
+                        hits.incrementAndGet();
+                    }
+                    waiter.callback.found(e, null);
+                });
+            }
+        }
+
+        /**
+         * Reserves <code>length</code> bytes of the capacity for the body unless the bodies being filled would
+         * take more than the whole capacity then.
+         *
+         * @return whether the bytes were reserved
+         */
+        private boolean reserve(long length) {
+            synchronized (ResponseCache.this) {
+                if (filling + length > capacity) return false;
+                filling += length;
+                reserved = length;
+                evict();
+                return true;
+            }
+        }
+
+        /**
+         * Returns the bytes reserved for the body to the capacity.
+         */
+        private void release() {
+            synchronized (ResponseCache.this) {
+                filling -= reserved;
+                reserved = 0;
+            }
+        }
+    }
+
+    private static class Waiter {
+        private final HTTPRequest request;
+        private final Executor completion;
+        private final Callback callback;
+
+        private Waiter(HTTPRequest request, Executor completion, Callback callback) {
+            this.request = request;
+            this.completion = completion;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs lookups of a blocking {@link Resolver} on its own threads and caches the results. <br>
+ *
+ * Successful lookups are cached for {@link #ttlMillis}, failed ones for {@link #negativeTtlMillis}.
+ * Concurrent requests for a host that is being resolved wait for the same lookup instead of starting
+ * another one. Callbacks are run by the <code>completion</code> executor passed to
+ * {@link #resolve(String, Executor, Callback)}, so a reactor gets them back on its own thread.
+ */
+public class AsyncResolver {
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+    public static final int DEFAULT_THREADS = 4;
+
+    public interface Callback {
+        /**
+         * @param address resolved address or <code>null</code> if the lookup failed
+         * @param error   cause of the failure or <code>null</code> if the lookup succeeded
+         */
+        void resolved(InetAddress address, UnknownHostException error);
+    }
+
+    private final Resolver resolver;
+    private final Executor executor;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final int maxEntries;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, Lookup> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+
+    public AsyncResolver() {
+        this(new SystemResolver());
+    }
+
+    public AsyncResolver(Resolver resolver) {
+        this(resolver, newExecutor(DEFAULT_THREADS), DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    public AsyncResolver(Resolver resolver, Executor executor, long ttlMillis, long negativeTtlMillis, int maxEntries) {
+        this.resolver = resolver;
+        this.executor = executor;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Resolves <code>host</code>. A cached result is passed to <code>callback</code> immediately in the
+     * calling thread, otherwise the callback is submitted to <code>completion</code> when the lookup finishes.
+     */
+    public void resolve(String host, Executor completion, Callback callback) {
+        Entry entry = cache.get(host);
+        if (entry != null) {
+            if (entry.expiresAt - System.currentTimeMillis() > 0) {
+                hits.incrementAndGet();
+                callback.resolved(entry.address, entry.error);
+                return;
+            }
+            cache.remove(host, entry);
+        }
+
+        misses.incrementAndGet();
+        Lookup lookup = new Lookup(host);
+        Lookup existing = inFlight.putIfAbsent(host, lookup);
+        if (existing != null) {
+            existing.await(completion, callback);
+            return;
+        }
+        lookup.await(completion, callback);
+        lookups.incrementAndGet();
+        executor.execute(lookup);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of lookups passed to the underlying {@link Resolver}
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    private void store(String host, Entry entry) {
+        if (cache.size() >= maxEntries) {
+            evict();
+        }
+        cache.put(host, entry);
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        cache.values().removeIf(e -> e.expiresAt - now <= 0);
+        Iterator<String> iterator = cache.keySet().iterator();
+        while (cache.size() >= maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "resolver-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static class Entry {
+        private final InetAddress address;
+        private final UnknownHostException error;
+        private final long expiresAt;
+
+        private Entry(InetAddress address, UnknownHostException error, long expiresAt) {
+            this.address = address;
+            this.error = error;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private class Lookup implements Runnable {
+        private final String host;
+        private final List<Waiter> waiters = new ArrayList<>();
+        private Entry result;
+
+        private Lookup(String host) {
+            this.host = host;
+        }
+
+        private void await(Executor completion, Callback callback) {
+            Entry result;
+            synchronized (this) {
+                result = this.result;
+                if (result == null) {
+                    waiters.add(new Waiter(completion, callback));
+                    return;
+                }
+            }
+            completion.execute(() -> callback.resolved(result.address, result.error));
+        }
+
+        @Override
+        public void run() {
+            Entry entry;
+            try {
+                InetAddress address = resolver.resolve(host);
+                entry = new Entry(address, null, System.currentTimeMillis() + ttlMillis);
+            } catch (UnknownHostException e) {
+                entry = new Entry(null, e, System.currentTimeMillis() + negativeTtlMillis);
+            } catch (RuntimeException e) {
+                UnknownHostException error = new UnknownHostException(host);
+                error.initCause(e);
+                entry = new Entry(null, error, System.currentTimeMillis() + negativeTtlMillis);
+            }
+
+            store(host, entry);
+            inFlight.remove(host, this);
+
+            List<Waiter> waiters;
+            synchronized (this) {
+                result = entry;
+                waiters = new ArrayList<>(this.waiters);
+                this.waiters.clear();
+            }
+            final Entry e = entry;
+            for (Waiter waiter : waiters) {
+                waiter.completion.execute(() -> waiter.callback.resolved(e.address, e.error));
+            }
+        }
+    }
+
+    private static class Waiter {
+        private final Executor completion;
+        private final Callback callback;
+
+        private Waiter(Executor completion, Callback callback) {
+            this.completion = completion;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Blocking host name lookup. Implementations are called from the resolver threads of an
+ * {@link AsyncResolver}, never from a selector thread.
+ */
+public interface Resolver {
+    InetAddress resolve(String host)
+            throws UnknownHostException;
+}
@@ -0,0 +1,15 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * {@link Resolver} backed by {@link InetAddress#getByName(String)}.
+ */
+public class SystemResolver implements Resolver {
+    @Override
+    public InetAddress resolve(String host)
+            throws UnknownHostException {
+        return InetAddress.getByName(host);
+    }
+}
@@ -0,0 +1,255 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.UTF_8;
+
+/**
+ * Access log with one JSON line per proxied request. <br>
+ *
+ * Reactors {@link #log publish} records into a fixed ring of preallocated slots without locking or
+ * allocating: a slot is claimed with a compare-and-set on {@link #claimed} and handed over by writing its
+ * sequence number. A single background thread drains published records in order, formats them and writes
+ * them to the output in batches, flushing whenever the ring runs empty. A full ring never blocks a reactor;
+ * the record is dropped and counted in {@link #getDropped()} instead.
+ */
+public class AccessLog implements Closeable {
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int BATCH = 256;
+
+    private final Record[] ring;
+    private final int mask;
+    private final OutputStream out;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final StringBuilder line = new StringBuilder(256);
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private volatile Log log = new Log();
+
+    public AccessLog(Path file)
+            throws IOException {
+        this(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of records that may wait to be written, rounded up to a power of two
+     */
+    public AccessLog(OutputStream out, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.ring = new Record[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record(i - size);
+        }
+        this.mask = size - 1;
+        this.out = new BufferedOutputStream(out, 64 << 10);
+        this.writer = new Thread(this::drain, "access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Publishes the record of a request. Safe to call from any thread.
+     *
+     * @param time          when the request head was received, in milliseconds since the epoch
+     * @param status        status code sent to the client or <code>0</code> if none was sent
+     * @param requestBytes  bytes of the request read from the client
+     * @param responseBytes bytes of the response written to the client
+     * @param ttfbNanos     time until the response head was received or <code>-1</code> if it was not
+     * @param totalNanos    time until the response was written or the connection was closed
+     */
+    public void log(long time, String client, String method, String host, String uri, int status,
+                    long requestBytes, long responseBytes, long ttfbNanos, long totalNanos) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Record record = ring[(int) (sequence & mask)];
+        record.time = time;
+        record.client = client;
+        record.method = method;
+        record.host = host;
+        record.uri = uri;
+        record.status = status;
+        record.requestBytes = requestBytes;
+        record.responseBytes = responseBytes;
+        record.ttfbNanos = ttfbNanos;
+        record.totalNanos = totalNanos;
+        record.sequence = sequence;
+    }
+
+    /**
+     * @return the number of records dropped because the ring was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of records written to the output
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Sets the log that gets the error the writer thread stops on.
+     */
+    public AccessLog setLog(Log log) {
+        this.log = log;
+        return this;
+    }
+
+    /**
+     * Writes the records published so far and closes the output.
+     */
+    @Override
+    public void close()
+            throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                boolean stopping = closed;
+                int n = writeBatch();
+                if (n == 0) {
+                    out.flush();
+                    if (stopping) return;
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("access log writer failed, records are dropped from now on", e);
+        }
+    }
+
+    /**
+     * @return the number of records written
+     */
+    private int writeBatch()
+            throws IOException {
+        int n = 0;
+        long next = consumed;
+        while (n < BATCH) {
+            Record record = ring[(int) (next & mask)];
+            if (record.sequence != next) break;
+            line.setLength(0);
+            record.format(line);
+            record.clear();
+            consumed = ++next;
+            out.write(line.toString().getBytes(UTF_8));
+            n++;
+        }
+        written.addAndGet(n);
+        return n;
+    }
+
+    private static class Record {
+        private volatile long sequence;
+        private long time;
+        private String client;
+        private String method;
+        private String host;
+        private String uri;
+        private int status;
+        private long requestBytes;
+        private long responseBytes;
+        private long ttfbNanos;
+        private long totalNanos;
+
+        private Record(long sequence) {
+            this.sequence = sequence;
+        }
+
+        private void format(StringBuilder sb) {
+            sb.append("{\"time\":\"");
+            DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(time), sb);
+            sb.append("\",\"client\":");
+            string(sb, client);
+            sb.append(",\"method\":");
+            string(sb, method);
+            sb.append(",\"host\":");
+            string(sb, host);
+            sb.append(",\"uri\":");
+            string(sb, uri);
+            sb.append(",\"status\":").append(status);
+            sb.append(",\"requestBytes\":").append(requestBytes);
+            sb.append(",\"responseBytes\":").append(responseBytes);
+            sb.append(",\"ttfbMs\":");
+            millis(sb, ttfbNanos);
+            sb.append(",\"totalMs\":");
+            millis(sb, totalNanos);
+            sb.append("}\n");
+        }
+
+        private void clear() {
+            client = null;
+            method = null;
+            host = null;
+            uri = null;
+        }
+
+        private static void millis(StringBuilder sb, long nanos) {
+            if (nanos < 0) {
+                sb.append("null");
+                return;
+            }
+            long micros = nanos / 1000;
+            sb.append(micros / 1000).append('.');
+            long fraction = micros % 1000;
+            if (fraction < 100) sb.append('0');
+            if (fraction < 10) sb.append('0');
+            sb.append(fraction);
+        }
+
+        private static void string(StringBuilder sb, String s) {
+            if (s == null) {
+                sb.append("null");
+                return;
+            }
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.log;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.ISO_8859_1;
+
+/**
+ * Diagnostic log of connection events and errors. <br>
+ *
+ * Nothing below {@link #getLevel() the level} is formatted, so callers on a reactor thread check
+ * {@link #isEnabled(Level)} before building arguments of frequent events. Payload dumps are written only at
+ * {@link Level#TRACE} and only for one of every {@link #getPayloadSampling()} chunks, as they copy every
+ * dumped byte to the heap.
+ */
+public class Log {
+    public enum Level {OFF, ERROR, WARN, INFO, DEBUG, TRACE}
+
+    public static final Level DEFAULT_LEVEL = Level.INFO;
+    public static final int DEFAULT_PAYLOAD_SAMPLING = 1;
+
+    private final Level level;
+    private final int payloadSampling;
+    private final PrintStream out;
+    private final AtomicLong payloads = new AtomicLong();
+
+    public Log() {
+        this(DEFAULT_LEVEL, DEFAULT_PAYLOAD_SAMPLING, System.err);
+    }
+
+    /**
+     * @param payloadSampling dump one of this many chunks at {@link Level#TRACE}
+     */
+    public Log(Level level, int payloadSampling, PrintStream out) {
+        if (payloadSampling <= 0) {
+            throw new IllegalArgumentException("payloadSampling must be positive: " + payloadSampling);
+        }
+        this.level = level;
+        this.payloadSampling = payloadSampling;
+        this.out = out;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public int getPayloadSampling() {
+        return payloadSampling;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(this.level) <= 0;
+    }
+
+    public void error(String message, Throwable e) {
+        if (!isEnabled(Level.ERROR)) return;
+        synchronized (out) {
+            line(Level.ERROR, message);
+            if (e != null) {
+                e.printStackTrace(out);
+            }
+        }
+    }
+
+    public void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    public void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    public void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    public void log(Level level, String format, Object... args) {
+        if (!isEnabled(level)) return;
+        line(level, String.format(format, args));
+    }
+
+    /**
+     * Dumps <code>length</code> bytes of <code>buffer</code> starting at <code>from</code> if payloads are
+     * traced and this chunk is sampled.
+     *
+     * @param direction what happened to the bytes, such as <code>"READ from"</code>
+     */
+    public void payload(String direction, Object peer, ByteBuffer buffer, int from, int length) {
+        if (!isEnabled(Level.TRACE) || payloads.getAndIncrement() % payloadSampling != 0) return;
+        byte[] bytes = new byte[length];
+        ByteBuffer src = buffer.duplicate();
+        src.limit(from + length).position(from);
+        src.get(bytes);
+        line(Level.TRACE, String.format("%-9s %s: %d bytes\n%s", direction, peer, length,
+                new String(bytes, ISO_8859_1)));
+    }
+
+    private void line(Level level, String message) {
+        out.format("%-5s [%s] %s\n", level, Thread.currentThread().getName(), message);
+    }
+}
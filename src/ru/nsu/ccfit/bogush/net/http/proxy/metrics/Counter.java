@@ -0,0 +1,28 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter. Updates from different threads go to different cells of a {@link LongAdder}, so
+ * reactors counting the same event do not contend.
+ */
+public class Counter extends Metric {
+    private final LongAdder value = new LongAdder();
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void add(long n) {
+        value.add(n);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    void write(StringBuilder out, String name, String labels) {
+        sample(out, name, labels, Long.toString(get()));
+    }
+}
@@ -0,0 +1,27 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Value that goes up and down, such as the number of open connections.
+ */
+public class Gauge extends Metric {
+    private final LongAdder value = new LongAdder();
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void dec() {
+        value.decrement();
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    void write(StringBuilder out, String name, String labels) {
+        sample(out, name, labels, Long.toString(get()));
+    }
+}
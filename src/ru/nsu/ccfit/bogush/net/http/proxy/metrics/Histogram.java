@@ -0,0 +1,121 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds, recorded without locks or allocation. <br>
+ *
+ * The buckets are log-linear as in HdrHistogram: every power of two is split into {@link #SUB_BUCKETS}
+ * buckets of equal width, so a value is known to within 1 / {@link #SUB_BUCKETS} of itself whatever its
+ * magnitude, and the bucket of a value is found with a few shifts. {@link #getPercentile(double)} uses
+ * the fine buckets. The Prometheus histogram exposes cumulative counts at the powers of two between
+ * {@link #MIN_EXPOSED_EXPONENT} and {@link #MAX_EXPOSED_EXPONENT}, about a microsecond and a minute, in
+ * seconds; these bounds fall on bucket edges, so the exposed counts are exact.
+ */
+public class Histogram extends Metric {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    private static final int MIN_EXPOSED_EXPONENT = 10;
+    private static final int MAX_EXPOSED_EXPONENT = 36;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param nanos duration, negative ones are counted as <code>0</code>
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        sum.add(nanos);
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return the sum of all recorded durations in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @param percentile between <code>0</code> and <code>100</code>
+     * @return the largest value of the bucket holding the given percentile of the recorded values, or
+     * <code>0</code> if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i) - 1;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    void write(StringBuilder out, String name, String labels) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        int i = 0;
+        for (int exponent = MIN_EXPOSED_EXPONENT; exponent <= MAX_EXPOSED_EXPONENT; exponent++) {
+            long bound = 1L << exponent;
+            for (; i < BUCKETS && upperBound(i) <= bound; i++) {
+                cumulative += counts.get(i);
+            }
+            sample(out, name + "_bucket", labels + separator + "le=\"" + seconds(bound) + "\"",
+                    Long.toString(cumulative));
+        }
+        for (; i < BUCKETS; i++) {
+            cumulative += counts.get(i);
+        }
+        sample(out, name + "_bucket", labels + separator + "le=\"+Inf\"", Long.toString(cumulative));
+        sample(out, name + "_sum", labels, seconds(getSum()));
+        // the count matches the buckets even if values are being recorded meanwhile
+        sample(out, name + "_count", labels, Long.toString(cumulative));
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the smallest value above the <code>i</code>-th bucket
+     */
+    static long upperBound(int i) {
+        if (i < SUB_BUCKETS) {
+            return i + 1;
+        }
+        int shift = i / SUB_BUCKETS - 1;
+        long mantissa = i % SUB_BUCKETS + SUB_BUCKETS;
+        long bound = mantissa + 1 << shift;
+        return bound > 0 ? bound : Long.MAX_VALUE;
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
@@ -0,0 +1,21 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.metrics;
+
+/**
+ * A value or a set of values of one {@link MetricRegistry} family with fixed labels.
+ */
+public abstract class Metric {
+    /**
+     * Appends the samples of the metric in the Prometheus text format.
+     *
+     * @param labels the labels of the metric without braces, possibly empty
+     */
+    abstract void write(StringBuilder out, String name, String labels);
+
+    static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,122 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Named families of metrics written in the Prometheus text format. <br>
+ *
+ * A family is a name with a help text and a type holding one metric per set of labels, given as
+ * alternating names and values. The metrics are registered once at startup and then updated directly,
+ * the registry is only consulted to write them.
+ */
+public class MetricRegistry {
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String HISTOGRAM = "histogram";
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public Counter counter(String name, String help, String... labels) {
+        return register(name, help, COUNTER, labels, new Counter());
+    }
+
+    public Gauge gauge(String name, String help, String... labels) {
+        return register(name, help, GAUGE, labels, new Gauge());
+    }
+
+    public Histogram histogram(String name, String help, String... labels) {
+        return register(name, help, HISTOGRAM, labels, new Histogram());
+    }
+
+    /**
+     * Registers a counter whose value is kept elsewhere and read by <code>supplier</code>.
+     */
+    public void counter(String name, String help, LongSupplier supplier, String... labels) {
+        register(name, help, COUNTER, labels, new Sampled(supplier));
+    }
+
+    /**
+     * Registers a gauge whose value is kept elsewhere and read by <code>supplier</code>.
+     */
+    public void gauge(String name, String help, LongSupplier supplier, String... labels) {
+        register(name, help, GAUGE, labels, new Sampled(supplier));
+    }
+
+    public String write() {
+        StringBuilder out = new StringBuilder();
+        write(out);
+        return out.toString();
+    }
+
+    public synchronized void write(StringBuilder out) {
+        for (Map.Entry<String, Family> e : families.entrySet()) {
+            String name = e.getKey();
+            Family family = e.getValue();
+            out.append("# HELP ").append(name).append(' ').append(escape(family.help, false)).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (int i = 0; i < family.metrics.size(); i++) {
+                family.metrics.get(i).write(out, name, family.labels.get(i));
+            }
+        }
+    }
+
+    private synchronized <T extends Metric> T register(String name, String help, String type,
+                                                       String[] labels, T metric) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels of " + name + " aren't name-value pairs");
+        }
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type + ", not a " + type);
+        }
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                joined.append(',');
+            }
+            joined.append(labels[i]).append("=\"").append(escape(labels[i + 1], true)).append('"');
+        }
+        String key = joined.toString();
+        if (family.labels.contains(key)) {
+            throw new IllegalArgumentException(name + "{" + key + "} is already registered");
+        }
+        family.labels.add(key);
+        family.metrics.add(metric);
+        return metric;
+    }
+
+    private static String escape(String s, boolean quotes) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String replacement = c == '\\' ? "\\\\" : c == '\n' ? "\\n" : c == '"' && quotes ? "\\\"" : null;
+            if (replacement != null && sb == null) {
+                sb = new StringBuilder(s.substring(0, i));
+            }
+            if (sb != null) {
+                if (replacement != null) {
+                    sb.append(replacement);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb == null ? s : sb.toString();
+    }
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        private final List<String> labels = new ArrayList<>();
+        private final List<Metric> metrics = new ArrayList<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
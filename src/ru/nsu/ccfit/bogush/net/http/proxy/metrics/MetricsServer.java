@@ -0,0 +1,147 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.metrics;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPParseException;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPRequestHeadParser;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.*;
+
+/**
+ * Admin endpoint answering <code>GET /metrics</code> with the metrics of a {@link MetricRegistry} in the
+ * Prometheus text format. <br>
+ *
+ * It listens on its own port with plain blocking sockets in a single daemon thread, one connection at a
+ * time, so that scraping never touches the reactors and a busy proxy can still be observed.
+ */
+public class MetricsServer implements Closeable {
+    public static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final int MAX_HEAD_SIZE = 8 * 1024;
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final MetricRegistry registry;
+    private final Log log;
+    private final ServerSocket serverSocket;
+    private final Thread thread;
+    private final byte[] head = new byte[MAX_HEAD_SIZE];
+    private final ByteBuffer responseHead = ByteBuffer.allocate(1024);
+
+    /**
+     * Binds the admin port and starts serving.
+     */
+    public MetricsServer(InetSocketAddress address, MetricRegistry registry, Log log)
+            throws IOException {
+        this.registry = registry;
+        this.log = log;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        this.thread = new Thread(this::run, "metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    @Override
+    public void close()
+            throws IOException {
+        serverSocket.close();
+    }
+
+    private void run() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                serve(socket);
+            } catch (SocketException e) {
+                if (!serverSocket.isClosed()) {
+                    log.error("metrics connection failed", e);
+                }
+            } catch (IOException e) {
+                log.error("metrics connection failed", e);
+            }
+        }
+    }
+
+    private void serve(Socket socket)
+            throws IOException {
+        int length = readHead(socket.getInputStream());
+        if (length < 0) {
+            respond(socket.getOutputStream(), "400", "Bad Request", "");
+            return;
+        }
+        HTTPRequest request;
+        try {
+            request = new HTTPRequestHeadParser(head, 0, length).parse();
+        } catch (HTTPParseException e) {
+            respond(socket.getOutputStream(), "400", "Bad Request", "");
+            return;
+        }
+        String target = request.getPath() + request.getQuery();
+        int query = target.indexOf('?');
+        if (query != -1) {
+            target = target.substring(0, query);
+        }
+        if (!"GET".equals(request.getMethod())) {
+            respond(socket.getOutputStream(), "405", "Method Not Allowed", "");
+        } else if (!PATH.equals(target)) {
+            respond(socket.getOutputStream(), "404", "Not Found", "");
+        } else {
+            respond(socket.getOutputStream(), "200", "OK", registry.write());
+        }
+    }
+
+    /**
+     * @return the length of the head read into {@link #head} or <code>-1</code> if the connection ended or
+     * the head didn't fit
+     */
+    private int readHead(InputStream in)
+            throws IOException {
+        int length = 0;
+        while (length < head.length) {
+            int n = in.read(head, length, head.length - length);
+            if (n < 0) {
+                return -1;
+            }
+            int from = Math.max(0, length - 3);
+            length += n;
+            for (int i = from; i + 3 < length; i++) {
+                if (head[i] == '\r' && head[i + 1] == '\n' && head[i + 2] == '\r' && head[i + 3] == '\n') {
+                    return i + 4;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void respond(OutputStream out, String statusCode, String reasonPhrase, String body)
+            throws IOException {
+        byte[] content = body.getBytes(UTF_8);
+        HTTPResponse response = (HTTPResponse) new HTTPResponse()
+                .setStatusCode(statusCode)
+                .setReasonPhrase(reasonPhrase)
+                .setVersion(HTTP_1_1)
+                .setField("Content-Type", CONTENT_TYPE)
+                .setField("Content-Length", Integer.toString(content.length))
+                .setField("Connection", "close");
+        responseHead.clear();
+        response.createBuilder().write(responseHead);
+        out.write(responseHead.array(), 0, responseHead.position());
+        out.write(content);
+        out.flush();
+    }
+}
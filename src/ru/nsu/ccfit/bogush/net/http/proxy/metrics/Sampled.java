@@ -0,0 +1,20 @@
+package ru.nsu.ccfit.bogush.net.http.proxy.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Counter or gauge kept elsewhere, such as the statistics of the buffer pool, read when the metrics are
+ * written.
+ */
+class Sampled extends Metric {
+    private final LongSupplier supplier;
+
+    Sampled(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    void write(StringBuilder out, String name, String labels) {
+        sample(out, name, labels, Long.toString(supplier.getAsLong()));
+    }
+}
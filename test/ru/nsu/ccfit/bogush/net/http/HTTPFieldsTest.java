@@ -0,0 +1,45 @@
+package ru.nsu.ccfit.bogush.net.http;
+
+import org.junit.jupiter.api.Test;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPParseException;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPRequestHeadParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.nsu.ccfit.bogush.net.http.Constants.ISO_8859_1;
+import static ru.nsu.ccfit.bogush.net.http.Constants.US_ASCII;
+
+class HTTPFieldsTest {
+    @Test
+    void rawLineAgreesWithNameAndValue()
+            throws IOException, HTTPParseException {
+        String head = "GET / HTTP/1.1\r\nHost: a\r\nContent-Length:5\r\nX-Padded:   v  \r\nX-Empty:\r\n\r\n";
+        HTTPFields fields = new HTTPRequestHeadParser(head.getBytes(US_ASCII)).parse().getFields();
+        ByteBuffer source = fields.getSource();
+        assertEquals(4, fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            assertTrue(fields.isRaw(i));
+            byte[] line = new byte[fields.getRawEnd(i) - fields.getRawStart(i)];
+            source.duplicate().position(fields.getRawStart(i)).get(line);
+            String raw = new String(line, ISO_8859_1);
+            int colon = raw.indexOf(':');
+            assertEquals(fields.getName(i), raw.substring(0, colon));
+            assertEquals(fields.getValue(i), raw.substring(colon + 1).trim());
+        }
+    }
+
+    @Test
+    void rawNameMustBeFollowedByColon() {
+        HTTPFields fields = new HTTPFields();
+        ByteBuffer spaced = ByteBuffer.wrap("Content-Length : 5".getBytes(US_ASCII));
+        assertThrows(IllegalArgumentException.class, () -> fields.addRaw(spaced, 0, 14, 17, 18, null, 0));
+        assertEquals(0, fields.size());
+
+        ByteBuffer tight = ByteBuffer.wrap("Content-Length: 5".getBytes(US_ASCII));
+        fields.addRaw(tight, 0, 14, 16, 17, null, 0);
+        assertEquals("Content-Length", fields.getName(0));
+        assertEquals("5", fields.getValue(0));
+    }
+}
@@ -0,0 +1,114 @@
+package ru.nsu.ccfit.bogush.net.http.parse;
+
+import org.junit.jupiter.api.Test;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.nsu.ccfit.bogush.net.http.Constants.US_ASCII;
+
+class HTTPBodyFramerTest {
+    private static HTTPRequest request(String head)
+            throws IOException, HTTPParseException {
+        return new HTTPRequestHeadParser(head.getBytes(US_ASCII)).parse();
+    }
+
+    @Test
+    void requestWithChunkedAndLengthIsFramedAsChunked()
+            throws IOException, HTTPParseException {
+        HTTPBodyFramer framer = HTTPBodyFramer.forRequest(request("POST / HTTP/1.1\r\nHost: a\r\n" +
+                "Transfer-Encoding: chunked\r\nContent-Length: 100\r\n\r\n"));
+        assertTrue(framer.isChunked());
+    }
+
+    @Test
+    void requestWhoseFinalCodingIsNotChunkedIsRejected() {
+        assertThrows(HTTPParseException.class, () -> HTTPBodyFramer.forRequest(request(
+                "POST / HTTP/1.1\r\nHost: a\r\nTransfer-Encoding: chunked, gzip\r\n\r\n")));
+        assertThrows(HTTPParseException.class, () -> HTTPBodyFramer.forRequest(request(
+                "POST / HTTP/1.1\r\nHost: a\r\nTransfer-Encoding: gzip\r\nContent-Length: 3\r\n\r\n")));
+    }
+
+    private static HTTPBodyFramer chunked()
+            throws IOException, HTTPParseException {
+        HTTPResponse response = new HTTPResponseHeadParser(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(US_ASCII)).parse();
+        return HTTPBodyFramer.forResponse(null, response);
+    }
+
+    /**
+     * Frames <code>body</code> fed in pieces of <code>step</code> bytes.
+     *
+     * @return the number of bytes framed
+     */
+    private static int frame(HTTPBodyFramer framer, byte[] body, int step)
+            throws HTTPParseException {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        int framed = 0;
+        for (int from = 0; from < body.length && !framer.isComplete(); from += step) {
+            framed += framer.frame(buffer, from, Math.min(from + step, body.length));
+        }
+        return framed;
+    }
+
+    @Test
+    void chunkExtensionsAndTrailerAreFramedInAnyPieces()
+            throws IOException, HTTPParseException {
+        String body = "5;name=\"quoted;value\"\r\nhello\r\n" +
+                "3;a;b=c\r\n, w\r\n" +
+                "0;last=1\r\n" +
+                "Expires: never\r\nX-Checksum: 1234\r\n\r\n";
+        byte[] bytes = (body + "HTTP/1.1 200 OK\r\n").getBytes(US_ASCII);
+        for (int step = 1; step <= bytes.length; step++) {
+            HTTPBodyFramer framer = chunked();
+            assertEquals(body.length(), frame(framer, bytes, step), "step " + step);
+            assertTrue(framer.isComplete());
+        }
+    }
+
+    @Test
+    void chunkedBodyWithBareLineFeedsIsFramed()
+            throws IOException, HTTPParseException {
+        byte[] bytes = "2\nab\n0\nX: y\n\n".getBytes(US_ASCII);
+        HTTPBodyFramer framer = chunked();
+        assertEquals(bytes.length, frame(framer, bytes, 1));
+        assertTrue(framer.isComplete());
+    }
+
+    @Test
+    void decodingDropsExtensionsAndTrailer()
+            throws IOException, HTTPParseException {
+        String body = "5;ext\r\nhello\r\n6\r\n world\r\n0\r\nX-T: 1\r\n\r\n";
+        String next = "next";
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        HTTPBodyFramer framer = chunked();
+        int decoded = 0;
+        for (byte b : (body + next).getBytes(US_ASCII)) {
+            buffer.put(b);
+            decoded += framer.decode(buffer, decoded);
+        }
+        assertTrue(framer.isComplete());
+        assertEquals("hello world", new String(buffer.array(), 0, decoded, US_ASCII));
+        assertEquals(next, new String(buffer.array(), decoded, buffer.position() - decoded, US_ASCII));
+    }
+
+    @Test
+    void malformedChunksAreRejected()
+            throws IOException, HTTPParseException {
+        String[] bodies = {
+                ";ext\r\n",
+                "g\r\n",
+                "2\r\nabc\r\n",
+                "2\rx",
+                "0\r\n\rx",
+                "fffffffffffffffff\r\n",
+        };
+        for (String body : bodies) {
+            HTTPBodyFramer framer = chunked();
+            assertThrows(HTTPParseException.class, () -> frame(framer, body.getBytes(US_ASCII), 1), body);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ru.nsu.ccfit.bogush.net.http.parse;
+
+import org.junit.jupiter.api.Test;
+import ru.nsu.ccfit.bogush.net.http.HTTPFields;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.nsu.ccfit.bogush.net.http.Constants.US_ASCII;
+
+class HTTPMessageHeadParserTest {
+    private static final String REQUEST = "GET http://example.com:8080/a/b?c=d HTTP/1.1\r\n" +
+            "Host: example.com:8080\r\n" +
+            "Date: Sun, 18 Oct 2026 12:00:00 GMT\r\n" +
+            "Accept:*/*\r\n" +
+            "Cookie: a=1\r\n" +
+            "Cookie: b=2\r\n" +
+            "\r\n";
+
+    @Test
+    void headSplitAcrossReadsParsesAsWhole()
+            throws IOException, HTTPParseException {
+        byte[] bytes = (REQUEST + "next").getBytes(US_ASCII);
+        HTTPRequest whole = new HTTPRequestHeadParser(REQUEST.getBytes(US_ASCII)).parse();
+        HTTPFields expected = whole.getFields().detach();
+
+        for (int split = 1; split < REQUEST.length(); split++) {
+            for (int step = 1; step <= 7; step++) {
+                HTTPRequestHeadParser parser = new HTTPRequestHeadParser(HTTPMessageHeadParser.DEFAULT_MAX_HEAD_SIZE);
+                parser.reset(0);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+                int bodyStart = HTTPMessageHeadParser.NEED_MORE;
+                // the first read ends at the split, the following ones take step bytes each
+                for (int to = split; bodyStart == HTTPMessageHeadParser.NEED_MORE && buffer.hasRemaining();
+                     to += step) {
+                    buffer.put(bytes, buffer.position(), Math.min(to, bytes.length) - buffer.position());
+                    bodyStart = parser.advance(buffer, buffer.position());
+                }
+                assertEquals(REQUEST.length(), bodyStart, "split at " + split + ", step " + step);
+                HTTPRequest request = parser.getMessage();
+                assertEquals("GET", request.getMethod());
+                assertEquals("example.com", request.getHost());
+                assertEquals(8080, request.getPort());
+                assertEquals(whole.getPath(), request.getPath());
+                assertEquals(whole.getQuery(), request.getQuery());
+                assertEquals("HTTP/1.1", request.getVersion());
+                HTTPFields fields = request.getFields();
+                assertEquals(expected.size(), fields.size());
+                for (int i = 0; i < fields.size(); i++) {
+                    assertEquals(expected.getName(i), fields.getName(i));
+                    assertEquals(expected.getValue(i), fields.getValue(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    void obsoleteLineFoldingIsRejected() {
+        String head = "GET / HTTP/1.1\r\nHost: a\r\nX-Long: first\r\n  second\r\n\r\n";
+        HTTPParseException e = assertThrows(HTTPParseException.class,
+                () -> new HTTPRequestHeadParser(head.getBytes(US_ASCII)).parse());
+        assertEquals(head.indexOf("  second"), e.getErrorOffset());
+
+        String tab = "HTTP/1.1 200 OK\r\nX-Long: first\r\n\tsecond\r\n\r\n";
+        assertThrows(HTTPParseException.class, () -> new HTTPResponseHeadParser(tab.getBytes(US_ASCII)).parse());
+    }
+
+    @Test
+    void whitespaceBeforeColonIsRejected() {
+        String request = "POST / HTTP/1.1\r\nHost: a\r\nContent-Length : 5\r\n\r\n";
+        HTTPParseException e = assertThrows(HTTPParseException.class,
+                () -> new HTTPRequestHeadParser(request.getBytes(US_ASCII)).parse());
+        assertEquals(request.indexOf(" :"), e.getErrorOffset());
+
+        String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding\t: chunked\r\n\r\n";
+        e = assertThrows(HTTPParseException.class,
+                () -> new HTTPResponseHeadParser(response.getBytes(US_ASCII)).parse());
+        assertEquals(response.indexOf("\t:"), e.getErrorOffset());
+    }
+
+    @Test
+    void headWithoutEndIsTooLarge() {
+        HTTPRequestHeadParser parser = new HTTPRequestHeadParser(64);
+        parser.reset(0);
+        ByteBuffer buffer = ByteBuffer.wrap(("GET / HTTP/1.1\r\nX: " + "a".repeat(100)).getBytes(US_ASCII));
+        buffer.position(buffer.limit());
+        assertThrows(HTTPHeadTooLargeException.class, () -> parser.advance(buffer, buffer.position()));
+    }
+}
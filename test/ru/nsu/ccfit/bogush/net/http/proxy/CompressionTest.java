@@ -0,0 +1,162 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import org.junit.jupiter.api.Test;
+import ru.nsu.ccfit.bogush.net.http.proxy.cache.ResponseCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.nsu.ccfit.bogush.net.http.Constants.ISO_8859_1;
+import static ru.nsu.ccfit.bogush.net.http.proxy.Loopback.*;
+
+class CompressionTest {
+    private static final String BODY = body();
+    private static final String GZIP = "Accept-Encoding: gzip, deflate";
+    private static final String TEXT = "Content-Type: text/plain; charset=utf-8";
+
+    private static String body() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < 100_000; i++) {
+            body.append("line ").append(i).append(": the quick brown fox jumps over the lazy dog\n");
+        }
+        return body.toString();
+    }
+
+    private static String gunzip(byte[] bytes)
+            throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return new String(in.readAllBytes(), ISO_8859_1);
+        }
+    }
+
+    /**
+     * @return an origin answering every request with <code>response</code>
+     */
+    private static Origin serve(String response)
+            throws IOException {
+        return new Origin((self, socket, connection) -> {
+            while (self.readRequest(socket) != null) {
+                write(socket, response);
+            }
+        });
+    }
+
+    private static Proxy proxy() {
+        return Loopback.proxy(Proxy.Engine.SELECTOR).setCompressionLevel(6);
+    }
+
+    @Test
+    void compressedBodyRoundTrips()
+            throws Exception {
+        Proxy proxy = proxy();
+        try (Origin origin = serve(response("200 OK", BODY, TEXT, "ETag: \"v1\"", "Vary: Cookie"));
+             Client client = new Client(start(proxy))) {
+            InetSocketAddress address = origin.getAddress();
+            for (int i = 0; i < 2; i++) {
+                Response response = client.send(get(address, "/", GZIP)).read();
+                assertEquals("gzip", response.field("Content-Encoding"));
+                assertNull(response.field("Content-Length"));
+                assertEquals("chunked", response.field("Transfer-Encoding"));
+                assertEquals("W/\"v1\"", response.field("ETag"));
+                assertEquals("Cookie, Accept-Encoding", response.field("Vary"));
+                assertTrue(response.body.length < BODY.length() / 4, "compressed to " + response.body.length);
+                assertEquals(BODY, gunzip(response.body));
+            }
+            assertEquals(2, metric(proxy, "proxy_compressed_responses_total"));
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    @Test
+    void chunkedBodyRoundTrips()
+            throws Exception {
+        String chunked = "HTTP/1.1 200 OK\r\n" + TEXT + "\r\nTransfer-Encoding: chunked\r\n" +
+                "ETag: W/\"weak\"\r\nVary: Accept-Encoding\r\n\r\n" +
+                Integer.toHexString(1000) + "\r\n" + BODY.substring(0, 1000) + "\r\n" +
+                Integer.toHexString(BODY.length() - 1000) + "\r\n" + BODY.substring(1000) + "\r\n0\r\n\r\n";
+        Proxy proxy = proxy();
+        try (Origin origin = serve(chunked); Client client = new Client(start(proxy))) {
+            Response response = client.send(get(origin.getAddress(), "/", GZIP)).read();
+            assertEquals("gzip", response.field("Content-Encoding"));
+            assertEquals("W/\"weak\"", response.field("ETag"));
+            assertEquals("Accept-Encoding", response.field("Vary"));
+            assertEquals(BODY, gunzip(response.body));
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    @Test
+    void gzipRefusedWithZeroQualityIsNotUsed()
+            throws Exception {
+        Proxy proxy = proxy();
+        try (Origin origin = serve(response("200 OK", BODY, TEXT, "ETag: \"v1\""));
+             Client client = new Client(start(proxy))) {
+            InetSocketAddress address = origin.getAddress();
+            for (String accepted : new String[]{"gzip;q=0, identity", "*;q=0.0", "GZIP; q=0.000"}) {
+                Response response = client.send(get(address, "/", "Accept-Encoding: " + accepted)).read();
+                assertNull(response.field("Content-Encoding"), accepted);
+                assertEquals("\"v1\"", response.field("ETag"));
+                assertEquals("Accept-Encoding", response.field("Vary"));
+                assertEquals(BODY, response.text());
+            }
+            assertEquals(0, metric(proxy, "proxy_compressed_responses_total"));
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    @Test
+    void responseIsPassedOnAsItIsOnceBudgetIsSpent()
+            throws Exception {
+        Proxy proxy = proxy().setCompressionBudgetPercent(0);
+        try (Origin origin = serve(response("200 OK", BODY, TEXT, "ETag: \"v1\"", "Vary: Cookie"));
+             Client client = new Client(start(proxy))) {
+            Response response = client.send(get(origin.getAddress(), "/", GZIP)).read();
+            assertNull(response.field("Content-Encoding"));
+            assertEquals(String.valueOf(BODY.length()), response.field("Content-Length"));
+            assertEquals("\"v1\"", response.field("ETag"));
+            // the response still depends on whether the client accepts gzip
+            assertEquals("Cookie, Accept-Encoding", response.field("Vary"));
+            assertEquals(BODY, response.text());
+            assertEquals(1, metric(proxy, "proxy_compression_skipped_total"));
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    @Test
+    void storedResponseIsServedInTheCodingEachClientAccepts()
+            throws Exception {
+        Proxy proxy = proxy().setResponseCache(new ResponseCache());
+        try (Origin origin = serve(response("200 OK", BODY, TEXT, "Cache-Control: max-age=60", "ETag: \"v1\""));
+             Client client = new Client(start(proxy))) {
+            InetSocketAddress address = origin.getAddress();
+            // stored, then served from the store, where its gzip variant is stored along with it
+            for (int i = 0; i < 2; i++) {
+                Response response = client.send(get(address, "/", GZIP)).read();
+                assertEquals("gzip", response.field("Content-Encoding"));
+                assertEquals("W/\"v1\"", response.field("ETag"));
+                assertEquals(BODY, gunzip(response.body));
+            }
+            for (String accepted : new String[]{null, "Accept-Encoding: identity", "Accept-Encoding: gzip;q=0"}) {
+                Response response = (accepted == null ? client.send(get(address, "/")) :
+                        client.send(get(address, "/", accepted))).read();
+                assertNull(response.field("Content-Encoding"), accepted);
+                assertEquals(String.valueOf(BODY.length()), response.field("Content-Length"));
+                assertEquals("\"v1\"", response.field("ETag"));
+                assertEquals("Accept-Encoding", response.field("Vary"));
+                assertEquals(BODY, response.text());
+            }
+            Response response = client.send(get(address, "/", GZIP)).read();
+            assertEquals(BODY, gunzip(response.body));
+            assertEquals(1, origin.getHeads().size());
+        } finally {
+            proxy.stop();
+        }
+    }
+}
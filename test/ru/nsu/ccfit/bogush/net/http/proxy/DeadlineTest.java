@@ -0,0 +1,80 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.nsu.ccfit.bogush.net.http.proxy.Loopback.*;
+
+class DeadlineTest {
+    private static final long DEADLINE_MILLIS = 300;
+
+    /**
+     * Milliseconds are truncated the way the deadlines truncate them, so that one reached in time is never
+     * measured as early.
+     */
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void unfinishedRequestHeadIsAnsweredWith408(Proxy.Engine engine)
+            throws Exception {
+        Proxy proxy = proxy(engine).setHeadTimeoutMillis(DEADLINE_MILLIS);
+        try (Origin origin = new Origin((self, socket, connection) -> { });
+             Client client = new Client(start(proxy))) {
+            String head = get(origin.getAddress(), "/");
+            long start = now();
+            client.send(head.substring(0, head.length() / 2));
+            assertEquals(408, client.read().status());
+            assertTrue(now() - start >= DEADLINE_MILLIS, "answered after " + (now() - start));
+            assertTrue(client.closed());
+            assertEquals(0, origin.getConnections());
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void unansweredRequestIsAnsweredWith504(Proxy.Engine engine)
+            throws Exception {
+        Proxy proxy = proxy(engine).setHeadTimeoutMillis(DEADLINE_MILLIS);
+        try (Origin origin = new Origin((self, socket, connection) -> {
+            self.readRequest(socket);
+            // until the proxy gives up and closes the connection
+            self.readRequest(socket);
+        }); Client client = new Client(start(proxy))) {
+            long start = now();
+            assertEquals(504, client.send(get(origin.getAddress(), "/")).read().status());
+            assertTrue(now() - start >= DEADLINE_MILLIS, "answered after " + (now() - start));
+            assertEquals(1, origin.getHeads().size());
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void idleClientConnectionIsClosedSilently(Proxy.Engine engine)
+            throws Exception {
+        Proxy proxy = proxy(engine).setIdleTimeoutMillis(DEADLINE_MILLIS);
+        try (Origin origin = new Origin((self, socket, connection) -> {
+            while (self.readRequest(socket) != null) {
+                write(socket, response("200 OK", "ok"));
+            }
+        }); Client client = new Client(start(proxy))) {
+            InetSocketAddress address = origin.getAddress();
+            // the deadline is set once the response is sent, before it is read here
+            long start = now();
+            assertEquals("ok", client.send(get(address, "/")).read().text());
+            assertNull(client.read());
+            assertTrue(now() - start >= DEADLINE_MILLIS, "closed after " + (now() - start));
+        } finally {
+            proxy.stop();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.nsu.ccfit.bogush.net.http.proxy.Loopback.*;
+
+class FramingTest {
+    private static final byte[] BODY = new byte[200_000];
+
+    static {
+        new Random(22).nextBytes(BODY);
+    }
+
+    /**
+     * @return {@link #BODY} in chunks of uneven sizes, with an extension and a trailer field
+     */
+    private static byte[] chunked() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int from = 0, size = 1; from < BODY.length; from += size, size = size * 3 + 7) {
+            size = Math.min(size, BODY.length - from);
+            out.writeBytes(bytes(Integer.toHexString(size) + (from == 0 ? ";ext=1" : "") + "\r\n"));
+            out.write(BODY, from, size);
+            out.writeBytes(bytes("\r\n"));
+        }
+        out.writeBytes(bytes("0\r\nX-Trailer: 1\r\n\r\n"));
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes <code>bytes</code> in pieces which end in the middle of chunk sizes, data and delimiters.
+     */
+    private static void writeInPieces(Socket socket, byte[] bytes)
+            throws IOException, InterruptedException {
+        for (int from = 0, size = 1; from < bytes.length; from += size, size = size * 2 + 1) {
+            size = Math.min(size, bytes.length - from);
+            socket.getOutputStream().write(bytes, from, size);
+            socket.getOutputStream().flush();
+            Thread.sleep(1);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void chunkedResponseIsDechunkedForHttp10Client(Proxy.Engine engine)
+            throws Exception {
+        Proxy proxy = proxy(engine);
+        try (Origin origin = new Origin((self, socket, connection) -> {
+            while (self.readRequest(socket) != null) {
+                write(socket, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+                writeInPieces(socket, chunked());
+            }
+        }); Client client = new Client(start(proxy))) {
+            InetSocketAddress address = origin.getAddress();
+            String authority = address.getAddress().getHostAddress() + ":" + address.getPort();
+            client.send("GET http://" + authority + "/ HTTP/1.0\r\nHost: " + authority + "\r\n\r\n");
+            Response response = client.read();
+            assertEquals(200, response.status());
+            assertNull(response.field("Transfer-Encoding"));
+            assertArrayEquals(BODY, response.body);
+            assertTrue(origin.getHeads().get(0).startsWith("GET / HTTP/1.1\r\n"), origin.getHeads().get(0));
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void closeDelimitedResponseIsRechunkedForKeepAliveClient(Proxy.Engine engine)
+            throws Exception {
+        Proxy proxy = proxy(engine);
+        try (Origin origin = new Origin((self, socket, connection) -> {
+            if (self.readRequest(socket) == null) return;
+            write(socket, "HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n");
+            writeInPieces(socket, BODY);
+        }); Client client = new Client(start(proxy))) {
+            InetSocketAddress address = origin.getAddress();
+            for (int i = 0; i < 2; i++) {
+                Response response = client.send(get(address, "/" + i)).read();
+                assertEquals(200, response.status());
+                assertEquals("chunked", response.field("Transfer-Encoding"));
+                assertNull(response.field("Content-Length"));
+                assertArrayEquals(BODY, response.body);
+            }
+            // both were read over the same client connection, each from a connection of its own
+            assertEquals(2, origin.getConnections());
+        } finally {
+            proxy.stop();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.HTTPResponse;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPParseException;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPRequestHeadParser;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPResponseHeadParser;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.AccessLog;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ru.nsu.ccfit.bogush.net.http.Constants.ISO_8859_1;
+import static ru.nsu.ccfit.bogush.net.http.Constants.US_ASCII;
+
+/**
+ * A {@link Proxy} on the loopback interface together with an embedded origin server and a blocking client to
+ * drive it with. <br>
+ *
+ * The origin runs a {@link Handler} in a thread of its own for every connection it accepts, and the client
+ * writes raw bytes and reads responses framed the way a client has to: by <code>Content-Length</code>, by
+ * chunks or by the end of the connection.
+ */
+final class Loopback {
+    static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    static final int TIMEOUT_MILLIS = 5000;
+
+    private Loopback() {
+    }
+
+    static Proxy proxy(Proxy.Engine engine) {
+        return new Proxy(new InetSocketAddress(LOOPBACK, 0), 1)
+                .setEngine(engine)
+                .setLog(new Log(Log.Level.WARN, Log.DEFAULT_PAYLOAD_SAMPLING, System.err))
+                .setAccessLog(new AccessLog(OutputStream.nullOutputStream(), AccessLog.DEFAULT_CAPACITY))
+                .setResponseCache(null)
+                .setDebugRecycling(true);
+    }
+
+    /**
+     * Runs <code>proxy</code> in a daemon thread and waits until it accepts connections.
+     */
+    static InetSocketAddress start(Proxy proxy)
+            throws IOException, InterruptedException {
+        Thread acceptor = new Thread(() -> {
+            try {
+                proxy.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "proxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        InetSocketAddress address;
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ((address = proxy.getLocalAddress()) == null) {
+            if (System.currentTimeMillis() > end) throw new IOException("proxy didn't start");
+            Thread.sleep(5);
+        }
+        return address;
+    }
+
+    /**
+     * @return the value of the metric <code>name</code> without labels, as the proxy serves it
+     */
+    static long metric(Proxy proxy, String name) {
+        for (String line : proxy.getMetrics().write().split("\n")) {
+            if (line.startsWith(name + " ")) return Long.parseLong(line.substring(name.length() + 1).trim());
+        }
+        throw new IllegalArgumentException("no metric " + name);
+    }
+
+    /**
+     * Reads a message head up to and including the empty line that ends it.
+     *
+     * @return the head or <code>null</code> if the stream ended before any of it
+     */
+    static String readHead(InputStream in)
+            throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b == -1) {
+                if (head.size() == 0) return null;
+                throw new IOException("stream ended in a head: " + head.toString(ISO_8859_1));
+            }
+            head.write(b);
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : b == '\r' ? 1 : 0;
+        }
+        return head.toString(ISO_8859_1);
+    }
+
+    static byte[] readFully(InputStream in, int length)
+            throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) throw new IOException("stream ended after " + bytes.length + " of " + length);
+        return bytes;
+    }
+
+    static byte[] readChunked(InputStream in)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String line = readLine(in);
+            int semicolon = line.indexOf(';');
+            int size = Integer.parseInt((semicolon == -1 ? line : line.substring(0, semicolon)).trim(), 16);
+            if (size == 0) break;
+            body.write(readFully(in, size));
+            readLine(in);
+        }
+        // trailer fields
+        while (!readLine(in).isEmpty()) {
+            continue;
+        }
+        return body.toByteArray();
+    }
+
+    private static String readLine(InputStream in)
+            throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) throw new IOException("stream ended in a line: " + line);
+            if (b != '\r') line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    static HTTPRequest parseRequest(String head)
+            throws IOException, HTTPParseException {
+        return new HTTPRequestHeadParser(head.getBytes(ISO_8859_1)).parse();
+    }
+
+    static String get(InetSocketAddress origin, String path, String... fields) {
+        return request("GET", origin, path, fields);
+    }
+
+    /**
+     * @return the head of an HTTP/1.1 request in absolute form with <code>fields</code> after <code>Host</code>
+     */
+    static String request(String method, InetSocketAddress origin, String path, String... fields) {
+        String authority = origin.getAddress().getHostAddress() + ":" + origin.getPort();
+        StringBuilder head = new StringBuilder(method).append(" http://").append(authority).append(path)
+                .append(" HTTP/1.1\r\nHost: ").append(authority).append("\r\n");
+        for (String field : fields) {
+            head.append(field).append("\r\n");
+        }
+        return head.append("\r\n").toString();
+    }
+
+    static String response(String status, String body, String... fields) {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        for (String field : fields) {
+            head.append(field).append("\r\n");
+        }
+        return head.append("Content-Length: ").append(body.length()).append("\r\n\r\n").append(body).toString();
+    }
+
+    static void write(Socket socket, String text)
+            throws IOException {
+        write(socket, text.getBytes(ISO_8859_1));
+    }
+
+    static void write(Socket socket, byte[] bytes)
+            throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Serves one connection accepted by the {@link Origin}.
+     */
+    interface Handler {
+        /**
+         * @param connection the number of connections accepted before this one
+         */
+        void handle(Origin origin, Socket socket, int connection)
+                throws Exception;
+    }
+
+    static class Origin implements Closeable {
+        private final ServerSocket server;
+        private final Handler handler;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final List<String> heads = new CopyOnWriteArrayList<>();
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+        Origin(Handler handler)
+                throws IOException {
+            this.server = new ServerSocket(0, 50, LOOPBACK);
+            this.handler = handler;
+            Thread acceptor = new Thread(this::accept, "origin");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void accept() {
+            while (!server.isClosed()) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                sockets.add(socket);
+                int connection = connections.getAndIncrement();
+                Thread thread = new Thread(() -> {
+                    try (socket) {
+                        socket.setSoTimeout(TIMEOUT_MILLIS);
+                        handler.handle(this, socket, connection);
+                    } catch (SocketException ignored) {
+                        // closed by the proxy
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }, "origin-" + connection);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        /**
+         * Reads the head of the next request on <code>socket</code> and remembers it.
+         *
+         * @return the head or <code>null</code> if the proxy closed the connection
+         */
+        String readRequest(Socket socket)
+                throws IOException {
+            String head = readHead(socket.getInputStream());
+            if (head != null) heads.add(head);
+            return head;
+        }
+
+        InetSocketAddress getAddress() {
+            return (InetSocketAddress) server.getLocalSocketAddress();
+        }
+
+        int getConnections() {
+            return connections.get();
+        }
+
+        List<String> getHeads() {
+            return heads;
+        }
+
+        @Override
+        public void close()
+                throws IOException {
+            server.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    static class Response {
+        final HTTPResponse head;
+        final byte[] body;
+
+        Response(HTTPResponse head, byte[] body) {
+            this.head = head;
+            this.body = body;
+        }
+
+        int status() {
+            return Integer.parseInt(head.getStatusCode());
+        }
+
+        String field(String name) {
+            return head.getFieldValue(name);
+        }
+
+        String text() {
+            return new String(body, ISO_8859_1);
+        }
+    }
+
+    static class Client implements Closeable {
+        final Socket socket;
+        private final InputStream in;
+
+        Client(InetSocketAddress proxy)
+                throws IOException {
+            socket = new Socket(proxy.getAddress(), proxy.getPort());
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            in = socket.getInputStream();
+        }
+
+        Client send(String text)
+                throws IOException {
+            write(socket, text);
+            return this;
+        }
+
+        Response read()
+                throws IOException, HTTPParseException {
+            return read(false);
+        }
+
+        /**
+         * Reads the next response, skipping interim ones.
+         *
+         * @param head whether it answers a <code>HEAD</code> or <code>CONNECT</code> request and so has no body
+         * @return the response or <code>null</code> if the connection ended before one
+         */
+        Response read(boolean head)
+                throws IOException, HTTPParseException {
+            while (true) {
+                String text = readHead(in);
+                if (text == null) return null;
+                HTTPResponse response = new HTTPResponseHeadParser(text.getBytes(ISO_8859_1)).parse();
+                int status = Integer.parseInt(response.getStatusCode());
+                if (status >= 100 && status < 200) continue;
+                String length = response.getFieldValue("Content-Length");
+                String coding = response.getFieldValue("Transfer-Encoding");
+                byte[] body;
+                if (head || status == 204 || status == 304) {
+                    body = new byte[0];
+                } else if (coding != null && coding.toLowerCase().endsWith("chunked")) {
+                    body = readChunked(in);
+                } else if (length != null) {
+                    body = readFully(in, Integer.parseInt(length.trim()));
+                } else {
+                    body = in.readAllBytes();
+                }
+                return new Response(response, body);
+            }
+        }
+
+        /**
+         * @return whether the proxy closed the connection, waiting for it at most the socket timeout
+         */
+        boolean closed()
+                throws IOException {
+            try {
+                return in.read() == -1;
+            } catch (SocketException e) {
+                return true;
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException {
+            socket.close();
+        }
+    }
+
+    static byte[] bytes(String text) {
+        return text.getBytes(US_ASCII);
+    }
+}
@@ -0,0 +1,44 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import org.junit.jupiter.api.Test;
+import ru.nsu.ccfit.bogush.net.http.HTTPRequest;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPParseException;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPRequestHeadParser;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.nsu.ccfit.bogush.net.http.Constants.US_ASCII;
+
+class MessagesTest {
+    private static HTTPRequest request(String head)
+            throws IOException, HTTPParseException {
+        return new HTTPRequestHeadParser(head.getBytes(US_ASCII)).parse();
+    }
+
+    @Test
+    void lengthIsDroppedNextToTransferEncoding()
+            throws IOException, HTTPParseException {
+        HTTPRequest request = request("POST http://a/ HTTP/1.1\r\nHost: a\r\n" +
+                "Content-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n");
+        assertEquals(0, Messages.normalize(request));
+        assertNull(request.getFieldValue("Content-Length"));
+        assertEquals("chunked", request.getFieldValue("Transfer-Encoding"));
+    }
+
+    @Test
+    void connectionOptionsAreDroppedButFramingIsKept()
+            throws IOException, HTTPParseException {
+        HTTPRequest request = request("POST http://a/ HTTP/1.1\r\nHost: a\r\nX-Hop: 1\r\n" +
+                "Connection: keep-alive, X-Hop, Content-Length, Host\r\nProxy-Connection: Y-Hop\r\n" +
+                "Y-Hop: 2\r\nContent-Length: 3\r\nX-End: 3\r\n\r\n");
+        assertEquals(0, Messages.normalize(request));
+        assertNull(request.getFieldValue("X-Hop"));
+        assertNull(request.getFieldValue("Y-Hop"));
+        assertNull(request.getFieldValue("Connection"));
+        assertNull(request.getFieldValue("Proxy-Connection"));
+        assertEquals("3", request.getFieldValue("Content-Length"));
+        assertEquals("a", request.getFieldValue("Host"));
+        assertEquals("3", request.getFieldValue("X-End"));
+    }
+}
@@ -0,0 +1,161 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+    private static final long TICK_MILLIS = 10;
+
+    private final List<String> runs = new ArrayList<>();
+
+    private TimerWheel.Timer timer(String name) {
+        return new TimerWheel.Timer(() -> runs.add(name));
+    }
+
+    /**
+     * Expires the wheel as a reactor does, sleeping until its next tick, until <code>done</code> or for at most
+     * <code>maxMillis</code>.
+     */
+    private static void expireUntil(TimerWheel wheel, BooleanSupplier done, long maxMillis)
+            throws InterruptedException {
+        long end = now() + maxMillis;
+        while (!done.getAsBoolean() && now() < end) {
+            long timeout = wheel.timeoutMillis();
+            Thread.sleep(timeout == 0 ? 1 : timeout);
+            wheel.expire();
+        }
+    }
+
+    /**
+     * Milliseconds are truncated the way the deadlines truncate them, so that one reached in time is never
+     * measured as early.
+     */
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    @Test
+    void timerRunsOnceAndNotBeforeItsDeadline()
+            throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 8);
+        assertEquals(0, wheel.timeoutMillis());
+        long start = now();
+        wheel.schedule(timer("a"), 50);
+        assertNotEquals(0, wheel.timeoutMillis());
+        wheel.expire();
+        assertTrue(runs.isEmpty());
+
+        expireUntil(wheel, () -> !runs.isEmpty(), 1000);
+        assertEquals(List.of("a"), runs);
+        assertTrue(now() - start >= 50, "ran after " + (now() - start));
+        assertEquals(0, wheel.timeoutMillis());
+        expireUntil(wheel, () -> false, 100);
+        assertEquals(List.of("a"), runs);
+    }
+
+    @Test
+    void reschedulingReplacesTheDeadline()
+            throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 8);
+        TimerWheel.Timer later = timer("later");
+        TimerWheel.Timer sooner = timer("sooner");
+        long start = now();
+        wheel.schedule(later, 30);
+        wheel.schedule(later, 150);
+        wheel.schedule(sooner, 500);
+        wheel.schedule(sooner, 20);
+
+        expireUntil(wheel, () -> runs.size() == 2, 1000);
+        assertEquals(List.of("sooner", "later"), runs);
+        assertTrue(now() - start >= 150, "ran after " + (now() - start));
+        assertEquals(0, wheel.timeoutMillis());
+    }
+
+    @Test
+    void timerCancelledBeforeItsDeadlineNeverRuns()
+            throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 8);
+        TimerWheel.Timer cancelled = timer("cancelled");
+        wheel.schedule(cancelled, 20);
+        wheel.cancel(cancelled);
+        wheel.cancel(cancelled);
+        assertEquals(0, wheel.timeoutMillis());
+        expireUntil(wheel, () -> false, 60);
+        assertTrue(runs.isEmpty());
+    }
+
+    @Test
+    void actionMayCancelAndRescheduleTimersExpiringWithIt()
+            throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 8);
+        TimerWheel.Timer second = timer("second");
+        TimerWheel.Timer third = timer("third");
+        TimerWheel.Timer first = new TimerWheel.Timer(() -> {
+            runs.add("first");
+            wheel.cancel(second);
+            wheel.schedule(third, 40);
+        });
+        long start = now();
+        wheel.schedule(first, 20);
+        wheel.schedule(second, 20);
+        wheel.schedule(third, 20);
+
+        expireUntil(wheel, () -> !runs.isEmpty(), 1000);
+        assertEquals(List.of("first"), runs);
+        expireUntil(wheel, () -> runs.size() == 2, 1000);
+        assertEquals(List.of("first", "third"), runs);
+        assertTrue(now() - start >= 60, "ran after " + (now() - start));
+        assertEquals(0, wheel.timeoutMillis());
+    }
+
+    @Test
+    void actionMayRescheduleItsOwnTimer()
+            throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 8);
+        TimerWheel.Timer[] self = new TimerWheel.Timer[1];
+        self[0] = new TimerWheel.Timer(() -> {
+            runs.add("run");
+            if (runs.size() < 3) wheel.schedule(self[0], 0);
+        });
+        wheel.schedule(self[0], 0);
+        // a timer rescheduled for now runs on the next tick, not again in the same expiry
+        expireUntil(wheel, () -> !runs.isEmpty(), 1000);
+        assertEquals(1, runs.size());
+        expireUntil(wheel, () -> runs.size() == 3, 1000);
+        assertEquals(3, runs.size());
+        assertEquals(0, wheel.timeoutMillis());
+    }
+
+    @Test
+    void timerMoreThanOneTurnAwayWaitsForItsTurn()
+            throws InterruptedException {
+        // 4 slots of 10 ms make a turn of 40 ms
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 4);
+        long start = now();
+        wheel.schedule(timer("far"), 130);
+        wheel.schedule(timer("near"), 10);
+
+        expireUntil(wheel, () -> runs.size() == 2, 2000);
+        assertEquals(List.of("near", "far"), runs);
+        assertTrue(now() - start >= 130, "ran after " + (now() - start));
+    }
+
+    @Test
+    void timersAreExpiredAfterAStall()
+            throws InterruptedException {
+        // a reactor busy for longer than a turn visits every slot once
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 4);
+        wheel.schedule(timer("a"), 10);
+        wheel.schedule(timer("b"), 30);
+        wheel.schedule(timer("c"), 90);
+        Thread.sleep(120);
+        wheel.expire();
+        assertEquals(3, runs.size());
+        assertEquals(0, wheel.timeoutMillis());
+    }
+}
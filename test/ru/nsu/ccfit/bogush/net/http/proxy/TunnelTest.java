@@ -0,0 +1,103 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.nsu.ccfit.bogush.net.http.Constants.ISO_8859_1;
+import static ru.nsu.ccfit.bogush.net.http.proxy.Loopback.*;
+
+class TunnelTest {
+    private static String connect(InetSocketAddress target) {
+        String authority = target.getAddress().getHostAddress() + ":" + target.getPort();
+        return "CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n";
+    }
+
+    private static String received(CompletableFuture<byte[]> received)
+            throws Exception {
+        return new String(received.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), ISO_8859_1);
+    }
+
+    /**
+     * The client's half-close reaches the target, which still answers over the other half of the tunnel.
+     */
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void bytesAfterHeadAndClientHalfCloseReachTarget(Proxy.Engine engine)
+            throws Exception {
+        CompletableFuture<byte[]> received = new CompletableFuture<>();
+        Proxy proxy = proxy(engine);
+        try (Origin target = new Origin((self, socket, connection) -> {
+            received.complete(socket.getInputStream().readAllBytes());
+            write(socket, "bye");
+        }); Client client = new Client(start(proxy))) {
+            client.send(connect(target.getAddress()) + "early");
+            assertEquals(200, client.read(true).status());
+            client.send(" late");
+            client.socket.shutdownOutput();
+            assertEquals("early late", received(received));
+            assertEquals("bye", new String(client.socket.getInputStream().readAllBytes(), ISO_8859_1));
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    /**
+     * The target's half-close reaches the client, which can still send over the other half of the tunnel.
+     */
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void targetHalfCloseReachesClient(Proxy.Engine engine)
+            throws Exception {
+        CompletableFuture<byte[]> received = new CompletableFuture<>();
+        Proxy proxy = proxy(engine);
+        try (Origin target = new Origin((self, socket, connection) -> {
+            write(socket, "hello");
+            socket.shutdownOutput();
+            received.complete(socket.getInputStream().readAllBytes());
+        }); Client client = new Client(start(proxy))) {
+            client.send(connect(target.getAddress()));
+            assertEquals(200, client.read(true).status());
+            assertEquals("hello", new String(client.socket.getInputStream().readAllBytes(), ISO_8859_1));
+            client.send("after");
+            client.socket.shutdownOutput();
+            assertEquals("after", received(received));
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    /**
+     * A tunnel opened on a connection that already proxied a response carries nothing of that response.
+     */
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void previousResponseDoesNotLeakIntoTunnel(Proxy.Engine engine)
+            throws Exception {
+        CompletableFuture<byte[]> received = new CompletableFuture<>();
+        Proxy proxy = proxy(engine);
+        try (Origin origin = new Origin((self, socket, connection) -> {
+            while (self.readRequest(socket) != null) {
+                write(socket, response("200 OK", "stale response body"));
+            }
+        }); Origin target = new Origin((self, socket, connection) -> {
+            byte[] bytes = socket.getInputStream().readAllBytes();
+            write(socket, bytes);
+            received.complete(bytes);
+        }); Client client = new Client(start(proxy))) {
+            assertEquals("stale response body", client.send(get(origin.getAddress(), "/")).read().text());
+            client.send(connect(target.getAddress()));
+            assertEquals(200, client.read(true).status());
+            client.send("ping");
+            client.socket.shutdownOutput();
+            assertEquals("ping", received(received));
+            assertEquals("ping", new String(client.socket.getInputStream().readAllBytes(), ISO_8859_1));
+        } finally {
+            proxy.stop();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import ru.nsu.ccfit.bogush.net.http.proxy.log.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.nsu.ccfit.bogush.net.http.proxy.Loopback.*;
+
+class UnitRecyclingTest {
+    private static void answerEach(Origin origin, Socket socket, int connection)
+            throws IOException {
+        String head;
+        while ((head = origin.readRequest(socket)) != null) {
+            String path = parsePath(head);
+            write(socket, response("200 OK", connection + path));
+        }
+    }
+
+    private static String parsePath(String head) {
+        return head.substring(head.indexOf(' ') + 1, head.indexOf(' ', head.indexOf(' ') + 1));
+    }
+
+    private static void awaitBuffersReturned(Proxy proxy)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (proxy.getBufferPool().getInUseBytes() != 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, proxy.getBufferPool().getInUseBytes());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void pipelinedRequestsAreAnsweredInOrderOverOneUpstream(Proxy.Engine engine)
+            throws Exception {
+        Proxy proxy = proxy(engine);
+        try (Origin origin = new Origin(UnitRecyclingTest::answerEach);
+             Client client = new Client(start(proxy))) {
+            InetSocketAddress address = origin.getAddress();
+            client.send(get(address, "/1") + get(address, "/2") + get(address, "/3"));
+            for (int i = 1; i <= 3; i++) {
+                Response response = client.read();
+                assertEquals(200, response.status());
+                assertEquals("0/" + i, response.text());
+            }
+            assertEquals(1, origin.getConnections());
+            assertEquals(3, origin.getHeads().size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals("/" + (i + 1), parsePath(origin.getHeads().get(i)));
+            }
+            // a pipelined batch behind a reused upstream is answered the same way
+            client.send(get(address, "/4") + get(address, "/5"));
+            assertEquals("0/4", client.read().text());
+            assertEquals("0/5", client.read().text());
+            assertEquals(1, origin.getConnections());
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    /**
+     * A response cut off in the middle of its body fails both units of the pair. The units the next connection
+     * gets, recycled ones unless they are poisoned, start with nothing of the failed exchange.
+     */
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void unitFailedMidBodyStartsCleanWhenRecycled(boolean debugRecycling)
+            throws Exception {
+        ByteArrayOutputStream logged = new ByteArrayOutputStream();
+        Proxy proxy = proxy(Proxy.Engine.SELECTOR)
+                .setDebugRecycling(debugRecycling)
+                .setLog(new Log(Log.Level.WARN, Log.DEFAULT_PAYLOAD_SAMPLING, new PrintStream(logged, true)));
+        try (Origin origin = new Origin((self, socket, connection) -> {
+            if (connection == 0) {
+                self.readRequest(socket);
+                write(socket, "HTTP/1.1 200 OK\r\nContent-Length: 100\r\nX-Stale: 1\r\n\r\n" + "x".repeat(10));
+                return;
+            }
+            answerEach(self, socket, connection);
+        })) {
+            InetSocketAddress proxyAddress = start(proxy);
+            InetSocketAddress address = origin.getAddress();
+            try (Client client = new Client(proxyAddress)) {
+                client.send(get(address, "/cut", "X-Request: 1"));
+                assertThrows(IOException.class, client::read);
+            }
+            awaitBuffersReturned(proxy);
+
+            // the client also fails the pair by closing in the middle of the request body
+            try (Client client = new Client(proxyAddress)) {
+                client.send(request("POST", address, "/post", "Content-Length: 100") + "y".repeat(10));
+            }
+            awaitBuffersReturned(proxy);
+
+            for (int i = 0; i < 3; i++) {
+                try (Client client = new Client(proxyAddress)) {
+                    Response response = client.send(get(address, "/next")).read();
+                    assertEquals(200, response.status());
+                    assertNull(response.field("X-Stale"));
+                    assertTrue(response.text().endsWith("/next"));
+                }
+            }
+            for (String head : origin.getHeads().subList(2, origin.getHeads().size())) {
+                assertTrue(head.startsWith("GET /next HTTP/1.1\r\n"), head);
+                assertFalse(head.contains("X-Request") || head.contains("Content-Length"), head);
+            }
+            awaitBuffersReturned(proxy);
+            assertFalse(logged.toString().contains("released unit"), logged.toString());
+        } finally {
+            proxy.stop();
+        }
+    }
+}
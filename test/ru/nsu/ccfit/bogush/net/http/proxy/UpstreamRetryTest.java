@@ -0,0 +1,90 @@
+package ru.nsu.ccfit.bogush.net.http.proxy;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import ru.nsu.ccfit.bogush.net.http.parse.HTTPParseException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.nsu.ccfit.bogush.net.http.proxy.Loopback.*;
+
+class UpstreamRetryTest {
+    private static final String RETRIES = "proxy_upstream_retries_total";
+
+    /**
+     * Answers the first request on the first connection and closes it once the second one is read, as an origin
+     * that times the connection out just as the request arrives does. Later connections answer every request.
+     */
+    private static void closeOnSecond(Origin origin, Socket socket, int connection)
+            throws IOException {
+        for (int i = 0; origin.readRequest(socket) != null; i++) {
+            if (connection == 0 && i == 1) return;
+            write(socket, response("200 OK", connection + ":" + i));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void idempotentRequestIsSentAgainAfterReusedUpstreamCloses(Proxy.Engine engine)
+            throws Exception {
+        Origin origin = new Origin(UpstreamRetryTest::closeOnSecond);
+        Proxy proxy = proxy(engine);
+        try (origin; Client client = new Client(start(proxy))) {
+            InetSocketAddress address = origin.getAddress();
+            assertEquals("0:0", client.send(get(address, "/a")).read().text());
+            Response retried = client.send(get(address, "/b")).read();
+            assertEquals(200, retried.status());
+            assertEquals("1:0", retried.text());
+            assertEquals(2, origin.getConnections());
+            assertEquals(1, metric(proxy, RETRIES));
+            assertEquals("1:1", client.send(get(address, "/c")).read().text());
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void requestWithBodyIsNotSentAgain(Proxy.Engine engine)
+            throws Exception {
+        Origin origin = new Origin(UpstreamRetryTest::closeOnSecond);
+        Proxy proxy = proxy(engine);
+        try (origin; Client client = new Client(start(proxy))) {
+            InetSocketAddress address = origin.getAddress();
+            assertEquals("0:0", client.send(get(address, "/a")).read().text());
+            Response failed = client.send(get(address, "/b", "Content-Length: 4") + "body").read();
+            assertEquals(502, failed.status());
+            assertEquals(1, origin.getConnections());
+            assertEquals(0, metric(proxy, RETRIES));
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Proxy.Engine.class)
+    void requestIsSentAgainOnlyOnce(Proxy.Engine engine)
+            throws Exception {
+        Origin origin = new Origin((self, socket, connection) -> {
+            if (self.readRequest(socket) == null) return;
+            if (connection == 0) {
+                write(socket, response("200 OK", "kept"));
+                self.readRequest(socket);
+            }
+            // the new connection closes unanswered too
+        });
+        Proxy proxy = proxy(engine);
+        try (origin; Client client = new Client(start(proxy))) {
+            InetSocketAddress address = origin.getAddress();
+            assertEquals("kept", client.send(get(address, "/a")).read().text());
+            assertEquals(502, client.send(get(address, "/b")).read().status());
+            assertEquals(2, origin.getConnections());
+            assertEquals(1, metric(proxy, RETRIES));
+        } finally {
+            proxy.stop();
+        }
+    }
+}